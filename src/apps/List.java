@@ -3,6 +3,7 @@ package apps;
 import java.util.*;
 
 import naming.*;
+import rmi.Batch;
 
 /** Lists files and directories.
 
@@ -84,12 +85,24 @@ public class List extends ClientApplication
         String[]        components;
 
         // If the path is remote, obtain a naming server stub. Lock the path on
-        // the naming server and list it.
+        // the naming server, list it and unlock it, all in one round trip. The
+        // calls following one that fails are skipped, so nothing is listed or
+        // unlocked if the path cannot be locked.
         Service         naming_server = NamingStubs.service(object.hostname);
 
+        Batch<Service>  batch = Batch.of(naming_server);
+        batch.stopOnException(true);
+
+        java.util.List<Batch.Result>    results;
+
         try
         {
-            naming_server.lock(object.path, false);
+            batch.calls().lock(object.path, false);
+            batch.calls().isDirectory(object.path);
+            batch.calls().list(object.path);
+            batch.calls().unlock(object.path, false);
+            results = batch.execute();
+            results.get(0).get();
         }
         catch(Throwable t)
         {
@@ -99,8 +112,9 @@ public class List extends ClientApplication
 
         try
         {
-            if(naming_server.isDirectory(object.path))
-                components = naming_server.list(object.path);
+            // Listing a file fails; its only component is its name.
+            if((Boolean)results.get(1).get())
+                components = (String[])results.get(2).get();
             else
                 components = new String[] {object.path.last()};
         }
@@ -111,10 +125,14 @@ public class List extends ClientApplication
         }
         finally
         {
-            // In all cases, make an effort to unlock the path.
+            // In all cases, make an effort to unlock the path. If the unlock
+            // in the batch was skipped, unlock the path separately.
             try
             {
-                naming_server.unlock(object.path, false);
+                if(results.get(3).skipped())
+                    naming_server.unlock(object.path, false);
+                else
+                    results.get(3).get();
             }
             catch(Throwable t)
             {
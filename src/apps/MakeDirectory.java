@@ -4,6 +4,7 @@ import java.util.*;
 
 import common.*;
 import naming.*;
+import rmi.Batch;
 
 /** Creates directories.
 
@@ -73,15 +74,25 @@ public class MakeDirectory extends ClientApplication
         if(directory.path.isRoot())
             throw new ApplicationFailure("cannot create root directory");
 
-        // Lock the parent directory and attempt to make the new directory on
-        // the given naming server.
+        // Lock the parent directory, attempt to make the new directory and
+        // unlock the parent directory on the given naming server, all in one
+        // round trip. The calls following one that fails are skipped.
         Path            parent = directory.path.parent();
 
         Service         naming_server = NamingStubs.service(directory.hostname);
 
+        Batch<Service>  batch = Batch.of(naming_server);
+        batch.stopOnException(true);
+
+        java.util.List<Batch.Result>    results;
+
         try
         {
-            naming_server.lock(parent, true);
+            batch.calls().lock(parent, true);
+            batch.calls().createDirectory(directory.path);
+            batch.calls().unlock(parent, true);
+            results = batch.execute();
+            results.get(0).get();
         }
         catch(Throwable t)
         {
@@ -89,10 +100,10 @@ public class MakeDirectory extends ClientApplication
                                          ": " + t.getMessage());
         }
 
-        // Create the new directory.
+        // Check that the new directory was created.
         try
         {
-            if(!naming_server.createDirectory(directory.path))
+            if(!(Boolean)results.get(1).get())
             {
                 throw new ApplicationFailure("cannot create directory " +
                                              directory);
@@ -106,10 +117,14 @@ public class MakeDirectory extends ClientApplication
         }
         finally
         {
-            // In all cases, make an effort to unlock the parent directory.
+            // In all cases, make an effort to unlock the parent directory. If
+            // the unlock in the batch was skipped, unlock it separately.
             try
             {
-                naming_server.unlock(parent, true);
+                if(results.get(2).skipped())
+                    naming_server.unlock(parent, true);
+                else
+                    results.get(2).get();
             }
             catch(Throwable t)
             {
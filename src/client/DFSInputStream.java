@@ -2,6 +2,8 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.util.*;
 
 import rmi.*;
 import common.*;
@@ -17,6 +19,11 @@ import storage.*;
     wrapped in a <code>BufferedInputStream</code> or other class providing
     buffered input.
 
+    <p>
+    When a storage server returns bytes that do not match the checksums it
+    keeps for the file, the read is made again from another replica of the
+    file, and the stream reads from that replica from then on.
+
     <p>
     <code>DFSInputStream</code> does not support marks.
     <code>DFSInputStream</code> does not provide locking. This must be done
@@ -31,7 +38,9 @@ public class DFSInputStream extends InputStream
     /** Path to the file. */
     private final Path      path;
     /** Storage server hosting the file. */
-    private final Storage   storage_server;
+    private Storage         storage_server;
+    /** Storage servers that have returned damaged bytes of the file. */
+    private final List<Storage> damaged = new ArrayList<Storage>();
     /** Naming server used to find the storage server hosting the file. */
     private final Service   naming_server;
 
@@ -43,6 +52,13 @@ public class DFSInputStream extends InputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Client for the bulk data channel of the storage server, or
+        <code>null</code> if it has none or has not been asked yet. */
+    private BulkClient      bulk = null;
+    /** Indicates that the storage server has been asked for its bulk data
+        channel. */
+    private boolean         bulk_checked = false;
+
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
         naming server.
 
@@ -164,6 +180,110 @@ public class DFSInputStream extends InputStream
     public void close()
     {
         closed = true;
+
+        if(bulk != null)
+            bulk.close();
+    }
+
+    /** Returns a client for the bulk data channel of the storage server, or
+        <code>null</code> if it has none. The storage server is asked on first
+        use only. */
+    private BulkClient bulk() throws RMIException
+    {
+        if(!bulk_checked)
+        {
+            bulk = BulkClient.of(storage_server);
+            bulk_checked = true;
+        }
+
+        return bulk;
+    }
+
+    /** Reads bytes at the current offset over the bulk data channel.
+
+        @return <code>false</code> if the storage server refused the read
+                because it is shutting down. The bulk data channel is then
+                closed, and further reads go over RMI.
+        @throws IOException If the read fails for any other reason.
+     */
+    private boolean bulkRead(BulkClient bulk, byte[] buffer, int buffer_offset,
+                             int read_length) throws IOException
+    {
+        try
+        {
+            bulk.read(path, offset,
+                      ByteBuffer.wrap(buffer, buffer_offset, read_length));
+            return true;
+        }
+        catch(BulkClient.DrainingException e)
+        {
+            bulk.close();
+            this.bulk = null;
+            return false;
+        }
+    }
+
+    /** Reads bytes at the current offset from the current storage server,
+        without advancing the offset. */
+    private void readReplica(byte[] buffer, int buffer_offset, int read_length)
+        throws IOException, RMIException
+    {
+        BulkClient  bulk = bulk();
+
+        if(bulk != null && !bulkRead(bulk, buffer, buffer_offset, read_length))
+            bulk = null;
+
+        if(bulk == null)
+        {
+            byte[]  result = storage_server.read(path, offset, read_length);
+            System.arraycopy(result, 0, buffer, buffer_offset, read_length);
+        }
+    }
+
+    /** Moves to a replica of the file that has not returned damaged bytes.
+
+        @param cause The exception raised by the current storage server.
+        @throws ChecksumException <code>cause</code>, if every replica of the
+                                  file has returned damaged bytes.
+        @throws RMIException If the naming server cannot be contacted.
+     */
+    private void failover(ChecksumException cause)
+        throws ChecksumException, RMIException
+    {
+        damaged.add(storage_server);
+
+        Storage[]   replicas;
+        try
+        {
+            replicas = naming_server.getReplicas(path);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw cause;
+        }
+
+        for(Storage replica : replicas)
+        {
+            if(!damaged.contains(replica))
+            {
+                storage_server = replica;
+                closeBulk();
+                return;
+            }
+        }
+
+        throw cause;
+    }
+
+    /** Closes the bulk data channel of the current storage server, if any, so
+        that the next read asks the storage server for it again. */
+    private void closeBulk()
+    {
+        if(bulk != null)
+            bulk.close();
+
+        bulk = null;
+        bulk_checked = false;
     }
 
     /** Reads bytes from the input stream into a byte buffer.
@@ -233,12 +353,28 @@ public class DFSInputStream extends InputStream
             read_length = (int)(length - offset);
 
         // Read bytes from file and advance the stream offset if the request
-        // succeeds.
-        byte[]      result;
-
+        // succeeds. If the storage server has a bulk data channel, the bytes
+        // are received directly into the buffer provided by the caller.
+        // Otherwise, or if the storage server refuses the bulk read because
+        // it is shutting down, they are received over RMI in a new array, and
+        // copied into the buffer provided by the caller.
+        // If the bytes are damaged on the storage server, they are read again
+        // from another replica.
         try
         {
-            result = storage_server.read(path, offset, read_length);
+            while(true)
+            {
+                try
+                {
+                    readReplica(buffer, buffer_offset, read_length);
+                    break;
+                }
+                catch(ChecksumException e)
+                {
+                    failover(e);
+                }
+            }
+
             offset += read_length;
         }
         catch(FileNotFoundException e)
@@ -250,11 +386,6 @@ public class DFSInputStream extends InputStream
             throw new IOException("unable to contact storage server", e);
         }
 
-        // Copy bytes from the buffer that was received over the network into
-        // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
-
         // Return the number of bytes read.
         return read_length;
     }
@@ -2,6 +2,7 @@ package client;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
 
 import rmi.*;
 import common.*;
@@ -36,6 +37,15 @@ public class DFSOutputStream extends OutputStream
 
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
+    /** Indicates that bytes have been written through the stream. */
+    private boolean         written = false;
+
+    /** Client for the bulk data channel of the storage server, or
+        <code>null</code> if it has none or has not been asked yet. */
+    private BulkClient      bulk = null;
+    /** Indicates that the storage server has been asked for its bulk data
+        channel. */
+    private boolean         bulk_checked = false;
 
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
         naming server.
@@ -142,12 +152,53 @@ public class DFSOutputStream extends OutputStream
 
         <p>
         The stream is marked as closed. Further attempts to use the output
-        stream will result in <code>IOException</code>.
+        stream will result in <code>IOException</code>. If anything was
+        written, the storage server is asked to sync the file, so that the
+        writes are durable as far as the server promises.
+
+        @throws IOException If the storage server cannot be contacted, or
+                            cannot sync the file.
      */
     @Override
     public void close() throws IOException
     {
+        if(closed)
+            return;
+
         closed = true;
+
+        if(bulk != null)
+            bulk.close();
+
+        if(written)
+        {
+            try
+            {
+                storage_server.sync(path);
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+        }
+    }
+
+    /** Returns a client for the bulk data channel of the storage server, or
+        <code>null</code> if it has none. The storage server is asked on first
+        use only. */
+    private BulkClient bulk() throws RMIException
+    {
+        if(!bulk_checked)
+        {
+            bulk = BulkClient.of(storage_server);
+            bulk_checked = true;
+        }
+
+        return bulk;
     }
 
     /** Writes bytes from a buffer to the output stream.
@@ -199,30 +250,40 @@ public class DFSOutputStream extends OutputStream
         if(write_length == 0)
             return;
 
-        // Create the data buffer that will be sent over the network. If the
-        // buffer offset is zero and all the bytes in the user-provided buffer
-        // are to be written, the user-provided buffer will be serialized
-        // directly. Otherwise, make a new buffer, copy the requisite number of
-        // bytes from the proper offset in the user-provided buffer to the new
-        // buffer, and later serialize the new buffer.
-        byte[]      data;
-
-        if((buffer_offset == 0) && (buffer.length == write_length))
-            data = buffer;
-        else
-        {
-            data = new byte[write_length];
-
-            for(int index = 0; index < write_length; ++index)
-                data[index] = buffer[buffer_offset + index];
-        }
-
         // Send the write request to the server. If the write request succeds,
-        // advance the stream offset.
+        // advance the stream offset. If the storage server has a bulk data
+        // channel, the bytes are sent directly from the user-provided buffer.
+        // Otherwise, they are sent over RMI: if the buffer offset is zero and
+        // all the bytes in the user-provided buffer are to be written, the
+        // user-provided buffer is sent directly, and otherwise the requisite
+        // bytes are first copied to a new buffer.
         try
         {
-            storage_server.write(path, offset, data);
+            BulkClient  bulk = bulk();
+
+            if(bulk != null)
+            {
+                bulk.write(path, offset,
+                           ByteBuffer.wrap(buffer, buffer_offset, write_length));
+            }
+            else
+            {
+                byte[]  data;
+
+                if((buffer_offset == 0) && (buffer.length == write_length))
+                    data = buffer;
+                else
+                {
+                    data = new byte[write_length];
+                    System.arraycopy(buffer, buffer_offset, data, 0,
+                                     write_length);
+                }
+
+                storage_server.write(path, offset, data);
+            }
+
             offset += write_length;
+            written = true;
         }
         catch(FileNotFoundException e)
         {
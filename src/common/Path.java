@@ -2,8 +2,16 @@ package common;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Distributed filesystem paths.
@@ -113,6 +121,10 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
   /**
    * Lists the paths of all files in a directory tree on the local
    * filesystem.
+   * <p>
+   * Directories are read in parallel in the common fork/join pool, and the
+   * path of each file is built from the path of its directory, so that large
+   * trees are listed quickly. The order of the paths is unspecified.
    *
    * @param directory The root directory of the directory tree.
    * @return An array of relative paths, one for each file in the directory
@@ -120,36 +132,93 @@ public class Path implements Iterable<String>, Comparable<Path>, Serializable {
    * @throws FileNotFoundException    If the root directory does not exist.
    * @throws IllegalArgumentException If <code>directory</code> exists but
    *                                  does not refer to a directory.
+   * @throws UncheckedIOException     If a directory in the tree cannot be
+   *                                  read.
    */
   public static Path[] list(File directory) throws FileNotFoundException {
-      int parentDeep = directory.getAbsolutePath().split("/").length;
-      List<Path> res = new ArrayList<>();
-      Queue<File> que = new LinkedList<>();
-      que.offer(directory);
-      while (!que.isEmpty()) {
-          File parent = que.poll();
-          String[] children = parent.list();
-          for (String str : children) {
-              File child = new File(parent, str);
-              if (child.isFile()) {
-                  String[] childPath = child.getAbsolutePath().split("/");
-                  List<String> comp = new ArrayList<>();
-                  for (int i = parentDeep; i < childPath.length; i++) {
-                      comp.add(childPath[i]);
-                  }
-                  res.add(new Path(comp));
-              }
-              else
-                que.offer(child);
+    if (!directory.exists()) {
+      throw new FileNotFoundException("no such directory: " + directory);
+    }
+    if (!directory.isDirectory()) {
+      throw new IllegalArgumentException(directory + " is not a directory");
+    }
+
+    Queue<List<Path>> listed = new ConcurrentLinkedQueue<>();
+    new Scan(directory.toPath(), new Path(), listed).invoke();
+
+    int count = 0;
+    for (List<Path> files : listed) {
+      count += files.size();
+    }
+    Path[] paths = new Path[count];
+    int next = 0;
+    for (List<Path> files : listed) {
+      for (Path file : files) {
+        paths[next++] = file;
+      }
+    }
+    return paths;
+  }
+
+  // Lists the files of a directory, and forks a scan of each subdirectory. Serializable
+  // only through RecursiveAction; scans are never serialized.
+  private static final class Scan extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final java.nio.file.Path directory;
+    private final Path path;
+    private final Queue<List<Path>> listed;
+
+    Scan(java.nio.file.Path directory, Path path, Queue<List<Path>> listed) {
+      this.directory = directory;
+      this.path = path;
+      this.listed = listed;
+    }
+
+    @Override
+    protected void compute() {
+      List<Path> files = new ArrayList<>();
+      List<Scan> subdirectories = new ArrayList<>();
+      try (DirectoryStream<java.nio.file.Path> entries = Files.newDirectoryStream(directory)) {
+        for (java.nio.file.Path entry : entries) {
+          BasicFileAttributes attributes;
+          try {
+            attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+          } catch (NoSuchFileException e) {
+            continue; // deleted since the directory was read
+          }
+          String name = entry.getFileName().toString();
+          if (attributes.isRegularFile()) {
+            files.add(path.child(name));
+          } else if (attributes.isDirectory()) {
+            Scan scan = new Scan(entry, path.child(name), listed);
+            scan.fork();
+            subdirectories.add(scan);
           }
+        }
+      } catch (NoSuchFileException e) {
+        // deleted since its parent was read
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
       }
-      Path[] resPath = new Path[res.size()];
-      for (int i = res.size() - 1; i >= 0; i--) {
-        resPath[i] = res.get(i);
+
+      if (!files.isEmpty()) {
+        listed.add(files);
+      }
+      for (Scan scan : subdirectories) {
+        scan.join();
       }
-    return resPath;
+    }
   }
 
+  // Appends a component read from the local filesystem, which needs no checks.
+  private Path child(String component) {
+    Path child = new Path();
+    child.components = new ArrayList<>(components.size() + 1);
+    child.components.addAll(components);
+    child.components.add(component);
+    return child;
+  }
 
   /**
    * Determines whether the path represents the root directory.
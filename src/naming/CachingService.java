@@ -0,0 +1,435 @@
+package naming;
+
+import common.Path;
+import rmi.RMIException;
+import rmi.Skeleton;
+import rmi.Stub;
+import rmi.Trace;
+import storage.Storage;
+
+import java.io.FileNotFoundException;
+import java.net.UnknownHostException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client-side cache of the results of the metadata calls to a naming server.
+ * <p>
+ * <p>
+ * A <code>CachingService</code> wraps a <code>Service</code> stub and remembers the
+ * results of <code>isDirectory</code>, <code>list</code> and <code>getStorage</code>,
+ * including <code>FileNotFoundException</code>s, so that a client that looks up the same
+ * paths repeatedly does not make a round trip to the naming server each time. Every other
+ * call is passed through to the naming server. Using the cache is a choice of the client:
+ * the naming server and the <code>Service</code> interface behave as before.
+ * <p>
+ * <p>
+ * Results are kept for a limited time, and at most a given number of them are kept, the
+ * least recently used being evicted first. The calls that change the directory tree made
+ * through the cache discard the results they make stale. To learn of the changes made by
+ * other clients, the cache calls <code>listen</code>, which subscribes it to the
+ * naming server's reports of changes (see <code>Service.subscribe</code>). Without a
+ * subscription, a result may be stale for as long as it is kept.
+ * <p>
+ * <p>
+ * The usual locking protocol still applies: the cache only saves the naming server calls
+ * made under the locks, and a client that needs up-to-date results must take the locks as
+ * it would without the cache. Changes made by other clients are discarded asynchronously,
+ * when the naming server's report reaches the cache, which may be after the call making the
+ * change has returned and its locks have been released: holding a lock does not guarantee
+ * that the results cached about the path locked are fresh, only that they are not made
+ * stale by a client that takes the lock after it. Results that must not be stale should be
+ * asked of the naming server directly. The <code>Storage</code> stub returned by
+ * <code>getStorage</code> for a file may be for any of the storage servers hosting the
+ * file when the result was obtained.
+ */
+public class CachingService implements Service {
+  private static final Trace trace = Trace.of(CachingService.class);
+
+  /** Time for which results are kept by default, in seconds. */
+  public static final long DEFAULT_TTL_SECONDS = 30;
+  /** Number of results kept by default. */
+  public static final int DEFAULT_CAPACITY = 10000;
+  // lease requested from the naming server; renewed when half of it has elapsed
+  static final long LEASE_MILLIS = Subscriptions.MAX_LEASE_MILLIS;
+
+  private enum Kind { IS_DIRECTORY, LIST, STORAGE }
+
+  private final Service service;
+  private final long ttlNanos;
+
+  // results cached, in access order; guarded by itself
+  private final LinkedHashMap<Key, Entry> entries;
+  // incremented by each invalidation, so that a result fetched before an invalidation
+  // and returned after it is not cached; guarded by entries
+  private long generation = 0;
+
+  // subscription to the naming server's reports, if listening; guarded by this
+  private Skeleton<Invalidation> skeleton;
+  private Invalidation listener;
+  private ScheduledExecutorService renewer;
+
+  /**
+   * Creates a cache in front of a naming server, keeping results for
+   * {@link #DEFAULT_TTL_SECONDS} and keeping at most {@link #DEFAULT_CAPACITY} of them.
+   *
+   * @param service stub for the naming server's client interface
+   * @throws NullPointerException If <code>service</code> is <code>null</code>.
+   */
+  public CachingService(Service service) {
+    this(service, DEFAULT_TTL_SECONDS, TimeUnit.SECONDS, DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Creates a cache in front of a naming server.
+   *
+   * @param service  stub for the naming server's client interface
+   * @param ttl      time for which each result is kept
+   * @param unit     unit of <code>ttl</code>
+   * @param capacity largest number of results kept
+   * @throws NullPointerException     If <code>service</code> or <code>unit</code> is
+   *                                  <code>null</code>.
+   * @throws IllegalArgumentException If <code>ttl</code> or <code>capacity</code> is not
+   *                                  positive.
+   */
+  public CachingService(Service service, long ttl, TimeUnit unit, final int capacity) {
+    if (service == null || unit == null) {
+      throw new NullPointerException("service or unit is null");
+    }
+    if (ttl <= 0 || capacity <= 0) {
+      throw new IllegalArgumentException("ttl and capacity must be positive");
+    }
+
+    this.service = service;
+    this.ttlNanos = unit.toNanos(ttl);
+    this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /**
+   * Subscribes the cache to the naming server's reports of changes to the directory tree,
+   * so that results made stale by other clients are discarded. The subscription is renewed
+   * in the background until <code>stop</code> is called. Every result is discarded when the
+   * subscription starts, and whenever a renewal fails or the naming server grants a new
+   * subscription rather than a renewal, as reports may have been missed.
+   *
+   * @param hostname externally-routable hostname of the local host, at which the naming
+   *                 server sends its reports
+   * @return <code>true</code> if the naming server granted a subscription;
+   * <code>false</code> if it does not report changes, in which case results are only
+   * discarded when they expire.
+   * @throws IllegalStateException If the cache is already listening.
+   * @throws UnknownHostException  If <code>hostname</code> cannot be resolved.
+   * @throws RMIException          If the skeleton receiving reports cannot be started, or
+   *                               the naming server cannot be reached.
+   */
+  public synchronized boolean listen(String hostname)
+      throws RMIException, UnknownHostException {
+    if (skeleton != null) {
+      throw new IllegalStateException("already listening");
+    }
+
+    Skeleton<Invalidation> callback = new Skeleton<>(Invalidation.class, new Invalidation() {
+      @Override
+      public void invalidate(Path[] paths) {
+        for (Path path : paths) {
+          CachingService.this.invalidate(path);
+        }
+      }
+    });
+    callback.start();
+
+    final Invalidation stub;
+    Lease lease;
+    try {
+      stub = Stub.create(Invalidation.class, callback, hostname);
+      lease = service.subscribe(stub, LEASE_MILLIS);
+    } catch (RMIException | UnknownHostException | RuntimeException e) {
+      callback.stop();
+      throw e;
+    }
+
+    if (!lease.granted()) {
+      trace.info("Naming server does not report changes; results expire after {} ms",
+          TimeUnit.NANOSECONDS.toMillis(ttlNanos));
+      callback.stop();
+      return false;
+    }
+
+    skeleton = callback;
+    listener = stub;
+    renewer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "naming-cache-lease");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    // results cached before the subscription were never covered by reports
+    clear();
+    renewer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          // a new subscription, or none, means reports may have been missed
+          if (!service.subscribe(stub, LEASE_MILLIS).renewed()) {
+            clear();
+          }
+        } catch (RMIException | RuntimeException e) {
+          trace.warn("Could not renew the naming cache subscription: {}", e);
+          clear();
+        }
+      }
+    }, Math.max(1, lease.millis() / 2), Math.max(1, lease.millis() / 2),
+        TimeUnit.MILLISECONDS);
+
+    trace.debug("Naming cache subscribed with a {}", lease);
+    return true;
+  }
+
+  /**
+   * Cancels the subscription to the naming server's reports, if any. Results already cached
+   * are kept until they expire.
+   */
+  public synchronized void stop() {
+    if (skeleton == null) {
+      return;
+    }
+
+    renewer.shutdownNow();
+    try {
+      service.subscribe(listener, 0);
+    } catch (RMIException | RuntimeException e) {
+      // the lease expires by itself
+      trace.debug("Could not cancel the naming cache subscription: {}", e);
+    }
+    skeleton.stop();
+
+    skeleton = null;
+    listener = null;
+    renewer = null;
+  }
+
+  /** Discards every result cached. */
+  public void clear() {
+    synchronized (entries) {
+      ++generation;
+      entries.clear();
+    }
+  }
+
+  /**
+   * Discards the results made stale by a change to an object: those about the object,
+   * about the objects under it, and the listing of its parent directory.
+   */
+  public void invalidate(Path path) {
+    Path parent = path.isRoot() ? null : path.parent();
+    synchronized (entries) {
+      ++generation;
+      Iterator<Key> keys = entries.keySet().iterator();
+      while (keys.hasNext()) {
+        Key key = keys.next();
+        if (key.path.isSubpath(path)
+            || (key.kind == Kind.LIST && parent != null && key.path.equals(parent))) {
+          keys.remove();
+        }
+      }
+    }
+  }
+
+  @Override
+  public void lock(Path path, boolean exclusive) throws RMIException, FileNotFoundException {
+    service.lock(path, exclusive);
+    if (exclusive) {
+      // locking a file for writing deletes its replicas
+      invalidate(path);
+    }
+  }
+
+  @Override
+  public void unlock(Path path, boolean exclusive) throws RMIException {
+    service.unlock(path, exclusive);
+  }
+
+  @Override
+  public boolean isDirectory(Path path) throws RMIException, FileNotFoundException {
+    Key key = new Key(Kind.IS_DIRECTORY, path);
+    Entry entry = lookup(key);
+    if (entry != null) {
+      return (Boolean) entry.value();
+    }
+
+    long fetched = generation();
+    try {
+      boolean result = service.isDirectory(path);
+      store(key, result, null, fetched);
+      return result;
+    } catch (FileNotFoundException e) {
+      store(key, null, e, fetched);
+      throw e;
+    }
+  }
+
+  @Override
+  public String[] list(Path directory) throws RMIException, FileNotFoundException {
+    Key key = new Key(Kind.LIST, directory);
+    Entry entry = lookup(key);
+    if (entry != null) {
+      return ((String[]) entry.value()).clone();
+    }
+
+    long fetched = generation();
+    try {
+      String[] result = service.list(directory);
+      store(key, result.clone(), null, fetched);
+      return result;
+    } catch (FileNotFoundException e) {
+      store(key, null, e, fetched);
+      throw e;
+    }
+  }
+
+  @Override
+  public Storage getStorage(Path file) throws RMIException, FileNotFoundException {
+    Key key = new Key(Kind.STORAGE, file);
+    Entry entry = lookup(key);
+    if (entry != null) {
+      return (Storage) entry.value();
+    }
+
+    long fetched = generation();
+    try {
+      Storage result = service.getStorage(file);
+      store(key, result, null, fetched);
+      return result;
+    } catch (FileNotFoundException e) {
+      store(key, null, e, fetched);
+      throw e;
+    }
+  }
+
+  /**
+   * Returns stubs for all the storage servers hosting a file. The result is not cached:
+   * clients ask for it when a replica has failed them, and should see the current ones.
+   */
+  @Override
+  public Storage[] getReplicas(Path file) throws RMIException, FileNotFoundException {
+    return service.getReplicas(file);
+  }
+
+  @Override
+  public boolean createFile(Path file) throws RMIException, FileNotFoundException {
+    try {
+      return service.createFile(file);
+    } finally {
+      invalidate(file);
+    }
+  }
+
+  @Override
+  public boolean createDirectory(Path directory) throws RMIException, FileNotFoundException {
+    try {
+      return service.createDirectory(directory);
+    } finally {
+      invalidate(directory);
+    }
+  }
+
+  @Override
+  public boolean delete(Path path) throws RMIException, FileNotFoundException {
+    try {
+      return service.delete(path);
+    } finally {
+      invalidate(path);
+    }
+  }
+
+  @Override
+  public Lease subscribe(Invalidation listener, long leaseMillis) throws RMIException {
+    return service.subscribe(listener, leaseMillis);
+  }
+
+  private long generation() {
+    synchronized (entries) {
+      return generation;
+    }
+  }
+
+  // returns the unexpired entry for a key, or null
+  private Entry lookup(Key key) {
+    synchronized (entries) {
+      Entry entry = entries.get(key);
+      if (entry != null && entry.expiry - System.nanoTime() < 0) {
+        entries.remove(key);
+        return null;
+      }
+      return entry;
+    }
+  }
+
+  // caches a result unless an invalidation happened since it was fetched
+  private void store(Key key, Object value, FileNotFoundException missing, long fetched) {
+    synchronized (entries) {
+      if (fetched == generation) {
+        entries.put(key, new Entry(value, missing, System.nanoTime() + ttlNanos));
+      }
+    }
+  }
+
+  private static final class Key {
+    final Kind kind;
+    final Path path;
+
+    Key(Kind kind, Path path) {
+      if (path == null) {
+        throw new NullPointerException("path is null");
+      }
+      this.kind = kind;
+      this.path = path;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return kind == key.kind && path.equals(key.path);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * kind.hashCode() + path.hashCode();
+    }
+  }
+
+  private static final class Entry {
+    final Object value;
+    final FileNotFoundException missing;
+    final long expiry;
+
+    Entry(Object value, FileNotFoundException missing, long expiry) {
+      this.value = value;
+      this.missing = missing;
+      this.expiry = expiry;
+    }
+
+    // returns the cached result, or throws a copy of the cached exception
+    Object value() throws FileNotFoundException {
+      if (missing != null) {
+        throw new FileNotFoundException(missing.getMessage());
+      }
+      return value;
+    }
+  }
+}
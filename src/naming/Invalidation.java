@@ -0,0 +1,31 @@
+package naming;
+
+import common.*;
+import rmi.RMIException;
+
+/** Naming server invalidation callback interface.
+
+    <p>
+    This interface is exported by clients that cache the results of calls to
+    the naming server, such as <code>CachingService</code>. A client subscribes
+    to it with <code>Service.subscribe</code>, and the naming server then calls
+    it whenever the filesystem tree changes, so that the client can discard
+    what it has cached about the paths changed.
+ */
+public interface Invalidation
+{
+    /** Reports that objects in the filesystem tree have changed.
+
+        <p>
+        A path is reported when the object it refers to is created or deleted,
+        or when the set of storage servers hosting it shrinks. Any result
+        cached about the path, about objects under it, or about the listing of
+        its parent directory is then stale. The report is sent after the change
+        has been made.
+
+        @param paths The paths changed.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void invalidate(Path[] paths) throws RMIException;
+}
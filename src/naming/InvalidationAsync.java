@@ -0,0 +1,16 @@
+package naming;
+
+import java.util.concurrent.CompletableFuture;
+
+import common.*;
+
+/** Asynchronous companion of the invalidation callback interface, through
+    which the naming server reports changes without waiting for each client.
+    See {@link Invalidation}. */
+interface InvalidationAsync
+{
+    /** Reports that objects in the filesystem tree have changed. See
+        {@link Invalidation#invalidate}. The future completes with
+        <code>null</code>. */
+    public CompletableFuture<Void> invalidate(Path[] paths);
+}
@@ -0,0 +1,57 @@
+package naming;
+
+import java.io.Serializable;
+
+/**
+ * Lease on a subscription to the naming server's reports of changes, as granted by
+ * {@link Service#subscribe}.
+ * <p>
+ * A lease tells whether it renews a subscription the listener already held, or starts a new
+ * one. A new subscription after the first means the previous one ended, by expiring or
+ * because a report to the listener failed, and that reports may have been missed since:
+ * the client is then to treat everything it has cached as stale.
+ */
+public final class Lease implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** No subscription held, as granted by naming servers that do not report changes. */
+  public static final Lease NONE = new Lease(0, false);
+
+  private final long millis;
+  private final boolean renewed;
+
+  /**
+   * Creates a lease.
+   *
+   * @param millis  length of the lease granted, in milliseconds, or zero if no subscription
+   *                is held
+   * @param renewed <code>true</code> if the lease extends a subscription that had not ended
+   */
+  public Lease(long millis, boolean renewed) {
+    this.millis = Math.max(0, millis);
+    this.renewed = renewed && this.millis > 0;
+  }
+
+  /** Returns the length of the lease granted, in milliseconds, or zero if no subscription is
+      held. */
+  public long millis() {
+    return millis;
+  }
+
+  /** Returns <code>true</code> if a subscription is held. */
+  public boolean granted() {
+    return millis > 0;
+  }
+
+  /** Returns <code>true</code> if the lease extends a subscription the listener already
+      held, so that no report was missed; <code>false</code> if the subscription is new, or
+      none is held. */
+  public boolean renewed() {
+    return renewed;
+  }
+
+  @Override
+  public String toString() {
+    return !granted() ? "no lease" : millis + " ms lease" + (renewed ? ", renewed" : ", new");
+  }
+}
@@ -3,9 +3,10 @@ package naming;
 import common.Path;
 import naming.fs.FileInfo;
 import naming.fs.FileSystem;
-import rmi.Helper;
 import rmi.RMIException;
 import rmi.Skeleton;
+import rmi.SkeletonTransport;
+import rmi.Trace;
 import storage.Command;
 import storage.Storage;
 
@@ -13,7 +14,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static common.Path.getIncrementalPaths;
 
@@ -43,6 +47,18 @@ import static common.Path.getIncrementalPaths;
  * <code>NamingStubs</code>.
  */
 public class NamingServer implements Service, Registration {
+  private static final Trace trace = Trace.of(NamingServer.class);
+
+  // "chain" to replicate a file along a chain of storage servers, each passing it to
+  // the next, or "parallel" to have every new replica copy it from the same source
+  private static final boolean CHAIN_REPLICATION =
+      !"parallel".equals(System.getProperty("dfs.naming.replication", "chain"));
+  // time after which a storage server that stopped sending batches of its files
+  // is no longer taken to be registering, so that one that died between
+  // batches may register again
+  private static final long REGISTRATION_TIMEOUT_MILLIS =
+      Long.getLong("dfs.naming.registrationTimeoutMillis", TimeUnit.MINUTES.toMillis(1));
+
   FileSystem fs;
 
   /**
@@ -54,7 +70,12 @@ public class NamingServer implements Service, Registration {
   Skeleton<Service> serviceInterfaceSkeleton;
   Skeleton<Registration> registrationInterfaceSkeleton;
 
-  boolean logOn;
+  // clients told of changes to the directory tree, so they can drop what they cached
+  private final Subscriptions subscriptions = new Subscriptions();
+
+  // storage servers that have sent some batches of their files, and will send more
+  private final Registrations registering =
+      new Registrations(REGISTRATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
 
   /**
    * Creates the naming server object.
@@ -64,21 +85,22 @@ public class NamingServer implements Service, Registration {
    */
   public NamingServer() {
 
-    this.logOn = false;
-    Helper.log("NamingServer() constructor invoked");
+    trace.debug("NamingServer() constructor invoked");
     fs = new FileSystem();
-    Helper.log("FileSystem field created");
+    trace.debug("FileSystem field created");
     ssStore = new StorageServerStore();
-    Helper.log("StorageServerStore field created");
+    trace.debug("StorageServerStore field created");
 
     InetSocketAddress serviceInterfaceAddress = new InetSocketAddress("127.0.0.1", NamingStubs.SERVICE_PORT);
     InetSocketAddress registrationInterfaceAddress = new InetSocketAddress("127.0.0.1", NamingStubs.REGISTRATION_PORT);
     try {
       this.serviceInterfaceSkeleton = new Skeleton<>(Service.class, this, serviceInterfaceAddress);
+      // every client keeps a connection to the service interface, most of them idle
+      this.serviceInterfaceSkeleton.setTransport(SkeletonTransport.SELECTOR);
       this.registrationInterfaceSkeleton = new Skeleton<>(Registration.class, this, registrationInterfaceAddress);
 
     } catch (NullPointerException | Error e) {
-      Helper.log("When trying to initialize Skeletons, NullPointerException or Error happened");
+      trace.debug("When trying to initialize Skeletons, NullPointerException or Error happened");
       e.printStackTrace();
     }
 
@@ -109,14 +131,14 @@ public class NamingServer implements Service, Registration {
       this.registrationInterfaceSkeleton.start();
 
     } catch (RMIException e) {
-      Helper.log("RMIException thrown when trying to start registrationInterfaceSkeleton");
+      trace.debug("RMIException thrown when trying to start registrationInterfaceSkeleton");
     }
 
     try {
       this.serviceInterfaceSkeleton.start();
 
     } catch (RMIException e) {
-      Helper.log("RMIException thrown when trying to start serviceInterfaceSkeleton");
+      trace.debug("RMIException thrown when trying to start serviceInterfaceSkeleton");
     }
 
   }
@@ -135,9 +157,9 @@ public class NamingServer implements Service, Registration {
     try {
 
       this.serviceInterfaceSkeleton.stop();
-      Helper.log("serviceInterfaceSkeleton stopped()");
+      trace.debug("serviceInterfaceSkeleton stopped()");
       this.registrationInterfaceSkeleton.stop();
-      Helper.log("registrationInterfaceSkeleton stopped()");
+      trace.debug("registrationInterfaceSkeleton stopped()");
     } catch (Throwable t) {
       stopped(t);
       return;
@@ -251,20 +273,20 @@ public class NamingServer implements Service, Registration {
   @Override
   public void lock(Path path, boolean isExclusive) throws FileNotFoundException {
 
-    log(" In lock(): " + path.toString() + " exclusive = " + isExclusive);
+    trace.debug(" In lock(): {} exclusive = {}", path, isExclusive);
     List<Path> allPaths = Path.getIncrementalPathsWithRoot(path);
     Collections.sort(allPaths); // first is /a, then /a/b
 
     if (allPaths.size() == 1) { // we are locking root
       FileInfo rootInfo = fs.getFileInfo(""); // get root
-      log("Trying to lock root with type isExclusive = " + isExclusive);
+      trace.debug("Trying to lock root with type isExclusive = {}", isExclusive);
       rootInfo.fLock("", isExclusive);
-      log("Root LOCKED. Return");
+      trace.debug("Root LOCKED. Return");
       return;
     }
 
     if (isExclusive) {
-      log("exclusive lock");
+      trace.debug("exclusive lock");
 
       Path currFilePath = allPaths.get(allPaths.size() - 1);
       if (!fs.containsFile(currFilePath)) {
@@ -273,7 +295,7 @@ public class NamingServer implements Service, Registration {
 
       // lock the current file with exclusive lock
       FileInfo currFileInfo = fs.getFileInfo(currFilePath.getAbsolutePath());
-      log("Trying to lock current file: " + currFilePath.toString());
+      trace.debug("Trying to lock current file: {}", currFilePath);
 
       // if is a file, delete all copies on the other storage server
       // if is a directory, delete all copies on the other storage server recursively
@@ -293,14 +315,14 @@ public class NamingServer implements Service, Registration {
       }
 
       currFileInfo.fLock(currFilePath.getAbsolutePath(), isExclusive);
-      log("Current file locked " + currFilePath.toString());
+      trace.debug("Current file locked {}", currFilePath);
 
       allPaths.remove(allPaths.size() - 1);  // remove the current
-      log("Removed the current file from the path list");
+      trace.debug("Removed the current file from the path list");
       lockOrUnlockPaths(allPaths, false, true); // put shared lock on the rest of the path
 
     } else { //shared lock
-      log("shared lock");
+      trace.debug("shared lock");
       // else (put shared lock)
       // list all Paths until the the current path
       //  try put shared locks on all Paths listed earlier following the order
@@ -330,6 +352,7 @@ public class NamingServer implements Service, Registration {
       // update storage server set for this particular file
       fileHosts.clear();
       fileHosts.add(ssInfoToKeep);
+      subscriptions.changed(filePath);
     }
   }
 
@@ -368,32 +391,117 @@ public class NamingServer implements Service, Registration {
       clientStubOfServerAlreadyHosted = ssInfo.clientStub;
       break;
     }
+    Path file = new Path(filePath);
+    long size = sizeOf(file, clientStubOfServerAlreadyHosted);
     Set<StorageServerInfo> idleStorageServerSet = ssStore.getEmptySS();
-    if (!idleStorageServerSet.isEmpty()) {
-      for (StorageServerInfo ssInfo : idleStorageServerSet) {
-        Command cmd = ssInfo.commandStub;
-        try {
-          cmd.copy(new Path(filePath), clientStubOfServerAlreadyHosted);
-        } catch (IOException | RMIException e) {
-          System.out.println("Failed to replicate file.");
-          e.printStackTrace();
+    if (CHAIN_REPLICATION) {
+      // a single chain through the idle servers and then the others
+      Set<StorageServerInfo> targets = new LinkedHashSet<>(idleStorageServerSet);
+      for (StorageServerInfo ssInfo : ssStore.getHostingServerInfoList()) {
+        if (!alreadyHostedSet.contains(ssInfo)) {
+          targets.add(ssInfo);
         }
-        ssStore.add(new Path(filePath), ssInfo);
       }
+      copyAlongChain(file, clientStubOfServerAlreadyHosted, size, new ArrayList<>(targets));
+      return;
+    }
+    if (!idleStorageServerSet.isEmpty()) {
+      copyToServers(file, clientStubOfServerAlreadyHosted, size, idleStorageServerSet);
     }
     idleStorageServerSet.clear();
-    List<StorageServerInfo> ssInfoList = ssStore.getHostingServerInfoList();
-    for (StorageServerInfo ssInfo : ssInfoList) {
+    List<StorageServerInfo> targets = new ArrayList<>();
+    for (StorageServerInfo ssInfo : ssStore.getHostingServerInfoList()) {
       if (!alreadyHostedSet.contains(ssInfo)) {
-        Command cmd = ssInfo.commandStub;
-        try {
-          cmd.copy(new Path(filePath), clientStubOfServerAlreadyHosted);
-        } catch (IOException | RMIException e) {
-          System.out.println("Failed to replicate file.");
-          e.printStackTrace();
-        }
-        ssStore.add(new Path(filePath), ssInfo);
+        targets.add(ssInfo);
+      }
+    }
+    copyToServers(file, clientStubOfServerAlreadyHosted, size, targets);
+  }
+
+  /**
+   * Returns the length of a file on the storage server it is copied from, so that the
+   * copies are allowed the time to move its bytes, or 0 if it cannot be learned, in which
+   * case they are allowed only the time of any command.
+   *
+   * @param file   file to be copied
+   * @param source storage server already hosting the file
+   */
+  private static long sizeOf(Path file, Storage source) {
+    try {
+      return source.size(file);
+    } catch (RMIException | FileNotFoundException | RuntimeException e) {
+      trace.warn("Failed to learn the length of {} before replicating it: {}", file, e);
+      return 0;
+    }
+  }
+
+  /**
+   * Sends one copy command for a chain of storage servers: the first copies the file from
+   * the source and passes it to the second as it arrives, and so on, so the source sends
+   * the file once and the copies finish at about the same time. Servers the chain did not
+   * reach are then sent the copy command directly.
+   *
+   * @param file    file to be copied
+   * @param source  storage server already hosting the file
+   * @param size    length of the file, which the time allowed for the copy depends on
+   * @param targets storage servers to copy the file to, in the order of the chain
+   */
+  private void copyAlongChain(Path file, Storage source, long size,
+                              List<StorageServerInfo> targets) {
+    if (targets.size() < 2) {
+      copyToServers(file, source, size, targets);
+      return;
+    }
+
+    Command[] chain = new Command[targets.size() - 1];
+    for (int i = 1; i < targets.size(); i++) {
+      chain[i - 1] = targets.get(i).commandStub;
+    }
+    int copied;
+    try {
+      copied = targets.get(0).commandAsync(size).copyChain(file, source, chain).join();
+    } catch (CompletionException e) {
+      trace.warn("Failed to replicate {} along a chain: {}", file, e.getCause());
+      copied = 0;
+    }
+    for (int i = 0; i < copied; i++) {
+      ssStore.add(file, targets.get(i));
+    }
+    if (copied < targets.size()) {
+      copyToServers(file, source, size, targets.subList(copied, targets.size()));
+    }
+  }
+
+  /**
+   * Sends the copy command to all the given storage servers at once, so that the copies
+   * proceed in parallel, then waits for all of them and records each server that made its
+   * copy as hosting the file. Clients are sent to the recorded servers, so a server whose
+   * copy failed is left out.
+   *
+   * @param file    file to be copied
+   * @param source  storage server already hosting the file
+   * @param size    length of the file, which the time allowed for the copies depends on
+   * @param targets storage servers to copy the file to
+   */
+  private void copyToServers(Path file, Storage source, long size,
+                             Collection<StorageServerInfo> targets) {
+    Map<StorageServerInfo, CompletableFuture<Boolean>> copies = new LinkedHashMap<>();
+    for (StorageServerInfo ssInfo : targets) {
+      copies.put(ssInfo, ssInfo.commandAsync(size).copy(file, source));
+    }
+    for (Map.Entry<StorageServerInfo, CompletableFuture<Boolean>> copy : copies.entrySet()) {
+      boolean copied;
+      try {
+        copied = copy.getValue().join();
+      } catch (CompletionException e) {
+        trace.warn("Failed to replicate {}: {}", file, e.getCause());
+        continue;
       }
+      if (!copied) {
+        trace.warn("Failed to replicate {}: the copy was refused", file);
+        continue;
+      }
+      ssStore.add(file, copy.getKey());
     }
   }
 
@@ -416,7 +524,7 @@ public class NamingServer implements Service, Registration {
   @Override
   public void unlock(Path path, boolean exclusive) {
 
-    log(" In unlock(): " + path.toString() + " exclusive = " + exclusive);
+    trace.debug(" In unlock(): {} exclusive = {}", path, exclusive);
     List<Path> allPaths = Path.getIncrementalPathsWithRoot(path);
     Collections.sort(allPaths);
 
@@ -424,7 +532,7 @@ public class NamingServer implements Service, Registration {
     List<Path> passed = new ArrayList<>();
 
     for (Path p : allPaths) {
-      log("In unlock() for : path = " + p.getAbsolutePath());
+      trace.debug("In unlock() for : path = {}", p);
       try {
         fs.isDirectory(p);
       } catch (FileNotFoundException e) {
@@ -437,14 +545,14 @@ public class NamingServer implements Service, Registration {
       }
       passed.add(p);
     }
-    log("Path is valid.");
+    trace.debug("Path is valid.");
 
-    log("Check if the path argument is root");
+    trace.debug("Check if the path argument is root");
     if (allPaths.size() == 1) { // we are locking root
       FileInfo rootInfo = fs.getFileInfo(""); // get root
-      log("Yes, it's root. Trying to unlock root");
+      trace.debug("Yes, it's root. Trying to unlock root");
       rootInfo.fUnLock("", exclusive);
-      log("Root UNLOCKED. Return");
+      trace.debug("Root UNLOCKED. Return");
       return;
     }
 
@@ -455,7 +563,7 @@ public class NamingServer implements Service, Registration {
       allPaths.remove(allPaths.size() - 1);
       FileInfo currFileInfo = fs.getFileInfo(currentPath.getAbsolutePath());
 
-      log("Trying to unlock exclusive lock on " + currentPath.toString());
+      trace.debug("Trying to unlock exclusive lock on {}", currentPath);
       currFileInfo.fUnLock(currentPath.getAbsolutePath(), exclusive);
 
     }
@@ -468,7 +576,7 @@ public class NamingServer implements Service, Registration {
       e.printStackTrace();
     }
 
-    log("End of unlock()");
+    trace.debug("End of unlock()");
   }
 
 
@@ -481,7 +589,7 @@ public class NamingServer implements Service, Registration {
       FileInfo pathInfo = fs.getFileInfo(pathToLock.getAbsolutePath());
       if (lock) {
 
-        log("In lockOrUnlockPaths(): trying to lock: " + pathToLock.toString() + " exclusive=" + isExclusive);
+        trace.debug("In lockOrUnlockPaths(): trying to lock: {} exclusive={}", pathToLock, isExclusive);
         if (!pathInfo.isDirectory()) {
           boolean shouldReplicate = false;
           if (isExclusive) {
@@ -494,14 +602,14 @@ public class NamingServer implements Service, Registration {
           }
         }
         pathInfo.fLock(pathToLock.getAbsolutePath(), isExclusive);
-        log("In lockOrUnlockPaths(): locked " + pathToLock.toString());
+        trace.debug("In lockOrUnlockPaths(): locked {}", pathToLock);
 
       } else { //unlock
 
-        log("In lockOrUnlockPaths(): trying to unlock: " + pathToLock.toString() + " exclusive=" + isExclusive);
+        trace.debug("In lockOrUnlockPaths(): trying to unlock: {} exclusive={}", pathToLock, isExclusive);
         pathInfo.fUnLock(pathToLock.getAbsolutePath(), isExclusive);
         // todo delete all other copies of this file on other server and reset the count to 0
-        log("In lockOrUnlockPaths(): unlocked " + pathToLock.toString());
+        trace.debug("In lockOrUnlockPaths(): unlocked {}", pathToLock);
       }
     }
   }
@@ -573,7 +681,8 @@ public class NamingServer implements Service, Registration {
    * @param file Path at which the file is to be created.
    * @return <code>true</code> if the file is created successfully,
    * <code>false</code> otherwise. The file is not created if a file
-   * or directory with the given name already exists.
+   * or directory with the given name already exists, or if its name
+   * is reserved by the storage servers (see {@link #reserved}).
    * @throws FileNotFoundException If the parent directory does not exist.
    * @throws IllegalStateException If no storage servers are connected to the
    *                               naming server.
@@ -584,6 +693,10 @@ public class NamingServer implements Service, Registration {
   public boolean createFile(Path file)
       throws RMIException, FileNotFoundException {
 
+    if (reserved(file)) {
+      return false;
+    }
+
     if (!checkForCreateFile(file)) {
       return false;
     }
@@ -605,6 +718,7 @@ public class NamingServer implements Service, Registration {
       fs.createFile(file);
       ssStore.add(file, ssInfo); // update ssStore
       res = true;
+      subscriptions.changed(file);
     }
 
     // unlock(file, true)
@@ -646,13 +760,17 @@ public class NamingServer implements Service, Registration {
    * @param directory Path at which the directory is to be created.
    * @return <code>true</code> if the directory is created successfully,
    * <code>false</code> otherwise. The directory is not created if
-   * a file or directory with the given name already exists.
+   * a file or directory with the given name already exists, or if
+   * its name is reserved by the storage servers (see {@link #reserved}).
    * @throws FileNotFoundException If the parent directory does not exist.
    * @throws RMIException          If the call cannot be completed due to a network
    *                               error.
    */
   @Override
   public boolean createDirectory(Path directory) throws FileNotFoundException {
+    if (reserved(directory)) {
+      return false;
+    }
     if (!checkForCreateDirectory(directory)) {
 //      log("createDirectory trying to UNLOCK");
 //      unlock(directory, true);
@@ -668,6 +786,9 @@ public class NamingServer implements Service, Registration {
       return false;
     }
     boolean res = fs.createDirectory(directory); // Note that we DON'T update ssStore in this case
+    if (res) {
+      subscriptions.changed(directory);
+    }
     // add the directory to filesystem, the client can later place file or directory under it
 
 //    log("createDirectory trying to UNLOCK");
@@ -675,6 +796,23 @@ public class NamingServer implements Service, Registration {
     return res;
   }
 
+  /**
+   * Tells whether a path is reserved by the storage servers: they delete the
+   * files named with {@link Command#TEMPORARY_PREFIX} when they start, and
+   * keep their checksums under {@link Command#CHECKSUMS_DIRECTORY} in their
+   * roots.
+   *
+   * @param path the path
+   * @return <code>true</code> if files may not be created at the path
+   */
+  private static boolean reserved(Path path) {
+    if (path.isRoot()) {
+      return false;
+    }
+    return path.last().startsWith(Command.TEMPORARY_PREFIX)
+        || path.iterator().next().equals(Command.CHECKSUMS_DIRECTORY);
+  }
+
   private boolean checkForCreateDirectory(Path directory) throws FileNotFoundException {
     // check if we have at least one storage server && if we already have the file
     if (ssStore.size() == 0 || fs.containsFile(directory)) {
@@ -720,6 +858,7 @@ public class NamingServer implements Service, Registration {
           e.printStackTrace();
         }
       }
+      subscriptions.changed(path);
       return true;
     }
 
@@ -763,6 +902,7 @@ public class NamingServer implements Service, Registration {
     System.out.println("$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$$ deleteFile(" + path.getAbsolutePath() + ")");
     fs.delete(path);
     ssStore.remove(path);
+    subscriptions.changed(path);
 
     // unlock
 //    log("delete trying to UNLOCK");
@@ -842,6 +982,19 @@ public class NamingServer implements Service, Registration {
     return getRandomStorageServerInfo(ssInfoSet).clientStub;
   }
 
+  @Override
+  public Storage[] getReplicas(Path file) throws FileNotFoundException {
+    if (!fs.containsFile(file) || fs.getFileInfo(file.getAbsolutePath()).isDirectory()) {
+      throw new FileNotFoundException("File " + file.getAbsolutePath() + " does not exist.");
+    }
+    Set<StorageServerInfo> ssInfoSet = ssStore.getStorageServerInfoSet(file);
+    List<Storage> replicas = new ArrayList<>();
+    for (StorageServerInfo ssInfo : ssInfoSet) {
+      replicas.add(ssInfo.clientStub);
+    }
+    return replicas.toArray(new Storage[replicas.size()]);
+  }
+
   private StorageServerInfo getRandomStorageServerInfo(Set<StorageServerInfo> ssInfoSet) {
     int min = 0;
     int max = ssInfoSet.size();
@@ -853,6 +1006,22 @@ public class NamingServer implements Service, Registration {
     return iter.next();
   }
 
+  /**
+   * Subscribes a client to reports of changes to the directory tree. The lease granted is
+   * at most {@link Subscriptions#MAX_LEASE_MILLIS}.
+   *
+   * @param listener    Stub for the client's callback interface.
+   * @param leaseMillis The length of the lease requested, in milliseconds, or zero to
+   *                    cancel the subscription.
+   * @return The lease granted, which tells whether it renews the subscription, or
+   * <code>Lease.NONE</code> if the subscription was cancelled.
+   * @throws NullPointerException If <code>listener</code> is <code>null</code>.
+   */
+  @Override
+  public Lease subscribe(Invalidation listener, long leaseMillis) {
+    return subscriptions.subscribe(listener, leaseMillis);
+  }
+
   /**
    * Registers a storage server with the naming server.
    * <p>
@@ -900,10 +1069,76 @@ public class NamingServer implements Service, Registration {
       throw new NullPointerException("One or more argument of register() is null.");
     }
 
-    if (ssStore.containsStorageServer(clientStub, commandStub)) {
-      throw new IllegalStateException("The storage server is already registered.");
+    synchronized (registering) {
+      if (registering.contains(clientStub)
+          || ssStore.containsStorageServer(clientStub, commandStub)) {
+        throw new IllegalStateException("The storage server is already registered.");
+      }
+    }
+
+    return merge(clientStub, commandStub, files);
+  }
+
+  /**
+   * Registers a storage server with the naming server, taking the list of its
+   * files in batches.
+   * <p>
+   * The first batch registers the server as <code>register</code> does; the
+   * others are merged with the directory tree in the same way. The root is not
+   * locked between the calls, so clients are served meanwhile.
+   * A server that sends no batch for a minute (or the time set with the property
+   * <code>dfs.naming.registrationTimeoutMillis</code>) after the previous one is
+   * merged is no longer taken to be registering, so that one that died between
+   * batches may register again.
+   *
+   * @param clientStub  Storage server client service stub.
+   * @param commandStub Storage server command service stub.
+   * @param files       A batch of the files stored on the storage server.
+   * @param more        <code>true</code> if further batches follow this one.
+   * @return A list of duplicate files from this batch to delete on the local
+   * storage of the registering storage server.
+   * @throws IllegalStateException If this is the first batch and the storage
+   *                               server is already registered.
+   * @throws NullPointerException  If any of the arguments is
+   *                               <code>null</code>.
+   */
+  @Override
+  public Path[] register(Storage clientStub, Command commandStub,
+                         Path[] files, boolean more) {
+    if (clientStub == null || commandStub == null || files == null) {
+      throw new NullPointerException("One or more argument of register() is null.");
+    }
+
+    boolean first;
+    synchronized (registering) {
+      first = !registering.contains(clientStub);
+      if (first && ssStore.containsStorageServer(clientStub, commandStub)) {
+        throw new IllegalStateException("The storage server is already registered.");
+      }
+      registering.renew(clientStub);
+    }
+
+    trace.debug("Registering a batch of {} files, more to follow: {}", files.length, more);
+    try {
+      // an empty batch after the first adds nothing; only an empty first batch
+      // records a server that hosts no files
+      if (!first && files.length == 0) {
+        return new Path[0];
+      }
+      return merge(clientStub, commandStub, files);
+    } finally {
+      // the server is idle from the end of the merge, however long it took
+      if (more) {
+        registering.renew(clientStub);
+      } else {
+        registering.finish(clientStub);
+      }
     }
+  }
 
+  // Merges files hosted by a storage server with the directory tree, and returns
+  // those already in it, which the storage server is to delete.
+  private Path[] merge(Storage clientStub, Command commandStub, Path[] files) {
 //    try {
 //      log("register trying to LOCK");
 //      lock(new Path(), true);
@@ -913,6 +1148,7 @@ public class NamingServer implements Service, Registration {
 //    }
 
     List<Path> duplicates = new ArrayList<>();
+    List<Path> added = new ArrayList<>(); // topmost object created for each new file
     if (files.length == 0) {
       StorageServerInfo ssInfo = new StorageServerInfo(clientStub, commandStub);
       ssStore.addEmptyStorageServerInfo(ssInfo);
@@ -931,6 +1167,12 @@ public class NamingServer implements Service, Registration {
       }
       // need to create file/dir recursively
       try {
+        for (Path created : getIncrementalPaths(incomingPath)) {
+          if (!fs.containsFile(created)) {
+            added.add(created);
+            break;
+          }
+        }
         List<FileInfo> fileInfoToUpdate = createFileRecursively(incomingPath);
         if (fileInfoToUpdate.size() == 0) {
           StorageServerInfo newStorageServerInfo = new StorageServerInfo(clientStub, commandStub);
@@ -946,6 +1188,10 @@ public class NamingServer implements Service, Registration {
       }
     }
 
+    if (!added.isEmpty()) {
+      subscriptions.changed(added.toArray(new Path[0]));
+    }
+
     Path[] ret = new Path[duplicates.size()];
     for (int i = 0; i < ret.length; i++) {
       ret[i] = duplicates.get(i);
@@ -972,12 +1218,6 @@ public class NamingServer implements Service, Registration {
     return successfullyCreatedFileInfos;
   }
 
-  private void log(String msg) {
-    if (this.logOn) {
-      System.out.println("In NAMING SERVER(): " + msg);
-    }
-  }
-
   private int getLineNumber() {
     return Thread.currentThread().getStackTrace()[2].getLineNumber();
   }
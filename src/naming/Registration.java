@@ -7,7 +7,8 @@ import rmi.RMIException;
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used on startup by each storage server, once or, when
+    the server sends its files in batches, once for each batch.
  */
 public interface Registration
 {
@@ -52,4 +53,48 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Registers a storage server with the naming server, sending the list
+        of its files in batches.
+
+        <p>
+        A storage server hosting many files may send them in several calls
+        rather than in one large message. The first call registers the server
+        and merges the first batch of files, exactly as
+        <code>register(client_stub, command_stub, files)</code> does. Each
+        following call merges another batch. All but the last call pass
+        <code>more</code> as <code>true</code>. The naming server keeps serving
+        clients between the calls, and files become visible to clients as
+        their batches are merged.
+
+        <p>
+        Naming servers that take the list of files only whole return
+        <code>null</code> from a first call with <code>more</code> set, and do
+        not register the server. The storage server then sends its whole list
+        with <code>register(client_stub, command_stub, files)</code>.
+
+        @param client_stub Storage server client service stub.
+        @param command_stub Storage server command service stub.
+        @param files A batch of the files stored on the storage server.
+        @param more <code>true</code> if further batches follow this one.
+        @return A list of duplicate files from this batch to delete on the
+                local storage of the registering storage server, or
+                <code>null</code> if the naming server does not take the list
+                of files in batches.
+        @throws IllegalStateException If this is the first batch and the
+                                      storage server is already registered.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public default Path[] register(Storage client_stub, Command command_stub,
+                                   Path[] files, boolean more)
+        throws RMIException
+    {
+        if(more)
+            return null;
+
+        return register(client_stub, command_stub, files);
+    }
 }
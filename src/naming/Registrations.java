@@ -0,0 +1,64 @@
+package naming;
+
+import storage.Storage;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storage servers that are registering their files in batches, and have more to send.
+ * <p>
+ * A server is taken to be registering from its first batch until its last one, as long as
+ * it is never idle for longer than the timeout: the time is measured from the end of its
+ * last batch, however long that batch took to merge, so that a slow registration of many
+ * batches is not cut short, while a server that died between batches may register again.
+ * The methods are synchronized on this object, which callers may also hold to check a
+ * server and then act on it atomically.
+ */
+class Registrations {
+  // time a registering server may go without sending a batch
+  private final long timeoutNanos;
+
+  // registering servers, with the time they last sent or finished merging a batch
+  private final Map<Storage, Long> active = new HashMap<>();
+
+  /**
+   * Creates an empty set of registrations.
+   *
+   * @param timeout time a registering server may go without sending a batch
+   * @param unit    unit of <code>timeout</code>
+   */
+  Registrations(long timeout, TimeUnit unit) {
+    this.timeoutNanos = unit.toNanos(timeout);
+  }
+
+  /**
+   * Returns whether a storage server is between batches of its files, first forgetting
+   * the servers that have been idle for too long.
+   */
+  synchronized boolean contains(Storage server) {
+    long now = System.nanoTime();
+    Iterator<Long> last = active.values().iterator();
+    while (last.hasNext()) {
+      if (now - last.next() > timeoutNanos) {
+        last.remove();
+      }
+    }
+    return active.containsKey(server);
+  }
+
+  /**
+   * Records that a storage server is registering and was heard from now. Called when a
+   * batch arrives and again once it is merged.
+   */
+  synchronized void renew(Storage server) {
+    active.put(server, System.nanoTime());
+  }
+
+  /** Records that a storage server has sent its last batch. */
+  synchronized void finish(Storage server) {
+    active.remove(server);
+  }
+}
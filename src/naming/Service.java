@@ -2,6 +2,7 @@ package naming;
 
 import java.io.*;
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 import storage.Storage;
 
@@ -138,6 +139,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -155,6 +157,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
@@ -167,7 +170,11 @@ public interface Service
         @param file Path at which the file is to be created.
         @return <code>true</code> if the file is created successfully,
                 <code>false</code> otherwise. The file is not created if a file
-                or directory with the given name already exists.
+                or directory with the given name already exists, or if its
+                name starts with <code>.dfs-copy-</code>, which the storage
+                servers reserve for the copies they are writing, or if it is
+                under <code>/.dfs-checksums</code>, where they keep the
+                checksums of their files.
         @throws FileNotFoundException If the parent directory does not exist.
         @throws IllegalStateException If no storage servers are connected to the
                                       naming server.
@@ -186,7 +193,9 @@ public interface Service
         @param directory Path at which the directory is to be created.
         @return <code>true</code> if the directory is created successfully,
                 <code>false</code> otherwise. The directory is not created if
-                a file or directory with the given name already exists.
+                a file or directory with the given name already exists, or
+                if it is or is under <code>/.dfs-checksums</code>, which the
+                storage servers reserve for the checksums of their files.
         @throws FileNotFoundException If the parent directory does not exist.
         @throws RMIException If the call cannot be completed due to a network
                              error.
@@ -228,4 +237,73 @@ public interface Service
      */
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns stubs for all the storage servers hosting a file.
+
+        <p>
+        Clients use the other replicas of a file when a read from the storage
+        server returned by <code>getStorage</code> fails, for instance with
+        <code>storage.ChecksumException</code>. The file should be locked as
+        for <code>getStorage</code>.
+
+        <p>
+        The default implementation returns the single stub returned by
+        <code>getStorage</code>, for naming servers that do not list replicas.
+
+        @param file Path to the file.
+        @return Stubs for the storage servers hosting the file, in no
+                particular order.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException
+    {
+        return new Storage[] {getStorage(file)};
+    }
+
+    /** Subscribes a client to reports of changes to the directory tree.
+
+        <p>
+        While the subscription lasts, the naming server calls
+        <code>listener</code> after each change to the directory tree: after
+        a file or directory is created or deleted, after files are added by
+        the registration of a storage server, and after the replicas of a file
+        are deleted. Clients use the reports to discard the results of earlier
+        calls that they have cached, such as with
+        <code>CachingService</code>. Reports are sent asynchronously, and may
+        arrive after the call making the change has returned.
+
+        <p>
+        The subscription is a lease: it ends when the time granted has elapsed,
+        or when a report cannot be delivered. The client renews it by calling
+        this method again with the same listener before the lease expires, and
+        cancels it by passing a lease of zero. The lease returned tells whether
+        it renews the subscription or starts a new one: a new subscription
+        means that reports may have been missed before it, whether the earlier
+        lease expired or a report to the listener failed, and the client
+        should then treat everything it has cached as stale.
+
+        <p>
+        The default implementation grants no subscription, for naming servers
+        that do not report changes.
+
+        @param listener Stub for the client's callback interface.
+        @param leaseMillis The length of the lease requested, in milliseconds,
+                           or zero to cancel the subscription.
+        @return The lease granted, which may be shorter than requested, or
+                <code>Lease.NONE</code> if no subscription is held.
+        @throws NullPointerException If <code>listener</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default Lease subscribe(Invalidation listener, long leaseMillis)
+        throws RMIException
+    {
+        return Lease.NONE;
+    }
 }
@@ -1,12 +1,25 @@
 package naming;
 
+import rmi.Stub;
 import storage.Command;
+import storage.CommandAsync;
 import storage.Storage;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * Contains information about the storage server.
  */
 public class StorageServerInfo {
+  // time allowed for a command sent through commandAsync(), besides the time allowed for the
+  // bytes it copies, so that a storage server that hangs cannot hold up replication
+  // indefinitely
+  static final long COMMAND_TIMEOUT_MILLIS =
+      Math.max(0, Long.getLong("dfs.naming.commandTimeoutMillis", TimeUnit.MINUTES.toMillis(1)));
+  // slowest copy, in bytes per second, that a command copying a file waits for
+  static final long COPY_BYTES_PER_SECOND =
+      Math.max(1, Long.getLong("dfs.naming.copyBytesPerSecond", 1024 * 1024));
+
   Storage clientStub; // for client
   Command commandStub; // for naming server
 
@@ -15,6 +28,31 @@ public class StorageServerInfo {
     this.commandStub = commandStub;
   }
 
+  /**
+   * Returns an asynchronous stub for the command interface of the storage server, so that a
+   * command can be sent to several storage servers at once. Commands sent through it fail
+   * if they have not completed within {@link #COMMAND_TIMEOUT_MILLIS}, and the time needed
+   * to copy the given number of bytes at {@link #COPY_BYTES_PER_SECOND}.
+   *
+   * @param size bytes the commands copy, or 0 if they copy nothing
+   */
+  CommandAsync commandAsync(long size) {
+    return Stub.createAsync(CommandAsync.class,
+        Stub.withTimeout(commandStub, commandTimeoutMillis(size), TimeUnit.MILLISECONDS));
+  }
+
+  /**
+   * Returns the time allowed for a command copying the given number of bytes, in
+   * milliseconds.
+   */
+  static long commandTimeoutMillis(long size) {
+    long copying = Math.max(0, size) / COPY_BYTES_PER_SECOND;
+    if (copying >= (Long.MAX_VALUE - COMMAND_TIMEOUT_MILLIS) / 1000) {
+      return Long.MAX_VALUE;
+    }
+    return COMMAND_TIMEOUT_MILLIS + copying * 1000;
+  }
+
   @Override
   public int hashCode() {
     return clientStub.hashCode();
@@ -0,0 +1,114 @@
+package naming;
+
+import common.Path;
+import rmi.Stub;
+import rmi.Trace;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Clients subscribed to changes of the filesystem tree, and the leases they hold.
+ * <p>
+ * A client subscribes with {@link Service#subscribe}, passing a stub for its
+ * {@link Invalidation} callback, and is then told of every change until its lease
+ * expires or a report to it fails. Reports are sent asynchronously, so that a slow or
+ * unreachable client cannot hold up the naming server. A client subscribing again after
+ * its subscription ended is granted a new one rather than a renewal, so that it learns it
+ * may have missed reports.
+ */
+class Subscriptions {
+  private static final Trace trace = Trace.of(Subscriptions.class);
+
+  // longest lease granted; clients renew before it expires
+  static final long MAX_LEASE_MILLIS = 60_000;
+  // time allowed for a report to reach a client before the client is dropped
+  static final long NOTIFY_TIMEOUT_SECONDS = 5;
+
+  private final ConcurrentMap<Invalidation, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+  /**
+   * Subscribes a client, or renews or cancels its lease. Subscriptions are made one at a
+   * time, so that a client is told whether its lease is renewed; reports do not wait for
+   * them.
+   *
+   * @param listener    stub for the client's callback
+   * @param leaseMillis lease requested; zero or less cancels the subscription
+   * @return the lease granted, renewed if the client held a subscription that had not
+   * ended, or <code>Lease.NONE</code> if the subscription was cancelled
+   */
+  synchronized Lease subscribe(Invalidation listener, long leaseMillis) {
+    if (listener == null) {
+      throw new NullPointerException("listener is null");
+    }
+
+    if (leaseMillis <= 0) {
+      subscribers.remove(listener);
+      trace.debug("Unsubscribed {}", listener);
+      return Lease.NONE;
+    }
+
+    long granted = Math.min(leaseMillis, MAX_LEASE_MILLIS);
+    long now = System.nanoTime();
+    long expiry = now + TimeUnit.MILLISECONDS.toNanos(granted);
+    // a subscriber dropped after a failed report is no longer in the map, and one whose
+    // lease expired is not renewed, even if no report has removed it yet
+    Subscriber subscriber = subscribers.get(listener);
+    boolean renewed = subscriber != null && subscriber.expiry - now >= 0;
+    if (renewed) {
+      subscriber.expiry = expiry;
+    } else {
+      subscribers.put(listener, new Subscriber(Stub.createAsync(InvalidationAsync.class,
+          Stub.withTimeout(listener, NOTIFY_TIMEOUT_SECONDS, TimeUnit.SECONDS)), expiry));
+    }
+    trace.debug("Subscribed {} for {} ms, renewed: {}", listener, granted, renewed);
+    return new Lease(granted, renewed);
+  }
+
+  /**
+   * Reports changed paths to every subscriber whose lease has not expired. Subscribers
+   * whose lease has expired, or to which the report cannot be sent, are dropped.
+   */
+  void changed(Path... paths) {
+    if (subscribers.isEmpty() || paths.length == 0) {
+      return;
+    }
+
+    long now = System.nanoTime();
+    for (Map.Entry<Invalidation, Subscriber> entry : subscribers.entrySet()) {
+      final Invalidation listener = entry.getKey();
+      final Subscriber subscriber = entry.getValue();
+      if (subscriber.expiry - now < 0) {
+        subscribers.remove(listener, subscriber);
+        trace.debug("Lease of {} expired", listener);
+        continue;
+      }
+
+      CompletableFuture<Void> report = subscriber.async.invalidate(paths);
+      report.whenComplete(new BiConsumer<Void, Throwable>() {
+        @Override
+        public void accept(Void result, Throwable failure) {
+          if (failure != null) {
+            // what the client missed is bounded by the time to live of its cache entries
+            subscribers.remove(listener, subscriber);
+            trace.warn("Dropped subscriber {}: {}", listener, failure);
+          }
+        }
+      });
+    }
+  }
+
+  private static class Subscriber {
+    final InvalidationAsync async;
+    volatile long expiry;
+
+    Subscriber(InvalidationAsync async, long expiry) {
+      this.async = async;
+      this.expiry = expiry;
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package naming.fs;
 
+import rmi.Trace;
+
 import java.util.concurrent.Semaphore;
 
 /**
@@ -7,19 +9,19 @@ import java.util.concurrent.Semaphore;
  * You can add more fields as we go.
  */
 public class FileInfo {
+  private static final Trace trace = Trace.of(FileInfo.class);
+
   static final int REPLICATION_THRESHOLD = 20;
   String name; // file name or directory name (component in Path)
   boolean isDirectory;
   //private final ReentrantReadWriteLock rwl;
   private final MySemophore rwl;
-  private boolean logOn;
   int writeCount; // todo update this when write lock is acquired
   int readCount;  // todo update this when read lock is acquired
 
   public FileInfo(boolean isDirectory) {
     this.isDirectory = isDirectory;
 
-    this.logOn = false;
     //rwl = new ReentrantReadWriteLock();
     rwl = new MySemophore();
   }
@@ -32,16 +34,16 @@ public class FileInfo {
 
     if (isXLock) { // write lock
 
-      log(callerName + " trying to get X lock...");
+      trace.debug("{} trying to get X lock...", callerName);
       //this.rwl.writeLock().lock();
       this.rwl.lockWrite();
-      log(callerName + " got X lock!");
+      trace.debug("{} got X lock!", callerName);
 
     } else { //
 
-      log(callerName + " trying to get S lock...");
+      trace.debug("{} trying to get S lock...", callerName);
       this.rwl.lockRead();
-      log(callerName + " got S lock!");
+      trace.debug("{} got S lock!", callerName);
     }
 
   }
@@ -52,19 +54,13 @@ public class FileInfo {
 
       //this.rwl.writeLock().unlock();
       this.rwl.unlockWrite();
-      log(callerName + " released X lock...");
+      trace.debug("{} released X lock...", callerName);
 
     } else {
       //this.rwl.readLock().unlock();
       this.rwl.unlockRead();
-      log(callerName + " released S lock...");
-
-    }
-  }
+      trace.debug("{} released S lock...", callerName);
 
-  private void log(String msg) {
-    if (this.logOn) {
-      System.out.println("In FILE INFO: " + msg);
     }
   }
 
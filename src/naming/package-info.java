@@ -24,7 +24,9 @@
     they are initially able to serve, and provide RMI stubs for accessing them.
     This process is <em>registration</em>. The naming server then requests that
     the storage server remove duplicate files that are already present in the
-    naming server's directory tree.
+    naming server's directory tree. Storage servers with many files send the
+    list in batches, and the naming server keeps serving clients while it
+    merges them.
 
     <p>
     The naming server supports file and directory <em>locking</em>. Operations
@@ -37,7 +39,10 @@
 
     <p>
     Commonly-accessed files are <em>replicated</em>: additional storage servers
-    are chosen to host them, if they are available. When a replicated file is
+    are chosen to host them, if they are available. The new copies are made
+    along a chain: the first server copies the file from one that hosts it and
+    passes it to the next as it arrives, so that the file is sent once from
+    its source however many copies are made. When a replicated file is
     accessed for writing, all copies of the file but one are
     <em>invalidated</em> (deleted).
 
@@ -47,5 +52,12 @@
     for storage servers, and a <em>registration interface</em>, through which
     storage servers notify the naming server of their existence. Both interfaces
     are RMI skeletons running at well-known ports.
+
+    <p>
+    Clients that look up the same paths repeatedly may place a
+    <code>CachingService</code> in front of the service interface. It caches
+    the results of lookups for a limited time, and subscribes to the naming
+    server's reports of changes to the directory tree to discard the results
+    those changes make stale.
  */
 package naming;
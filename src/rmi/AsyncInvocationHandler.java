@@ -0,0 +1,78 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Invocation handler of asynchronous stubs (see Stub.createAsync). Each method of the
+// companion interface is matched, once, with the method of the remote interface that has
+// the same name and parameter types; calling it sends that remote call through the
+// synchronous stub's handler and returns a future for the result instead of waiting.
+class AsyncInvocationHandler implements InvocationHandler {
+
+  private static final Trace trace = Trace.of(AsyncInvocationHandler.class);
+
+  // Futures returned to the user complete on these threads rather than on a connection's
+  // reader thread, so a dependent action may itself make blocking remote calls.
+  private static final Executor completions =
+      Executors.newCachedThreadPool(new SkeletonExecutors.WorkerFactory("rmi-async"));
+
+  final MyInvocationHandler<?> remote;
+  final Class<?> asyncInterface;
+  private final Map<Method, Method> targets; // companion method -> remote method
+
+  AsyncInvocationHandler(Class<?> asyncInterface, MyInvocationHandler<?> remote) {
+    this.asyncInterface = asyncInterface;
+    this.remote = remote;
+    this.targets = new HashMap<Method, Method>();
+
+    for (Method method : asyncInterface.getMethods()) {
+      if (method.getReturnType() != CompletableFuture.class) {
+        throw new Error(method + " does not return CompletableFuture");
+      }
+      try {
+        targets.put(method, remote.remoteInterface.getMethod(method.getName(),
+                                                             method.getParameterTypes()));
+      } catch (NoSuchMethodException e) {
+        throw new Error(method + " has no counterpart in " + remote.remoteInterface.getName());
+      }
+    }
+  }
+
+  public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+    Method target = targets.get(method);
+    if (target != null) {
+      trace.debug("{}() called asynchronously", method.getName());
+      return remote.callAsync(remote.table(), target, args, completions);
+    }
+
+    // methods of Object
+    String name = method.getName();
+    if (name.equals("equals")) {
+      return args[0] != null && Proxy.isProxyClass(args[0].getClass()) &&
+             equals(Proxy.getInvocationHandler(args[0]));
+    }
+    if (name.equals("hashCode")) {
+      return hashCode();
+    }
+    if (name.equals("toString")) {
+      return asyncInterface.getName() + " " + remote.skeletonAddr.getHostName() + ":" +
+             remote.port;
+    }
+    throw new UnsupportedOperationException(method.toString());
+  }
+
+  @Override
+  public boolean equals(Object other) {
+    if (!(other instanceof AsyncInvocationHandler)) {
+      return false;
+    }
+    AsyncInvocationHandler that = (AsyncInvocationHandler) other;
+    return this.asyncInterface == that.asyncInterface && this.remote.equals(that.remote);
+  }
+
+  @Override
+  public int hashCode() {
+    return remote.hashCode() ^ asyncInterface.hashCode();
+  }
+}
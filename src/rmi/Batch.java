@@ -0,0 +1,253 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/** Sequence of calls to one remote object, sent in a single round trip.
+
+    <p>
+    A batch is created for a stub. Calls are recorded by calling methods on the
+    recorder returned by <code>calls</code>, which implements the same remote
+    interface as the stub; recording a call does not send it, and the recorder
+    returns <code>null</code>, <code>false</code> or zero. Recording never
+    throws, but the exceptions declared by the remote interface must still be
+    handled where calls are recorded. <code>execute</code>
+    then sends all the recorded calls to the skeleton in one frame. The
+    skeleton runs them in the order in which they were recorded, on one thread,
+    and replies with the outcomes of all of them in one frame.
+
+    <p>
+    For example, a client can lock a path, list it and unlock it in one round
+    trip:
+
+    <pre>
+    Batch&lt;Service&gt;  batch = Batch.of(naming_server);
+    batch.calls().lock(path, false);
+    batch.calls().list(path);
+    batch.calls().unlock(path, false);
+
+    String[]        contents = (String[])batch.execute().get(1).get();
+    </pre>
+
+    <p>
+    By default, every call is run even if an earlier one throws an exception.
+    If <code>stopOnException</code> is set, the calls following one that
+    throws are skipped instead, and reported as such.
+
+    <p>
+    A batch is not thread-safe, and may be executed only once.
+ */
+public class Batch<T>
+{
+    private final T                     recorder;
+    private final MyInvocationHandler<?> stub;
+    private final List<Method>          methods = new ArrayList<Method>();
+    private final List<Object[]>        args = new ArrayList<Object[]>();
+    private boolean                     stopOnException = false;
+    private boolean                     executed = false;
+
+    private Batch(Class<?> remoteInterface, MyInvocationHandler<?> stub)
+    {
+        this.stub = stub;
+
+        // the recorder implements the remote interface of the stub, which is
+        // the interface T stands for
+        @SuppressWarnings("unchecked")
+        T   recorder = (T)Proxy.newProxyInstance(
+            remoteInterface.getClassLoader(), new Class<?>[] {remoteInterface},
+            new Recorder());
+        this.recorder = recorder;
+    }
+
+    /** Creates an empty batch of calls to the remote object of a stub.
+
+        @param stub A stub created by <code>Stub</code>.
+        @return The batch created.
+        @throws NullPointerException If <code>stub</code> is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by <code>Stub</code>.
+     */
+    public static <T> Batch<T> of(T stub)
+    {
+        if(stub == null)
+            throw new NullPointerException("stub is null");
+
+        if(!Proxy.isProxyClass(stub.getClass()) ||
+           !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler))
+        {
+            throw new IllegalArgumentException("not a stub: " + stub);
+        }
+
+        MyInvocationHandler<?>  handler =
+            (MyInvocationHandler<?>)Proxy.getInvocationHandler(stub);
+        return new Batch<T>(handler.remoteInterface, handler);
+    }
+
+    /** Returns the recorder: calling one of its remote methods adds a call to
+        the batch. */
+    public T calls()
+    {
+        return recorder;
+    }
+
+    /** Sets whether the calls following a call that throws an exception are
+        skipped. By default, they are run. */
+    public void stopOnException(boolean stop)
+    {
+        stopOnException = stop;
+    }
+
+    /** Returns the number of calls recorded. */
+    public int size()
+    {
+        return methods.size();
+    }
+
+    /** Sends the recorded calls to the skeleton and waits for their outcomes.
+
+        @return The outcome of each call, in the order in which the calls were
+                recorded.
+        @throws RMIException If the batch cannot be sent or its reply cannot
+                             be received or decoded. In that case, some, all,
+                             or none of the calls may have been run.
+        @throws IllegalStateException If the batch has already been executed.
+     */
+    public List<Result> execute() throws RMIException
+    {
+        if(executed)
+            throw new IllegalStateException("batch already executed");
+        executed = true;
+
+        if(methods.isEmpty())
+            return Collections.emptyList();
+
+        Method[]        called = methods.toArray(new Method[methods.size()]);
+        MyInvocationHandler.Reply   reply =
+            stub.batch(called, args.toArray(new Object[args.size()][]),
+                       stopOnException);
+
+        if(reply.frame.type == Frame.FAILURE)
+            throw new RMIException(reply.frame.failureMessage());
+
+        try
+        {
+            DataInputStream in = reply.frame.bodyStream();
+            int             count = BinaryCodec.readVarInt(in);
+            if(count != called.length)
+            {
+                throw new StreamCorruptedException("expected " + called.length +
+                                                   " outcomes, got " + count);
+            }
+
+            List<Result>    results = new ArrayList<Result>(count);
+            for(Method method : called)
+            {
+                byte        outcome = in.readByte();
+                if(outcome == Frame.VALUE)
+                {
+                    results.add(new Result(
+                        reply.codec.read(in, method.getReturnType()), null,
+                        false));
+                }
+                else if(outcome == Frame.EXCEPTION)
+                {
+                    results.add(new Result(
+                        null, (Throwable)reply.codec.read(in, Throwable.class),
+                        false));
+                }
+                else if(outcome == Frame.SKIPPED)
+                    results.add(new Result(null, null, true));
+                else
+                    throw new StreamCorruptedException("bad outcome " + outcome);
+            }
+
+            return results;
+        }
+        catch(IOException | ClassCastException e)
+        {
+            throw new RMIException("Could not decode the outcomes of a batch", e);
+        }
+        finally
+        {
+            reply.frame.release();
+        }
+    }
+
+    /** Outcome of one call in a batch. */
+    public static class Result
+    {
+        private final Object        value;
+        private final Throwable     exception;
+        private final boolean       skipped;
+
+        private Result(Object value, Throwable exception, boolean skipped)
+        {
+            this.value = value;
+            this.exception = exception;
+            this.skipped = skipped;
+        }
+
+        /** Returns the value returned by the call, or throws the exception
+            thrown by it.
+
+            @throws Throwable The exception thrown by the call.
+            @throws IllegalStateException If the call was skipped.
+         */
+        public Object get() throws Throwable
+        {
+            if(skipped)
+                throw new IllegalStateException("call was skipped");
+            if(exception != null)
+                throw exception;
+            return value;
+        }
+
+        /** Returns the exception thrown by the call, or <code>null</code> if
+            it returned normally or was skipped. */
+        public Throwable exception()
+        {
+            return exception;
+        }
+
+        /** Returns <code>true</code> if the call was not run because an
+            earlier call in the batch threw an exception. */
+        public boolean skipped()
+        {
+            return skipped;
+        }
+    }
+
+    /** Records calls made on the recorder. */
+    private class Recorder implements InvocationHandler
+    {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] arguments)
+        {
+            if(method.getDeclaringClass() == Object.class)
+            {
+                if(method.getName().equals("equals"))
+                    return proxy == arguments[0];
+                if(method.getName().equals("hashCode"))
+                    return System.identityHashCode(proxy);
+                return "batch of " + methods.size() + " calls to " +
+                       stub.remoteInterface.getName();
+            }
+
+            if(executed)
+                throw new IllegalStateException("batch already executed");
+
+            methods.add(method);
+            args.add(arguments == null ? new Object[0] : arguments);
+            return zero(method.getReturnType());
+        }
+    }
+
+    /** Returns the value a recorded call returns for the given type. */
+    private static Object zero(Class<?> type)
+    {
+        if(!type.isPrimitive() || type == void.class)
+            return null;
+        return Array.get(Array.newInstance(type, 1), 0);
+    }
+}
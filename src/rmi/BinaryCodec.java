@@ -0,0 +1,421 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+import common.Path;
+
+/** Compact binary codec.
+
+    <p>
+    Primitive values are written in their natural fixed-width form. Values of
+    the types used most by the filesystem interfaces - <code>String</code>,
+    <code>Path</code>, <code>byte[]</code>, <code>String[]</code>,
+    <code>Path[]</code>, <code>int[]</code>, <code>long[]</code>,
+    <code>byte[][]</code> and the boxed primitives - are written field by field
+    with variable-length integers for counts and lengths, and without any class
+    descriptors. Stubs are written as their interface name and skeleton
+    address. Any other value, including exceptions, falls back to Java
+    serialization.
+
+    <p>
+    Every value of reference type starts with a tag byte, which tells whether
+    the value is <code>null</code>, encoded natively, a stub, or serialized.
+ */
+public class BinaryCodec implements Codec
+{
+    /** Wire identifier of this codec. */
+    public static final byte    ID = 2;
+
+    private static final byte   NULL = 0;
+    private static final byte   NATIVE = 1;
+    private static final byte   SERIALIZED = 2;
+    private static final byte   STUB = 3;
+
+    /** Remote interfaces named in stubs received so far. */
+    private static final ConcurrentMap<String, Class<?>>    interfaces =
+        new ConcurrentHashMap<String, Class<?>>();
+
+    @Override
+    public byte id()
+    {
+        return ID;
+    }
+
+    @Override
+    public void write(DataOutputStream out, Class<?> type, Object value)
+        throws IOException
+    {
+        if(type.isPrimitive())
+        {
+            writePrimitive(out, type, value);
+            return;
+        }
+
+        if(value == null)
+        {
+            out.writeByte(NULL);
+            return;
+        }
+
+        if(isNative(type, value))
+        {
+            out.writeByte(NATIVE);
+            writeNative(out, type, value);
+            return;
+        }
+
+        if(type.isInterface() && Proxy.isProxyClass(value.getClass()) &&
+           Proxy.getInvocationHandler(value) instanceof MyInvocationHandler)
+        {
+            out.writeByte(STUB);
+            writeStub(out,
+                (MyInvocationHandler<?>)Proxy.getInvocationHandler(value));
+            return;
+        }
+
+        out.writeByte(SERIALIZED);
+        SerializationCodec.writeObject(out, value);
+    }
+
+    @Override
+    public Object read(DataInputStream in, Class<?> type) throws IOException
+    {
+        if(type.isPrimitive())
+            return readPrimitive(in, type);
+
+        byte        tag = in.readByte();
+        switch(tag)
+        {
+        case NULL:
+            return null;
+        case NATIVE:
+            return readNative(in, type);
+        case STUB:
+            return readStub(in);
+        case SERIALIZED:
+            return SerializationCodec.readObject(in);
+        default:
+            throw new StreamCorruptedException("bad value tag " + tag);
+        }
+    }
+
+    // Primitives.
+
+    private static void writePrimitive(DataOutputStream out, Class<?> type,
+                                       Object value) throws IOException
+    {
+        if(type == int.class)
+            out.writeInt((Integer)value);
+        else if(type == long.class)
+            out.writeLong((Long)value);
+        else if(type == boolean.class)
+            out.writeBoolean((Boolean)value);
+        else if(type == byte.class)
+            out.writeByte((Byte)value);
+        else if(type == short.class)
+            out.writeShort((Short)value);
+        else if(type == char.class)
+            out.writeChar((Character)value);
+        else if(type == float.class)
+            out.writeFloat((Float)value);
+        else if(type == double.class)
+            out.writeDouble((Double)value);
+        // void: nothing to write
+    }
+
+    private static Object readPrimitive(DataInputStream in, Class<?> type)
+        throws IOException
+    {
+        if(type == int.class)
+            return in.readInt();
+        if(type == long.class)
+            return in.readLong();
+        if(type == boolean.class)
+            return in.readBoolean();
+        if(type == byte.class)
+            return in.readByte();
+        if(type == short.class)
+            return in.readShort();
+        if(type == char.class)
+            return in.readChar();
+        if(type == float.class)
+            return in.readFloat();
+        if(type == double.class)
+            return in.readDouble();
+        return null;
+    }
+
+    // Natively encoded reference types. The value must be exactly of the
+    // declared type, so that the reader can reconstruct it from the declared
+    // type alone.
+
+    private static boolean isNative(Class<?> type, Object value)
+    {
+        Class<?>    actual = value.getClass();
+        if(actual != type)
+            return false;
+
+        return type == String.class || type == Path.class ||
+               type == byte[].class || type == String[].class ||
+               type == Path[].class || type == int[].class ||
+               type == long[].class || type == byte[][].class ||
+               type == Integer.class || type == Long.class ||
+               type == Boolean.class;
+    }
+
+    private static void writeNative(DataOutputStream out, Class<?> type,
+                                    Object value) throws IOException
+    {
+        if(type == String.class)
+            writeString(out, (String)value);
+        else if(type == Path.class)
+            writePath(out, (Path)value);
+        else if(type == byte[].class)
+        {
+            byte[]  bytes = (byte[])value;
+            writeVarInt(out, bytes.length);
+            out.write(bytes);
+        }
+        else if(type == String[].class)
+        {
+            String[]    strings = (String[])value;
+            writeVarInt(out, strings.length);
+            for(String string : strings)
+            {
+                out.writeBoolean(string != null);
+                if(string != null)
+                    writeString(out, string);
+            }
+        }
+        else if(type == Path[].class)
+        {
+            Path[]      paths = (Path[])value;
+            writeVarInt(out, paths.length);
+            for(Path path : paths)
+            {
+                out.writeBoolean(path != null);
+                if(path != null)
+                    writePath(out, path);
+            }
+        }
+        else if(type == int[].class)
+        {
+            int[]       ints = (int[])value;
+            writeVarInt(out, ints.length);
+            for(int element : ints)
+                out.writeInt(element);
+        }
+        else if(type == long[].class)
+        {
+            long[]      longs = (long[])value;
+            writeVarInt(out, longs.length);
+            for(long element : longs)
+                out.writeLong(element);
+        }
+        else if(type == byte[][].class)
+        {
+            byte[][]    arrays = (byte[][])value;
+            writeVarInt(out, arrays.length);
+            for(byte[] bytes : arrays)
+            {
+                out.writeBoolean(bytes != null);
+                if(bytes != null)
+                {
+                    writeVarInt(out, bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+        else if(type == Integer.class)
+            out.writeInt((Integer)value);
+        else if(type == Long.class)
+            out.writeLong((Long)value);
+        else if(type == Boolean.class)
+            out.writeBoolean((Boolean)value);
+    }
+
+    private static Object readNative(DataInputStream in, Class<?> type)
+        throws IOException
+    {
+        if(type == String.class)
+            return readString(in);
+
+        if(type == Path.class)
+            return readPath(in);
+
+        if(type == byte[].class)
+        {
+            byte[]  bytes = new byte[readVarInt(in)];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        if(type == String[].class)
+        {
+            String[]    strings = new String[readVarInt(in)];
+            for(int index = 0; index < strings.length; ++index)
+                strings[index] = in.readBoolean() ? readString(in) : null;
+            return strings;
+        }
+
+        if(type == Path[].class)
+        {
+            Path[]      paths = new Path[readVarInt(in)];
+            for(int index = 0; index < paths.length; ++index)
+                paths[index] = in.readBoolean() ? readPath(in) : null;
+            return paths;
+        }
+
+        if(type == int[].class)
+        {
+            int[]       ints = new int[readVarInt(in)];
+            for(int index = 0; index < ints.length; ++index)
+                ints[index] = in.readInt();
+            return ints;
+        }
+
+        if(type == long[].class)
+        {
+            long[]      longs = new long[readVarInt(in)];
+            for(int index = 0; index < longs.length; ++index)
+                longs[index] = in.readLong();
+            return longs;
+        }
+
+        if(type == byte[][].class)
+        {
+            byte[][]    arrays = new byte[readVarInt(in)][];
+            for(int index = 0; index < arrays.length; ++index)
+            {
+                if(in.readBoolean())
+                {
+                    arrays[index] = new byte[readVarInt(in)];
+                    in.readFully(arrays[index]);
+                }
+            }
+            return arrays;
+        }
+
+        if(type == Integer.class)
+            return in.readInt();
+        if(type == Long.class)
+            return in.readLong();
+        if(type == Boolean.class)
+            return in.readBoolean();
+
+        throw new StreamCorruptedException("no native encoding for " +
+                                           type.getName());
+    }
+
+    private static void writeString(DataOutputStream out, String string)
+        throws IOException
+    {
+        byte[]      bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        byte[]      bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writePath(DataOutputStream out, Path path)
+        throws IOException
+    {
+        List<String>    components = path.getComponents();
+        writeVarInt(out, components.size());
+        for(String component : components)
+            writeString(out, component);
+    }
+
+    private static Path readPath(DataInputStream in) throws IOException
+    {
+        int             count = readVarInt(in);
+        List<String>    components = new ArrayList<String>(count);
+        for(int index = 0; index < count; ++index)
+            components.add(readString(in));
+        return new Path(components);
+    }
+
+    // Stubs travel as the name of their interface and the address of their
+    // skeleton, and are rebuilt on the receiving side.
+
+    private static void writeStub(DataOutputStream out,
+                                  MyInvocationHandler<?> handler)
+        throws IOException
+    {
+        writeString(out, handler.remoteInterface.getName());
+        byte[]      address = handler.skeletonAddr.getAddress();
+        writeVarInt(out, address.length);
+        out.write(address);
+        out.writeShort(handler.port);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object readStub(DataInputStream in) throws IOException
+    {
+        String      name = readString(in);
+        byte[]      address = new byte[readVarInt(in)];
+        in.readFully(address);
+        int         port = in.readUnsignedShort();
+
+        Class<?>    remoteInterface = interfaces.get(name);
+        if(remoteInterface == null)
+        {
+            try
+            {
+                remoteInterface = Class.forName(name);
+            }
+            catch(ClassNotFoundException e)
+            {
+                throw new InvalidClassException(name, "unknown interface");
+            }
+            interfaces.putIfAbsent(name, remoteInterface);
+        }
+
+        MyInvocationHandler handler =
+            new MyInvocationHandler(remoteInterface, port,
+                                    InetAddress.getByAddress(address));
+        return Proxy.newProxyInstance(remoteInterface.getClassLoader(),
+                                      new Class[] {remoteInterface}, handler);
+    }
+
+    // Variable-length unsigned integers, seven bits per byte, least
+    // significant group first.
+
+    static void writeVarInt(DataOutputStream out, int value)
+        throws IOException
+    {
+        while((value & ~0x7f) != 0)
+        {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInputStream in) throws IOException
+    {
+        int         value = 0;
+        for(int shift = 0; shift < 32; shift += 7)
+        {
+            int     next = in.readUnsignedByte();
+            value |= (next & 0x7f) << shift;
+            if((next & 0x80) == 0)
+            {
+                if(value < 0)
+                    throw new StreamCorruptedException("negative length");
+                return value;
+            }
+        }
+        throw new StreamCorruptedException("variable-length integer too long");
+    }
+}
@@ -0,0 +1,50 @@
+package rmi;
+
+import java.io.*;
+import java.nio.*;
+
+/** Input stream reading the remaining bytes of a buffer. */
+class BufferInputStream extends InputStream
+{
+    private final ByteBuffer    buffer;
+
+    /** Creates a stream reading the remaining bytes of the given buffer,
+        whose position it advances. */
+    BufferInputStream(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    @Override
+    public int read()
+    {
+        return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] data, int offset, int length)
+    {
+        if(length == 0)
+            return 0;
+        if(!buffer.hasRemaining())
+            return -1;
+
+        int         count = Math.min(length, buffer.remaining());
+        buffer.get(data, offset, count);
+        return count;
+    }
+
+    @Override
+    public long skip(long count)
+    {
+        int         skipped = (int)Math.max(0, Math.min(count, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+    }
+
+    @Override
+    public int available()
+    {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,78 @@
+package rmi;
+
+import java.io.*;
+import java.nio.*;
+
+/** Output stream writing into a pooled direct buffer, which is replaced by a
+    larger one from the pool when it fills up. Used to marshal the bodies of
+    frames without allocating arrays in proportion to their size.
+
+    <p>
+    The buffer written is either taken with <code>take</code>, after which the
+    taker is responsible for releasing it, or given back to the pool with
+    <code>release</code>.
+ */
+class BufferOutputStream extends OutputStream
+{
+    /** Capacity of the first buffer, large enough for most calls. */
+    static final int        INITIAL_CAPACITY = 4 * 1024;
+
+    private ByteBuffer      buffer = BufferPool.acquire(INITIAL_CAPACITY);
+
+    @Override
+    public void write(int value)
+    {
+        reserve(1);
+        buffer.put((byte)value);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length)
+    {
+        reserve(length);
+        buffer.put(data, offset, length);
+    }
+
+    /** Returns the number of bytes written so far. */
+    int size()
+    {
+        return buffer.position();
+    }
+
+    /** Returns the buffer holding the bytes written, flipped so that they
+        are its remaining bytes. The stream cannot be used afterwards. */
+    ByteBuffer take()
+    {
+        ByteBuffer      written = buffer;
+        buffer = null;
+        written.flip();
+        return written;
+    }
+
+    /** Gives the buffer back to the pool, unless it has been taken. */
+    void release()
+    {
+        BufferPool.release(buffer);
+        buffer = null;
+    }
+
+    /** Makes room for the given number of bytes, moving what has been
+        written to a larger buffer if necessary. */
+    private void reserve(int length)
+    {
+        if(buffer.remaining() >= length)
+            return;
+
+        long            needed = (long)buffer.position() + length;
+        if(needed > Integer.MAX_VALUE - Frame.HEADER_SIZE - 4)
+            throw new OutOfMemoryError("frame body too large: " + needed);
+
+        ByteBuffer      larger = BufferPool.acquire(
+            (int)Math.max(needed, Math.min(2L * buffer.capacity(),
+                                           Integer.MAX_VALUE / 2)));
+        buffer.flip();
+        larger.put(buffer);
+        BufferPool.release(buffer);
+        buffer = larger;
+    }
+}
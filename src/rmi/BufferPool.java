@@ -0,0 +1,310 @@
+package rmi;
+
+import java.lang.ref.*;
+import java.nio.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Pool of direct byte buffers, reused for the frames of the RMI library and
+    the transfers of the storage servers.
+
+    <p>
+    Buffers come in size classes, each a power of two from 4 KiB to 8 MiB: a
+    request for a buffer is served with a buffer of the smallest class that
+    holds it. Each thread keeps a few buffers of each class up to 64 KiB for
+    itself, so that the small buffers used by every call are taken and
+    returned without contention. Buffers of every class are also kept in a
+    shared pool, of a bounded number of slots per class, from which they are
+    taken and to which they are returned with a single atomic operation. A
+    buffer returned when the pool is full is dropped, and its memory is freed
+    by the garbage collector. Buffers larger than the largest class are not
+    pooled.
+
+    <p>
+    Since the buffers are direct, the data they hold is not on the Java heap,
+    and data read from or written to a channel through them is not copied by
+    the JDK. Once the pool has warmed up, moving a frame of any size through
+    the library allocates no heap memory in proportion to its size.
+
+    <p>
+    A buffer obtained from <code>acquire</code> must be given back with
+    <code>release</code> exactly once, and not used after that. Buffers that
+    are never given back are simply freed by the garbage collector. The pool
+    remembers, weakly, the buffers it allocated for its classes, and takes
+    back no others: a buffer allocated elsewhere, or a view of a pooled
+    buffer, is ignored by <code>release</code>, so that it is never handed
+    out by <code>acquire</code> while its owner still uses it.
+ */
+public final class BufferPool
+{
+    /** Logarithm of the size of the smallest class. */
+    private static final int    MIN_SHIFT = 12;
+    /** Logarithm of the size of the largest class. */
+    private static final int    MAX_SHIFT = 23;
+    /** Logarithm of the size of the largest class kept by each thread. */
+    private static final int    MAX_CACHED_SHIFT = 16;
+    /** Buffers of each class kept by each thread. */
+    private static final int    THREAD_CACHE_SIZE = 4;
+    /** Memory kept in the shared slots of each class. */
+    private static final int    SHARED_BYTES_PER_CLASS = 16 * 1024 * 1024;
+    private static final int    MAX_SHARED_SLOTS = 64;
+
+    /** Shared slots of each class; a slot holds a buffer or
+        <code>null</code>. */
+    private static final AtomicReferenceArray<?>[]  shared =
+        new AtomicReferenceArray<?>[MAX_SHIFT - MIN_SHIFT + 1];
+    static
+    {
+        for(int shift = MIN_SHIFT; shift <= MAX_SHIFT; ++shift)
+        {
+            shared[shift - MIN_SHIFT] = new AtomicReferenceArray<ByteBuffer>(
+                Math.max(1, Math.min(MAX_SHARED_SLOTS,
+                                     SHARED_BYTES_PER_CLASS >> shift)));
+        }
+    }
+
+    /** Buffers kept by each thread, by class; an entry holds a buffer or
+        <code>null</code>. */
+    private static final ThreadLocal<ByteBuffer[][]>    caches =
+        new ThreadLocal<ByteBuffer[][]>()
+        {
+            @Override
+            protected ByteBuffer[][] initialValue()
+            {
+                return new ByteBuffer[MAX_CACHED_SHIFT - MIN_SHIFT + 1]
+                                     [THREAD_CACHE_SIZE];
+            }
+        };
+
+    /** Buffers allocated for the classes, the only ones
+        <code>release</code> takes back. */
+    private static final ConcurrentMap<Object, Boolean> owned =
+        new ConcurrentHashMap<Object, Boolean>();
+    /** Queue of the buffers of <code>owned</code> that were collected. */
+    private static final ReferenceQueue<ByteBuffer>     collected =
+        new ReferenceQueue<ByteBuffer>();
+    /** Key with which each thread looks a buffer up in
+        <code>owned</code>. */
+    private static final ThreadLocal<Lookup>            lookups =
+        new ThreadLocal<Lookup>()
+        {
+            @Override
+            protected Lookup initialValue()
+            {
+                return new Lookup();
+            }
+        };
+
+    private static final LongAdder  acquired = new LongAdder();
+    private static final LongAdder  allocated = new LongAdder();
+    private static final LongAdder  allocatedBytes = new LongAdder();
+
+    private BufferPool()
+    {
+    }
+
+    /** Returns a cleared direct buffer of at least the given capacity. The
+        buffer may be larger than requested; its limit is its capacity.
+
+        @throws IllegalArgumentException If <code>capacity</code> is
+                                         negative.
+     */
+    public static ByteBuffer acquire(int capacity)
+    {
+        if(capacity < 0)
+            throw new IllegalArgumentException("negative capacity: " + capacity);
+
+        acquired.increment();
+        int         shift = shift(capacity);
+        if(shift > MAX_SHIFT)
+            return allocate(capacity);
+
+        ByteBuffer  buffer = null;
+        if(shift <= MAX_CACHED_SHIFT)
+        {
+            ByteBuffer[]    cache = caches.get()[shift - MIN_SHIFT];
+            for(int index = 0; index < cache.length && buffer == null; ++index)
+            {
+                buffer = cache[index];
+                cache[index] = null;
+            }
+        }
+
+        if(buffer == null)
+        {
+            @SuppressWarnings("unchecked")
+            AtomicReferenceArray<ByteBuffer>    slots =
+                (AtomicReferenceArray<ByteBuffer>)shared[shift - MIN_SHIFT];
+            for(int index = 0; index < slots.length() && buffer == null;
+                ++index)
+            {
+                ByteBuffer  candidate = slots.get(index);
+                if(candidate != null &&
+                   slots.compareAndSet(index, candidate, null))
+                {
+                    buffer = candidate;
+                }
+            }
+        }
+
+        if(buffer == null)
+            return own(allocate(1 << shift));
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /** Gives a buffer obtained from <code>acquire</code> back to the pool.
+        Buffers that were not allocated by the pool for one of its classes,
+        including views of its buffers, and <code>null</code>, are
+        ignored. */
+    public static void release(ByteBuffer buffer)
+    {
+        if(buffer == null || !buffer.isDirect() || buffer.isReadOnly())
+            return;
+
+        int         capacity = buffer.capacity();
+        int         shift = Integer.numberOfTrailingZeros(capacity);
+        if(Integer.bitCount(capacity) != 1 || shift < MIN_SHIFT ||
+           shift > MAX_SHIFT || !owns(buffer))
+        {
+            return;
+        }
+
+        if(shift <= MAX_CACHED_SHIFT)
+        {
+            ByteBuffer[]    cache = caches.get()[shift - MIN_SHIFT];
+            for(int index = 0; index < cache.length; ++index)
+            {
+                if(cache[index] == null)
+                {
+                    cache[index] = buffer;
+                    return;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        AtomicReferenceArray<ByteBuffer>    slots =
+            (AtomicReferenceArray<ByteBuffer>)shared[shift - MIN_SHIFT];
+        for(int index = 0; index < slots.length(); ++index)
+        {
+            if(slots.get(index) == null &&
+               slots.compareAndSet(index, null, buffer))
+            {
+                return;
+            }
+        }
+    }
+
+    /** Returns the number of buffers acquired so far. */
+    public static long acquired()
+    {
+        return acquired.sum();
+    }
+
+    /** Returns the number of buffers allocated so far, because the pool had
+        none of the class requested or the size requested was too large to be
+        pooled. */
+    public static long allocated()
+    {
+        return allocated.sum();
+    }
+
+    /** Returns the number of bytes of the buffers allocated so far. */
+    public static long allocatedBytes()
+    {
+        return allocatedBytes.sum();
+    }
+
+    private static ByteBuffer allocate(int capacity)
+    {
+        allocated.increment();
+        allocatedBytes.add(capacity);
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    /** Remembers that a buffer was allocated for a class, first forgetting
+        the buffers that were collected. */
+    private static ByteBuffer own(ByteBuffer buffer)
+    {
+        Reference<? extends ByteBuffer> reference;
+        while((reference = collected.poll()) != null)
+            owned.remove(reference);
+
+        owned.put(new Owned(buffer), Boolean.TRUE);
+        return buffer;
+    }
+
+    /** Returns <code>true</code> if a buffer was allocated for a class. */
+    private static boolean owns(ByteBuffer buffer)
+    {
+        Lookup      lookup = lookups.get();
+        lookup.buffer = buffer;
+        try
+        {
+            return owned.containsKey(lookup);
+        }
+        finally
+        {
+            lookup.buffer = null;
+        }
+    }
+
+    /** Weak reference to a buffer allocated for a class, equal to the
+        <code>Lookup</code> keys for the same buffer. */
+    private static final class Owned extends WeakReference<ByteBuffer>
+    {
+        private final int   hash;
+
+        Owned(ByteBuffer buffer)
+        {
+            super(buffer, collected);
+            hash = System.identityHashCode(buffer);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other == this ||
+                   (other instanceof Lookup &&
+                    ((Lookup)other).buffer == get());
+        }
+    }
+
+    /** Key looking up a buffer in <code>owned</code> by identity, without
+        allocating a reference to it. */
+    private static final class Lookup
+    {
+        ByteBuffer  buffer;
+
+        @Override
+        public int hashCode()
+        {
+            return System.identityHashCode(buffer);
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof Owned && ((Owned)other).get() == buffer;
+        }
+    }
+
+    /** Returns the logarithm of the size of the class serving a capacity,
+        which is above <code>MAX_SHIFT</code> if the capacity is too large to
+        be pooled. */
+    private static int shift(int capacity)
+    {
+        if(capacity <= 1 << MIN_SHIFT)
+            return MIN_SHIFT;
+
+        return 32 - Integer.numberOfLeadingZeros(capacity - 1);
+    }
+}
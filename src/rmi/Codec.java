@@ -0,0 +1,50 @@
+package rmi;
+
+import java.io.*;
+
+/** Encoding of call arguments, return values and exceptions on the wire.
+
+    <p>
+    Values are always written and read together with the type under which they
+    are declared in the remote interface: the type of a parameter for
+    arguments, the return type for return values, and <code>Throwable</code>
+    for exceptions. Since both ends know the declared type, a codec only needs
+    to describe the value itself, and may use a specialized encoding for types
+    it knows well.
+
+    <p>
+    A stub and a skeleton agree on a codec when a connection is opened: the stub
+    offers the identifiers of the codecs it supports in order of preference, and
+    the skeleton picks the first one that it also supports. Additional codecs
+    can be made available to both sides with <code>Codecs.register</code>.
+ */
+public interface Codec
+{
+    /** Returns the identifier of the codec on the wire. Identifiers of the
+        codecs built into the library are small positive numbers; user codecs
+        should use negative numbers. */
+    byte id();
+
+    /** Writes a value.
+
+        @param out Stream to which the value is written.
+        @param type Declared type of the value. For primitive types, the value
+                    is boxed. For <code>void</code>, the value is
+                    <code>null</code>.
+        @param value The value to be written.
+        @throws IOException If the value cannot be encoded or written.
+     */
+    void write(DataOutputStream out, Class<?> type, Object value)
+        throws IOException;
+
+    /** Reads a value written by <code>write</code> with the same declared
+        type.
+
+        @param in Stream from which the value is read.
+        @param type Declared type of the value.
+        @return The value read, boxed if the type is primitive, or
+                <code>null</code> if the type is <code>void</code>.
+        @throws IOException If the value cannot be read or decoded.
+     */
+    Object read(DataInputStream in, Class<?> type) throws IOException;
+}
@@ -0,0 +1,78 @@
+package rmi;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Registry of the codecs available in this process.
+
+    <p>
+    The registry starts out with <code>BinaryCodec</code>, which stubs prefer,
+    and <code>SerializationCodec</code>, which every peer supports. Codecs
+    registered later are preferred over the built-in ones.
+ */
+public abstract class Codecs
+{
+    private static final CopyOnWriteArrayList<Codec>    codecs =
+        new CopyOnWriteArrayList<Codec>(
+            new Codec[] {new BinaryCodec(), new SerializationCodec()});
+
+    /** Makes a codec available to stubs and skeletons created in this
+        process. A codec registered with the same identifier as an existing one
+        replaces it.
+
+        @param codec The codec to be registered.
+        @throws NullPointerException If <code>codec</code> is
+                                     <code>null</code>.
+     */
+    public static synchronized void register(Codec codec)
+    {
+        if(codec == null)
+            throw new NullPointerException("codec is null");
+
+        Codec   existing = find(codec.id());
+        if(existing != null)
+            codecs.remove(existing);
+
+        codecs.add(0, codec);
+    }
+
+    /** Returns the identifiers of the available codecs, most preferred
+        first. */
+    static byte[] offered()
+    {
+        Codec[]     available = codecs.toArray(new Codec[0]);
+        byte[]      ids = new byte[available.length];
+
+        for(int index = 0; index < available.length; ++index)
+            ids[index] = available[index].id();
+
+        return ids;
+    }
+
+    /** Returns the codec with the given identifier, or <code>null</code> if it
+        is not available. */
+    static Codec find(byte id)
+    {
+        for(Codec codec : codecs)
+        {
+            if(codec.id() == id)
+                return codec;
+        }
+
+        return null;
+    }
+
+    /** Picks the first codec in a peer's list of offered identifiers that is
+        also available locally, or <code>null</code> if there is none. */
+    static Codec choose(byte[] offered)
+    {
+        for(byte id : offered)
+        {
+            Codec   codec = find(id);
+            if(codec != null)
+                return codec;
+        }
+
+        return null;
+    }
+}
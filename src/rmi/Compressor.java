@@ -0,0 +1,60 @@
+package rmi;
+
+import java.io.*;
+import java.nio.*;
+
+/** Compression of the bodies of frames on the wire.
+
+    <p>
+    A stub and a skeleton agree on a compressor when a connection is opened,
+    in the same exchange in which they agree on a codec: the stub offers the
+    identifiers of the compressors it supports in order of preference, and the
+    skeleton picks the first one that it also supports. If they have none in
+    common, or either side has compression turned off, the connection is not
+    compressed. Once a compressor is agreed, each side compresses the calls and
+    replies it sends whose bodies reach the threshold set with
+    <code>Compressors.setThreshold</code>, and sends a body uncompressed when
+    compressing it does not make it smaller.
+
+    <p>
+    Compressors are called by any number of threads at once.
+ */
+public interface Compressor
+{
+    /** Returns the identifier of the compressor on the wire. Identifiers of
+        the compressors built into the library are small positive numbers; user
+        compressors should use negative numbers. */
+    byte id();
+
+    /** Compresses bytes.
+
+        @param source Buffer whose remaining bytes are compressed. Its position
+                      is unspecified afterwards.
+        @param target Buffer receiving the compressed bytes from its position.
+                      If they fit before its limit, its position is advanced
+                      past them; otherwise its content is unspecified.
+        @return <code>true</code> if the compressed bytes fit in the remaining
+                space of <code>target</code>, <code>false</code> otherwise.
+     */
+    boolean compress(ByteBuffer source, ByteBuffer target);
+
+    /** Decompresses bytes produced by <code>compress</code>.
+
+        @param source Buffer whose remaining bytes are decompressed. Its
+                      position is unspecified afterwards.
+        @param target Buffer receiving the decompressed bytes, whose remaining
+                      space is the number of bytes that were compressed. Its
+                      position is advanced past them.
+        @throws IOException If the compressed bytes are malformed, or do not
+                            decompress to exactly the remaining space of
+                            <code>target</code>.
+     */
+    void decompress(ByteBuffer source, ByteBuffer target) throws IOException;
+
+    /** Returns the largest number of bytes that one compressed byte can
+        decompress to. A frame claiming to decompress to more than its
+        compressed length times this ratio is refused before any memory is
+        allocated for it.
+     */
+    int maxRatio();
+}
@@ -0,0 +1,125 @@
+package rmi;
+
+import java.util.concurrent.*;
+
+/** Registry of the compressors available in this process.
+
+    <p>
+    The registry starts out with <code>Lz4Compressor</code>, which is
+    preferred for its speed, and <code>DeflateCompressor</code>, which
+    compresses better at a higher cost. Compressors registered later are
+    preferred over the built-in ones.
+
+    <p>
+    Only frames whose bodies reach a threshold are compressed, so that small
+    calls, whose bodies would not shrink by much, do not pay for it. The
+    threshold is read for every frame sent, so a change applies at once to
+    every connection. Whether compression is on, and which compressors are
+    registered, only matter when a connection is opened: changing them
+    affects connections opened afterwards.
+ */
+public abstract class Compressors
+{
+    /** Default threshold, in bytes. */
+    public static final int     DEFAULT_THRESHOLD = 1024;
+
+    private static final CopyOnWriteArrayList<Compressor>   compressors =
+        new CopyOnWriteArrayList<Compressor>(
+            new Compressor[] {new Lz4Compressor(), new DeflateCompressor()});
+
+    private static volatile int     threshold = DEFAULT_THRESHOLD;
+    private static volatile boolean enabled = true;
+
+    /** Makes a compressor available to stubs and skeletons created in this
+        process. A compressor registered with the same identifier as an
+        existing one replaces it.
+
+        @param compressor The compressor to be registered.
+        @throws NullPointerException If <code>compressor</code> is
+                                     <code>null</code>.
+     */
+    public static synchronized void register(Compressor compressor)
+    {
+        if(compressor == null)
+            throw new NullPointerException("compressor is null");
+
+        Compressor  existing = find(compressor.id());
+        if(existing != null)
+            compressors.remove(existing);
+
+        compressors.add(0, compressor);
+    }
+
+    /** Turns compression on or off for the connections opened by stubs and
+        accepted by skeletons in this process. Compression is on by
+        default. */
+    public static void setEnabled(boolean enabled)
+    {
+        Compressors.enabled = enabled;
+    }
+
+    /** Sets the smallest body, in bytes, that is compressed.
+
+        @throws IllegalArgumentException If <code>bytes</code> is negative.
+     */
+    public static void setThreshold(int bytes)
+    {
+        if(bytes < 0)
+            throw new IllegalArgumentException("negative threshold: " + bytes);
+
+        threshold = bytes;
+    }
+
+    /** Returns the smallest body, in bytes, that is compressed. */
+    public static int threshold()
+    {
+        return threshold;
+    }
+
+    /** Returns the identifiers of the available compressors, most preferred
+        first, or none if compression is off. */
+    static byte[] offered()
+    {
+        if(!enabled)
+            return new byte[0];
+
+        Compressor[]    available = compressors.toArray(new Compressor[0]);
+        byte[]          ids = new byte[available.length];
+
+        for(int index = 0; index < available.length; ++index)
+            ids[index] = available[index].id();
+
+        return ids;
+    }
+
+    /** Returns the compressor with the given identifier, or <code>null</code>
+        if it is not available. */
+    static Compressor find(byte id)
+    {
+        for(Compressor compressor : compressors)
+        {
+            if(compressor.id() == id)
+                return compressor;
+        }
+
+        return null;
+    }
+
+    /** Picks the first compressor in a peer's list of offered identifiers
+        that is also available locally, or <code>null</code> if there is none
+        or compression is off. */
+    static Compressor choose(byte[] offered)
+    {
+        if(!enabled)
+            return null;
+
+        for(byte id : offered)
+        {
+            Compressor  compressor = find(id);
+            if(compressor != null)
+                return compressor;
+        }
+
+        return null;
+    }
+}
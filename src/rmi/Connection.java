@@ -0,0 +1,431 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Stub-side end of a persistent, multiplexed connection to a skeleton.
+
+    <p>
+    A connection is shared by every call made through every stub that refers to
+    the same skeleton address (see <code>ConnectionPool</code>). Calls are
+    written as frames tagged with a fresh call identifier; a single reader
+    thread receives the replies and completes the future registered for each
+    identifier. Any number of calls may therefore be outstanding on one
+    connection, and a slow call does not hold up the others.
+
+    <p>
+    When the connection fails or is closed by the skeleton, all outstanding
+    calls fail with <code>RMIException</code> and the connection removes itself
+    from the pool, so that the next call opens a new one.
+ */
+class Connection
+{
+    private static final Trace              trace = Trace.of(Connection.class);
+
+    /** Time allowed to open a connection and agree on a codec and a
+        compressor. A skeleton that does not answer within it is treated as
+        unreachable, rather than holding up the call that opens the connection
+        indefinitely. */
+    static final int                        CONNECT_TIMEOUT_MILLIS = 10 * 1000;
+
+    final InetSocketAddress                 address;
+    private final Socket                    socket;
+    private final DataOutputStream          out;
+    private final DataInputStream           in;
+
+    /** Codec agreed with the skeleton when the connection was opened. */
+    final Codec                             codec;
+    /** Compressor agreed with the skeleton when the connection was opened,
+        or <code>null</code> if the connection is not compressed. */
+    final Compressor                        compressor;
+
+    private final AtomicLong                nextCallId = new AtomicLong();
+    /** Binding numbers assigned to the interfaces used on this connection. */
+    private final ConcurrentMap<MethodTable, Integer>   bindings =
+        new ConcurrentHashMap<MethodTable, Integer>();
+    /** Bindings already announced to the skeleton; guarded by
+        <code>out</code>. */
+    private final Set<Integer>              announced = new HashSet<Integer>();
+    private final ConcurrentMap<Long, CompletableFuture<Frame>> pending =
+        new ConcurrentHashMap<Long, CompletableFuture<Frame>>();
+
+    private volatile boolean                closed = false;
+    /** Set once a reply has been received, i.e. once the connection is known
+        to lead to a live skeleton. */
+    private volatile boolean                used = false;
+
+    /** Opens a connection to the given skeleton address, agrees on a codec
+        and a compressor, and starts the reader thread. */
+    Connection(InetSocketAddress address) throws IOException
+    {
+        this.address = address;
+        this.socket = new Socket();
+
+        try
+        {
+            socket.connect(address, CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+
+            // replies to calls are waited for with the deadlines of the calls,
+            // so the read timeout only covers the handshake
+            socket.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+            byte[]      chosen = hello();
+            codec = Codecs.find(chosen[0]);
+            if(codec == null)
+                throw new IOException("skeleton chose unknown codec " +
+                                      chosen[0]);
+            compressor = chosen.length > 1 ? Compressors.find(chosen[1]) : null;
+            if(chosen.length > 1 && compressor == null)
+                throw new IOException("skeleton chose unknown compressor " +
+                                      chosen[1]);
+            socket.setSoTimeout(0);
+        }
+        catch(IOException e)
+        {
+            socket.close();
+            throw e;
+        }
+
+        Thread      reader = new Thread(new Reader(),
+                                        "rmi-connection-" + address);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Offers the locally available codecs and compressors to the skeleton
+        and returns the identifiers of those it picks: the codec, followed by
+        the compressor if it picked one. */
+    private byte[] hello() throws IOException
+    {
+        byte[]                  offered = Codecs.offered();
+        byte[]                  compressors = Compressors.offered();
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+        DataOutputStream        body = new DataOutputStream(buffer);
+        BinaryCodec.writeVarInt(body, offered.length);
+        body.write(offered);
+        BinaryCodec.writeVarInt(body, compressors.length);
+        body.write(compressors);
+        new Frame(0, Frame.HELLO, buffer.toByteArray()).write(out);
+
+        Frame                   reply = Frame.read(in);
+        if(reply == null)
+            throw new EOFException("skeleton closed the connection");
+        if(reply.type == Frame.FAILURE)
+            throw new IOException(reply.failureMessage());
+        // skeletons that do not compress reply with the codec only
+        if(reply.type != Frame.HELLO || reply.length() < 1 ||
+           reply.length() > 2)
+        {
+            throw new StreamCorruptedException("bad handshake from skeleton");
+        }
+
+        return reply.bodyBytes();
+    }
+
+    /** Sends a call and returns a future for its reply frame.
+
+        <p>
+        The future completes exceptionally with <code>RMIException</code> if the
+        connection fails before the reply is received.
+
+        @param table Method table of the remote interface.
+        @param method The method called.
+        @param args Arguments of the call, or <code>null</code> if there are
+                    none.
+        @param deadline Deadline of the call, or <code>null</code> if it has
+                        none.
+        @throws IOException If the call cannot be encoded or written to the
+                            connection.
+     */
+    CompletableFuture<Frame> call(MethodTable table, Method method,
+                                  Object[] args, Deadline deadline)
+        throws IOException
+    {
+        int                         binding = bind(table);
+
+        BufferOutputStream          buffer = new BufferOutputStream();
+        int                         ordinal;
+        try
+        {
+            DataOutputStream        encoder = new DataOutputStream(buffer);
+            BinaryCodec.writeVarInt(encoder, binding);
+            writeDeadline(encoder, deadline);
+            ordinal = encodeCall(encoder, table, method, args);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            buffer.release();
+            throw e;
+        }
+
+        return send(table, binding, Frame.CALL, buffer.take(),
+                    table.metrics(MethodMetrics.Side.STUB, ordinal));
+    }
+
+    /** Sends a batch of calls in one frame and returns a future for the
+        reply frame, which carries the outcomes of all the calls.
+
+        @param table Method table of the remote interface.
+        @param methods The methods called, in order.
+        @param args Arguments of each call.
+        @param stopOnException If <code>true</code>, the skeleton skips the
+                               calls following one that throws an exception.
+        @param deadline Deadline of the batch, or <code>null</code> if it has
+                        none.
+        @throws IOException If the calls cannot be encoded or written to the
+                            connection.
+     */
+    CompletableFuture<Frame> batch(MethodTable table, Method[] methods,
+                                   Object[][] args, boolean stopOnException,
+                                   Deadline deadline)
+        throws IOException
+    {
+        int                         binding = bind(table);
+
+        BufferOutputStream          buffer = new BufferOutputStream();
+        try
+        {
+            DataOutputStream        encoder = new DataOutputStream(buffer);
+            BinaryCodec.writeVarInt(encoder, binding);
+            writeDeadline(encoder, deadline);
+            encoder.writeBoolean(stopOnException);
+            BinaryCodec.writeVarInt(encoder, methods.length);
+            for(int index = 0; index < methods.length; ++index)
+                encodeCall(encoder, table, methods[index], args[index]);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            buffer.release();
+            throw e;
+        }
+
+        return send(table, binding, Frame.BATCH, buffer.take(), null);
+    }
+
+    /** Writes the time left until a deadline, in milliseconds, or zero if
+        there is no deadline. */
+    private static void writeDeadline(DataOutputStream encoder,
+                                      Deadline deadline) throws IOException
+    {
+        long                        remaining =
+            deadline == null ? 0 : deadline.remainingMillis();
+        BinaryCodec.writeVarInt(encoder,
+                                (int)Math.min(remaining, Integer.MAX_VALUE));
+    }
+
+    /** Writes the ordinal of a method followed by the arguments of a call,
+        and returns the ordinal. */
+    private int encodeCall(DataOutputStream encoder, MethodTable table,
+                           Method method, Object[] args) throws IOException
+    {
+        int                         ordinal = table.ordinal(method);
+        BinaryCodec.writeVarInt(encoder, ordinal);
+
+        Class<?>[]                  parameterTypes =
+            table.parameterTypes(ordinal);
+        for(int index = 0; index < parameterTypes.length; ++index)
+            codec.write(encoder, parameterTypes[index], args[index]);
+        return ordinal;
+    }
+
+    /** Registers a new call identifier, and writes a request frame with that
+        identifier, compressed if it is large enough, preceded by the
+        announcement of its binding if this is the first request that uses it.
+        The size of the frame is recorded in the given metrics, if any. The
+        body, taken from the pool, is given back once written. */
+    private CompletableFuture<Frame> send(MethodTable table, int binding,
+                                          byte type, ByteBuffer body,
+                                          MethodMetrics metrics)
+        throws IOException
+    {
+        long                        callId = nextCallId.incrementAndGet();
+        CompletableFuture<Frame>    reply = new CompletableFuture<Frame>();
+        Frame                       frame = new Frame(callId, type, body, true)
+            .compress(compressor, Compressors.threshold());
+        if(metrics != null)
+            metrics.request(frame);
+
+        pending.put(callId, reply);
+
+        try
+        {
+            // The reader may have failed all pending calls between the check
+            // in the pool and the registration above.
+            if(closed)
+            {
+                pending.remove(callId);
+                throw new IOException("connection to " + address + " closed");
+            }
+
+            try
+            {
+                synchronized(out)
+                {
+                    if(announced.add(binding))
+                        announce(table, binding);
+                    frame.write(out);
+                }
+            }
+            catch(IOException e)
+            {
+                pending.remove(callId);
+                close();
+                throw e;
+            }
+        }
+        finally
+        {
+            frame.release();
+        }
+
+        return reply;
+    }
+
+    /** Returns the binding number of an interface on this connection,
+        assigning one if the interface has not been used here before. */
+    private int bind(MethodTable table)
+    {
+        Integer     binding = bindings.get(table);
+        if(binding != null)
+            return binding;
+
+        synchronized(bindings)
+        {
+            binding = bindings.get(table);
+            if(binding == null)
+            {
+                binding = bindings.size();
+                bindings.put(table, binding);
+            }
+            return binding;
+        }
+    }
+
+    /** Writes the <code>BIND</code> frame for an interface. Called with the
+        lock on <code>out</code> held, before the first call that uses the
+        binding. */
+    private void announce(MethodTable table, int binding) throws IOException
+    {
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+        DataOutputStream        body = new DataOutputStream(buffer);
+        BinaryCodec.writeVarInt(body, binding);
+        body.writeUTF(table.remoteInterface.getName());
+        BinaryCodec.writeVarInt(body, table.signatures.length);
+        for(String signature : table.signatures)
+            body.writeUTF(signature);
+
+        new Frame(0, Frame.BIND, buffer.toByteArray()).write(out);
+    }
+
+    /** Stops waiting for the reply to a call, whose future will then never be
+        completed by the connection. Used when the deadline of the call passes;
+        a reply that arrives later is discarded. */
+    void abandon(CompletableFuture<Frame> reply)
+    {
+        pending.values().remove(reply);
+    }
+
+    /** Returns <code>true</code> if the connection has not failed. */
+    boolean isOpen()
+    {
+        return !closed;
+    }
+
+    /** Returns <code>true</code> if at least one reply has been received on
+        this connection. */
+    boolean isUsed()
+    {
+        return used;
+    }
+
+    /** Closes the connection and fails every outstanding call. */
+    void close()
+    {
+        if(closed)
+            return;
+
+        closed = true;
+        ConnectionPool.remove(this);
+
+        try
+        {
+            socket.close();
+        }
+        catch(IOException e) { }
+
+        RMIException    cause =
+            new RMIException("connection to " + address + " closed");
+
+        for(Iterator<CompletableFuture<Frame>> iterator =
+                pending.values().iterator(); iterator.hasNext(); )
+        {
+            iterator.next().completeExceptionally(cause);
+            iterator.remove();
+        }
+    }
+
+    /** Receives reply frames and hands them to the waiting calls. When it
+        stops, for any reason, the connection is closed. */
+    private class Reader implements Runnable
+    {
+        public void run()
+        {
+            try
+            {
+                Frame   frame;
+
+                while((frame = Frame.read(in)) != null)
+                {
+                    used = true;
+                    if(frame.type == Frame.DRAINING)
+                    {
+                        // the skeleton is shutting down: the calls pending
+                        // here are still answered, but new calls must go to
+                        // a new connection
+                        ConnectionPool.remove(Connection.this);
+                    }
+
+                    CompletableFuture<Frame>    reply =
+                        pending.remove(frame.callId);
+
+                    if(reply == null)
+                    {
+                        trace.debug("Reply for unknown call {}", frame.callId);
+                        frame.release();
+                        continue;
+                    }
+
+                    try
+                    {
+                        reply.complete(frame.decompress(compressor));
+                    }
+                    catch(IOException | RuntimeException e)
+                    {
+                        frame.release();
+                        reply.completeExceptionally(new RMIException(
+                            "malformed compressed reply from " + address, e));
+                    }
+                }
+            }
+            catch(IOException e)
+            {
+                trace.debug("Connection to {} failed: {}", address, e);
+            }
+            finally
+            {
+                // whatever stops the reader, the calls still pending would
+                // otherwise wait for replies that can no longer arrive
+                close();
+            }
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Process-wide pool of stub-side connections, one per skeleton address.
+
+    <p>
+    Stubs are serializable and are freely copied between hosts, so they cannot
+    own their connections. Instead, every stub looks up the connection for its
+    skeleton's address here at call time. All stubs for the same address, in
+    all threads, therefore share one multiplexed <code>Connection</code>.
+ */
+class ConnectionPool
+{
+    private static final ConcurrentMap<InetSocketAddress, Connection>
+        connections = new ConcurrentHashMap<InetSocketAddress, Connection>();
+    private static final ConcurrentMap<InetSocketAddress, Object>
+        creationLocks = new ConcurrentHashMap<InetSocketAddress, Object>();
+
+    /** Returns an open connection to the given address, creating one if there
+        is none.
+
+        @throws IOException If a new connection cannot be established.
+     */
+    static Connection acquire(InetSocketAddress address) throws IOException
+    {
+        Connection  connection = connections.get(address);
+        if(connection != null && connection.isOpen())
+            return connection;
+
+        // Serialize creation per address, so that concurrent first calls do
+        // not each open their own connection, while a slow connect to one
+        // address does not hold up calls to the others.
+        Object      lock = creationLocks.get(address);
+        if(lock == null)
+        {
+            Object  fresh = new Object();
+            lock = creationLocks.putIfAbsent(address, fresh);
+            if(lock == null)
+                lock = fresh;
+        }
+
+        synchronized(lock)
+        {
+            connection = connections.get(address);
+            if(connection != null && connection.isOpen())
+                return connection;
+
+            connection = new Connection(address);
+            connections.put(address, connection);
+            return connection;
+        }
+    }
+
+    /** Removes a connection from the pool. Called by the connection when it
+        closes. */
+    static void remove(Connection connection)
+    {
+        connections.remove(connection.address, connection);
+    }
+}
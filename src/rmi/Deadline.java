@@ -0,0 +1,123 @@
+package rmi;
+
+import java.util.concurrent.*;
+
+/** Time by which a remote call must complete.
+
+    <p>
+    A stub can be given a timeout with <code>Stub.withTimeout</code>. Each call
+    made through it then has a deadline, and fails with
+    <code>RMIException</code> if its reply has not arrived by then. The time
+    remaining until the deadline is sent to the skeleton with the call. If the
+    call has not started running when the deadline passes, for instance
+    because it waited for a busy call executor, the skeleton abandons it.
+
+    <p>
+    While a call with a deadline runs on the server, the deadline belongs to
+    the thread running it. Server code can check <code>expired</code> to give
+    up on long work that the caller no longer waits for. Calls made through
+    stubs from that thread inherit the deadline, if it is earlier than their
+    own.
+ */
+public final class Deadline
+{
+    /** Deadline of the call being run by each thread, if it has one. */
+    private static final ThreadLocal<Deadline>  current =
+        new ThreadLocal<Deadline>();
+
+    /** The deadline, as a value of <code>System.nanoTime</code>. */
+    private final long                          nanos;
+
+    private Deadline(long nanos)
+    {
+        this.nanos = nanos;
+    }
+
+    /** Returns <code>true</code> if the current thread is running a remote
+        call whose deadline has passed. */
+    public static boolean expired()
+    {
+        Deadline    deadline = current.get();
+        return deadline != null && deadline.passed();
+    }
+
+    /** Returns the time remaining until the deadline of the remote call run
+        by the current thread: zero if it has passed, or
+        <code>Long.MAX_VALUE</code> if the thread is not running a call with a
+        deadline. */
+    public static long remaining(TimeUnit unit)
+    {
+        Deadline    deadline = current.get();
+        if(deadline == null)
+            return Long.MAX_VALUE;
+        return unit.convert(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /** Returns the deadline a given time from now, or <code>null</code> if
+        the time is zero, meaning that there is no deadline. */
+    static Deadline after(long timeout, TimeUnit unit)
+    {
+        if(timeout == 0)
+            return null;
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout));
+    }
+
+    /** Returns the deadline a given number of milliseconds after a value of
+        <code>System.nanoTime</code>, or <code>null</code> if the number is
+        zero. */
+    static Deadline after(long start, long timeoutMillis)
+    {
+        if(timeoutMillis == 0)
+            return null;
+        return new Deadline(start +
+                            TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /** Returns the deadline of the call run by the current thread, or
+        <code>null</code>. */
+    static Deadline current()
+    {
+        return current.get();
+    }
+
+    /** Makes a deadline that of the current thread, and returns the one it
+        replaces, to be restored when the call ends. */
+    static Deadline enter(Deadline deadline)
+    {
+        Deadline    previous = current.get();
+        if(deadline == null)
+            current.remove();
+        else
+            current.set(deadline);
+        return previous;
+    }
+
+    /** Returns the earlier of two deadlines, either of which may be
+        <code>null</code>. */
+    static Deadline earliest(Deadline first, Deadline second)
+    {
+        if(first == null)
+            return second;
+        if(second == null)
+            return first;
+        return first.nanos - second.nanos <= 0 ? first : second;
+    }
+
+    boolean passed()
+    {
+        return System.nanoTime() - nanos >= 0;
+    }
+
+    long remainingNanos()
+    {
+        return Math.max(0, nanos - System.nanoTime());
+    }
+
+    /** Returns the remaining time in milliseconds as sent with a call: rounded
+        up, so that a deadline that has not passed is never sent as zero,
+        which means no deadline. */
+    long remainingMillis()
+    {
+        return Math.max(1, (remainingNanos() + 999999) / 1000000);
+    }
+}
@@ -0,0 +1,495 @@
+package rmi;
+
+import java.io.*;
+import java.nio.*;
+
+/** Unit of transmission on a stub-skeleton connection.
+
+    <p>
+    A connection carries a sequence of frames in each direction. Every frame is
+    prefixed by its length, so that the reader never has to understand the body
+    in order to find where the next frame starts. Each frame carries the
+    identifier of the call it belongs to, which allows several calls to be in
+    progress at the same time on one connection: the stub matches replies to
+    outstanding calls by this identifier, and the skeleton may send replies in
+    any order.
+
+    <p>
+    The layout of a frame is:
+    <pre>
+    int     length of the rest of the frame
+    long    call identifier
+    byte    frame type
+    byte[]  body
+    </pre>
+
+    <p>
+    If a compressor has been agreed for the connection, the body of a
+    <code>CALL</code>, <code>RETURN</code> or <code>BATCH</code> frame may be
+    compressed. The <code>COMPRESSED</code> bit is then set in the type byte,
+    and the body is the length of the uncompressed body as an
+    <code>int</code>, followed by the compressed bytes.
+ */
+class Frame
+{
+    /** A method call request from a stub. The body is the binding number of
+        the interface, the time left until the deadline of the call in
+        milliseconds or zero if it has none (see <code>Deadline</code>), and
+        the ordinal of the method (see <code>MethodTable</code>), followed by
+        the arguments. */
+    static final byte   CALL = 1;
+    /** A reply from the skeleton. The body is one of the outcome bytes below,
+        followed by the return value or the exception thrown by the method. */
+    static final byte   RETURN = 2;
+    /** The skeleton could not service the call. The body is a UTF-8 message
+        describing the problem. */
+    static final byte   FAILURE = 3;
+    /** First frame in each direction. From the stub, the body lists the
+        identifiers of the codecs it offers, followed by those of the
+        compressors it offers; from the skeleton, it is the identifier of the
+        codec chosen for the connection, followed by that of the compressor
+        chosen if there is one. Stubs that do not compress send no list of
+        compressors. */
+    static final byte   HELLO = 4;
+    /** Announces a remote interface: the body is the binding number chosen by
+        the stub, the interface name, and the signatures of its methods in
+        ordinal order. The skeleton does not reply. */
+    static final byte   BIND = 5;
+    /** A sequence of calls on one interface, to be run in order. From the
+        stub, the body is the binding number, the time left until the deadline
+        as in <code>CALL</code>, a flag telling whether to skip the calls
+        following one that throws, the number of calls, and for each call its
+        ordinal and arguments. From the skeleton, the body is the
+        number of calls followed by the outcome of each call, encoded as in
+        <code>RETURN</code>. */
+    static final byte   BATCH = 6;
+    /** Reply to a <code>CALL</code> or <code>BATCH</code> from a skeleton that
+        is shutting down: the calls were not run, and may be sent again on a
+        new connection. Calls already running on the connection are still
+        answered before the skeleton closes it. The body is empty. */
+    static final byte   DRAINING = 7;
+
+    /** Outcome of a <code>RETURN</code>: the method returned a value. */
+    static final byte   VALUE = 0;
+    /** Outcome of a <code>RETURN</code>: the method threw an exception. */
+    static final byte   EXCEPTION = 1;
+    /** Outcome of a call in a <code>BATCH</code>: the call was not run because
+        an earlier call threw an exception, or because the deadline of the
+        batch passed. Nothing follows. */
+    static final byte   SKIPPED = 2;
+
+    /** Bit of the type byte set when the body is compressed. */
+    static final byte   COMPRESSED = (byte)0x80;
+
+    /** Size of the fields following the length prefix, without the body. */
+    static final int    HEADER_SIZE = 8 + 1;
+
+    /** Smallest body received that is read into a pooled buffer rather than
+        an array. Smaller bodies are cheaper to allocate than to pool. */
+    static final int    POOLED_BODY_SIZE = 4 * 1024;
+
+    /** Default of <code>MAX_FRAME_SIZE</code>. */
+    static final int    DEFAULT_MAX_FRAME_SIZE = 256 * 1024 * 1024;
+
+    /** Largest frame accepted from the peer, in bytes, not counting its
+        length prefix. A length prefix above it is taken for a corrupt stream,
+        and the connection is closed, so that a corrupt or hostile prefix
+        cannot make the receiver allocate up to 2 GiB for a body. It can be
+        set with the <code>dfs.rmi.maxFrameSize</code> system property, and
+        must be the same on both sides of a connection. */
+    static final int    MAX_FRAME_SIZE =
+        Math.max(HEADER_SIZE, Integer.getInteger("dfs.rmi.maxFrameSize",
+                                                 DEFAULT_MAX_FRAME_SIZE));
+
+    /** Array through which direct bodies are copied to and from streams, one
+        per thread. */
+    private static final ThreadLocal<byte[]>    scratch =
+        new ThreadLocal<byte[]>()
+        {
+            @Override
+            protected byte[] initialValue()
+            {
+                return new byte[8 * 1024];
+            }
+        };
+
+    final long          callId;
+    /** Type of the frame, without the <code>COMPRESSED</code> bit. */
+    final byte          type;
+    /** Whether the body is compressed. */
+    final boolean       compressed;
+    /** Body of the frame, from the position to the limit of the buffer, in
+        its compressed form if <code>compressed</code> is set. The position of
+        the buffer is never moved; readers use duplicates. */
+    private ByteBuffer  body;
+    /** Whether the body was taken from <code>BufferPool</code> and has not
+        been given back yet; guarded by the frame. */
+    private boolean     pooled;
+    /** Number of bytes the frame takes on the connection. */
+    private final int   size;
+    /** Number of bytes the frame would take on the connection without
+        compression. */
+    private final int   uncompressedSize;
+
+    Frame(long callId, byte type, byte[] body)
+    {
+        this(callId, type, ByteBuffer.wrap(body), false);
+    }
+
+    /** Creates a frame whose body is the remaining bytes of a buffer.
+
+        @param pooled If <code>true</code>, the buffer was taken from
+                      <code>BufferPool</code>, and the frame gives it back when
+                      it is released.
+     */
+    Frame(long callId, byte type, ByteBuffer body, boolean pooled)
+    {
+        this(callId, type, body, pooled, false,
+             4 + HEADER_SIZE + body.remaining(),
+             4 + HEADER_SIZE + body.remaining());
+    }
+
+    private Frame(long callId, byte type, ByteBuffer body, boolean pooled,
+                  boolean compressed, int size, int uncompressedSize)
+    {
+        this.callId = callId;
+        this.type = type;
+        this.body = body;
+        this.pooled = pooled;
+        this.compressed = compressed;
+        this.size = size;
+        this.uncompressedSize = uncompressedSize;
+    }
+
+    /** Gives the buffer holding the body back to the pool, if it came from
+        there. The body must not be used afterwards. Releasing a frame more
+        than once has no further effect.
+
+        <p>
+        Frames whose owner forgets to release them are simply collected, with
+        their buffers.
+     */
+    synchronized void release()
+    {
+        if(pooled)
+        {
+            pooled = false;
+            BufferPool.release(body);
+            body = null;
+        }
+    }
+
+    /** Returns the length of the body, in its compressed form if the frame
+        is compressed. */
+    int length()
+    {
+        return body.remaining();
+    }
+
+    /** Returns the frame with its body compressed, or the frame itself if
+        there is no compressor, the body is shorter than the threshold, or it
+        does not shrink. When a compressed frame is returned, this frame is
+        released. */
+    Frame compress(Compressor compressor, int threshold)
+    {
+        int         length = body.remaining();
+        if(compressor == null || compressed || length < threshold || length <= 4)
+            return this;
+
+        // anything that does not end up smaller than the body is useless
+        ByteBuffer  packed = BufferPool.acquire(length);
+        packed.limit(length - 1);
+        packed.putInt(length);
+        if(!compressor.compress(body.duplicate(), packed))
+        {
+            BufferPool.release(packed);
+            return this;
+        }
+
+        packed.flip();
+        Frame       frame = new Frame(callId, type, packed, true, true,
+                                      4 + HEADER_SIZE + packed.remaining(),
+                                      uncompressedSize);
+        release();
+        return frame;
+    }
+
+    /** Returns the frame with its body decompressed, or the frame itself if
+        the body is not compressed. The sizes of the frame are kept. When a
+        decompressed frame is returned, this frame is released.
+
+        @throws IOException If the frame is compressed and there is no
+                            compressor, or if the body is malformed.
+     */
+    Frame decompress(Compressor compressor) throws IOException
+    {
+        if(!compressed)
+            return this;
+
+        if(compressor == null)
+            throw new StreamCorruptedException("compressed frame received on " +
+                                               "an uncompressed connection");
+        if(body.remaining() < 4)
+            throw new StreamCorruptedException("compressed body too short");
+
+        // the uncompressed length is checked before anything is allocated
+        // for it: it may be no larger than an uncompressed frame, nor than
+        // the compressed bytes can expand to
+        int         length = body.getInt(body.position());
+        long        expansion =
+            (long)(body.remaining() - 4) * compressor.maxRatio();
+        if(length < 0 || length > MAX_FRAME_SIZE - HEADER_SIZE ||
+           length > expansion)
+        {
+            throw new StreamCorruptedException("bad uncompressed length " +
+                                               length);
+        }
+
+        ByteBuffer  source = body.duplicate();
+        source.position(source.position() + 4);
+        ByteBuffer  unpacked = BufferPool.acquire(length);
+        unpacked.limit(length);
+        try
+        {
+            compressor.decompress(source, unpacked);
+        }
+        catch(IOException | RuntimeException e)
+        {
+            BufferPool.release(unpacked);
+            throw e;
+        }
+
+        unpacked.flip();
+        Frame       frame = new Frame(callId, type, unpacked, true, false, size,
+                                      4 + HEADER_SIZE + length);
+        release();
+        return frame;
+    }
+
+    /** Writes the frame to the given stream and flushes it.
+
+        <p>
+        The caller must ensure that no other thread writes to the stream at the
+        same time.
+     */
+    void write(DataOutputStream out) throws IOException
+    {
+        out.writeInt(HEADER_SIZE + body.remaining());
+        out.writeLong(callId);
+        out.writeByte(typeByte());
+
+        if(body.hasArray())
+        {
+            out.write(body.array(), body.arrayOffset() + body.position(),
+                      body.remaining());
+        }
+        else
+        {
+            byte[]      chunk = scratch.get();
+            ByteBuffer  source = body.duplicate();
+            while(source.hasRemaining())
+            {
+                int     count = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, count);
+                out.write(chunk, 0, count);
+            }
+        }
+
+        out.flush();
+    }
+
+    /** Returns the number of bytes the frame takes on the connection,
+        including its length prefix. For a frame that has been decompressed,
+        this is the size of the compressed frame received. */
+    int size()
+    {
+        return size;
+    }
+
+    /** Returns the number of bytes the frame would take on the connection
+        without compression. */
+    int uncompressedSize()
+    {
+        return uncompressedSize;
+    }
+
+    private byte typeByte()
+    {
+        return compressed ? (byte)(type | COMPRESSED) : type;
+    }
+
+    /** Builds a frame read from the connection, whose type byte may carry
+        the <code>COMPRESSED</code> bit. */
+    private static Frame received(long callId, byte typeByte, ByteBuffer body)
+    {
+        boolean     pooled = body.isDirect();
+        if((typeByte & COMPRESSED) == 0)
+            return new Frame(callId, typeByte, body, pooled);
+
+        return new Frame(callId, (byte)(typeByte & ~COMPRESSED), body, pooled,
+                         true, 4 + HEADER_SIZE + body.remaining(),
+                         4 + HEADER_SIZE + body.remaining());
+    }
+
+    /** Returns the frame, including its length prefix, as buffers ready to be
+        written to a channel with a gathering write: a header, followed by a
+        view of the body. The frame must not be released until they have been
+        written. */
+    ByteBuffer[] toBuffers()
+    {
+        ByteBuffer  header = ByteBuffer.allocate(4 + HEADER_SIZE);
+        header.putInt(HEADER_SIZE + body.remaining());
+        header.putLong(callId);
+        header.put(typeByte());
+        header.flip();
+        return new ByteBuffer[] {header, body.duplicate()};
+    }
+
+    /** Returns a buffer for a body of the given length received from the
+        connection: a pooled buffer if the body is large, or a new array
+        otherwise. The limit of the buffer is the length. */
+    private static ByteBuffer allocateBody(int length)
+    {
+        if(length < POOLED_BODY_SIZE)
+            return ByteBuffer.allocate(length);
+
+        ByteBuffer  buffer = BufferPool.acquire(length);
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /** Checks the length prefix of a frame received from the peer.
+
+        @throws StreamCorruptedException If the length is too short for the
+                                         header, or above
+                                         <code>MAX_FRAME_SIZE</code>.
+     */
+    static void checkLength(int length) throws StreamCorruptedException
+    {
+        if(length < HEADER_SIZE || length > MAX_FRAME_SIZE)
+            throw new StreamCorruptedException("bad frame length " + length);
+    }
+
+    /** Reads the next frame from the given stream.
+
+        @return The frame read, or <code>null</code> if the peer closed the
+                connection cleanly between two frames.
+        @throws IOException If the stream fails or ends in the middle of a
+                            frame, or if the length prefix is invalid.
+     */
+    static Frame read(DataInputStream in) throws IOException
+    {
+        int         length;
+
+        try
+        {
+            length = in.readInt();
+        }
+        catch(EOFException e)
+        {
+            return null;
+        }
+
+        checkLength(length);
+
+        long        callId = in.readLong();
+        byte        type = in.readByte();
+        ByteBuffer  body = allocateBody(length - HEADER_SIZE);
+
+        if(body.hasArray())
+            in.readFully(body.array(), body.arrayOffset(), body.limit());
+        else
+        {
+            byte[]  chunk = scratch.get();
+            try
+            {
+                while(body.hasRemaining())
+                {
+                    int     count = Math.min(chunk.length, body.remaining());
+                    in.readFully(chunk, 0, count);
+                    body.put(chunk, 0, count);
+                }
+            }
+            catch(IOException e)
+            {
+                BufferPool.release(body);
+                throw e;
+            }
+            body.flip();
+        }
+
+        return received(callId, type, body);
+    }
+
+    /** Takes the next frame out of a buffer of bytes received from a
+        channel.
+
+        @return The frame read, or <code>null</code> if the buffer does not
+                hold all of it yet. In that case, the position of the buffer is
+                unchanged.
+        @throws StreamCorruptedException If the length prefix is invalid.
+     */
+    static Frame read(ByteBuffer buffer) throws StreamCorruptedException
+    {
+        if(buffer.remaining() < 4)
+            return null;
+
+        int         length = buffer.getInt(buffer.position());
+        checkLength(length);
+        if(buffer.remaining() - 4 < length)
+            return null;
+
+        buffer.getInt();
+        long        callId = buffer.getLong();
+        byte        type = buffer.get();
+        ByteBuffer  body = allocateBody(length - HEADER_SIZE);
+        int         limit = buffer.limit();
+        buffer.limit(buffer.position() + body.remaining());
+        body.put(buffer);
+        buffer.limit(limit);
+        body.flip();
+
+        return received(callId, type, body);
+    }
+
+    /** Returns a stream positioned at the start of the body. */
+    DataInputStream bodyStream()
+    {
+        return new DataInputStream(new BufferInputStream(body.duplicate()));
+    }
+
+    /** Returns a copy of the body. Used for the small bodies of the frames
+        that set up a connection. */
+    byte[] bodyBytes()
+    {
+        byte[]      bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        return bytes;
+    }
+
+    /** Builds a <code>FAILURE</code> frame for the given call. */
+    static Frame failure(long callId, String message)
+    {
+        try
+        {
+            return new Frame(callId, FAILURE, message.getBytes("UTF-8"));
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new Error("UTF-8 not supported", e);
+        }
+    }
+
+    /** Returns the message carried by a <code>FAILURE</code> frame. */
+    String failureMessage()
+    {
+        try
+        {
+            return new String(bodyBytes(), "UTF-8");
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new Error("UTF-8 not supported", e);
+        }
+    }
+}
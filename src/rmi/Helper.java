@@ -1,6 +1,8 @@
 package rmi;
 
 public class Helper {
+   // kept for code outside the library; the library itself traces with Trace, which is
+   // configured separately and is not affected by this flag
    public static boolean loggingOn = false;
 
    public static void log(String msg){
@@ -0,0 +1,24 @@
+package rmi;
+
+import java.lang.annotation.*;
+
+/** Marks a remote method as safe to call more than once.
+
+    <p>
+    A call to an idempotent method that fails because the skeleton could not
+    be reached, or because the connection failed before the reply arrived, is
+    retried a few times by the stub, waiting a little longer before each
+    attempt, as long as the deadline of the call allows. Calls to other
+    methods are not retried, since the failed attempt may have run on the
+    server.
+
+    <p>
+    The annotation may be placed on a method of a remote interface, or on the
+    interface itself to mark all of its methods.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target({ElementType.METHOD, ElementType.TYPE})
+public @interface Idempotent
+{
+}
@@ -0,0 +1,128 @@
+package rmi;
+
+import java.lang.invoke.*;
+import java.lang.reflect.*;
+
+/** Precomputed call path to one method of a skeleton's server object.
+
+    <p>
+    A skeleton builds one invoker per method of its remote interface when it is
+    constructed. The invoker holds the parameter and return types the codec
+    needs, and a method handle bound to the server object, so that servicing a
+    call involves neither a reflective lookup nor the access checks and
+    argument copying of <code>Method.invoke</code>.
+
+    <p>
+    The invoker also holds the skeleton-side metrics of the method, which the
+    skeleton updates for each call.
+
+    <p>
+    If the method cannot be reached through a method handle - for instance
+    because the remote interface is not public - the invoker falls back to
+    <code>Method.invoke</code>.
+ */
+class Invoker
+{
+    private static final Trace  trace = Trace.of(Invoker.class);
+
+    final Method                method;
+    final Class<?>[]            parameterTypes;
+    /** Parameter types with primitive types replaced by their wrappers, to
+        check arguments against. */
+    private final Class<?>[]    argumentTypes;
+    final Class<?>              returnType;
+    /** Handle taking the arguments as an <code>Object[]</code> and returning
+        an <code>Object</code>, or <code>null</code> if reflection is used. */
+    private final MethodHandle  handle;
+    private final Object        target;
+    final MethodMetrics         metrics;
+
+    /** Creates an invoker for the given method of the given object. */
+    Invoker(Method method, Object target, MethodMetrics metrics)
+    {
+        this.method = method;
+        this.metrics = metrics;
+        this.parameterTypes = method.getParameterTypes();
+        this.argumentTypes = MethodType.methodType(void.class, parameterTypes)
+            .wrap().parameterArray();
+        this.returnType = method.getReturnType();
+        this.target = target;
+
+        MethodHandle    bound;
+        try
+        {
+            bound = MethodHandles.lookup().unreflect(method)
+                .bindTo(target)
+                .asSpreader(Object[].class, parameterTypes.length)
+                .asType(MethodType.methodType(Object.class, Object[].class));
+        }
+        catch(IllegalAccessException e)
+        {
+            trace.debug("No method handle for {}, using reflection", method);
+            bound = null;
+        }
+
+        this.handle = bound;
+    }
+
+    /** Calls the method with the given arguments.
+
+        <p>
+        As with <code>Method.invoke</code>, only what the method itself throws
+        is wrapped in an <code>InvocationTargetException</code>. Arguments that
+        do not fit the parameters are rejected before the method is called,
+        and errors are rethrown as they are.
+
+        @throws InvocationTargetException If the method throws an exception.
+                                          The exception is the cause.
+        @throws IllegalAccessException If the method is not accessible.
+        @throws IllegalArgumentException If the arguments do not fit the
+                                         parameters of the method.
+     */
+    Object invoke(Object[] arguments)
+        throws InvocationTargetException, IllegalAccessException
+    {
+        if(handle == null)
+            return method.invoke(target, arguments);
+
+        check(arguments);
+        try
+        {
+            return (Object)handle.invokeExact(arguments);
+        }
+        catch(Error e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new InvocationTargetException(t);
+        }
+    }
+
+    /** Checks that arguments can be passed to the method, so that the casts
+        of the method handle cannot fail.
+
+        @throws IllegalArgumentException If they cannot.
+     */
+    private void check(Object[] arguments)
+    {
+        if(arguments.length != argumentTypes.length)
+        {
+            throw new IllegalArgumentException(method.getName() + " takes " +
+                argumentTypes.length + " arguments, not " + arguments.length);
+        }
+
+        for(int i = 0; i < arguments.length; i++)
+        {
+            Object  argument = arguments[i];
+            if(argument == null ? parameterTypes[i].isPrimitive()
+                                : !argumentTypes[i].isInstance(argument))
+            {
+                throw new IllegalArgumentException("argument " + i + " of " +
+                    method.getName() + " is not a " +
+                    parameterTypes[i].getName());
+            }
+        }
+    }
+}
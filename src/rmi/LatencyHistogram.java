@@ -0,0 +1,151 @@
+package rmi;
+
+import java.util.concurrent.atomic.*;
+
+/** Distribution of the latencies of the calls to one remote method.
+
+    <p>
+    Latencies are counted in buckets whose width grows with the latency, in
+    the manner of an HDR histogram: each power of two is split into eight
+    buckets, so that a percentile is reported to within 12.5% of the true
+    value whatever its magnitude, from a nanosecond to about eighteen minutes.
+    Longer latencies are counted in the last bucket. Recording a latency
+    increments one counter and allocates nothing, so the histogram can be
+    updated on every call by any number of threads.
+
+    <p>
+    Reading the histogram while calls are recorded gives a view that is not
+    an exact snapshot: a call recorded during the read may be counted in some
+    of the values returned and not in others.
+ */
+public final class LatencyHistogram
+{
+    /** Bits of a latency kept below its leading one bit. */
+    private static final int    SUB_BUCKET_BITS = 3;
+    private static final int    SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Exponent of the largest power of two counted in a bucket of its
+        own. */
+    private static final int    MAX_EXPONENT = 40;
+
+    private final AtomicLongArray   counts = new AtomicLongArray(
+        (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS);
+    private final LongAdder         count = new LongAdder();
+    private final LongAdder         total = new LongAdder();
+    private final AtomicLong        max = new AtomicLong();
+
+    LatencyHistogram()
+    {
+    }
+
+    /** Records one latency, in nanoseconds. */
+    void record(long nanos)
+    {
+        if(nanos < 0)
+            nanos = 0;
+
+        counts.incrementAndGet(bucket(nanos));
+        count.increment();
+        total.add(nanos);
+
+        long        largest = max.get();
+        while(nanos > largest && !max.compareAndSet(largest, nanos))
+            largest = max.get();
+    }
+
+    /** Returns the number of latencies recorded. */
+    public long count()
+    {
+        return count.sum();
+    }
+
+    /** Returns the mean latency in nanoseconds, or zero if none has been
+        recorded. */
+    public long mean()
+    {
+        long        recorded = count.sum();
+        return recorded == 0 ? 0 : total.sum() / recorded;
+    }
+
+    /** Returns the largest latency recorded, in nanoseconds. */
+    public long max()
+    {
+        return max.get();
+    }
+
+    /** Returns the latency below which the given percentage of the recorded
+        latencies fall, in nanoseconds, or zero if none has been recorded.
+
+        <p>
+        The value returned is the upper end of the bucket holding the
+        percentile, and never exceeds the largest latency recorded.
+
+        @param percentile Percentage of the latencies, between 0 and 100.
+        @throws IllegalArgumentException If the percentage is out of range.
+     */
+    public long percentile(double percentile)
+    {
+        if(!(percentile >= 0 && percentile <= 100))
+        {
+            throw new IllegalArgumentException("percentile " + percentile +
+                                               " is not between 0 and 100");
+        }
+
+        long        recorded = 0;
+        for(int bucket = 0; bucket < counts.length(); ++bucket)
+            recorded += counts.get(bucket);
+        if(recorded == 0)
+            return 0;
+
+        long        rank = Math.max(1, (long)Math.ceil(percentile / 100 *
+                                                       recorded));
+        long        seen = 0;
+        for(int bucket = 0; bucket < counts.length(); ++bucket)
+        {
+            seen += counts.get(bucket);
+            if(seen >= rank)
+                return Math.min(highestIn(bucket), max.get());
+        }
+
+        return max.get();
+    }
+
+    /** Forgets every latency recorded so far. Latencies recorded during the
+        reset may be partly forgotten. */
+    void reset()
+    {
+        for(int bucket = 0; bucket < counts.length(); ++bucket)
+            counts.set(bucket, 0);
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    /** Returns the bucket counting a latency. Latencies below
+        <code>SUB_BUCKETS</code> have a bucket each; above that, the bucket is
+        given by the position of the leading one bit and the bits following
+        it. */
+    private static int bucket(long nanos)
+    {
+        if(nanos < SUB_BUCKETS)
+            return (int)nanos;
+
+        int         exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent > MAX_EXPONENT)
+            return (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS - 1;
+
+        int         shift = exponent - SUB_BUCKET_BITS;
+        int         subBucket = (int)(nanos >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Returns the largest latency counted in a bucket. */
+    private static long highestIn(int bucket)
+    {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+
+        int         shift = bucket / SUB_BUCKETS - 1;
+        long        lowest = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,260 @@
+package rmi;
+
+import java.io.*;
+import java.nio.*;
+
+/** Fast compressor writing the LZ4 block format.
+
+    <p>
+    The input is described as a sequence of literal runs and back-references
+    to earlier bytes, found by hashing each four-byte sequence. The compressor
+    looks for one candidate match per position and skips ahead faster the
+    longer it goes without finding one, so that it costs little on data that
+    does not compress. It typically halves text and serialized objects, at a
+    speed well above that of the network.
+
+    <p>
+    The output is a single LZ4 block, without the frame header of the LZ4
+    file format; the length of the uncompressed data is carried by the RMI
+    frame.
+ */
+public class Lz4Compressor implements Compressor
+{
+    /** Wire identifier of this compressor. */
+    public static final byte    ID = 1;
+
+    private static final int    MIN_MATCH = 4;
+    /** The last bytes of a block are always literals. */
+    private static final int    LAST_LITERALS = 5;
+    /** A match may not start within this many bytes of the end of a
+        block. */
+    private static final int    MATCH_FIND_LIMIT = 12;
+    private static final int    MAX_DISTANCE = 65535;
+    /** Each byte extending the length of a match adds at most 255 bytes to
+        the output, and every other byte of a block at most one. */
+    private static final int    MAX_RATIO = 255;
+    private static final int    HASH_BITS = 12;
+    /** Misses after which the step between positions tried grows by one. */
+    private static final int    SKIP_TRIGGER = 6;
+
+    /** Positions last seen for each hash, relative to the start of the input.
+        The table is reused from one call to the next without being cleared:
+        every candidate is checked against the input, so a stale entry can
+        only cost a match. */
+    private static final ThreadLocal<int[]> tables = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[1 << HASH_BITS];
+        }
+    };
+
+    @Override
+    public byte id()
+    {
+        return ID;
+    }
+
+    @Override
+    public int maxRatio()
+    {
+        return MAX_RATIO;
+    }
+
+    @Override
+    public boolean compress(ByteBuffer source, ByteBuffer target)
+    {
+        int[]       table = tables.get();
+        int         base = source.position();
+        int         length = source.remaining();
+        // view of the input through which runs of literals are copied
+        ByteBuffer  window = source.duplicate();
+        int         anchor = 0;
+        int         position = 0;
+        int         limit = length - MATCH_FIND_LIMIT;
+        int         misses = 1 << SKIP_TRIGGER;
+
+        while(position < limit)
+        {
+            int     sequence = source.getInt(base + position);
+            int     hash = (sequence * -1640531535) >>> (32 - HASH_BITS);
+            int     candidate = table[hash];
+            table[hash] = position;
+
+            if(candidate >= position || position - candidate > MAX_DISTANCE ||
+               source.getInt(base + candidate) != sequence)
+            {
+                position += misses++ >>> SKIP_TRIGGER;
+                continue;
+            }
+
+            // extend the match backwards over the pending literals, then
+            // forwards
+            while(position > anchor && candidate > 0 &&
+                  source.get(base + position - 1) ==
+                  source.get(base + candidate - 1))
+            {
+                --position;
+                --candidate;
+            }
+
+            int     matchLength = MIN_MATCH;
+            int     matchLimit = length - LAST_LITERALS;
+            while(position + matchLength < matchLimit &&
+                  source.get(base + position + matchLength) ==
+                  source.get(base + candidate + matchLength))
+            {
+                ++matchLength;
+            }
+
+            if(!sequence(target, window, base + anchor, position - anchor,
+                         position - candidate, matchLength))
+            {
+                return false;
+            }
+            position += matchLength;
+            anchor = position;
+            misses = 1 << SKIP_TRIGGER;
+        }
+
+        return sequence(target, window, base + anchor, length - anchor, 0, 0);
+    }
+
+    @Override
+    public void decompress(ByteBuffer source, ByteBuffer target)
+        throws IOException
+    {
+        int         in = source.position();
+        int         end = source.limit();
+        int         base = target.position();
+        int         capacity = target.remaining();
+        int         out = 0;
+        // views through which literals and non-overlapping matches are copied
+        ByteBuffer  window = source.duplicate();
+        ByteBuffer  history = target.duplicate();
+
+        while(true)
+        {
+            if(in >= end)
+                throw new StreamCorruptedException("truncated LZ4 block");
+
+            int     token = source.get(in++) & 0xff;
+
+            int     literals = token >>> 4;
+            if(literals == 15)
+            {
+                int     next;
+                do
+                {
+                    if(in >= end)
+                        throw new StreamCorruptedException("truncated LZ4 block");
+                    next = source.get(in++) & 0xff;
+                    literals += next;
+                }
+                while(next == 255 && literals <= capacity);
+            }
+
+            if(literals > end - in || literals > capacity - out)
+                throw new StreamCorruptedException("LZ4 literals out of bounds");
+            window.limit(in + literals).position(in);
+            target.position(base + out);
+            target.put(window);
+            in += literals;
+            out += literals;
+
+            // the last sequence has literals only
+            if(in == end)
+                break;
+
+            if(end - in < 2)
+                throw new StreamCorruptedException("truncated LZ4 block");
+            int     distance = (source.get(in) & 0xff) |
+                               (source.get(in + 1) & 0xff) << 8;
+            in += 2;
+            if(distance == 0 || distance > out)
+                throw new StreamCorruptedException("LZ4 match out of bounds");
+
+            int     matchLength = token & 0x0f;
+            if(matchLength == 15)
+            {
+                int     next;
+                do
+                {
+                    if(in >= end)
+                        throw new StreamCorruptedException("truncated LZ4 block");
+                    next = source.get(in++) & 0xff;
+                    matchLength += next;
+                }
+                while(next == 255 && matchLength <= capacity);
+            }
+            matchLength += MIN_MATCH;
+
+            if(matchLength > capacity - out)
+                throw new StreamCorruptedException("LZ4 match out of bounds");
+
+            int     from = base + out - distance;
+            if(distance >= matchLength)
+            {
+                history.limit(from + matchLength).position(from);
+                target.position(base + out);
+                target.put(history);
+            }
+            else
+            {
+                // the match overlaps the bytes it produces
+                for(int index = 0; index < matchLength; ++index)
+                    target.put(base + out + index, target.get(from + index));
+            }
+            out += matchLength;
+        }
+
+        if(out != capacity)
+        {
+            throw new StreamCorruptedException("LZ4 block decompressed to " +
+                                               out + " bytes instead of " +
+                                               capacity);
+        }
+        target.position(base + out);
+    }
+
+    /** Writes a sequence: a token, a run of literals taken from the window,
+        and a match unless the match length is zero. Returns
+        <code>false</code> if the sequence does not fit in the output. */
+    private static boolean sequence(ByteBuffer out, ByteBuffer window,
+                                    int literalStart, int literals,
+                                    int distance, int matchLength)
+    {
+        int         matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        if(out.remaining() < literals + literals / 255 + matchCode / 255 + 5)
+            return false;
+
+        out.put((byte)((Math.min(literals, 15) << 4) |
+                       Math.min(matchCode, 15)));
+
+        if(literals >= 15)
+            writeLength(out, literals - 15);
+        window.limit(literalStart + literals).position(literalStart);
+        out.put(window);
+
+        if(matchLength == 0)
+            return true;
+
+        out.put((byte)distance);
+        out.put((byte)(distance >>> 8));
+        if(matchCode >= 15)
+            writeLength(out, matchCode - 15);
+        return true;
+    }
+
+    /** Writes the remainder of a length that does not fit in a token. */
+    private static void writeLength(ByteBuffer out, int length)
+    {
+        while(length >= 255)
+        {
+            out.put((byte)255);
+            length -= 255;
+        }
+        out.put((byte)length);
+    }
+}
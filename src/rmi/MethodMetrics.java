@@ -0,0 +1,254 @@
+package rmi;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Counters and latency distribution of the calls to one remote method, as
+    seen by one side of the connection.
+
+    <p>
+    The RMI library keeps one object of this class for each method of each
+    remote interface used by a stub, and one for each method of each remote
+    interface served by a skeleton. All stubs for an interface share its
+    stub-side metrics, and all skeletons for an interface share its
+    skeleton-side metrics. The objects are obtained from
+    <code>RMIMetrics</code>, and are also visible through JMX (see
+    <code>MethodMetricsMBean</code>).
+
+    <p>
+    On the stub side, the latency of a call runs from the call of the stub
+    method until its result is decoded, including any retries. On the
+    skeleton side, it runs from the arrival of the request until the outcome
+    of the call is marshalled, so that it includes the time the call waited
+    for the call executor. Calls sent in a <code>Batch</code> are counted by
+    the skeleton only, and the bytes of a batch are not attributed to the
+    methods it calls.
+
+    <p>
+    Byte counts are those of the frames on the connection, after compression.
+    The counts the frames would have had without compression are kept
+    alongside, so that the effect of compression on each method can be seen.
+
+    <p>
+    Updating the metrics allocates nothing, and uses counters that scale with
+    the number of threads updating them.
+ */
+public final class MethodMetrics implements MethodMetricsMBean
+{
+    /** Side of a connection whose view of the calls is measured. */
+    public enum Side
+    {
+        /** Calls made through stubs. */
+        STUB,
+        /** Calls served by skeletons. */
+        SKELETON
+    }
+
+    private final Side              side;
+    private final String            interfaceName;
+    private final String            method;
+
+    private final LongAdder         calls = new LongAdder();
+    private final AtomicLong        inFlight = new AtomicLong();
+    private final LongAdder         exceptions = new LongAdder();
+    private final LongAdder         failures = new LongAdder();
+    private final LongAdder         requestBytes = new LongAdder();
+    private final LongAdder         responseBytes = new LongAdder();
+    private final LongAdder         uncompressedRequestBytes = new LongAdder();
+    private final LongAdder         uncompressedResponseBytes = new LongAdder();
+    private final LatencyHistogram  latency = new LatencyHistogram();
+
+    MethodMetrics(Side side, String interfaceName, String method)
+    {
+        this.side = side;
+        this.interfaceName = interfaceName;
+        this.method = method;
+    }
+
+    /** Returns the side of the connection measured. */
+    public Side getSide()
+    {
+        return side;
+    }
+
+    /** Returns the name of the remote interface declaring the method. */
+    public String getInterfaceName()
+    {
+        return interfaceName;
+    }
+
+    /** Returns the signature of the method: its name and the names of its
+        parameter types. */
+    public String getMethod()
+    {
+        return method;
+    }
+
+    /** Returns the distribution of the latencies of the calls. */
+    public LatencyHistogram getLatency()
+    {
+        return latency;
+    }
+
+    @Override
+    public long getCalls()
+    {
+        return calls.sum();
+    }
+
+    @Override
+    public long getInFlight()
+    {
+        return inFlight.get();
+    }
+
+    @Override
+    public long getExceptions()
+    {
+        return exceptions.sum();
+    }
+
+    @Override
+    public long getFailures()
+    {
+        return failures.sum();
+    }
+
+    @Override
+    public long getRequestBytes()
+    {
+        return requestBytes.sum();
+    }
+
+    @Override
+    public long getResponseBytes()
+    {
+        return responseBytes.sum();
+    }
+
+    @Override
+    public long getUncompressedRequestBytes()
+    {
+        return uncompressedRequestBytes.sum();
+    }
+
+    @Override
+    public long getUncompressedResponseBytes()
+    {
+        return uncompressedResponseBytes.sum();
+    }
+
+    @Override
+    public double getCompressionRatio()
+    {
+        long        sent = requestBytes.sum() + responseBytes.sum();
+        if(sent == 0)
+            return 1;
+
+        return (double)(uncompressedRequestBytes.sum() +
+                        uncompressedResponseBytes.sum()) / sent;
+    }
+
+    @Override
+    public long getMeanMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.mean());
+    }
+
+    @Override
+    public long getMedianMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.percentile(50));
+    }
+
+    @Override
+    public long get99thPercentileMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.percentile(99));
+    }
+
+    @Override
+    public long get999thPercentileMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.percentile(99.9));
+    }
+
+    @Override
+    public long getMaxMicros()
+    {
+        return TimeUnit.NANOSECONDS.toMicros(latency.max());
+    }
+
+    @Override
+    public void reset()
+    {
+        calls.reset();
+        exceptions.reset();
+        failures.reset();
+        requestBytes.reset();
+        responseBytes.reset();
+        uncompressedRequestBytes.reset();
+        uncompressedResponseBytes.reset();
+        latency.reset();
+    }
+
+    /** Records the start of a call.
+
+        @return The time at which the call started, as a value of
+                <code>System.nanoTime</code>.
+     */
+    long begin()
+    {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /** Records the end of a call that returned a value. */
+    void returned(long start)
+    {
+        end(start);
+    }
+
+    /** Records the end of a call for which the remote method threw an
+        exception. */
+    void threw(long start)
+    {
+        exceptions.increment();
+        end(start);
+    }
+
+    /** Records the end of a call that failed without a result from the
+        remote method. */
+    void failed(long start)
+    {
+        failures.increment();
+        end(start);
+    }
+
+    /** Records the size of a request frame. */
+    void request(Frame frame)
+    {
+        requestBytes.add(frame.size());
+        uncompressedRequestBytes.add(frame.uncompressedSize());
+    }
+
+    /** Records the size of a reply frame. */
+    void response(Frame frame)
+    {
+        responseBytes.add(frame.size());
+        uncompressedResponseBytes.add(frame.uncompressedSize());
+    }
+
+    private void end(long start)
+    {
+        latency.record(System.nanoTime() - start);
+        calls.increment();
+        inFlight.decrementAndGet();
+    }
+
+    @Override
+    public String toString()
+    {
+        return side.name().toLowerCase() + " " + interfaceName + "." + method;
+    }
+}
@@ -0,0 +1,65 @@
+package rmi;
+
+/** Management interface of the metrics of one remote method.
+
+    <p>
+    Each <code>MethodMetrics</code> object is registered with the platform
+    MBean server under the name
+    <code>rmi:type=MethodMetrics,side=<i>side</i>,interface=<i>interface</i>,method=<i>signature</i></code>,
+    where the side is <code>stub</code> or <code>skeleton</code>. Latencies are
+    given in microseconds.
+ */
+public interface MethodMetricsMBean
+{
+    /** Returns the number of calls completed. */
+    long getCalls();
+
+    /** Returns the number of calls started and not yet completed. */
+    long getInFlight();
+
+    /** Returns the number of calls for which the remote method threw an
+        exception. */
+    long getExceptions();
+
+    /** Returns the number of calls that failed in the RMI library or the
+        network, without a result from the remote method. */
+    long getFailures();
+
+    /** Returns the number of bytes sent in the request frames of the
+        calls. */
+    long getRequestBytes();
+
+    /** Returns the number of bytes sent in the reply frames of the calls. */
+    long getResponseBytes();
+
+    /** Returns the number of bytes the request frames of the calls would have
+        taken without compression. */
+    long getUncompressedRequestBytes();
+
+    /** Returns the number of bytes the reply frames of the calls would have
+        taken without compression. */
+    long getUncompressedResponseBytes();
+
+    /** Returns the number of bytes the frames of the calls would have taken
+        without compression, divided by the number of bytes they took, or 1 if
+        no frame has been sent. */
+    double getCompressionRatio();
+
+    /** Returns the mean latency of the calls. */
+    long getMeanMicros();
+
+    /** Returns the median latency of the calls. */
+    long getMedianMicros();
+
+    /** Returns the 99th percentile of the latency of the calls. */
+    long get99thPercentileMicros();
+
+    /** Returns the 99.9th percentile of the latency of the calls. */
+    long get999thPercentileMicros();
+
+    /** Returns the largest latency of a call. */
+    long getMaxMicros();
+
+    /** Sets every counter except the in-flight gauge back to zero. */
+    void reset();
+}
@@ -0,0 +1,162 @@
+package rmi;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Numbering of the methods of a remote interface.
+
+    <p>
+    Calls identify their method by a small ordinal instead of by name and
+    parameter types. The ordinals are local to the stub side: the first time a
+    connection carries calls for an interface, the stub announces the
+    interface with a <code>BIND</code> frame listing the signatures of its
+    methods in ordinal order, and the skeleton resolves each signature against
+    its own interface once, against the dispatch table it built when it was
+    constructed. From then on, a call is a binding number and an ordinal, and
+    resolving it is an array lookup. The stub does not wait for
+    the skeleton to process the announcement, since frames on a connection are
+    read in order.
+ */
+class MethodTable
+{
+    private static final ConcurrentMap<Class<?>, MethodTable>  tables =
+        new ConcurrentHashMap<Class<?>, MethodTable>();
+
+    final Class<?>                  remoteInterface;
+    /** Methods of the interface, indexed by ordinal. */
+    final Method[]                  methods;
+    /** Signatures of the methods, indexed by ordinal. */
+    final String[]                  signatures;
+    /** Parameter types of the methods, indexed by ordinal. */
+    private final Class<?>[][]      parameterTypes;
+    /** Whether each method may be retried (see <code>Idempotent</code>),
+        indexed by ordinal. */
+    private final boolean[]         idempotent;
+    /** Metrics of the methods on the stub side and on the skeleton side,
+        indexed by ordinal, created when first needed. */
+    private final AtomicReferenceArray<MethodMetrics>   stubMetrics;
+    private final AtomicReferenceArray<MethodMetrics>   skeletonMetrics;
+    private final Map<Method, Integer>  ordinals;
+    private final Map<String, Method>   bySignature;
+
+    private MethodTable(Class<?> remoteInterface)
+    {
+        this.remoteInterface = remoteInterface;
+
+        // Order methods by signature, so that the numbering does not depend on
+        // the order in which reflection happens to return them.
+        Method[]    all = remoteInterface.getMethods();
+        Arrays.sort(all, new Comparator<Method>() {
+            public int compare(Method first, Method second)
+            {
+                return signature(first).compareTo(signature(second));
+            }
+        });
+
+        methods = all;
+        signatures = new String[all.length];
+        parameterTypes = new Class<?>[all.length][];
+        idempotent = new boolean[all.length];
+        stubMetrics = new AtomicReferenceArray<MethodMetrics>(all.length);
+        skeletonMetrics = new AtomicReferenceArray<MethodMetrics>(all.length);
+        ordinals = new HashMap<Method, Integer>();
+        bySignature = new HashMap<String, Method>();
+
+        for(int ordinal = 0; ordinal < all.length; ++ordinal)
+        {
+            signatures[ordinal] = signature(all[ordinal]);
+            parameterTypes[ordinal] = all[ordinal].getParameterTypes();
+            idempotent[ordinal] =
+                all[ordinal].isAnnotationPresent(Idempotent.class) ||
+                all[ordinal].getDeclaringClass()
+                    .isAnnotationPresent(Idempotent.class) ||
+                remoteInterface.isAnnotationPresent(Idempotent.class);
+            ordinals.put(all[ordinal], ordinal);
+            bySignature.put(signatures[ordinal], all[ordinal]);
+        }
+    }
+
+    /** Returns the table for the given interface. */
+    static MethodTable of(Class<?> remoteInterface)
+    {
+        MethodTable     table = tables.get(remoteInterface);
+        if(table == null)
+        {
+            table = new MethodTable(remoteInterface);
+            MethodTable existing = tables.putIfAbsent(remoteInterface, table);
+            if(existing != null)
+                table = existing;
+        }
+
+        return table;
+    }
+
+    /** Returns the ordinal of a method of the interface.
+
+        @throws IllegalArgumentException If the method is not a method of the
+                                         interface.
+     */
+    int ordinal(Method method)
+    {
+        Integer     ordinal = ordinals.get(method);
+        if(ordinal == null)
+            ordinal = ordinals.get(bySignature.get(signature(method)));
+        if(ordinal == null)
+        {
+            throw new IllegalArgumentException(method + " is not a method of " +
+                                               remoteInterface.getName());
+        }
+
+        return ordinal;
+    }
+
+    /** Returns the parameter types of the method with the given ordinal.
+        The array is shared and must not be modified. */
+    Class<?>[] parameterTypes(int ordinal)
+    {
+        return parameterTypes[ordinal];
+    }
+
+    /** Returns <code>true</code> if the method with the given ordinal is
+        marked as <code>Idempotent</code>. */
+    boolean idempotent(int ordinal)
+    {
+        return idempotent[ordinal];
+    }
+
+    /** Returns the metrics of the method with the given ordinal, as seen
+        from one side of the connection. */
+    MethodMetrics metrics(MethodMetrics.Side side, int ordinal)
+    {
+        AtomicReferenceArray<MethodMetrics> metrics =
+            side == MethodMetrics.Side.STUB ? stubMetrics : skeletonMetrics;
+        MethodMetrics   method = metrics.get(ordinal);
+        if(method == null)
+        {
+            method = RMIMetrics.of(side, remoteInterface, signatures[ordinal]);
+            metrics.set(ordinal, method);
+        }
+
+        return method;
+    }
+
+    /** Returns the signature of a method: its name and the names of its
+        parameter types. */
+    static String signature(Method method)
+    {
+        StringBuilder   builder = new StringBuilder(method.getName());
+        builder.append('(');
+
+        Class<?>[]      parameterTypes = method.getParameterTypes();
+        for(int index = 0; index < parameterTypes.length; ++index)
+        {
+            if(index > 0)
+                builder.append(',');
+            builder.append(parameterTypes[index].getName());
+        }
+
+        return builder.append(')').toString();
+    }
+}
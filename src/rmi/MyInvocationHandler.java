@@ -6,21 +6,35 @@ import java.lang.reflect.InvocationHandler;
 import java.io.*;
 import java.net.*;
 import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 public class MyInvocationHandler<T> implements java.lang.reflect.InvocationHandler, Serializable {
 
+  private static final Trace trace = Trace.of(MyInvocationHandler.class);
+
+  // retries of a failed idempotent call, and the backoff before the first of them
+  static final int MAX_RETRIES = 3;
+  static final long BACKOFF_MILLIS = 20;
+
   int port;
   InetAddress skeletonAddr;
   Class<T> remoteInterface;
-  Throwable excep;
-  boolean remoteMethodExcep;
+  transient MethodTable table; // looked up on first call
+  // timeout of each call in nanoseconds, or 0 for none; set by Stub.withTimeout. It is a
+  // setting of this stub only, and not sent along when the stub is passed to another host
+  transient long timeout;
 
   public MyInvocationHandler(Class<T> remoteInterface, int port, InetAddress skeletonAddr) {
     this.port = port;
     this.skeletonAddr = skeletonAddr;
     this.remoteInterface = remoteInterface;
-    this.excep = null;
-    this.remoteMethodExcep = false;
   }
 
   // The proxy parameter passed to the invoke() method is the dynamic proxy object
@@ -41,7 +55,7 @@ public class MyInvocationHandler<T> implements java.lang.reflect.InvocationHandl
       try {
         remoteInterface.getMethod(method.getName(), method.getParameterTypes());
       } catch (NoSuchMethodException e) {
-        Helper.log("toString() method called");
+        trace.debug("toString() method called");
         return makeString();
       }
 
@@ -50,7 +64,7 @@ public class MyInvocationHandler<T> implements java.lang.reflect.InvocationHandl
         remoteInterface.getMethod(method.getName(), method.getParameterTypes());
       } catch (NoSuchMethodException e) {
         // Returns a hash code value for the object.
-        Helper.log("hashCode() method called");
+        trace.debug("hashCode() method called");
         return new Integer(generateHashCode());
       }
 
@@ -58,7 +72,7 @@ public class MyInvocationHandler<T> implements java.lang.reflect.InvocationHandl
       try {
         remoteInterface.getMethod(method.getName(), method.getParameterTypes());
       } catch (NoSuchMethodException e) {
-        Helper.log("equals() method called");
+        trace.debug("equals() method called");
         return isEqual(proxy, args[0]); //??? How to compare
       }
 
@@ -66,58 +80,371 @@ public class MyInvocationHandler<T> implements java.lang.reflect.InvocationHandl
     }
     // RPC call
 
-      Helper.log(methodCalled + "() method called");
-      Socket stubSocket = new Socket(this.skeletonAddr, this.port);
-      ObjectOutputStream out = new ObjectOutputStream(stubSocket.getOutputStream());
-      // get method information
-      Class[] parameterTypes = method.getParameterTypes();
+      trace.debug("{}() method called", methodCalled);
+      return call(table(), method, args);
+
+  }
+
+  MethodTable table() {
+    if (this.table == null) {
+      this.table = MethodTable.of(remoteInterface);
+    }
+    return this.table;
+  }
+
+  // Returns a handler for the same skeleton whose calls have the given timeout, in
+  // nanoseconds, or no deadline if it is zero
+  MyInvocationHandler<T> withTimeout(long timeout) {
+    MyInvocationHandler<T> handler =
+        new MyInvocationHandler<T>(this.remoteInterface, this.port, this.skeletonAddr);
+    handler.timeout = timeout;
+    return handler;
+  }
+
+  // Deadline of a call starting now: the timeout of the stub, or the deadline of the call
+  // this thread is serving if that is earlier
+  private Deadline deadline() {
+    return Deadline.earliest(Deadline.after(this.timeout, TimeUnit.NANOSECONDS),
+                             Deadline.current());
+  }
 
-      //create an object which is to be serialized
-      transferContainer container = new transferContainer(methodCalled, args, parameterTypes);
+  // Sends one call over the pooled connection to the skeleton and waits for its reply.
+  private Object call(final MethodTable table, final Method method, final Object[] args)
+          throws Throwable {
+    int ordinal = table.ordinal(method);
+    MethodMetrics metrics = table.metrics(MethodMetrics.Side.STUB, ordinal);
+    long start = metrics.begin();
+    Reply reply;
+    try {
+      reply = roundTrip(new Exchange() {
+        public CompletableFuture<Frame> send(Connection connection, Deadline deadline)
+                throws IOException {
+          return connection.call(table, method, args, deadline);
+        }
+      }, table.idempotent(ordinal));
+    } catch (Throwable t) {
+      metrics.failed(start);
+      throw t;
+    }
+    return finish(metrics, start, reply.codec, method, reply.frame);
+  }
 
-      out.flush();
-      try { // send object to Skeleton
-        out.writeObject(container);
-      } catch (Exception e) {
-        Helper.log("Proxy object trying to writeObject() failed");
+  // Decodes the reply to a call, like unpack(), and records the outcome of the call in the
+  // metrics of its method
+  static Object finish(MethodMetrics metrics, long start, Codec codec, Method method,
+                       Frame reply) throws Throwable {
+    metrics.response(reply);
+    Object value;
+    try {
+      value = unpack(codec, method, reply);
+    } catch (Throwable t) {
+      if (reply.type == Frame.FAILURE) {
+        metrics.failed(start);
+      } else {
+        metrics.threw(start);
       }
+      throw t;
+    }
+    metrics.returned(start);
+    return value;
+  }
 
-      Object returnObject = new Object(); //dummy return object
+  // Sends a batch of calls in one frame and waits for the reply carrying all their outcomes.
+  // The batch may be retried only if all of its calls may be.
+  Reply batch(final Method[] methods, final Object[][] args, final boolean stopOnException)
+          throws RMIException {
+    boolean idempotent = true;
+    for (Method method : methods) {
+      idempotent &= table().idempotent(table().ordinal(method));
+    }
+    return roundTrip(new Exchange() {
+      public CompletableFuture<Frame> send(Connection connection, Deadline deadline)
+              throws IOException {
+        return connection.batch(table(), methods, args, stopOnException, deadline);
+      }
+    }, idempotent);
+  }
 
-      try { // receive object to Skeleton
+  // A request to the skeleton, written to whichever connection the pool provides
+  interface Exchange {
+    CompletableFuture<Frame> send(Connection connection, Deadline deadline)
+            throws IOException;
+  }
 
-        ObjectInputStream ois = new ObjectInputStream(stubSocket.getInputStream());
-        transferContainer e;
-        e = (transferContainer) ois.readObject();
+  // A reply frame, with the codec of the connection it was received on
+  static class Reply {
+    final Codec codec;
+    final Frame frame;
 
-        Object[] arguments = new Object[e.funcArgs.size()];
-        e.funcArgs.toArray(arguments);
+    Reply(Codec codec, Frame frame) {
+      this.codec = codec;
+      this.frame = frame;
+    }
+  }
 
-        //there should be only one object in the args array representing the returned value
-        returnObject = arguments[0];
-        if (e.funcArgs.size() == 2) { //check exception
-          Helper.log("Skeleton returned exception!!!");
-          this.excep = (Throwable) returnObject;
-          //throw excep;
-          this.remoteMethodExcep = true;
+  // Sends a request and waits for its reply, until the deadline of the call if it has
+  // one. A pooled connection that has served calls before may have been closed by the
+  // skeleton in the meantime (e.g. it was restarted), so a request that could not be
+  // written to such a connection is retried once, at once, on a fresh one. Once the
+  // request has been written the skeleton may have run it, so beyond that only idempotent
+  // requests are retried, with backoff, as long as the deadline allows, and requests that
+  // a draining skeleton refused without running them.
+  private Reply roundTrip(Exchange exchange, boolean idempotent) throws RMIException {
+    InetSocketAddress address = new InetSocketAddress(this.skeletonAddr, this.port);
+    Deadline deadline = deadline();
+    boolean reconnected = false;
+
+    for (int retries = 0; ; ) {
+      if (deadline != null && deadline.passed()) {
+        throw new RMIException("Deadline passed before the call to " + address + " was sent");
+      }
+
+      RMIException failure;
+      Connection connection = null;
+      boolean reused = false;
+      boolean sent = false;
+      boolean notRun = false;
+      try {
+        connection = ConnectionPool.acquire(address);
+        reused = connection.isUsed();
+        CompletableFuture<Frame> reply = exchange.send(connection, deadline);
+        sent = true;
+        try {
+          Frame frame = (deadline == null) ? reply.get()
+              : reply.get(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
+          if (frame.type != Frame.DRAINING) {
+            return new Reply(connection.codec, frame);
+          }
+          frame.release();
+          notRun = true;
+          failure = new RMIException("Skeleton at " + address + " is shutting down");
+        } catch (TimeoutException e) {
+          connection.abandon(reply);
+          throw new RMIException("Deadline passed while waiting for the reply from " + address, e);
         }
+      } catch (IOException e) {
+        failure = (connection == null)
+            ? new RMIException("Unable to connect to skeleton at " + address, e)
+            : new RMIException("Proxy object trying to send the call failed", e);
+      } catch (ExecutionException e) {
+        failure = new RMIException("Proxy object trying to receive the reply failed", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RMIException("Interrupted while waiting for the skeleton", e);
+      }
 
-        //checkReturnedObj(returnObject);
-        out.close();
-        ois.close();
-        stubSocket.close();
+      if (reused && !sent && !reconnected) {
+        reconnected = true;
+        trace.debug("Pooled connection to {} went stale, reconnecting", address);
+        continue;
+      }
+      if ((!idempotent && !notRun) || retries == MAX_RETRIES
+          || !backOff(retries++, deadline)) {
+        throw failure;
+      }
+      trace.debug("Retrying idempotent call to {} after: {}", address, failure.getMessage());
+    }
+  }
 
-      } catch (Exception ex) {
-        throw new RMIException("Proxy object trying to readObject() failed");
+  // Waits before retry number n (from zero) of a failed idempotent call, for an
+  // exponentially growing, randomized time. Returns false, without waiting, if that would
+  // go past the deadline, or if the thread is interrupted.
+  private static boolean backOff(int retry, Deadline deadline) {
+    long pause = backOffMillis(retry);
+    if (deadline != null && TimeUnit.MILLISECONDS.toNanos(pause) >= deadline.remainingNanos()) {
+      return false;
+    }
+    try {
+      Thread.sleep(pause);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  // Backoff before retry number n: between half and all of BACKOFF_MILLIS * 2^n
+  private static long backOffMillis(int retry) {
+    long limit = BACKOFF_MILLIS << retry;
+    return limit / 2 + ThreadLocalRandom.current().nextLong(limit / 2 + 1);
+  }
+
+  // Sends one call without waiting for its reply. The call is written to the connection
+  // before this returns, so several calls made in a row are in flight together; the
+  // returned future completes, on the given executor, with the value returned by the
+  // remote method or with the exception thrown by it or by the transport. Deadlines and
+  // retries are the same as for call(); backoff waits do not hold a thread.
+  CompletableFuture<Object> callAsync(MethodTable table, Method method, Object[] args,
+                                      Executor executor) {
+    AsyncCall call = new AsyncCall(table, method, args, executor);
+    call.send();
+    return call.result;
+  }
+
+  // One asynchronous call, with the state needed to retry it
+  private class AsyncCall {
+    final MethodTable table;
+    final Method method;
+    final Object[] args;
+    final Executor executor;
+    final boolean idempotent;
+    final MethodMetrics metrics;
+    final long start;
+    final Deadline deadline = deadline();
+    final CompletableFuture<Object> result = new CompletableFuture<Object>();
+    // runs the steps of the call on its executor; a step the executor rejects would leave
+    // the result incomplete forever, so the call fails instead
+    final Executor steps = new Executor() {
+      public void execute(Runnable step) {
+        try {
+          executor.execute(step);
+        } catch (RejectedExecutionException e) {
+          fail(new RMIException("Executor of the call rejected it", e));
+        }
+      }
+    };
+    boolean reconnected = false;
+    int retries = 0;
+
+    AsyncCall(MethodTable table, Method method, Object[] args, Executor executor) {
+      this.table = table;
+      this.method = method;
+      this.args = args;
+      this.executor = executor;
+      int ordinal = table.ordinal(method);
+      this.idempotent = table.idempotent(ordinal);
+      this.metrics = table.metrics(MethodMetrics.Side.STUB, ordinal);
+      this.start = metrics.begin();
+    }
+
+    void send() {
+      final InetSocketAddress address = new InetSocketAddress(skeletonAddr, port);
+      if (deadline != null && deadline.passed()) {
+        fail(new RMIException("Deadline passed before the call to " + address + " was sent"));
+        return;
+      }
+
+      // a runtime failure, e.g. of the codec, is not retried, but must still complete the
+      // result: this may run on a retry, with no caller to throw to
+      final Connection connection;
+      try {
+        connection = ConnectionPool.acquire(address);
+      } catch (IOException e) {
+        failed(new RMIException("Unable to connect to skeleton at " + address, e), false,
+               false);
+        return;
+      } catch (RuntimeException e) {
+        fail(new RMIException("Unable to connect to skeleton at " + address, e));
+        return;
+      }
+      final boolean reused = connection.isUsed();
+
+      final CompletableFuture<Frame> reply;
+      try {
+        reply = connection.call(table, method, args, deadline);
+      } catch (IOException e) {
+        failed(new RMIException("Proxy object trying to send the call failed", e), reused,
+               false);
+        return;
+      } catch (RuntimeException e) {
+        fail(new RMIException("Proxy object trying to send the call failed", e));
+        return;
+      }
+      if (deadline != null) {
+        reply.orTimeout(deadline.remainingNanos(), TimeUnit.NANOSECONDS);
       }
 
-      if (this.remoteMethodExcep){
-        this.remoteMethodExcep = false;
-        throw this.excep;
+      reply.whenCompleteAsync(new BiConsumer<Frame, Throwable>() {
+        public void accept(Frame frame, Throwable failure) {
+          if (failure instanceof TimeoutException) {
+            connection.abandon(reply);
+            fail(new RMIException(
+                "Deadline passed while waiting for the reply from " + address, failure));
+            return;
+          }
+          if (failure != null) {
+            // the call was written, and may have run: no free retry
+            failed(new RMIException("Proxy object trying to receive the reply failed", failure),
+                   false, false);
+            return;
+          }
+          if (frame.type == Frame.DRAINING) {
+            frame.release();
+            failed(new RMIException("Skeleton at " + address + " is shutting down"), false,
+                   true);
+            return;
+          }
+          try {
+            result.complete(finish(metrics, start, connection.codec, method, frame));
+          } catch (Throwable t) {
+            result.completeExceptionally(t);
+          }
+        }
+      }, steps);
+    }
+
+    // Retries the call if the rules of roundTrip() allow it, or fails it. unsent is true if
+    // the call could not be written to a pooled connection that had served calls before,
+    // and notRun if the skeleton refused the call without running it.
+    private void failed(RMIException failure, boolean unsent, boolean notRun) {
+      if (unsent && !reconnected) {
+        reconnected = true;
+        send();
+        return;
       }
 
-      return returnObject;
+      long pause = (idempotent || notRun) && retries < MAX_RETRIES ? backOffMillis(retries) : -1;
+      if (pause < 0 || (deadline != null &&
+                        TimeUnit.MILLISECONDS.toNanos(pause) >= deadline.remainingNanos())) {
+        fail(failure);
+        return;
+      }
+      retries++;
+      CompletableFuture.delayedExecutor(pause, TimeUnit.MILLISECONDS, steps)
+          .execute(new Runnable() {
+            public void run() {
+              send();
+            }
+          });
+    }
 
+    // Fails the call without a result from the remote method
+    private void fail(RMIException failure) {
+      metrics.failed(start);
+      result.completeExceptionally(failure);
+    }
+  }
+
+  // Decodes a reply frame: returns the value returned by the remote method, or throws
+  // the exception it threw. The frame is released once decoded.
+  static Object unpack(Codec codec, Method method, Frame reply) throws Throwable {
+    if (reply.type == Frame.FAILURE) {
+      String message = reply.failureMessage();
+      reply.release();
+      throw new RMIException(message);
+    }
+
+    Object returnObject;
+    boolean remoteMethodExcep;
+    try {
+      DataInputStream in = reply.bodyStream();
+      remoteMethodExcep = (in.readByte() == Frame.EXCEPTION);
+      if (remoteMethodExcep) {
+        trace.debug("Skeleton returned exception!!!");
+        returnObject = codec.read(in, Throwable.class);
+      } else {
+        returnObject = codec.read(in, method.getReturnType());
+      }
+    } catch (IOException ex) {
+      throw new RMIException("Proxy object trying to decode the reply failed", ex);
+    } finally {
+      reply.release();
+    }
+
+    if (remoteMethodExcep) {
+      throw (Throwable) returnObject;
+    }
+    return returnObject;
   }
 
 
@@ -164,19 +491,19 @@ public class MyInvocationHandler<T> implements java.lang.reflect.InvocationHandl
 
     final MyInvocationHandler compareHandler = (MyInvocationHandler) anotherHandler;
     if(compareHandler.port != this.port){
-      Helper.log("port mismatch");
+      trace.debug("port mismatch");
       return false;
     }
 
     // check if remote interface name is the same
     if(! compareHandler.remoteInterface.getName().equals( this.remoteInterface.getName() ) ){
-      Helper.log("interface mismatch");
+      trace.debug("interface mismatch");
       return false;
     }
 
     // if skeleton address is the same
     if( !(compareHandler.skeletonAddr).equals( this.skeletonAddr) ){
-      Helper.log("address mismatch");
+      trace.debug("address mismatch");
       return false;
     }
 
@@ -184,6 +511,12 @@ public class MyInvocationHandler<T> implements java.lang.reflect.InvocationHandl
   }
 
 
+  // consistent with equals(), so that handlers can be used as keys
+  @Override
+  public int hashCode() {
+    return generateHashCode();
+  }
+
   private int generateHashCode()
   {
     //return this.port + this.remoteInterface.hashCode() + this.skeletonAddr.hashCode();
@@ -191,4 +524,4 @@ public class MyInvocationHandler<T> implements java.lang.reflect.InvocationHandl
   }
 
 
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,187 @@
+package rmi;
+
+import java.lang.management.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+
+/** Registry of the metrics kept by the RMI library for each remote method.
+
+    <p>
+    The metrics of a method are created the first time a stub or a skeleton
+    for its interface is used, and are kept for the life of the Java virtual
+    machine. They can be read from this class, for instance to find which
+    methods dominate the tail latency of a server:
+
+    <pre>
+    for(MethodMetrics metrics : RMIMetrics.all())
+        System.out.println(metrics + ": " +
+                           metrics.get99thPercentileMicros() + " us");
+    </pre>
+
+    <p>
+    Each <code>MethodMetrics</code> object is also registered as an MBean with
+    the platform MBean server, as is the registry itself, so that the metrics
+    can be watched with any JMX client. If the MBeans cannot be registered, for
+    instance because a security manager forbids it, the metrics are still kept
+    and can be read from this class.
+ */
+public final class RMIMetrics implements RMIMetricsMBean
+{
+    private static final Trace  trace = Trace.of(RMIMetrics.class);
+
+    /** Metrics of each method, by side, interface name and signature. */
+    private static final ConcurrentMap<String, MethodMetrics>   metrics =
+        new ConcurrentHashMap<String, MethodMetrics>();
+
+    static
+    {
+        register(new RMIMetrics(), "rmi:type=RMIMetrics");
+    }
+
+    private RMIMetrics()
+    {
+    }
+
+    /** Returns the metrics of every remote method used so far, ordered by
+        interface, method and side. */
+    public static List<MethodMetrics> all()
+    {
+        List<MethodMetrics>     list =
+            new ArrayList<MethodMetrics>(metrics.values());
+        Collections.sort(list, new Comparator<MethodMetrics>() {
+            public int compare(MethodMetrics first, MethodMetrics second)
+            {
+                int     order = first.getInterfaceName()
+                    .compareTo(second.getInterfaceName());
+                if(order == 0)
+                    order = first.getMethod().compareTo(second.getMethod());
+                if(order == 0)
+                    order = first.getSide().compareTo(second.getSide());
+                return order;
+            }
+        });
+
+        return list;
+    }
+
+    /** Returns the metrics of one method of a remote interface, as seen from
+        one side of the connection.
+
+        @param side Side of the connection.
+        @param remoteInterface The remote interface.
+        @param method A method of the interface.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If the method is not a method of the
+                                         interface.
+     */
+    public static MethodMetrics get(MethodMetrics.Side side,
+                                    Class<?> remoteInterface,
+                                    java.lang.reflect.Method method)
+    {
+        if(side == null || remoteInterface == null || method == null)
+            throw new NullPointerException("null argument");
+
+        MethodTable     table = MethodTable.of(remoteInterface);
+        return table.metrics(side, table.ordinal(method));
+    }
+
+    /** Returns a table of the metrics of every remote method called so far,
+        one line per method and side, with the methods having the highest
+        99th percentile latency first. */
+    public static String report()
+    {
+        List<MethodMetrics>     list = new ArrayList<MethodMetrics>();
+        for(MethodMetrics method : all())
+        {
+            if(method.getCalls() > 0 || method.getInFlight() > 0)
+                list.add(method);
+        }
+        Collections.sort(list, new Comparator<MethodMetrics>() {
+            public int compare(MethodMetrics first, MethodMetrics second)
+            {
+                return Long.compare(second.getLatency().percentile(99),
+                                    first.getLatency().percentile(99));
+            }
+        });
+
+        StringBuilder           report = new StringBuilder(String.format(
+            "%-8s %10s %8s %8s %8s %12s %12s %6s %10s %10s %10s %10s  %s%n",
+            "side", "calls", "inflight", "thrown", "failed", "req bytes",
+            "resp bytes", "ratio", "p50 us", "p99 us", "p99.9 us", "max us",
+            "method"));
+        for(MethodMetrics method : list)
+        {
+            report.append(String.format(
+                "%-8s %10d %8d %8d %8d %12d %12d %6.2f %10d %10d %10d %10d  %s.%s%n",
+                method.getSide().name().toLowerCase(), method.getCalls(),
+                method.getInFlight(), method.getExceptions(),
+                method.getFailures(), method.getRequestBytes(),
+                method.getResponseBytes(), method.getCompressionRatio(),
+                method.getMedianMicros(),
+                method.get99thPercentileMicros(),
+                method.get999thPercentileMicros(), method.getMaxMicros(),
+                method.getInterfaceName(), method.getMethod()));
+        }
+
+        return report.toString();
+    }
+
+    /** Resets the metrics of every remote method. The in-flight gauges are
+        kept, since the calls they count are still running. */
+    public static void reset()
+    {
+        for(MethodMetrics method : metrics.values())
+            method.reset();
+    }
+
+    @Override
+    public String getReport()
+    {
+        return report();
+    }
+
+    @Override
+    public void resetMetrics()
+    {
+        reset();
+    }
+
+    /** Returns the metrics of a method given by its signature, creating and
+        registering them if they do not exist yet. */
+    static MethodMetrics of(MethodMetrics.Side side, Class<?> remoteInterface,
+                            String signature)
+    {
+        String          key = side + " " + remoteInterface.getName() + "." +
+                              signature;
+        MethodMetrics   method = metrics.get(key);
+        if(method != null)
+            return method;
+
+        method = new MethodMetrics(side, remoteInterface.getName(), signature);
+        MethodMetrics   existing = metrics.putIfAbsent(key, method);
+        if(existing != null)
+            return existing;
+
+        register(method, "rmi:type=MethodMetrics,side=" +
+                 side.name().toLowerCase() + ",interface=" +
+                 remoteInterface.getName() + ",method=" +
+                 ObjectName.quote(signature));
+        return method;
+    }
+
+    /** Registers an MBean with the platform MBean server, unless that is not
+        possible. */
+    private static void register(Object bean, String name)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(bean, new ObjectName(name));
+        }
+        catch(JMException | SecurityException e)
+        {
+            trace.warn("Metrics not registered with JMX as {}: {}", name, e);
+        }
+    }
+}
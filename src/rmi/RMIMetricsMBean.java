@@ -0,0 +1,13 @@
+package rmi;
+
+/** Management interface of the registry of RMI metrics, registered with the
+    platform MBean server as <code>rmi:type=RMIMetrics</code>. */
+public interface RMIMetricsMBean
+{
+    /** Returns a table of the metrics of every remote method called so far,
+        slowest first (see <code>RMIMetrics.report</code>). */
+    String getReport();
+
+    /** Resets the metrics of every remote method. */
+    void resetMetrics();
+}
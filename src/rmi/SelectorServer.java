@@ -0,0 +1,688 @@
+package rmi;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Skeleton transport built on <code>java.nio.channels.Selector</code>.
+
+    <p>
+    A small, fixed number of I/O threads each watch a share of the connections
+    with a selector. When a connection becomes readable, its I/O thread reads
+    the bytes available, cuts complete frames out of them and hands the frames
+    to the session of the connection, which runs calls on the call executor of
+    the skeleton. The I/O threads therefore never run calls and never block.
+    New connections are accepted by a separate thread, which assigns them to
+    the I/O threads in turn.
+
+    <p>
+    A reply is written by the thread that produced it if the socket accepts it
+    at once, which is the usual case. Otherwise, it is queued, and the I/O
+    thread writes it when the socket becomes writable.
+
+    <p>
+    An idle connection holds no thread and no buffer: bytes are read into a
+    buffer belonging to the I/O thread, and only the tail of a frame that has
+    not been completely received is kept with the connection. Buffers, and
+    the bodies of frames, are direct buffers taken from
+    <code>BufferPool</code>, so that they are not copied again by the channel
+    and large frames do not fill the heap.
+ */
+class SelectorServer
+{
+    private static final Trace          trace = Trace.of(SelectorServer.class);
+
+    /** Size of the buffer of each I/O thread into which bytes are read. */
+    private static final int            READ_BUFFER_SIZE = 64 * 1024;
+    /** Initial size of the buffer holding an incomplete frame. */
+    private static final int            PARTIAL_BUFFER_SIZE = 4 * 1024;
+    /** Length of the queue of connections not yet accepted. Many clients may
+        connect at once, and the default of 50 makes the rest wait for their
+        connection requests to be repeated. */
+    static final int                    BACKLOG = 1024;
+
+    private final Skeleton<?>           skeleton;
+    private final ServerSocketChannel   listener;
+    private final EventLoop[]           loops;
+    private final Thread                acceptor;
+    private final Set<ChannelSession>   connections =
+        ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean         stopping = new AtomicBoolean();
+    /** Set on the I/O threads of every selector server. */
+    private static final ThreadLocal<Boolean>   ioThread =
+        new ThreadLocal<Boolean>();
+
+    /** Starts serving connections accepted by the given listening channel.
+
+        @param skeleton Skeleton whose calls are served.
+        @param listener Bound listening channel. It is closed when the server
+                        stops.
+        @param threads Number of I/O threads.
+        @throws IOException If a selector cannot be opened.
+     */
+    SelectorServer(Skeleton<?> skeleton, ServerSocketChannel listener,
+                   int threads) throws IOException
+    {
+        this.skeleton = skeleton;
+        this.listener = listener;
+        this.loops = new EventLoop[threads];
+
+        try
+        {
+            for(int i = 0; i < threads; i++)
+                loops[i] = new EventLoop(i);
+        }
+        catch(IOException e)
+        {
+            for(EventLoop loop : loops)
+            {
+                if(loop != null)
+                    loop.selector.close();
+            }
+            throw e;
+        }
+
+        for(EventLoop loop : loops)
+            loop.thread.start();
+
+        acceptor = new Thread(new Runnable() {
+            public void run()
+            {
+                accept();
+            }
+        }, "rmi-selector-acceptor");
+        acceptor.start();
+    }
+
+    /** Returns <code>true</code> if the calling thread is an I/O thread of a
+        selector server, which must neither run calls nor block. */
+    static boolean onIoThread()
+    {
+        return ioThread.get() != null;
+    }
+
+    /** Returns the number of I/O threads used by default: half the number of
+        processors, but at least one and at most four. */
+    static int defaultThreads()
+    {
+        int         processors = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(4, processors / 2));
+    }
+
+    /** Stops the server, waiting for as long as the calls already received
+        run. */
+    void stop()
+    {
+        stop(null);
+    }
+
+    /** Stops the server.
+
+        <p>
+        No more connections are accepted. Calls received from now on are
+        refused with <code>DRAINING</code>, while calls already received are
+        allowed to finish and reply until the deadline. The connections are
+        then closed and the I/O threads exit. This method returns when all of
+        this has happened, except that it does not wait for the accepting
+        thread if that is the thread calling it.
+
+        @param deadline Deadline of the calls already received, or
+                        <code>null</code> to wait for as long as they run.
+     */
+    void stop(Deadline deadline)
+    {
+        // a stop already in progress waits for the accepting thread, which must
+        // therefore not wait for it in turn
+        if(stopping.getAndSet(true) && Thread.currentThread() == acceptor)
+            return;
+
+        synchronized(this)
+        {
+            stopConnections(deadline);
+        }
+    }
+
+    private void stopConnections(Deadline deadline)
+    {
+        closeQuietly(listener);
+        join(acceptor);
+
+        for(ChannelSession connection : connections)
+            connection.drain();
+        for(ChannelSession connection : connections)
+            connection.awaitIdle(deadline);
+
+        for(ChannelSession connection : connections)
+            connection.stop();
+        trace.debug("Told all connections to stop");
+
+        for(ChannelSession connection : connections)
+            connection.awaitFinished(deadline);
+        trace.debug("All connections closed.");
+
+        for(EventLoop loop : loops)
+        {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+
+        for(EventLoop loop : loops)
+            join(loop.thread);
+    }
+
+    /** Waits for a thread to exit, unless it is the current thread. */
+    private static void join(Thread thread)
+    {
+        if(thread == Thread.currentThread())
+            return;
+
+        boolean             interrupted = false;
+        while(thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch(InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /** Accepts connections and assigns them to the I/O threads in turn, until
+        the server stops.
+
+        <p>
+        Accepting is done by a thread of its own, blocked in
+        <code>accept</code>, rather than by an I/O thread. A failure to accept
+        may stop the server, and stopping waits for the I/O threads, so it
+        cannot be done by one of them.
+     */
+    private void accept()
+    {
+        int                 next = 0;
+
+        while(!stopping.get())
+        {
+            SocketChannel   socket;
+            try
+            {
+                socket = listener.accept();
+                socket.configureBlocking(false);
+                socket.socket().setTcpNoDelay(true);
+            }
+            catch(IOException e)
+            {
+                if(stopping.get())
+                    return;
+
+                trace.debug("Accepting a connection failed");
+                if(skeleton.acceptFailed(this, e))
+                    continue;
+                return;
+            }
+
+            trace.debug("New connection from Stub");
+            ChannelSession  connection = new ChannelSession(socket);
+            connections.add(connection);
+
+            EventLoop       loop = loops[next];
+            next = (next + 1) % loops.length;
+            loop.registrations.add(connection);
+            loop.selector.wakeup();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable)
+    {
+        try
+        {
+            closeable.close();
+        }
+        catch(IOException e)
+        {
+            // nothing more can be done
+        }
+    }
+
+    /** I/O thread, serving the connections registered with its selector. */
+    private class EventLoop implements Runnable
+    {
+        final Selector          selector;
+        final Thread            thread;
+        /** Connections assigned to this thread but not yet registered with
+            the selector, which only this thread does. */
+        final Queue<ChannelSession> registrations =
+            new ConcurrentLinkedQueue<ChannelSession>();
+        /** Buffer into which every connection of this thread reads. */
+        final ByteBuffer        buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        volatile boolean        running = true;
+
+        EventLoop(int index) throws IOException
+        {
+            selector = Selector.open();
+            thread = new Thread(this, "rmi-selector-" + index);
+        }
+
+        @Override
+        public void run()
+        {
+            ioThread.set(Boolean.TRUE);
+            try
+            {
+                while(running)
+                {
+                    selector.select();
+
+                    ChannelSession      added;
+                    while((added = registrations.poll()) != null)
+                        added.register(selector);
+
+                    Iterator<SelectionKey>  keys =
+                        selector.selectedKeys().iterator();
+                    while(keys.hasNext())
+                    {
+                        SelectionKey    key = keys.next();
+                        keys.remove();
+                        if(!key.isValid())
+                            continue;
+
+                        ChannelSession  connection =
+                            (ChannelSession)key.attachment();
+                        if(key.isReadable())
+                            connection.readable(buffer);
+                        if(key.isValid() && key.isWritable())
+                            connection.writable();
+                    }
+                }
+            }
+            catch(IOException | ClosedSelectorException e)
+            {
+                skeleton.service_error(
+                    new RMIException("Selector of the skeleton failed", e));
+            }
+            finally
+            {
+                // connections still open here cannot be served any more: they
+                // belong to a failed selector, or raced with stop()
+                for(SelectionKey key : selector.keys())
+                {
+                    if(key.attachment() instanceof ChannelSession)
+                        ((ChannelSession)key.attachment()).close();
+                }
+                ChannelSession      added;
+                while((added = registrations.poll()) != null)
+                    added.close();
+                closeQuietly(selector);
+            }
+        }
+    }
+
+    /** One connection from a stub. */
+    private class ChannelSession extends Session
+    {
+        private final SocketChannel         socket;
+        private SelectionKey                key;
+        /** Start of a frame not yet completely received, in a pooled buffer,
+            or <code>null</code> if there is none; only used by the I/O
+            thread. */
+        private ByteBuffer                  partial;
+        /** Replies not yet completely written; guarded by this. */
+        private final ArrayDeque<Outgoing>  writes = new ArrayDeque<Outgoing>();
+        /** Set when no more frames are to be read; guarded by this. */
+        private boolean                     closing = false;
+        private boolean                     closed = false;
+        private final CountDownLatch        finished = new CountDownLatch(1);
+
+        ChannelSession(SocketChannel socket)
+        {
+            super(SelectorServer.this.skeleton);
+            this.socket = socket;
+        }
+
+        /** Registers the connection with the selector of its I/O thread. */
+        synchronized void register(Selector selector)
+        {
+            if(closed)
+                return;
+
+            try
+            {
+                key = socket.register(selector,
+                                      closing ? 0 : SelectionKey.OP_READ, this);
+            }
+            catch(ClosedChannelException e)
+            {
+                close();
+            }
+        }
+
+        /** Reads the bytes available and handles the complete frames among
+            them.
+
+            @param shared Empty buffer of the I/O thread, which is left empty.
+         */
+        void readable(ByteBuffer shared)
+        {
+            ByteBuffer      buffer = partial != null ? partial : shared;
+            int             count;
+
+            try
+            {
+                count = socket.read(buffer);
+            }
+            catch(IOException e)
+            {
+                shared.clear();
+                discard(buffer, shared);
+                failed(e);
+                return;
+            }
+
+            buffer.flip();
+            if(count < 0)
+            {
+                boolean     truncated = buffer.hasRemaining();
+                shared.clear();
+                discard(buffer, shared);
+                if(truncated)
+                {
+                    failed(new EOFException(
+                        "stub closed the connection in the middle of a frame"));
+                }
+                else
+                    closeWhenIdle();
+                return;
+            }
+
+            try
+            {
+                Frame       frame;
+                while(!isClosing() && (frame = Frame.read(buffer)) != null)
+                {
+                    if(!receive(frame))
+                        closeWhenIdle();
+                }
+
+                keepPartial(buffer, shared);
+            }
+            catch(IOException e)
+            {
+                shared.clear();
+                discard(buffer, shared);
+                failed(e);
+                return;
+            }
+
+            shared.clear();
+        }
+
+        /** Gives the buffer read into back to the pool, unless it is the
+            buffer of the I/O thread. */
+        private void discard(ByteBuffer buffer, ByteBuffer shared)
+        {
+            if(buffer != shared)
+                BufferPool.release(buffer);
+            partial = null;
+        }
+
+        /** Keeps the bytes left in the buffer after the complete frames have
+            been taken out of it, in a buffer large enough for the whole of
+            the frame they start.
+
+            @throws StreamCorruptedException If the length prefix of the frame
+                                             is invalid. Nothing is kept.
+         */
+        private void keepPartial(ByteBuffer buffer, ByteBuffer shared)
+            throws StreamCorruptedException
+        {
+            if(!buffer.hasRemaining() || isClosing())
+            {
+                discard(buffer, shared);
+                return;
+            }
+
+            int             needed = 4;
+            if(buffer.remaining() >= 4)
+            {
+                // checked before the sum, which a bad length would overflow
+                int         length = buffer.getInt(buffer.position());
+                Frame.checkLength(length);
+                needed += length;
+            }
+
+            if(buffer == partial && needed <= partial.capacity())
+            {
+                partial.compact();
+                return;
+            }
+
+            ByteBuffer      kept =
+                BufferPool.acquire(Math.max(needed, PARTIAL_BUFFER_SIZE));
+            kept.put(buffer);
+            if(buffer != shared)
+                BufferPool.release(buffer);
+            partial = kept;
+        }
+
+        /** Sends a frame, queueing it if the socket cannot take it at once. */
+        @Override
+        void reply(Frame frame)
+        {
+            Outgoing        data = new Outgoing(frame);
+
+            synchronized(this)
+            {
+                if(closed)
+                {
+                    frame.release();
+                    return;
+                }
+
+                if(writes.isEmpty())
+                {
+                    boolean     written;
+                    try
+                    {
+                        written = data.write(socket);
+                    }
+                    catch(IOException e)
+                    {
+                        if(!toldToStop)
+                        {
+                            skeleton.service_error(new RMIException(
+                                "IOException happend when trying to send a reply",
+                                e));
+                        }
+                        frame.release();
+                        close();
+                        return;
+                    }
+
+                    if(written)
+                        return;
+                }
+
+                writes.add(data);
+                if(writes.size() == 1)
+                {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    key.selector().wakeup();
+                }
+            }
+        }
+
+        /** Writes queued replies now that the socket can take more. */
+        void writable()
+        {
+            synchronized(this)
+            {
+                try
+                {
+                    while(!writes.isEmpty())
+                    {
+                        if(!writes.peek().write(socket))
+                            return;
+                        writes.poll();
+                    }
+                }
+                catch(IOException e)
+                {
+                    if(!toldToStop)
+                    {
+                        skeleton.service_error(new RMIException(
+                            "IOException happend when trying to send a reply",
+                            e));
+                    }
+                    close();
+                    return;
+                }
+
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+            closeIfDone();
+        }
+
+        @Override
+        void endCall()
+        {
+            super.endCall();
+            closeIfDone();
+        }
+
+        /** Stops the connection when the skeleton stops. */
+        void stop()
+        {
+            toldToStop = true;
+            closeWhenIdle();
+        }
+
+        /** Waits until the connection is closed. If the deadline passes
+            first, the connection is closed at once, and the replies not yet
+            written are dropped. */
+        void awaitFinished(Deadline deadline)
+        {
+            boolean         interrupted = false;
+            while(true)
+            {
+                try
+                {
+                    if(deadline == null)
+                    {
+                        finished.await();
+                        break;
+                    }
+                    if(finished.await(deadline.remainingNanos(),
+                                      TimeUnit.NANOSECONDS))
+                    {
+                        break;
+                    }
+                    abandon();
+                    close();
+                }
+                catch(InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        private void failed(IOException e)
+        {
+            if(!toldToStop)
+            {
+                skeleton.service_error(new RMIException(
+                    "IO exception happened during worker thread service", e));
+            }
+            closeWhenIdle();
+        }
+
+        private synchronized boolean isClosing()
+        {
+            return closing;
+        }
+
+        /** Stops reading frames, and closes the connection once the calls
+            already received have been answered. */
+        private void closeWhenIdle()
+        {
+            synchronized(this)
+            {
+                closing = true;
+                partial = null;
+                if(key != null && key.isValid())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            closeIfDone();
+        }
+
+        private synchronized void closeIfDone()
+        {
+            if(closing && inFlight == 0 && writes.isEmpty())
+                close();
+        }
+
+        synchronized void close()
+        {
+            if(closed)
+                return;
+            closed = true;
+
+            if(key != null)
+                key.cancel();
+            for(Outgoing data : writes)
+                data.frame.release();
+            writes.clear();
+            try
+            {
+                socket.close();
+            }
+            catch(IOException e)
+            {
+                skeleton.service_error(new RMIException(
+                    "IOException happend when trying to close socket", e));
+            }
+
+            trace.debug("Connection closed");
+            connections.remove(this);
+            finished.countDown();
+        }
+    }
+
+    /** A reply being written to a connection. */
+    private static class Outgoing
+    {
+        final Frame                 frame;
+        /** Header and body of the frame, as left to be written. */
+        private final ByteBuffer[]  data;
+
+        Outgoing(Frame frame)
+        {
+            this.frame = frame;
+            this.data = frame.toBuffers();
+        }
+
+        /** Writes as much of the frame as the socket takes, and releases the
+            frame once all of it is written.
+
+            @return <code>true</code> if all of the frame has been written.
+         */
+        boolean write(SocketChannel socket) throws IOException
+        {
+            socket.write(data);
+            if(data[data.length - 1].hasRemaining())
+                return false;
+
+            frame.release();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package rmi;
+
+import java.io.*;
+
+/** Codec which encodes every value with Java serialization.
+
+    <p>
+    This is the codec of last resort: it handles any serializable value, but
+    every value carries full class descriptors. Each value is written as a
+    length-prefixed, self-contained serialization stream.
+ */
+public class SerializationCodec implements Codec
+{
+    /** Wire identifier of this codec. */
+    public static final byte    ID = 1;
+
+    @Override
+    public byte id()
+    {
+        return ID;
+    }
+
+    @Override
+    public void write(DataOutputStream out, Class<?> type, Object value)
+        throws IOException
+    {
+        if(type == void.class)
+            return;
+
+        writeObject(out, value);
+    }
+
+    @Override
+    public Object read(DataInputStream in, Class<?> type) throws IOException
+    {
+        if(type == void.class)
+            return null;
+
+        return readObject(in);
+    }
+
+    /** Writes a value as a length-prefixed serialization stream. */
+    static void writeObject(DataOutputStream out, Object value)
+        throws IOException
+    {
+        ByteArrayOutputStream   buffer = new ByteArrayOutputStream();
+        ObjectOutputStream      stream = new ObjectOutputStream(buffer);
+        stream.writeObject(value);
+        stream.close();
+
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+
+    /** Reads a value written by <code>writeObject</code>. */
+    static Object readObject(DataInputStream in) throws IOException
+    {
+        byte[]              bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        ObjectInputStream   stream =
+            new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try
+        {
+            return stream.readObject();
+        }
+        catch(ClassNotFoundException e)
+        {
+            throw new InvalidClassException(e.getMessage());
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package rmi;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Skeleton-side state of one connection from a stub.
+
+    <p>
+    A session interprets the frames received on a connection: it agrees on a
+    codec and a compressor in the <code>HELLO</code> exchange, records the interfaces announced
+    by <code>BIND</code> frames, and hands each call or batch to the call
+    executor of the skeleton. How frames are read from the connection and how
+    replies are written to it is up to the transport: the blocking worker of
+    <code>Skeleton</code> and the connections of <code>SelectorServer</code>
+    are both derived from this class.
+ */
+abstract class Session
+{
+    private static final Trace      trace = Trace.of(Session.class);
+
+    final Skeleton<?>               skeleton;
+
+    /** Codec agreed in the <code>HELLO</code> exchange, or <code>null</code>
+        before it. */
+    Codec                           codec;
+    /** Compressor agreed in the <code>HELLO</code> exchange, or
+        <code>null</code> if the connection is not compressed. */
+    Compressor                      compressor;
+    /** Methods announced by the stub, by binding number, resolved against the
+        interface of the skeleton. */
+    final Map<Integer, Invoker[]>   bindings =
+        new ConcurrentHashMap<Integer, Invoker[]>();
+    /** Set when the skeleton is stopping, so that the failures this causes
+        are not reported. */
+    volatile boolean                toldToStop = false;
+    /** Calls received but not yet answered; guarded by this. */
+    int                             inFlight = 0;
+    /** Set when the skeleton is draining: calls received from then on are
+        refused with <code>DRAINING</code> rather than run; guarded by
+        this. */
+    private boolean                 draining = false;
+    /** Set when the skeleton stops waiting for the calls of the connection
+        to be answered; guarded by this. */
+    private boolean                 abandoned = false;
+
+    Session(Skeleton<?> skeleton)
+    {
+        this.skeleton = skeleton;
+    }
+
+    /** Sends a frame to the stub.
+
+        <p>
+        Replies to concurrent calls are sent by the threads running them, so
+        this method may be called by several threads at once. The frame is
+        released once it has been written, or once the connection has failed.
+     */
+    abstract void reply(Frame frame);
+
+    /** Handles a frame received from the stub.
+
+        @return <code>false</code> if the connection is to be closed once the
+                calls already received have been answered.
+        @throws IOException If the frame is malformed.
+     */
+    boolean receive(Frame frame) throws IOException
+    {
+        if(frame.type == Frame.HELLO && codec == null)
+            return hello(frame);
+
+        if(frame.type == Frame.BIND && codec != null)
+        {
+            bind(frame);
+            return true;
+        }
+
+        if((frame.type == Frame.CALL || frame.type == Frame.BATCH) &&
+           codec != null)
+        {
+            trace.debug("A call frame read from the connection");
+            dispatch(frame);
+            return true;
+        }
+
+        skeleton.service_error(new RMIException("Unexpected frame type " +
+                                                frame.type + " from stub"));
+        return false;
+    }
+
+    /** Picks a codec and a compressor among those offered by the stub and
+        tells it which ones. */
+    private boolean hello(Frame frame) throws IOException
+    {
+        DataInputStream body = frame.bodyStream();
+        byte[]          offered = new byte[BinaryCodec.readVarInt(body)];
+        body.readFully(offered);
+
+        codec = Codecs.choose(offered);
+        if(codec == null)
+        {
+            reply(Frame.failure(frame.callId,
+                                "Skeleton supports none of the offered codecs"));
+            return false;
+        }
+
+        // stubs that do not compress offer no compressors
+        if(body.available() > 0)
+        {
+            byte[]      compressors = new byte[BinaryCodec.readVarInt(body)];
+            body.readFully(compressors);
+            compressor = Compressors.choose(compressors);
+        }
+
+        trace.debug("Codec chosen: {}, compressor: {}",
+                    codec.getClass().getName(), compressor);
+        reply(new Frame(frame.callId, Frame.HELLO, compressor == null ?
+                        new byte[] {codec.id()} :
+                        new byte[] {codec.id(), compressor.id()}));
+        return true;
+    }
+
+    /** Records the stub's numbering of the methods of an interface. */
+    private void bind(Frame frame) throws IOException
+    {
+        DataInputStream body = frame.bodyStream();
+        int             binding = BinaryCodec.readVarInt(body);
+        String          interfaceName = body.readUTF();
+        String[]        signatures = new String[BinaryCodec.readVarInt(body)];
+        for(int i = 0; i < signatures.length; i++)
+            signatures[i] = body.readUTF();
+
+        trace.debug("Stub bound {} as {}", interfaceName, binding);
+        Invoker[]       invokers = new Invoker[signatures.length];
+        for(int i = 0; i < signatures.length; i++)
+        {
+            // null if the skeleton has no such method
+            invokers[i] = skeleton.dispatchTable.get(signatures[i]);
+        }
+        bindings.put(binding, invokers);
+    }
+
+    /** Hands a call to the call executor, or refuses it right away if the
+        skeleton is draining or the executor is full. */
+    private void dispatch(Frame frame)
+    {
+        if(!beginCall())
+        {
+            trace.debug("Call refused: the skeleton is draining");
+            frame.release();
+            reply(new Frame(frame.callId, Frame.DRAINING, new byte[0]));
+            return;
+        }
+
+        try
+        {
+            skeleton.callExecutor.execute(new Invocation(frame));
+        }
+        catch(RejectedExecutionException e)
+        {
+            trace.debug("Call rejected by the executor");
+            frame.release();
+            reply(Frame.failure(frame.callId,
+                "Server busy: call rejected by the skeleton's executor"));
+            endCall();
+        }
+    }
+
+    /** Counts a call as received, unless the session is draining.
+
+        @return <code>false</code> if the call is to be refused.
+     */
+    synchronized boolean beginCall()
+    {
+        if(draining)
+            return false;
+
+        inFlight++;
+        return true;
+    }
+
+    synchronized void endCall()
+    {
+        inFlight--;
+        if(inFlight == 0)
+            notifyAll();
+    }
+
+    /** Refuses the calls received from now on with <code>DRAINING</code>,
+        while the connection keeps being read. Once this method returns,
+        <code>awaitIdle</code> waits for every call that will be run. */
+    synchronized void drain()
+    {
+        toldToStop = true;
+        draining = true;
+    }
+
+    /** Stops waiting for the calls of the connection to be answered, as the
+        connection is about to be closed. Replies produced later are
+        dropped. */
+    synchronized void abandon()
+    {
+        abandoned = true;
+        notifyAll();
+    }
+
+    /** Blocks until every call received has been answered, the session has
+        been abandoned, or the deadline has passed.
+
+        @param deadline Deadline, or <code>null</code> to wait for as long as
+                        it takes.
+        @return <code>true</code> if every call received has been answered.
+     */
+    synchronized boolean awaitIdle(Deadline deadline)
+    {
+        while(inFlight > 0 && !abandoned)
+        {
+            try
+            {
+                if(deadline == null)
+                    wait();
+                else if(deadline.passed())
+                    break;
+                else
+                {
+                    TimeUnit.NANOSECONDS.timedWait(this,
+                                                   deadline.remainingNanos());
+                }
+            }
+            catch(InterruptedException e)
+            {
+                // keep waiting, the replies must still be sent
+            }
+        }
+
+        return inFlight == 0;
+    }
+
+    /** Runs one call received on the connection and sends back its reply. */
+    private class Invocation implements Runnable
+    {
+        private final Frame request;
+        /** When the request was received, from which its deadline counts. */
+        private final long  received = System.nanoTime();
+
+        Invocation(Frame request)
+        {
+            this.request = request;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                // an executor that runs rejected calls on the thread handing
+                // them over would stall every connection of an I/O thread
+                if(SelectorServer.onIoThread())
+                {
+                    trace.debug("Call refused: the executor would run it on " +
+                                "an I/O thread");
+                    request.release();
+                    reply(Frame.failure(request.callId,
+                        "Server busy: call rejected by the skeleton's executor"));
+                    return;
+                }
+
+                reply(skeleton.invoke(request, received, codec, compressor,
+                                      bindings));
+            }
+            catch(RuntimeException | Error e)
+            {
+                // the stub is waiting on the call: tell it the call failed
+                skeleton.service_error(
+                    new RMIException("Unable to serve a call", e));
+                reply(Frame.failure(request.callId,
+                                    "Skeleton failed to serve the call: " + e));
+                if(e instanceof Error)
+                    throw (Error)e;
+            }
+            finally
+            {
+                endCall();
+            }
+        }
+    }
+}
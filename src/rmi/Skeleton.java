@@ -9,7 +9,9 @@ import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
 import java.io.*;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
 import java.util.*;
+import java.util.concurrent.*;
 //import java.net.ServerSocket;
 //import java.net.Socket;
 /** RMI skeleton
@@ -36,6 +38,7 @@ import java.util.*;
 */
 public class Skeleton<T>
 {
+    private static final Trace trace = Trace.of(Skeleton.class);
 
     T localServer;
     Class<T> interfaceClass;
@@ -45,15 +48,27 @@ public class Skeleton<T>
     //String hostname;    // ???
     ServerSocket ssock; // server socket
     boolean serverRunning;
-    static int aliveWorkerThread; //keep track of how many worker threads are currently alive
-    static final Object countLock = new Object();
-
-    static final Object arrayLock = new Object();
     listeningSocket listner; // object of the listening thread
     Thread listenerThread;   
 
-    List<worker> workerList;
-    List<Thread> threadList;
+    // live connection workers; each adds itself when it starts and removes itself when it
+    // finishes, so accepting a connection does not depend on how many there are
+    Set<worker> workers;
+    ExecutorService connectionExecutor; // runs the connection workers
+    Executor callExecutor;              // runs the calls, set by the user or created by start()
+    boolean ownsCallExecutor;           // true if start() created callExecutor
+
+    SkeletonTransport transport = SkeletonTransport.BLOCKING;
+    SelectorServer selectorServer;      // serves the connections when transport is SELECTOR
+
+    /** Default time <code>stop</code> allows the calls already running to
+        finish, in milliseconds. */
+    public static final long DEFAULT_STOP_TIMEOUT_MILLIS = 30 * 1000;
+    long stopTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_STOP_TIMEOUT_MILLIS);
+
+    // invoker for each method of the interface, by signature; built once by the constructor
+    // and only read afterwards, so that a call never has to look up a method reflectively
+    Map<String, Invoker> dispatchTable;
 
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
@@ -78,10 +93,10 @@ public class Skeleton<T>
     public Skeleton(Class<T> c, T server) throws NullPointerException, Error
     {
         
-        Helper.log("Constructor called: Skeleton(Class<T> c, T server)");
+        trace.debug("Constructor called: Skeleton(Class<T> c, T server)");
         //check exceptions
         checkExceptions(c, server);
-        Helper.log("checkExceptions passed");
+        trace.debug("checkExceptions passed");
         // initialize fields
         this.localServer = server;
         this.interfaceClass = c;
@@ -89,12 +104,12 @@ public class Skeleton<T>
         this.addr = null;
         this.serverRunning = false;
 
-        this.workerList = new ArrayList<worker>();
-        this.threadList = new ArrayList<Thread>();
+        this.workers = ConcurrentHashMap.newKeySet();
+        this.dispatchTable = buildDispatchTable(c, server);
 
         // for debug purpose
-        Helper.log("port is: " + Integer.toString(this.port));
-        Helper.log("addr is: null");
+        trace.debug("port is: {}", this.port);
+        trace.debug("addr is: null");
     }
 
     /** Creates a <code>Skeleton</code> with the given initial server address.
@@ -120,9 +135,9 @@ public class Skeleton<T>
         //throw new UnsupportedOperationException("not implemented");
         //check exceptions
         
-        Helper.log("Constructor called: Skeleton(Class<T> c, T server, InetSocketAddress address) ");
+        trace.debug("Constructor called: Skeleton(Class<T> c, T server, InetSocketAddress address) ");
         checkExceptions(c, server);
-        Helper.log("checkExceptions passed");
+        trace.debug("checkExceptions passed");
 
         // initialize fields
         this.localServer = server;
@@ -137,13 +152,13 @@ public class Skeleton<T>
 
         this.serverRunning = false;
 
-        this.workerList = new ArrayList<worker>();
-        this.threadList = new ArrayList<Thread>();
+        this.workers = ConcurrentHashMap.newKeySet();
+        this.dispatchTable = buildDispatchTable(c, server);
         
         // for debug purpose
         
-        if(this.port != 0)    Helper.log("port is: " + Integer.toString(this.port));
-        if(this.addr != null) Helper.log("addr is: " + this.addr.toString());
+        if(this.port != 0)    trace.debug("port is: {}", this.port);
+        if(this.addr != null) trace.debug("addr is: {}", this.addr);
     }
 
     /** Called when the listening thread exits.
@@ -204,6 +219,74 @@ public class Skeleton<T>
         return this.port;
     }
 
+    /** Sets the executor which runs the calls received by the skeleton.
+
+        <p>
+        Each call received from a stub is submitted to the executor as a
+        separate task. The executor therefore controls how many calls run at
+        once, and what happens to calls when that many are already running:
+        see <code>SkeletonExecutors</code> for ready-made bounded and
+        virtual-thread executors. If the executor rejects a call, the stub
+        receives an <code>RMIException</code>.
+
+        <p>
+        If no executor is set, <code>start</code> creates one which runs every
+        call on its own thread, and <code>stop</code> shuts it down. An executor
+        set by this method is not shut down by the skeleton.
+
+        @param executor The executor, or <code>null</code> to use the default.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setExecutor(Executor executor)
+    {
+        if(this.serverRunning){
+            throw new IllegalStateException("cannot change the executor of a running skeleton");
+        }
+        this.callExecutor = executor;
+        this.ownsCallExecutor = false;
+    }
+
+    /** Sets the transport used to serve connections from stubs.
+
+        <p>
+        By default, each connection is served by its own thread. The
+        <code>SELECTOR</code> transport instead serves all connections from a
+        few threads, so that idle connections do not hold threads. Stubs work
+        with either transport.
+
+        @param transport The transport.
+        @throws NullPointerException If <code>transport</code> is
+                                     <code>null</code>.
+        @throws IllegalStateException If the skeleton is running.
+     */
+    public synchronized void setTransport(SkeletonTransport transport)
+    {
+        if(transport == null){
+            throw new NullPointerException("transport is null");
+        }
+        if(this.serverRunning){
+            throw new IllegalStateException("cannot change the transport of a running skeleton");
+        }
+        this.transport = transport;
+    }
+
+    /** Sets the time <code>stop</code> allows the calls already running to
+        finish, before it closes their connections. The default is
+        <code>DEFAULT_STOP_TIMEOUT_MILLIS</code>.
+
+        @param timeout The time allowed. Zero closes the connections without
+                       waiting.
+        @param unit Unit of <code>timeout</code>.
+        @throws IllegalArgumentException If <code>timeout</code> is negative.
+     */
+    public synchronized void setStopTimeout(long timeout, TimeUnit unit)
+    {
+        if(timeout < 0){
+            throw new IllegalArgumentException("negative stop timeout");
+        }
+        this.stopTimeoutNanos = unit.toNanos(timeout);
+    }
+
     /** Starts the skeleton server.
 
         <p>
@@ -222,11 +305,17 @@ public class Skeleton<T>
         //throw new UnsupportedOperationException("not implemented");
 
         // server has already been started
-        rmi.Helper.log("Trying to start Skeleton...");
+        trace.debug("Trying to start Skeleton...");
         if(this.serverRunning){
             throw new RMIException("TCP server has already been started");
         }
 
+        if(this.transport == SkeletonTransport.SELECTOR){
+            startSelector();
+            this.serverRunning = true;
+            return;
+        }
+
         //create listening thread
         try{
 
@@ -236,7 +325,7 @@ public class Skeleton<T>
                 ssock = new ServerSocket(this.port);
                 this.addr = ssock.getInetAddress();
                 // for debug purpose
-                Helper.log("addr automatically created in start() is: " + this.addr.toString());
+                trace.debug("addr automatically created in start() is: {}", this.addr);
 
             }else{ // this.addr != null
                 ssock = new ServerSocket(); // 50 is the maximum number of backlog
@@ -245,9 +334,16 @@ public class Skeleton<T>
 
             if(this.port == 0){ //automatically bind with a port
                 this.port = ssock.getLocalPort();
-                Helper.log("port automatically created in start() is: " + Integer.toString(this.port));
+                trace.debug("port automatically created in start() is: {}", this.port);
             }
 
+            if(this.callExecutor == null){
+                this.callExecutor = SkeletonExecutors.unbounded();
+                this.ownsCallExecutor = true;
+            }
+            this.connectionExecutor = Executors.newCachedThreadPool(
+                new SkeletonExecutors.WorkerFactory("rmi-connection"));
+
             this.listner = new listeningSocket(ssock);
             this.listenerThread = new Thread(this.listner);
             this.listenerThread.start();
@@ -257,7 +353,43 @@ public class Skeleton<T>
             throw new RMIException(e);
         }
         this.serverRunning = true;
-        Helper.log("start() ends");
+        trace.debug("start() ends");
+    }
+
+    // start the selector transport: its I/O threads accept connections, so there is no
+    // listening thread
+    private void startSelector() throws RMIException
+    {
+        ServerSocketChannel channel = null;
+        try{
+            channel = ServerSocketChannel.open();
+            if(this.addr == null){
+                channel.bind(new InetSocketAddress(this.port), SelectorServer.BACKLOG);
+                this.addr = channel.socket().getInetAddress();
+            }else{
+                channel.bind(new InetSocketAddress(this.addr, this.port), SelectorServer.BACKLOG);
+            }
+            if(this.port == 0){
+                this.port = channel.socket().getLocalPort();
+            }
+
+            if(this.callExecutor == null){
+                this.callExecutor = SkeletonExecutors.unbounded();
+                this.ownsCallExecutor = true;
+            }
+            this.selectorServer = new SelectorServer(this, channel, SelectorServer.defaultThreads());
+
+        }catch(IOException e){
+            if(channel != null){
+                try{
+                    channel.close();
+                }catch(IOException closeFailure){
+                    // the error that matters is the first one
+                }
+            }
+            shutdownCallExecutor();
+            throw new RMIException(e);
+        }
     }
 
     /** Stops the skeleton server, if it is already running.
@@ -268,13 +400,76 @@ public class Skeleton<T>
         method return. The server stops at some later time; the method
         <code>stopped</code> is called at that point. The server may then be
         restarted.
+
+        <p>
+        The skeleton is drained before it stops: calls that are running are
+        allowed to finish and reply for up to the time set with
+        <code>setStopTimeout</code>, while calls that arrive on open
+        connections are refused, and retried by the stubs that made them
+        elsewhere (see <code>drain</code>). A remote method that does not
+        return by then therefore cannot hold up <code>stop</code>; its reply
+        is lost.
      */
     public synchronized void stop()
     {
-        Helper.log("stop() on the Skeleton is called.");
+        shutdown(stopDeadline());
+    }
+
+    /** Stops the skeleton server gracefully, if it is running.
+
+        <p>
+        No more connections are accepted. Calls that arrive on connections
+        already open are not run: they are answered with a status telling the
+        stub that the skeleton is shutting down, and the stub sends them again,
+        whether or not their methods are idempotent, on a new connection. Calls
+        already running are allowed to finish and reply until the timeout
+        expires. The connections are then closed, and the replies of calls
+        still running are lost; such calls fail on the stub side as if the
+        network had failed. This method returns once the server has stopped.
+
+        <p>
+        Draining lets a server be restarted, for instance during a rolling
+        upgrade, without failing the calls it is serving.
+
+        @param timeout Time allowed for the calls already running to finish.
+                       Zero closes the connections without waiting.
+        @param unit Unit of <code>timeout</code>.
+        @throws IllegalArgumentException If <code>timeout</code> is negative.
+     */
+    public synchronized void drain(long timeout, TimeUnit unit)
+    {
+        if(timeout < 0)
+            throw new IllegalArgumentException("negative drain timeout");
+
+        shutdown(Deadline.after(Math.max(1, unit.toNanos(timeout)),
+                                TimeUnit.NANOSECONDS));
+    }
+
+    // deadline of the calls running when the skeleton stops without an explicit drain
+    Deadline stopDeadline()
+    {
+        return Deadline.after(Math.max(1, this.stopTimeoutNanos), TimeUnit.NANOSECONDS);
+    }
+
+    // stop the server, draining its connections until the deadline. stopped() is called
+    // once the drain is over, whichever the transport, so that it never runs while calls
+    // of this skeleton still do.
+    private void shutdown(Deadline deadline)
+    {
+        trace.debug("stop() on the Skeleton is called.");
         //throw new UnsupportedOperationException("not implemented");
         if( !this.serverRunning ){ //already stoped
-            Helper.log("Skeleton is not running");
+            trace.debug("Skeleton is not running");
+            return;
+        }
+
+        if(this.selectorServer != null){
+            this.selectorServer.stop(deadline);
+            this.selectorServer = null;
+            shutdownCallExecutor();
+            stopped(null);
+            this.serverRunning = false;
+            trace.debug("Selector transport stopped");
             return;
         }
 
@@ -284,48 +479,79 @@ public class Skeleton<T>
         while( this.listenerThread.isAlive() ){
             try{
                 listenerThread.join();
-                Helper.log("Listening thread joined");
+                trace.debug("Listening thread joined");
             }catch(Exception e){
                 // do nothing
-                Helper.log("Listening thread joined failed. Try ask isAlive() again");
+                trace.debug("Listening thread joined failed. Try ask isAlive() again");
             }
         }
-        stopped(null); //stopped normally
-        Helper.log("Listening thread finished. stopped() called");
+        trace.debug("Listening thread finished.");
         //log("Listening thread finished.");
 
-        //tell all worker threads to stop
-        for(int i = workerList.size() - 1; i >= 0; i-- ){
-            workerList.get(i).stopWorker();
+        stopWorkers(deadline);
+        stopped(null); //stopped normally
+        trace.debug("Workers drained. stopped() called");
+        this.serverRunning = false;
+        trace.debug("Server stopped normally by itself because stop() is called on it !");
+    }
+
+    // drain every connection worker: calls already received may finish and reply until the
+    // deadline, while new calls are refused.
+    // Then tell the workers to stop, and wait until they have all finished.
+    private void stopWorkers(Deadline deadline)
+    {
+        for(worker w : this.workers){
+            w.drain();
+        }
+        for(worker w : this.workers){
+            if(!w.awaitIdle(deadline)){
+                trace.debug("Drain deadline passed with calls still running");
+            }
         }
-        Helper.log("Told all worker threads to stop");
 
-        //wait until all worker threads to finish
-        int initialSize = threadList.size();
-        Helper.myAssert( initialSize == workerList.size() , "Two lists have different sizes!" );
-        for(int i = initialSize - 1; i >= 0; i--){
+        for(worker w : this.workers){
+            w.stopWorker();
+        }
+        trace.debug("Told all worker threads to stop");
 
-            //block
-            while( threadList.get(i).isAlive() ){
-                try{
-                    threadList.get(i).join(); //wait until the worker thread finishes
-                    Helper.log("One worker thread joined!");
-                }catch(Exception e){
-                    // do nothing
-                    Helper.log("Trying to join worker thread EXCEPTION");
-                }
-            }
-            threadList.remove(i);
-            workerList.remove(i);
-            Helper.log("Removed a dead thread from lists...");
+        for(worker w : this.workers){
+            w.awaitFinished();
         }
+        trace.debug("All worker thread finished.");
 
-        Helper.log("All worker thread finished.");
-        Helper.myAssert( threadList.size() == workerList.size() , "Two lists have different sizes!" );
-        Helper.myAssert( threadList.size() == 0, "List not empty!");
-        this.serverRunning = false;
-        Helper.log("Server stopped normally by itself because stop() is called on it !");
-        Helper.log("stopped() called");
+        this.connectionExecutor.shutdown();
+        shutdownCallExecutor();
+    }
+
+    // shut down the call executor, if start() created it
+    private void shutdownCallExecutor()
+    {
+        if(this.ownsCallExecutor){
+            ((ExecutorService) this.callExecutor).shutdown();
+            this.callExecutor = null;
+            this.ownsCallExecutor = false;
+        }
+    }
+
+    // called by the accepting thread of the selector transport when accepting a connection
+    // fails, which is handled as in the listening thread of the blocking transport. Returns
+    // true if the server is to keep accepting connections.
+    boolean acceptFailed(SelectorServer server, IOException e)
+    {
+        if(listen_error(e)){
+            trace.debug("listen_error() told the selector transport to continue");
+            return true;
+        }
+        stopped(e);
+
+        if(serverRunning && selectorServer == server){
+            server.stop(stopDeadline());
+            selectorServer = null;
+            shutdownCallExecutor();
+            serverRunning = false;
+            trace.debug("Server stopped by the selector transport!");
+        }
+        return false;
     }
 
 
@@ -370,6 +596,18 @@ public class Skeleton<T>
         return false;
     }
 
+    // one invoker per method of the interface, keyed by the signature stubs announce it by
+    private static <T> Map<String, Invoker> buildDispatchTable(Class<T> c, T server)
+    {
+        MethodTable table = MethodTable.of(c);
+        Map<String, Invoker> dispatchTable = new HashMap<String, Invoker>();
+        for(int i = 0; i < table.methods.length; i++){
+            dispatchTable.put(table.signatures[i], new Invoker(table.methods[i], server,
+                table.metrics(MethodMetrics.Side.SKELETON, i)));
+        }
+        return dispatchTable;
+    }
+
 /*
   _      _     _                       
  | |    (_)   | |                      
@@ -390,69 +628,52 @@ public class Skeleton<T>
       listeningSocket(ServerSocket s) throws Exception {
          this.ssock = s;
          this.stopListening = false;
-         Helper.log("Listener created.");
+         trace.debug("Listener created.");
       }
 
       // when listener thread starts running, run() is called
       public void run() {
-           Helper.log("Listener started running...");
+           trace.debug("Listener started running...");
            Throwable except = null;
            while (!stopListening) {
                 try { //try to start the listening thread
                     Socket sock = ssock.accept();
-                    Helper.log("New connection from Stub, trying to start a new worker thread");
+                    trace.debug("New connection from Stub, trying to start a new worker thread");
                     worker w = new worker(sock);
-                    Thread t = new Thread(w);
-
-                    // might have a problem later
-                    synchronized (arrayLock) {
-                        // remove all the dead thread from the array
-
-                        Helper.log("Lock obtained.");
-                        int initialSize = threadList.size();
-                        Helper.myAssert(initialSize == workerList.size(), "Two lists have different sizes!");
-
-                        for (int i = initialSize - 1; i >= 0; i--) {
-                            if (!threadList.get(i).isAlive()) { // already dead
-                                threadList.remove(i);
-                                workerList.remove(i);
-                                Helper.log("Removed a dead thread from lists");
-                            }
-                        }
-                        // add the created array to the global arraylist
-                        threadList.add(t);
-                        workerList.add(w);
-                        Helper.myAssert(threadList.size() == workerList.size(), "Two lists have different sizes!");
-                        Helper.log("Added the new thread from lists");
-                        Helper.log("Lock Release");
+                    workers.add(w);
+                    try {
+                        connectionExecutor.execute(w); //start worker execution
+                    } catch (RejectedExecutionException e) {
+                        workers.remove(w);
+                        sock.close();
+                        throw new IOException("Unable to start a worker for the connection", e);
                     }
-                    t.start(); //start worker execution
                 } catch (IOException e) {
                     if (stopListening) {
-                        Helper.log("Listener stopped because Skeleton told it to.");
+                        trace.debug("Listener stopped because Skeleton told it to.");
                         return; // do not shut down the server here
 
                     } else {
-                        Helper.log("Listener stopped because of some problem.");
+                        trace.debug("Listener stopped because of some problem.");
                         //Called when an exception occurs at the top level in the listening thread
                         if (listen_error(e)) {
                             // continues to accept connections
-                            Helper.log("listen_error() told the listener to continue");
+                            trace.debug("listen_error() told the listener to continue");
                             continue;
                         }
                         stopListening = true;
                         stopped(e);
-                        Helper.log("listen_error() returns false, server is shutting down...");
+                        trace.debug("listen_error() returns false, server is shutting down...");
                     }
                 }
 
 
                if(stopListening){ //time to shutdown the server
-                    Helper.log("Listner trying to shut down the server");
+                    trace.debug("Listner trying to shut down the server");
                     
                     if(serverRunning){ //if server is curently running
                         listenerShutDownServer();
-                        Helper.log("Server stopped");
+                        trace.debug("Server stopped");
                     }
                 } // else stopListening == false, continue try listening
 
@@ -461,9 +682,9 @@ public class Skeleton<T>
 
       // Skeleton uses this method to stop the listenning thread
       public void stopListenner() {
-        Helper.log("stopListenner() is called");
+        trace.debug("stopListenner() is called");
         if(this.stopListening == true){
-            Helper.log("Listener already stopped. Do nothing");
+            trace.debug("Listener already stopped. Do nothing");
         }
 
         this.stopListening = true;
@@ -471,14 +692,14 @@ public class Skeleton<T>
             this.ssock.close();
 
         }catch (IOException e) {
-            Helper.log("Listener socket has problem to close");
+            trace.debug("Listener socket has problem to close");
             if( !listen_error(e) ){
-                Helper.log("Listner trying to shut down the server");
+                trace.debug("Listner trying to shut down the server");
                 stopped(e);
 
                 if(serverRunning){ //if server is curently running
                     listenerShutDownServer();
-                    Helper.log("after listenerShutDownServer()");
+                    trace.debug("after listenerShutDownServer()");
                 }
 
             } //else ignore the error continue listening
@@ -488,43 +709,9 @@ public class Skeleton<T>
       // for listening thread to shut down the server
       // it tells all worker thread to stop first, and then wait until all worker thread to die
       private void listenerShutDownServer(){
-        //stop all worker threads
-        //synchronized (arrayLock) {  
-            //tell all worker threads to stop
-            Helper.log("Lock obtained");
-            for(int i = workerList.size() - 1; i >= 0; i-- ){
-                workerList.get(i).stopWorker();
-                Helper.log("Told a worker thread to stop");
-            }
-
-            //wait until all worker threads to finish
-            int initialSize = threadList.size();
-            Helper.myAssert( initialSize == workerList.size() , "Two lists have different sizes!" );
-
-            for(int i = initialSize - 1; i >= 0; i--){
-                //try{
-                while( threadList.get(i).isAlive() ){
-                    try{
-                        threadList.get(i).join();
-                        Helper.log("Wait a worker thread to stop");
-
-                    }catch(Exception e){
-                        Helper.log("Trying to join worker thread EXCEPTION");
-                        System.out.println(e);
-                    }
-                }
-                threadList.remove(i);
-                workerList.remove(i);
-                Helper.log("Removed a dead thread from lists");
-                // both array lists should be empty at this point
-            }
-
-            Helper.log("All worker thread finished.");
+            stopWorkers(stopDeadline());
             serverRunning = false;
-            Helper.log("Lock Release");
-            Helper.myAssert( threadList.size() == workerList.size() , "Two lists have different sizes!" );
-            Helper.log("Server stopped by the listener!");
-        //}
+            trace.debug("Server stopped by the listener!");
       }
    }
 
@@ -538,159 +725,266 @@ public class Skeleton<T>
      \/  \/ \___/|_|  |_|\_\___|_|       |_|  |_| |_|_|  \___|\__,_|\__,_|  \_____|_|\__,_|___/___/
 */
 
-   // A class for worker thread, which is responsible for unmarshalling and invoke method on the server object
-   private class worker implements Runnable{
+   // A class for worker thread, which serves one connection from a stub. Stubs keep their
+   // connection open and send any number of calls over it, possibly several at once, so
+   // the worker keeps reading frames until the peer disconnects and hands them to its
+   // session, which runs each call on the call executor. Replies carry the call id and may
+   // be sent in any order.
+   private class worker extends Session implements Runnable{
 
        Socket csocket;
-       boolean commandReceived;
-       boolean toldToStop;
-       boolean reportException;
-       Throwable invokedMethodExceptionCause;
+       DataOutputStream out;
+       CountDownLatch finished = new CountDownLatch(1);
 
        worker(Socket csocket){
+           super(Skeleton.this);
            this.csocket = csocket;
-           this.commandReceived = false;
-           this.toldToStop = false;
-           this.reportException = false;
-           this.invokedMethodExceptionCause = null;
        }
 
         // when thread starts running, run() is called
         public void run() {
 
-            Helper.log("Worker thread starts running...");
-
-            ObjectOutputStream out = null;
-            ObjectInputStream ois = null;
+            trace.debug("Worker thread starts running...");
 
             try {
-                
-                out = new ObjectOutputStream( csocket.getOutputStream() );
-                out.flush();
-                ois = new ObjectInputStream( csocket.getInputStream() );
-                // read the object which contains function names and list of argument
-                transferContainer e = (transferContainer) ois.readObject();
-                this.commandReceived = true;
-                Helper.log("A transferContainer e read from the ObjectInputStream");
-
-                // unmarshalling
-                String funcName = e.funcName;
-                Helper.log("Function name is: " + funcName);
+                csocket.setTcpNoDelay(true);
+                this.out = new DataOutputStream( new BufferedOutputStream( csocket.getOutputStream() ) );
+                DataInputStream in = new DataInputStream( new BufferedInputStream( csocket.getInputStream() ) );
 
-                if(e.funcArgs != null){
-                    //convert ArrayList to normal array
-                    Class [] paraTypes =  new Class[ e.parameterTypes.size() ];
-                    e.parameterTypes.toArray(paraTypes);
-
-                    Helper.log("Parameter tyeps are: ");
-                    for(Class eachPara : paraTypes) {
-                        Helper.log(eachPara.getName());
-                    }
-                    Object [] arguments = new Object[ e.funcArgs.size() ];
-                    Helper.log("funcArgs.size(): " + e.funcArgs.size());
-                    e.funcArgs.toArray(arguments);
-                    Helper.log("Arguments are");
-                    /*
-                    for(Object eachArg : arguments){
-                        Helper.log(eachArg.toString());
-                    }
-                    */
-
-                    // create an object on which a method is going to be invoked
-                    Helper.log("Done unmarshalling");
-
-                    Method methodToCall = interfaceClass.getMethod(funcName, paraTypes);
-                    Helper.log("methodToCall obtained from the interface");
-                    Object returnValue = methodToCall.invoke(localServer, arguments);
-                    Helper.log("Invoked and returnValue object obtained");
-                    //create an object which is to be serialized
-                    transferContainer container = new transferContainer("returnValue", new Object[]{returnValue}, new Class[]{} );
-                    //send the result from the invoked method back to the Stub clients
-                    out.writeObject(container);
-                    Helper.log("returnValue object sent to client proxy");
-                
-                }else{ //no argument
-                    Helper.log("No need to unmarshal");
-                    Method methodToCall = interfaceClass.getMethod(funcName);
-                    Object returnValue = methodToCall.invoke(localServer);
-                    Helper.log("Invoked and returnValue object obtained");
-                    //create an object which is to be serialized
-                    transferContainer container = new transferContainer("returnValue", new Object[]{returnValue}, new Class[]{} );
-                    //send the result from the invoked method back to the Stub clients
-                    out.writeObject(container);
-                    Helper.log("returnValue object sent to client proxy");
+                Frame frame;
+                while( (frame = Frame.read(in)) != null ){
+                    if( !receive(frame) ) break;
                 }
 
-                //transferContainer returnValueContainer = invokedLocalMethodCall(e);
-
             } catch (IOException e) {
 
                 if(this.toldToStop){
-                    System.out.println("Worker was told to stop.");
+                    trace.debug("Worker was told to stop.");
                 }else{
-                    System.out.println("Something bad happened to make the worker to stop");
+                    trace.debug("Something bad happened to make the worker to stop");
                     //Called when an exception occurs at the top level in a service thread
-                    service_error(new RMIException("IO exception happened during worker thread service"));
+                    service_error(new RMIException("IO exception happened during worker thread service", e));
                 }
-
-            } catch (NoSuchMethodException e) {
-                System.out.println("NoSuchMethodException happend.");
-                System.out.println(e);
-                service_error(new RMIException("NoSuchMethodException happend"));
-
-            } catch (InvocationTargetException e) { // invoked method threw exceptions
-                //System.out.println("InvocationTargetException happend. That means exception thrown by the invoked method");
-                Helper.log("InvocationTargetException happend. That means exception thrown by the invoked method");
-                this.reportException = true;
-                this.invokedMethodExceptionCause = e.getCause();              
-
-            } catch (ClassNotFoundException e) {
-                System.out.println("ClassNotFoundException happend.");
-                System.out.println(e);
-                service_error(new RMIException("ClassNotFoundException happend"));
-
-            } catch (IllegalAccessException e) {
-                System.out.println("IllegalAccessException happend.");
-                System.out.println(e);
-                service_error(new RMIException("IllegalAccessException happend"));
             }
 
-            try{
+            // no more calls will arrive, but the ones already running still have to reply,
+            // unless the skeleton has given up on them
+            awaitIdle(null);
 
-                if(this.reportException){
-                    Throwable cause = this.invokedMethodExceptionCause;
-                    transferContainer container = new transferContainer("returnValue", new Object[]{(Object)cause, (Object)cause}, new Class[]{} );
-                    out.writeObject(container);
-                    Helper.log("Invoked method excpetion object reported to client proxy");   
-                }
-
-                if(ois != null) ois.close();
-                if(out != null) out.close();
+            try{
                 csocket.close();
             } catch (IOException e) {
-                System.out.println("IOException happend when trying to close socket and object streams");
-                service_error(new RMIException("IOException happend when trying to close socket and object streams") );
+                trace.debug("IOException happend when trying to close socket");
+                service_error(new RMIException("IOException happend when trying to close socket", e) );
             }
-            Helper.log("Input/Output stream closed as well as the socket");
-            Helper.log("Worker thread finished!\n-------------------");
+            trace.debug("Socket closed");
+            workers.remove(this);
+            this.finished.countDown();
+            trace.debug("Worker thread finished!\n-------------------");
         } // end of run()
 
-        // to stop worker
-        public void stopWorker() {
-
-            // if it's already received commands from
-            if( !this.commandReceived ){
-                this.toldToStop = true;
+        // block until run() has returned
+        void awaitFinished() {
+            boolean interrupted = false;
+            while(true){
                 try{
-                    this.csocket.close();
-                }catch(IOException e) {
-                    Helper.log("Worker socket has problem to close");
-                    //Called when an exception occurs at the top level in a service thread
-                    service_error(new RMIException("IO exception happened when trying to close the socket of a worker thread"));                    
+                    this.finished.await();
+                    break;
+                }catch(InterruptedException e){
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+        }
+
+        // send a reply frame and release it; invocations of the same connection share the
+        // output stream
+        void reply(Frame frame) {
+            try{
+                synchronized(this.out){
+                    frame.write(this.out);
+                }
+                trace.debug("Reply sent to client proxy");
+            } catch (IOException e) {
+                if(!this.toldToStop){
+                    service_error(new RMIException("IOException happend when trying to send a reply", e));
                 }
+            } finally {
+                frame.release();
+            }
+        }
+
+        // to stop worker once it has been drained. The connection is closed, and the calls
+        // still running, if the drain deadline passed, are abandoned.
+        public void stopWorker() {
+            this.toldToStop = true;
+            abandon();
+            try{
+                this.csocket.close();
+            }catch(IOException e) {
+                trace.debug("Worker socket has problem to close");
+                //Called when an exception occurs at the top level in a service thread
+                service_error(new RMIException("IO exception happened when trying to close the socket of a worker thread", e));
             }
         } // end of stopWorker()
 
    } // end of worker class
 
+    // unmarshal a call or a batch of calls, run them on the server object in order and
+    // marshal their outcomes. received is the System.nanoTime() at which the request
+    // arrived, from which its deadline counts. Bodies are decompressed and compressed with
+    // the compressor of the connection, if any. The request is released once decoded; the
+    // reply is the caller's to release once written.
+    Frame invoke(Frame request, long received, Codec codec, Compressor compressor,
+                 Map<Integer, Invoker[]> bindings) {
+
+        long callId = request.callId;
+        boolean batch = (request.type == Frame.BATCH);
+        boolean stopOnException = false;
+        Deadline deadline;
+        Invoker[] methodsToCall;
+        Object[][] arguments;
+
+        // decode every call before running any, so that a malformed batch runs nothing
+        try {
+            // done here rather than as the frame is read, to keep it off the selector threads
+            request = request.decompress(compressor);
+            DataInputStream in = request.bodyStream();
+            Invoker[] invokers = bindings.get( BinaryCodec.readVarInt(in) );
+            deadline = Deadline.after(received, BinaryCodec.readVarInt(in));
+            int count = 1;
+            if(batch){
+                stopOnException = in.readBoolean();
+                count = BinaryCodec.readVarInt(in);
+            }
+
+            methodsToCall = new Invoker[count];
+            arguments = new Object[count][];
+            for(int call = 0; call < count; call++){
+                int ordinal = BinaryCodec.readVarInt(in);
+                if(invokers == null || ordinal >= invokers.length || invokers[ordinal] == null){
+                    throw new NoSuchMethodException("method " + ordinal + " of the interface bound by the stub");
+                }
+                methodsToCall[call] = invokers[ordinal];
+                trace.debug("Function name is: {}", methodsToCall[call].method.getName());
+
+                // unmarshalling
+                Class<?> [] paraTypes = methodsToCall[call].parameterTypes;
+                arguments[call] = new Object[ paraTypes.length ];
+                for(int i = 0; i < paraTypes.length; i++){
+                    arguments[call][i] = codec.read(in, paraTypes[i]);
+                }
+            }
+            trace.debug("Done unmarshalling");
+            if(!batch){
+                methodsToCall[0].metrics.request(request);
+            }
+
+        } catch (IOException e) {
+            service_error(new RMIException("IO exception happened while unmarshalling a call", e));
+            return Frame.failure(callId, "Skeleton could not unmarshal the call: " + e);
+
+        } catch (NoSuchMethodException e) {
+            service_error(new RMIException("NoSuchMethodException happend", e));
+            return Frame.failure(callId, "No such method on the remote interface: " + e.getMessage());
+
+        } catch (RuntimeException e) {
+            // e.g. a value the codec cannot rebuild, or a body that does not decompress
+            service_error(new RMIException("Malformed call received", e));
+            return Frame.failure(callId, "Skeleton could not unmarshal the call: " + e);
+        } finally {
+            // the arguments decoded no longer refer to the body
+            request.release();
+        }
+
+        // the caller has stopped waiting, e.g. because the call waited too long for the
+        // call executor
+        if(deadline != null && deadline.passed()){
+            trace.debug("Call abandoned: its deadline passed before it could run");
+            for(Invoker methodToCall : methodsToCall){
+                methodToCall.metrics.begin();
+                methodToCall.metrics.failed(received);
+            }
+            return Frame.failure(callId, "Deadline passed before the call could run");
+        }
+
+        // run the calls and marshal their outcomes, with the deadline of the request as
+        // that of this thread
+        Deadline previous = Deadline.enter(deadline);
+        BufferOutputStream buffer = new BufferOutputStream();
+        try{
+            DataOutputStream out = new DataOutputStream(buffer);
+            if(batch){
+                BinaryCodec.writeVarInt(out, methodsToCall.length);
+            }
+
+            boolean failed = false;
+            for(int call = 0; call < methodsToCall.length; call++){
+                if( (failed && stopOnException) || (batch && deadline != null && deadline.passed()) ){
+                    out.writeByte(Frame.SKIPPED);
+                }else if( !call(methodsToCall[call], arguments[call], received, codec, out) ){
+                    failed = true;
+                }
+            }
+            Frame reply = new Frame(callId, batch ? Frame.BATCH : Frame.RETURN, buffer.take(), true)
+                .compress(compressor, Compressors.threshold());
+            if(!batch){
+                methodsToCall[0].metrics.response(reply);
+            }
+            return reply;
+        } catch (IOException | RuntimeException e) {
+            buffer.release();
+            service_error(new RMIException("Exception happened while marshalling a reply", e));
+            return Frame.failure(callId, "Skeleton could not marshal the reply: " + e);
+        } finally {
+            Deadline.enter(previous);
+        }
+    }
+
+    // invoke one call on the server object and write its outcome. Returns false if the
+    // call threw an exception. The call is recorded in the metrics of its method, with
+    // its latency counted from received.
+    private boolean call(Invoker methodToCall, Object[] arguments, long received, Codec codec,
+                         DataOutputStream out) throws IOException {
+        Object returnValue;
+        MethodMetrics metrics = methodToCall.metrics;
+        // VALUE or EXCEPTION once that outcome is marshalled; anything else is a failure
+        int outcome = -1;
+
+        metrics.begin();
+        try {
+            try {
+                returnValue = methodToCall.invoke(arguments);
+                trace.debug("Invoked and returnValue object obtained");
+
+            } catch (InvocationTargetException e) { // invoked method threw exceptions
+                trace.debug("InvocationTargetException happend. That means exception thrown by the invoked method");
+                out.writeByte(Frame.EXCEPTION);
+                codec.write(out, Throwable.class, e.getCause());
+                outcome = Frame.EXCEPTION;
+                return false;
+
+            } catch (IllegalAccessException | IllegalArgumentException e) {
+                // the method could not be called: a fault of the skeleton, not of the method
+                service_error(new RMIException("Skeleton could not invoke " + methodToCall.method.getName(), e));
+                out.writeByte(Frame.EXCEPTION);
+                codec.write(out, Throwable.class, new RMIException("Skeleton could not invoke the method: " + e));
+                return false;
+            }
+
+            out.writeByte(Frame.VALUE);
+            codec.write(out, methodToCall.returnType, returnValue);
+            outcome = Frame.VALUE;
+            return true;
+        } finally {
+            if(outcome == Frame.VALUE){
+                metrics.returned(received);
+            }else if(outcome == Frame.EXCEPTION){
+                metrics.threw(received);
+            }else{
+                metrics.failed(received);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,173 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Factory for executors that run calls received by a skeleton.
+
+    <p>
+    A skeleton hands each call it receives to an executor (see
+    <code>Skeleton.setExecutor</code>). The executor decides how many calls
+    run at once and what happens to calls that arrive when it is saturated.
+    When an executor refuses a call by throwing
+    <code>RejectedExecutionException</code>, the skeleton replies to the stub
+    immediately, and the caller receives an <code>RMIException</code>.
+
+    <p>
+    Under the <code>SELECTOR</code> transport, calls are handed to the executor
+    by the I/O threads, each serving many connections. Such a thread never
+    runs a call or waits for room in a queue. Calls that an executor would run
+    on it, or make it wait for, are refused as if the executor had rejected
+    them.
+ */
+public abstract class SkeletonExecutors
+{
+    private static final Trace  trace = Trace.of(SkeletonExecutors.class);
+
+    /** What a bounded executor does with a call when all of its threads are
+        busy and its queue is full. */
+    public enum Rejection
+    {
+        /** The call fails: the stub receives an <code>RMIException</code>
+            saying that the server is busy. */
+        ABORT,
+        /** The call runs on the thread that received it. This stops the
+            skeleton from reading further calls from that connection until the
+            call completes, which slows down the busiest clients first. Under
+            the <code>SELECTOR</code> transport, the call fails as with
+            <code>ABORT</code> instead. */
+        CALLER_RUNS,
+        /** The thread that received the call waits until there is room in the
+            queue. Under the <code>SELECTOR</code> transport, the call fails as
+            with <code>ABORT</code> instead. */
+        BLOCK
+    }
+
+    /** Returns an executor which runs every call on its own thread, reusing
+        idle threads. This is the executor used by skeletons for which none has
+        been set. */
+    public static ExecutorService unbounded()
+    {
+        return Executors.newCachedThreadPool(new WorkerFactory("rmi-call"));
+    }
+
+    /** Returns an executor with a bounded number of threads and a bounded
+        queue.
+
+        @param maxConcurrency Maximum number of calls running at once.
+        @param queueDepth Maximum number of calls waiting for a thread. If zero,
+                          calls are never queued.
+        @param rejection What to do with a call when all threads are busy and
+                         the queue is full.
+        @throws IllegalArgumentException If <code>maxConcurrency</code> is not
+                                         positive or <code>queueDepth</code> is
+                                         negative.
+        @throws NullPointerException If <code>rejection</code> is
+                                     <code>null</code>.
+     */
+    public static ExecutorService fixed(int maxConcurrency, int queueDepth,
+                                        Rejection rejection)
+    {
+        if(maxConcurrency <= 0)
+            throw new IllegalArgumentException("maxConcurrency must be positive");
+        if(queueDepth < 0)
+            throw new IllegalArgumentException("queueDepth is negative");
+        if(rejection == null)
+            throw new NullPointerException("rejection is null");
+
+        BlockingQueue<Runnable>     queue = (queueDepth == 0)
+            ? new SynchronousQueue<Runnable>()
+            : new ArrayBlockingQueue<Runnable>(queueDepth);
+
+        RejectedExecutionHandler    handler;
+        switch(rejection)
+        {
+        case CALLER_RUNS:
+            handler = new ThreadPoolExecutor.CallerRunsPolicy();
+            break;
+        case BLOCK:
+            handler = new BlockPolicy();
+            break;
+        default:
+            handler = new ThreadPoolExecutor.AbortPolicy();
+        }
+
+        ThreadPoolExecutor          executor =
+            new ThreadPoolExecutor(maxConcurrency, maxConcurrency,
+                                   60, TimeUnit.SECONDS, queue,
+                                   new WorkerFactory("rmi-call"), handler);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /** Returns an executor which runs every call on a new virtual thread.
+
+        <p>
+        Virtual threads are only available on Java 21 and later. On earlier
+        versions, this method returns <code>unbounded()</code>.
+     */
+    public static ExecutorService virtualThreads()
+    {
+        try
+        {
+            Method  factory = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        }
+        catch(ReflectiveOperationException e)
+        {
+            trace.debug("Virtual threads unavailable, using platform threads");
+            return unbounded();
+        }
+    }
+
+    /** Rejection handler which waits for room in the queue. */
+    private static class BlockPolicy implements RejectedExecutionHandler
+    {
+        @Override
+        public void rejectedExecution(Runnable task,
+                                      ThreadPoolExecutor executor)
+        {
+            if(executor.isShutdown())
+                throw new RejectedExecutionException("executor shut down");
+
+            if(SelectorServer.onIoThread())
+            {
+                throw new RejectedExecutionException(
+                    "an I/O thread of the selector transport cannot wait");
+            }
+
+            try
+            {
+                executor.getQueue().put(task);
+            }
+            catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("interrupted", e);
+            }
+        }
+    }
+
+    /** Creates daemon threads with recognizable names. */
+    static class WorkerFactory implements ThreadFactory
+    {
+        private final String        prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        WorkerFactory(String prefix)
+        {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread  thread = new Thread(task,
+                                        prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
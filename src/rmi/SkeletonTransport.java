@@ -0,0 +1,26 @@
+package rmi;
+
+/** Ways in which a skeleton can serve the connections from its stubs.
+
+    <p>
+    The transport only decides how frames are read from and written to the
+    connections. Calls run on the call executor of the skeleton (see
+    <code>Skeleton.setExecutor</code>) whichever transport is used, and stubs
+    cannot tell the difference.
+ */
+public enum SkeletonTransport
+{
+    /** One thread per connection, blocked reading the next frame. This is the
+        default. It has the lowest latency for a small number of busy
+        connections, but each idle connection still holds a thread. */
+    BLOCKING,
+
+    /** A small, fixed number of threads, each watching many connections with
+        a <code>java.nio.channels.Selector</code>. An idle connection holds no
+        thread, so a skeleton can keep tens of thousands of connections open.
+        Suited to skeletons contacted by many clients, such as the service
+        interface of the naming server. Calls that a bounded executor would
+        run on an I/O thread or make it wait for are refused instead (see
+        <code>SkeletonExecutors.Rejection</code>). */
+    SELECTOR
+}
@@ -5,6 +5,7 @@ import java.lang.reflect.Proxy;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
 /** RMI stub factory.
 
     <p>
@@ -20,6 +21,7 @@ import java.net.UnknownHostException;
  */
 public abstract class Stub
 {
+    private static final Trace  trace = Trace.of(Stub.class);
 
     /** Creates a stub, given a skeleton with an assigned adress.
 
@@ -55,7 +57,7 @@ public abstract class Stub
       //assume skeleton is always running on the same local host
 
       //check exception
-      Helper.log("public static <T> T create(Class<T> c, Skeleton<T> skeleton) called");
+      trace.debug("public static <T> T create(Class<T> c, Skeleton<T> skeleton) called");
       if(c == null || skeleton == null){
         throw new NullPointerException("Some argument(s) is null");
       }
@@ -64,7 +66,7 @@ public abstract class Stub
         throw new Error("Need interface");
       }
 
-      Helper.log("Neither arguements are null");
+      trace.debug("Neither arguements are null");
       //If the skeleton has not been assigned an address by the user and has not yet been started.
       if(skeleton.addr == null && skeleton.serverRunning == false ){
         throw new IllegalStateException("skeleton has not been assigned an address by the user and has not yet been started");
@@ -72,11 +74,11 @@ public abstract class Stub
 
       checkExceptionsOfEachMethod(c);
 
-      Helper.log("All methods are marked as throwing RMIException");
+      trace.debug("All methods are marked as throwing RMIException");
 
       MyInvocationHandler handler = new MyInvocationHandler<T>(c, skeleton.port, skeleton.addr );
 
-      Helper.log("****handler created");
+      trace.debug("****handler created");
       T proxy;
       try{
         proxy = (T) Proxy.newProxyInstance(
@@ -87,7 +89,7 @@ public abstract class Stub
         throw new Error("An object implementing this interface cannot be dynamically created");
       }
 
-      Helper.log("Proxy returned");
+      trace.debug("Proxy returned");
       return proxy;
 
     }
@@ -125,7 +127,7 @@ public abstract class Stub
     public static <T> T create(Class<T> c, Skeleton<T> skeleton,
                                String hostname) throws UnknownHostException
     {
-        Helper.log("public static <T> T create(Class<T> c, Skeleton<T> skeleton, String hostname) called");
+        trace.debug("public static <T> T create(Class<T> c, Skeleton<T> skeleton, String hostname) called");
         if(c == null || skeleton == null || hostname == null ){
           throw new NullPointerException("Some argument(s) is null");
         }
@@ -147,7 +149,7 @@ public abstract class Stub
 
         InetSocketAddress skeletonAddr = new InetSocketAddress(hostname, skeleton.port);
         MyInvocationHandler handler = new MyInvocationHandler<T>(c, skeletonAddr.getPort(), skeletonAddr.getAddress());
-        Helper.log("****handler created");
+        trace.debug("****handler created");
         T proxy;
         try{
           proxy = (T) Proxy.newProxyInstance(
@@ -158,7 +160,7 @@ public abstract class Stub
           throw new Error("An object implementing this interface cannot be dynamically created");
         }
 
-        Helper.log("Proxy returned");
+        trace.debug("Proxy returned");
         return proxy;
 
     }
@@ -182,7 +184,7 @@ public abstract class Stub
     public static <T> T create(Class<T> c, InetSocketAddress address)
     {
         //throw new UnsupportedOperationException("not implemented");
-        Helper.log("public static <T> T create (Class<T> c, InetSocketAddress address)");
+        trace.debug("public static <T> T create (Class<T> c, InetSocketAddress address)");
         if(c == null || address == null){
           throw new NullPointerException("Some argument(s) is null");
         }
@@ -191,7 +193,7 @@ public abstract class Stub
         if( !c.isInterface() ){
           throw new Error("Need interface");
         }
-        Helper.log("c is an interface");
+        trace.debug("c is an interface");
         
         checkExceptionsOfEachMethod(c);
 
@@ -205,7 +207,7 @@ public abstract class Stub
         throw new Error("Handler creation failed");
       }
 
-      Helper.log("****handler created");
+      trace.debug("****handler created");
 
       T proxy;
 
@@ -218,11 +220,171 @@ public abstract class Stub
         throw new Error("An object implementing this interface cannot be dynamically created");
       }
 
-      Helper.log("Proxy returned");
+      trace.debug("Proxy returned");
       return proxy;
 
     }
 
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        <p>
+        An asynchronous stub implements a companion interface of the remote
+        interface. For each method of the companion interface, the remote
+        interface must have a method with the same name and parameter types;
+        the companion method must return <code>CompletableFuture</code>, whose
+        type argument would normally be the boxed return type of the remote
+        method. For example, the companion of a method
+        <code>long size(Path file)</code> is
+        <code>CompletableFuture&lt;Long&gt; size(Path file)</code>.
+
+        <p>
+        Calling a method of an asynchronous stub sends the call to the skeleton
+        and returns without waiting for the reply. Calls made one after another
+        are therefore in progress at the same time, over the same connection as
+        the calls of ordinary stubs for the same skeleton. The returned future
+        completes with the value returned by the remote method, or
+        exceptionally with the exception thrown by the remote method or with
+        <code>RMIException</code> if the call could not be completed. Futures
+        do not complete on the thread that reads from the connection, so
+        dependent actions may make blocking remote calls.
+
+        @param asyncInterface The companion interface.
+        @param c A <code>Class</code> object representing the remote interface.
+        @param address The network address of the remote skeleton.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface,
+                      or if <code>asyncInterface</code> is not an interface
+                      whose methods all return <code>CompletableFuture</code>
+                      and correspond to methods of <code>c</code>.
+     */
+    public static <A, T> A createAsync(Class<A> asyncInterface, Class<T> c,
+                                       InetSocketAddress address)
+    {
+        trace.debug("public static <A, T> A createAsync(Class<A> asyncInterface, Class<T> c, InetSocketAddress address)");
+
+        if(asyncInterface == null || c == null || address == null){
+          throw new NullPointerException("Some argument(s) is null");
+        }
+
+        if( !c.isInterface() || !asyncInterface.isInterface() ){
+          throw new Error("Need interface");
+        }
+
+        checkExceptionsOfEachMethod(c);
+
+        return createAsync(asyncInterface,
+            new MyInvocationHandler<T>(c, address.getPort(), address.getAddress()));
+    }
+
+    /** Creates an asynchronous stub that calls the same skeleton as an
+        existing stub.
+
+        <p>
+        See <code>createAsync(Class, Class, InetSocketAddress)</code> for the
+        requirements on the companion interface and the behavior of the stub.
+
+        @param asyncInterface The companion interface.
+        @param stub A stub created by this class, whose remote interface and
+                    skeleton address are used.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by this class.
+        @throws Error If <code>asyncInterface</code> is not an interface whose
+                      methods all return <code>CompletableFuture</code> and
+                      correspond to methods of the stub's remote interface.
+     */
+    public static <A> A createAsync(Class<A> asyncInterface, Object stub)
+    {
+        if(asyncInterface == null || stub == null){
+          throw new NullPointerException("Some argument(s) is null");
+        }
+
+        if( !asyncInterface.isInterface() ){
+          throw new Error("Need interface");
+        }
+
+        if( !Proxy.isProxyClass(stub.getClass()) ||
+            !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler) ){
+          throw new IllegalArgumentException("not a stub: " + stub);
+        }
+
+        return createAsync(asyncInterface,
+            (MyInvocationHandler<?>) Proxy.getInvocationHandler(stub));
+    }
+
+    /** Returns a stub that calls the same skeleton as an existing stub, but
+        gives up on each call that has not completed within a timeout.
+
+        <p>
+        A call through the returned stub fails with <code>RMIException</code>
+        if its reply has not been received when the timeout expires. The time
+        remaining is sent with the call, so that the skeleton abandons the call
+        if it has not started running by then; see <code>Deadline</code>. Calls
+        to methods marked as <code>Idempotent</code> that fail because of the
+        network are retried while the timeout allows.
+
+        <p>
+        The timeout is a setting of the returned stub only: it is equal to the
+        original stub, and if it is sent to another host, the copy received
+        there has no timeout. Asynchronous stubs created from the returned stub
+        with <code>createAsync</code> have the same timeout.
+
+        @param stub A stub created by this class.
+        @param timeout The timeout, or zero for none.
+        @param unit The unit of <code>timeout</code>.
+        @return The stub with the timeout.
+        @throws NullPointerException If <code>stub</code> or <code>unit</code>
+                                     is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by this class, or if
+                                         <code>timeout</code> is negative.
+     */
+    public static <T> T withTimeout(T stub, long timeout, TimeUnit unit)
+    {
+        if(stub == null || unit == null){
+          throw new NullPointerException("Some argument(s) is null");
+        }
+
+        if(timeout < 0){
+          throw new IllegalArgumentException("negative timeout: " + timeout);
+        }
+
+        if( !Proxy.isProxyClass(stub.getClass()) ||
+            !(Proxy.getInvocationHandler(stub) instanceof MyInvocationHandler) ){
+          throw new IllegalArgumentException("not a stub: " + stub);
+        }
+
+        MyInvocationHandler<?> handler =
+            (MyInvocationHandler<?>) Proxy.getInvocationHandler(stub);
+        // the proxy implements every interface of the stub, and so whatever type T the stub
+        // was given as
+        @SuppressWarnings("unchecked")
+        T timed = (T) Proxy.newProxyInstance(stub.getClass().getClassLoader(),
+                                             stub.getClass().getInterfaces(),
+                                             handler.withTimeout(unit.toNanos(timeout)));
+        return timed;
+    }
+
+    private static <A> A createAsync(Class<A> asyncInterface, MyInvocationHandler<?> remote)
+    {
+      AsyncInvocationHandler handler = new AsyncInvocationHandler(asyncInterface, remote);
+
+      A proxy;
+      try{
+        proxy = asyncInterface.cast( Proxy.newProxyInstance(
+                              asyncInterface.getClassLoader(),
+                              new Class<?>[] { asyncInterface },
+                              handler) );
+      }catch(IllegalArgumentException e){
+        throw new Error("An object implementing this interface cannot be dynamically created");
+      }
+
+      trace.debug("Async proxy returned");
+      return proxy;
+    }
+
     // Overriding methods
     /*
     // report the name of the remote interface implemented by the stub, and the 
@@ -257,8 +419,8 @@ public abstract class Stub
         // check excpetions thrown by every methods in the interface
         boolean badInterface = true;
         for (Method m : allMethods){
-          Class[] exceptionTypes = m.getExceptionTypes();
-          for (Class excep : exceptionTypes){
+          Class<?>[] exceptionTypes = m.getExceptionTypes();
+          for (Class<?> excep : exceptionTypes){
             String exceptionName = excep.getName();
             if(exceptionName.contains( "RMIException")) {
               badInterface = false;
@@ -0,0 +1,274 @@
+package rmi;
+
+import java.io.*;
+import java.time.*;
+import java.util.*;
+
+/** Level-gated tracing for the RMI library and the servers built on it.
+
+    <p>
+    Each class that traces its work holds a <code>Trace</code> named after
+    it:
+
+    <pre>
+    private static final Trace trace = Trace.of(Skeleton.class);
+
+    trace.debug("Stub bound {} as {}", interfaceName, binding);
+    </pre>
+
+    <p>
+    A message is only formatted if its level is enabled for the trace. The
+    arguments replace the <code>{}</code> markers of the message in order, and
+    are converted to strings only then, so a disabled trace statement whose
+    arguments are existing objects costs a field read and allocates nothing.
+    Arguments of primitive type are boxed before the call, which may allocate;
+    on paths run for every call, such statements are guarded with
+    <code>enabled</code>:
+
+    <pre>
+    if(trace.enabled(Trace.Level.DEBUG))
+        trace.debug("read {} bytes at {}", length, offset);
+    </pre>
+
+    <p>
+    Tracing is off by default. It is turned on with the system property
+    <code>dfs.trace</code>, which is either a level, applying to every trace,
+    or a comma-separated list of entries of the form
+    <code><i>prefix</i>=<i>level</i></code>, applying to the traces whose names
+    start with the prefix, as in <code>-Ddfs.trace=rmi=INFO,storage=DEBUG</code>.
+    The most specific prefix wins. Levels can also be changed at run time with
+    <code>setLevel</code>. Traces are written to standard output, one line per
+    message, with the time, level, thread and name of the trace.
+
+    <p>
+    Setting <code>COMPILED</code> to <code>false</code> and recompiling turns
+    tracing off for good: every level then reads as disabled, and the just in
+    time compiler removes trace statements altogether.
+ */
+public final class Trace
+{
+    /** Whether tracing is compiled in. */
+    public static final boolean COMPILED = true;
+
+    /** Levels of detail of trace messages, from the least to the most
+        detailed. Enabling a level enables the less detailed ones too. */
+    public enum Level
+    {
+        /** Failures that the library or server recovers from, but that an
+            operator should know about. */
+        WARN,
+        /** Significant events, such as servers starting and stopping. */
+        INFO,
+        /** Details of each call, for debugging. */
+        DEBUG
+    }
+
+    /** Enabled level for each name prefix, the empty prefix applying to every
+        trace; guarded by the class. */
+    private static final Map<String, Level>  levels = parse(
+        System.getProperty("dfs.trace"));
+    /** Every trace created so far, so that their levels can be updated;
+        guarded by the class. */
+    private static final List<Trace>         traces = new ArrayList<Trace>();
+    private static volatile PrintStream      output = System.out;
+
+    private final String                     name;
+    /** Ordinal of the most detailed level enabled, or -1 if tracing is
+        off. */
+    private volatile int                     threshold;
+
+    private Trace(String name)
+    {
+        this.name = name;
+    }
+
+    /** Returns a new trace named after the given class. */
+    public static synchronized Trace of(Class<?> source)
+    {
+        Trace       trace = new Trace(source.getName());
+        trace.threshold = threshold(trace.name);
+        traces.add(trace);
+        return trace;
+    }
+
+    /** Sets the level enabled for the traces whose names start with the given
+        prefix, overriding the levels set for shorter prefixes.
+
+        @param prefix Beginning of the names of the traces, such as a package
+                      name. The empty string applies to every trace.
+        @param level The most detailed level enabled, or <code>null</code> to
+                     turn tracing off.
+        @throws NullPointerException If <code>prefix</code> is
+                                     <code>null</code>.
+     */
+    public static synchronized void setLevel(String prefix, Level level)
+    {
+        if(prefix == null)
+            throw new NullPointerException("prefix is null");
+
+        levels.put(prefix, level);
+        for(Trace trace : traces)
+            trace.threshold = threshold(trace.name);
+    }
+
+    /** Sends trace messages to the given stream instead of standard output.
+
+        @throws NullPointerException If <code>stream</code> is
+                                     <code>null</code>.
+     */
+    public static void setOutput(PrintStream stream)
+    {
+        if(stream == null)
+            throw new NullPointerException("stream is null");
+
+        output = stream;
+    }
+
+    /** Returns <code>true</code> if messages of the given level are traced. */
+    public boolean enabled(Level level)
+    {
+        return COMPILED && level.ordinal() <= threshold;
+    }
+
+    /** Traces a message at level <code>DEBUG</code>. */
+    public void debug(String message)
+    {
+        if(enabled(Level.DEBUG))
+            write(Level.DEBUG, message, null, null, null);
+    }
+
+    /** Traces a message with one argument at level <code>DEBUG</code>. */
+    public void debug(String message, Object first)
+    {
+        if(enabled(Level.DEBUG))
+            write(Level.DEBUG, message, first, null, null);
+    }
+
+    /** Traces a message with two arguments at level <code>DEBUG</code>. */
+    public void debug(String message, Object first, Object second)
+    {
+        if(enabled(Level.DEBUG))
+            write(Level.DEBUG, message, first, second, null);
+    }
+
+    /** Traces a message with three arguments at level <code>DEBUG</code>. */
+    public void debug(String message, Object first, Object second,
+                      Object third)
+    {
+        if(enabled(Level.DEBUG))
+            write(Level.DEBUG, message, first, second, third);
+    }
+
+    /** Traces a message at level <code>INFO</code>. */
+    public void info(String message)
+    {
+        if(enabled(Level.INFO))
+            write(Level.INFO, message, null, null, null);
+    }
+
+    /** Traces a message with one argument at level <code>INFO</code>. */
+    public void info(String message, Object first)
+    {
+        if(enabled(Level.INFO))
+            write(Level.INFO, message, first, null, null);
+    }
+
+    /** Traces a message with two arguments at level <code>INFO</code>. */
+    public void info(String message, Object first, Object second)
+    {
+        if(enabled(Level.INFO))
+            write(Level.INFO, message, first, second, null);
+    }
+
+    /** Traces a message at level <code>WARN</code>. */
+    public void warn(String message)
+    {
+        if(enabled(Level.WARN))
+            write(Level.WARN, message, null, null, null);
+    }
+
+    /** Traces a message with one argument at level <code>WARN</code>. */
+    public void warn(String message, Object first)
+    {
+        if(enabled(Level.WARN))
+            write(Level.WARN, message, first, null, null);
+    }
+
+    /** Traces a message with two arguments at level <code>WARN</code>. */
+    public void warn(String message, Object first, Object second)
+    {
+        if(enabled(Level.WARN))
+            write(Level.WARN, message, first, second, null);
+    }
+
+    /** Formats a message and writes it as one line. */
+    private void write(Level level, String message, Object first,
+                       Object second, Object third)
+    {
+        StringBuilder   line = new StringBuilder(message.length() + 80);
+        line.append(Instant.now()).append(' ').append(level).append(" [")
+            .append(Thread.currentThread().getName()).append("] ")
+            .append(name).append(": ");
+
+        Object[]        arguments = {first, second, third};
+        int             used = 0;
+        int             start = 0;
+        int             marker;
+        while(used < arguments.length &&
+              (marker = message.indexOf("{}", start)) >= 0)
+        {
+            line.append(message, start, marker)
+                .append(String.valueOf(arguments[used++]));
+            start = marker + 2;
+        }
+        line.append(message, start, message.length());
+
+        output.println(line);
+    }
+
+    /** Returns the threshold of the trace with the given name: the ordinal of
+        the level set for the longest prefix of the name, or -1. */
+    private static int threshold(String name)
+    {
+        String      longest = null;
+        for(String prefix : levels.keySet())
+        {
+            if(name.startsWith(prefix) &&
+               (longest == null || prefix.length() > longest.length()))
+            {
+                longest = prefix;
+            }
+        }
+
+        Level       level = longest == null ? null : levels.get(longest);
+        return level == null ? -1 : level.ordinal();
+    }
+
+    /** Parses the value of the <code>dfs.trace</code> property. Malformed
+        entries are ignored. */
+    private static Map<String, Level> parse(String property)
+    {
+        Map<String, Level>  parsed = new HashMap<String, Level>();
+        if(property == null)
+            return parsed;
+
+        for(String entry : property.split(","))
+        {
+            int     equals = entry.indexOf('=');
+            String  prefix = equals < 0 ? "" : entry.substring(0, equals).trim();
+            String  level = entry.substring(equals + 1).trim()
+                .toUpperCase(Locale.ROOT);
+            try
+            {
+                parsed.put(prefix, level.equals("OFF") ? null :
+                                   Level.valueOf(level));
+            }
+            catch(IllegalArgumentException e)
+            {
+                System.err.println("Ignoring trace level " + entry);
+            }
+        }
+
+        return parsed;
+    }
+}
@@ -23,6 +23,27 @@
     provides methods for creating stubs. Each stub object is given the network
     address of the skeleton with which it is to communicate when it is created.
 
+    <p>
+    Stubs do not open a connection per call. All stubs in a process that refer
+    to the same skeleton address share one persistent TCP connection, over
+    which any number of calls may be outstanding at once; each call and its
+    reply are tagged with a call identifier. The skeleton serves a connection
+    until the stub side closes it, running each call in its own thread.
+    Connections are served either by a thread each or, for skeletons with many
+    mostly idle clients, by a few threads sharing a selector (see
+    <code>SkeletonTransport</code>).
+
+    <p>
+    Arguments and results are encoded by a <code>Codec</code> agreed when the
+    connection is opened. The default <code>BinaryCodec</code> writes common
+    types such as paths and byte arrays compactly and falls back to Java
+    serialization for anything else. Methods are identified on the wire by
+    small ordinals rather than by name. Large calls and replies are also
+    compressed, with a <code>Compressor</code> agreed at the same time (see
+    <code>Compressors</code>). Frames are built and received in direct buffers
+    reused from <code>BufferPool</code>, so that large transfers do not churn
+    the heap.
+
     <p>
     To use the library, first define a <em>remote interface</em>: an interface
     in which all public methods are marked as throwing
@@ -70,5 +91,32 @@
     client. To avoid this, the RMI library allows the client to create an
     initial stub by directly providing a network address to a version of
     <code>create</code>.
+
+    <p>
+    A client that wants several calls in progress at once, without a thread
+    for each, can use an asynchronous stub created by
+    <code>Stub.createAsync</code>. It implements a companion of the remote
+    interface whose methods return <code>CompletableFuture</code>, and sends
+    its calls over the same connection as ordinary stubs. A fixed sequence of
+    calls to one remote object can instead be recorded in a <code>Batch</code>,
+    which sends all of them to the skeleton in one frame and receives all of
+    their outcomes in one reply.
+
+    <p>
+    By default, a call waits for its reply for as long as the connection
+    stays open. <code>Stub.withTimeout</code> gives the calls of a stub a
+    deadline, which is also sent to the skeleton (see <code>Deadline</code>).
+    Methods marked as <code>Idempotent</code> are retried when the network
+    fails.
+
+    <p>
+    Stubs and skeletons count the calls to each remote method, with their
+    latency, size and outcome. The counts can be read from
+    <code>RMIMetrics</code>, or through JMX.
+
+    <p>
+    The library, and the servers built on it, trace their work through
+    <code>Trace</code>. Tracing is off unless the <code>dfs.trace</code> system
+    property turns it on, and costs almost nothing while it is off.
  */
 package rmi;
@@ -0,0 +1,290 @@
+package storage;
+
+import common.Path;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Client end of a storage server's bulk data channel.
+ * <p>
+ * <p>
+ * The bulk data channel is a plain TCP connection to the address returned by
+ * {@link Storage#bulkAddress}. It carries reads and writes of file contents
+ * without RMI: each request is a short header naming the file, offset and
+ * length, followed for writes by the data itself; each reply is a status,
+ * followed for reads by the data. On the storage server, read data goes from
+ * the file to the socket with <code>FileChannel.transferTo</code>. On this
+ * side, data goes between the socket and the caller's buffer or file without
+ * being copied into intermediate arrays.
+ * <p>
+ * <p>
+ * A bulk client holds one connection, which is opened on first use and kept
+ * open until the client is closed. If a transfer fails, the connection is
+ * closed and the next transfer opens a new one. Bulk clients are
+ * thread-safe, but transfers through one client happen one at a time.
+ */
+public class BulkClient implements Closeable {
+  // request types
+  static final byte READ = 1;
+  static final byte WRITE = 2;
+
+  // reply statuses
+  static final byte OK = 0;
+  static final byte NOT_FOUND = 1;
+  static final byte OUT_OF_BOUNDS = 2;
+  static final byte FAILED = 3;
+  static final byte DRAINING = 4;
+  static final byte CORRUPT = 5;
+
+  private final InetSocketAddress address;
+  private SocketChannel channel;
+  // receives the status of each reply; guarded by this, like the connection
+  private final ByteBuffer status = ByteBuffer.allocate(1);
+
+  /**
+   * Creates a bulk client for the given bulk data channel. The connection is
+   * opened on first use.
+   *
+   * @param address Address of the bulk data channel.
+   * @throws NullPointerException If <code>address</code> is <code>null</code>.
+   */
+  public BulkClient(InetSocketAddress address) {
+    if (address == null) {
+      throw new NullPointerException("address is null");
+    }
+    this.address = address;
+  }
+
+  /**
+   * Returns a bulk client for the given storage server, or <code>null</code>
+   * if the storage server has no bulk data channel.
+   *
+   * @param server Storage server.
+   * @throws rmi.RMIException If the storage server cannot be contacted.
+   */
+  public static BulkClient of(Storage server) throws rmi.RMIException {
+    InetSocketAddress address = server.bulkAddress();
+    return address == null ? null : new BulkClient(address);
+  }
+
+  /**
+   * Reads bytes from a file into a buffer. The number of bytes read is the
+   * number of bytes remaining in the buffer.
+   *
+   * @param file   Path to the file.
+   * @param offset Offset into the file of the first byte to be read.
+   * @param target Buffer receiving the bytes.
+   * @throws IndexOutOfBoundsException If the sequence to be read is outside
+   *                                   the bounds of the file.
+   * @throws FileNotFoundException     If the file cannot be found or the path
+   *                                   refers to a directory.
+   * @throws DrainingException        If the storage server is shutting
+   *                                   down.
+   * @throws ChecksumException         If the bytes do not match the checksums
+   *                                   of the file on the storage server.
+   * @throws IOException               If the transfer fails.
+   */
+  public synchronized void read(Path file, long offset, ByteBuffer target) throws IOException {
+    int length = target.remaining();
+    SocketChannel channel = request(READ, file, offset, length);
+    try {
+      checkStatus(channel);
+      readFully(channel, target);
+    } catch (IOException e) {
+      disconnect();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads bytes from a file of the storage server into a local file.
+   *
+   * @param file     Path to the file on the storage server.
+   * @param offset   Offset into that file of the first byte to be read.
+   * @param length   Number of bytes to be read.
+   * @param target   Local file receiving the bytes.
+   * @param position Position in the local file at which the bytes are to be
+   *                 written.
+   * @throws IndexOutOfBoundsException If the sequence to be read is outside
+   *                                   the bounds of the file.
+   * @throws FileNotFoundException     If the file cannot be found or the path
+   *                                   refers to a directory.
+   * @throws DrainingException        If the storage server is shutting
+   *                                   down.
+   * @throws ChecksumException         If the bytes do not match the checksums
+   *                                   of the file on the storage server.
+   * @throws IOException               If the transfer fails.
+   */
+  public synchronized void read(Path file, long offset, int length, FileChannel target, long position)
+      throws IOException {
+    SocketChannel channel = request(READ, file, offset, length);
+    try {
+      checkStatus(channel);
+      long end = position + length;
+      while (position < end) {
+        long transferred = target.transferFrom(channel, position, end - position);
+        if (transferred == 0) {
+          throw new EOFException("bulk data channel closed during a read");
+        }
+        position += transferred;
+      }
+    } catch (IOException e) {
+      disconnect();
+      throw e;
+    }
+  }
+
+  /**
+   * Writes the bytes remaining in a buffer to a file.
+   *
+   * @param file   Path to the file.
+   * @param offset Offset into the file where the bytes are to be written.
+   * @param data   Buffer holding the bytes.
+   * @throws IndexOutOfBoundsException If <code>offset</code> is negative.
+   * @throws FileNotFoundException     If the file cannot be found or the path
+   *                                   refers to a directory.
+   * @throws DrainingException        If the storage server is shutting
+   *                                   down.
+   * @throws IOException               If the transfer fails.
+   */
+  public synchronized void write(Path file, long offset, ByteBuffer data) throws IOException {
+    SocketChannel channel = request(WRITE, file, offset, data.remaining());
+    try {
+      while (data.hasRemaining()) {
+        channel.write(data);
+      }
+      checkStatus(channel);
+    } catch (IOException e) {
+      disconnect();
+      throw e;
+    }
+  }
+
+  /**
+   * Thrown when the storage server refuses a request because it is shutting
+   * down. The request was not served, and may be sent again over RMI, whose
+   * stubs retry refused calls.
+   */
+  public static class DrainingException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /** Creates a <code>DrainingException</code> with the given message. */
+    public DrainingException(String message) {
+      super(message);
+    }
+  }
+
+  /** Closes the connection to the bulk data channel, if it is open. */
+  @Override
+  public synchronized void close() {
+    disconnect();
+  }
+
+  // Sends a request header, connecting first if necessary.
+  private SocketChannel request(byte type, Path file, long offset, int length) throws IOException {
+    if (file == null) {
+      throw new NullPointerException("file is null");
+    }
+
+    if (channel == null) {
+      channel = SocketChannel.open(address);
+      channel.socket().setTcpNoDelay(true);
+    }
+
+    ByteBuffer header = encodeHeader(type, file.toString(), offset, length);
+    try {
+      while (header.hasRemaining()) {
+        channel.write(header);
+      }
+    } catch (IOException e) {
+      disconnect();
+      throw e;
+    }
+    return channel;
+  }
+
+  private void disconnect() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // the connection is abandoned either way
+      }
+      channel = null;
+    }
+  }
+
+  // Reads a reply status and throws the exception it stands for, if any.
+  private void checkStatus(SocketChannel channel) throws IOException {
+    status.clear();
+    readFully(channel, status);
+    byte code = status.get(0);
+    if (code == OK) {
+      return;
+    }
+
+    String message = readString(channel);
+    switch (code) {
+      case NOT_FOUND:
+        throw new FileNotFoundException(message);
+      case OUT_OF_BOUNDS:
+        throw new IndexOutOfBoundsException(message);
+      case DRAINING:
+        throw new DrainingException(message);
+      case CORRUPT:
+        throw new ChecksumException(message);
+      default:
+        throw new IOException(message);
+    }
+  }
+
+  // Headers and status messages, shared with BulkServer.
+
+  /**
+   * Encodes a request header: the type, the offset, the length, and the path as
+   * a length-prefixed UTF-8 string.
+   */
+  static ByteBuffer encodeHeader(byte type, String path, long offset, int length) {
+    byte[] name = path.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer header = ByteBuffer.allocate(1 + 8 + 4 + 4 + name.length);
+    header.put(type).putLong(offset).putInt(length).putInt(name.length).put(name);
+    header.flip();
+    return header;
+  }
+
+  /** Encodes a status that is not <code>OK</code>, followed by a message. */
+  static ByteBuffer encodeFailure(byte status, String message) {
+    byte[] text = String.valueOf(message).getBytes(StandardCharsets.UTF_8);
+    ByteBuffer reply = ByteBuffer.allocate(1 + 4 + text.length);
+    reply.put(status).putInt(text.length).put(text);
+    reply.flip();
+    return reply;
+  }
+
+  /** Reads a length-prefixed UTF-8 string. */
+  static String readString(SocketChannel channel) throws IOException {
+    ByteBuffer length = ByteBuffer.allocate(4);
+    readFully(channel, length);
+    int size = length.getInt(0);
+    if (size < 0 || size > 64 * 1024) {
+      throw new StreamCorruptedException("bad string length " + size);
+    }
+    ByteBuffer text = ByteBuffer.allocate(size);
+    readFully(channel, text);
+    return new String(text.array(), StandardCharsets.UTF_8);
+  }
+
+  /** Fills the remaining space of a buffer from a channel. */
+  static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new EOFException("bulk data channel closed");
+      }
+    }
+  }
+}
@@ -0,0 +1,321 @@
+package storage;
+
+import common.Path;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server end of a storage server's bulk data channel (see {@link BulkClient}).
+ * <p>
+ * <p>
+ * One thread accepts connections, and each connection is served by its own
+ * thread, one request after another. Requests are checked against the storage
+ * server in the same way as RMI reads and writes. Read data is sent with
+ * <code>FileChannel.transferTo</code>, which lets the operating system move it
+ * from the file to the socket without copying it through the Java heap.
+ */
+class BulkServer {
+  // size of the buffer used to receive written data
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+  private final StorageServer server;
+  private final ServerSocketChannel listener;
+  private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+  private volatile boolean stopped = false;
+  // set when requests are to be refused with DRAINING
+  private volatile boolean draining = false;
+  // number of requests being served; guarded by this
+  private int busy = 0;
+
+  /**
+   * Opens the bulk data channel on the given address and starts accepting
+   * connections.
+   *
+   * @param server  Storage server whose files are served.
+   * @param address Address to listen on. The port may be zero.
+   * @throws IOException If the channel cannot be opened.
+   */
+  BulkServer(StorageServer server, InetSocketAddress address) throws IOException {
+    this.server = server;
+    this.listener = ServerSocketChannel.open();
+    try {
+      listener.bind(address);
+    } catch (IOException e) {
+      listener.close();
+      throw e;
+    }
+
+    Thread acceptor = new Thread(new Runnable() {
+      public void run() {
+        accept();
+      }
+    }, "storage-bulk-listener");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /** Returns the port the bulk data channel listens on. */
+  int port() {
+    return ((InetSocketAddress) listener.socket().getLocalSocketAddress()).getPort();
+  }
+
+  /**
+   * Stops accepting connections, and refuses the requests that arrive from now
+   * on over open connections with a <code>DRAINING</code> status, closing each
+   * connection after such a request. Requests being served are not
+   * interrupted.
+   */
+  synchronized void drain() {
+    draining = true;
+    closeQuietly(listener);
+  }
+
+  /**
+   * Waits until no request is being served, or until a deadline.
+   *
+   * @param deadline Deadline, as a value of <code>System.nanoTime</code>.
+   * @return <code>true</code> if no request is being served.
+   */
+  synchronized boolean awaitIdle(long deadline) {
+    while (busy > 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    return busy == 0;
+  }
+
+  /**
+   * Stops accepting connections and closes all open connections, interrupting
+   * the requests being served.
+   */
+  void stop() {
+    draining = true;
+    stopped = true;
+    closeQuietly(listener);
+    for (SocketChannel connection : connections) {
+      closeQuietly(connection);
+    }
+  }
+
+  private void accept() {
+    while (!stopped) {
+      final SocketChannel connection;
+      try {
+        connection = listener.accept();
+        connection.socket().setTcpNoDelay(true);
+      } catch (IOException e) {
+        if (!stopped && !draining) {
+          e.printStackTrace();
+        }
+        return;
+      }
+
+      connections.add(connection);
+      Thread worker = new Thread(new Runnable() {
+        public void run() {
+          serve(connection);
+        }
+      }, "storage-bulk-" + connection.socket().getRemoteSocketAddress());
+      worker.setDaemon(true);
+      worker.start();
+    }
+  }
+
+  // Serves requests from one connection until the client closes it. The buffer receiving
+  // written data is taken from the RMI buffer pool, so that short connections do not each
+  // allocate direct memory.
+  private void serve(SocketChannel connection) {
+    ByteBuffer fixed = ByteBuffer.allocate(1 + 8 + 4 + 4);
+    ByteBuffer buffer = rmi.BufferPool.acquire(WRITE_BUFFER_SIZE);
+    try {
+      while (!stopped) {
+        fixed.clear();
+        if (connection.read(fixed) < 0) {
+          break; // closed between requests
+        }
+        BulkClient.readFully(connection, fixed);
+        fixed.flip();
+        byte type = fixed.get();
+        long offset = fixed.getLong();
+        int length = fixed.getInt();
+        int nameLength = fixed.getInt();
+        if (nameLength < 0 || nameLength > 64 * 1024 || length < 0) {
+          throw new StreamCorruptedException("bad bulk request header");
+        }
+        ByteBuffer name = ByteBuffer.allocate(nameLength);
+        BulkClient.readFully(connection, name);
+        Path file = new Path(new String(name.array(), StandardCharsets.UTF_8));
+
+        if (!begin()) {
+          if (type == BulkClient.WRITE) {
+            discard(connection, length, buffer);
+          }
+          writeFully(connection, BulkClient.encodeFailure(BulkClient.DRAINING,
+              "storage server is shutting down"));
+          break;
+        }
+        try {
+          if (type == BulkClient.READ) {
+            PathLocks.Held held = server.locks().read(file);
+            try (held) {
+              serveRead(connection, file, offset, length);
+            }
+          } else if (type == BulkClient.WRITE) {
+            PathLocks.Held held = server.locks().write(file);
+            try (held) {
+              serveWrite(connection, file, offset, length, buffer);
+            }
+          } else {
+            throw new StreamCorruptedException("bad bulk request type " + type);
+          }
+        } finally {
+          end();
+        }
+      }
+    } catch (IOException | IllegalArgumentException e) {
+      if (!stopped) {
+        System.out.println("Bulk data connection failed: " + e);
+      }
+    } finally {
+      rmi.BufferPool.release(buffer);
+      connections.remove(connection);
+      closeQuietly(connection);
+    }
+  }
+
+  // Counts a request as being served, unless the server is draining.
+  private synchronized boolean begin() {
+    if (draining) {
+      return false;
+    }
+    busy++;
+    return true;
+  }
+
+  private synchronized void end() {
+    busy--;
+    notifyAll();
+  }
+
+  private void serveRead(SocketChannel connection, Path file, long offset, int length)
+      throws IOException {
+    ChannelCache.Handle channel;
+    try {
+      channel = server.openRead(file, offset, length);
+    } catch (FileNotFoundException e) {
+      writeFully(connection, BulkClient.encodeFailure(BulkClient.NOT_FOUND, e.getMessage()));
+      return;
+    } catch (IndexOutOfBoundsException e) {
+      writeFully(connection, BulkClient.encodeFailure(BulkClient.OUT_OF_BOUNDS, e.getMessage()));
+      return;
+    }
+
+    try {
+      FileChannel source = channel.channel();
+      // the blocks are checked before the status is sent, since the client
+      // cannot be told of a bad block once the bytes are on their way
+      try {
+        server.verify(file, source, offset, length);
+      } catch (ChecksumException e) {
+        writeFully(connection, BulkClient.encodeFailure(BulkClient.CORRUPT, e.getMessage()));
+        return;
+      }
+      writeFully(connection, ByteBuffer.wrap(new byte[] {BulkClient.OK}));
+      long position = offset;
+      long end = offset + length;
+      while (position < end) {
+        long sent = source.transferTo(position, end - position, connection);
+        if (sent == 0 && source.size() <= position) {
+          // the file shrank after it was checked; the client cannot be told
+          // any more, since the status has been sent
+          throw new EOFException(file + " truncated during a bulk read");
+        }
+        position += sent;
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  private void serveWrite(SocketChannel connection, Path file, long offset, int length,
+                          ByteBuffer buffer) throws IOException {
+    ChannelCache.Handle channel;
+    try {
+      channel = server.openWrite(file, offset);
+    } catch (FileNotFoundException e) {
+      discard(connection, length, buffer);
+      writeFully(connection, BulkClient.encodeFailure(BulkClient.NOT_FOUND, e.getMessage()));
+      return;
+    } catch (IndexOutOfBoundsException e) {
+      discard(connection, length, buffer);
+      writeFully(connection, BulkClient.encodeFailure(BulkClient.OUT_OF_BOUNDS, e.getMessage()));
+      return;
+    }
+
+    try {
+      FileChannel target = channel.channel();
+      Checksums.Update update = server.updateChecksums(file, target, offset, length);
+      long position = offset;
+      int remaining = length;
+      while (remaining > 0) {
+        buffer.clear();
+        buffer.limit(Math.min(buffer.capacity(), remaining));
+        BulkClient.readFully(connection, buffer);
+        buffer.flip();
+        remaining -= buffer.remaining();
+        if (update != null) {
+          update.add(buffer.duplicate());
+        }
+        while (buffer.hasRemaining()) {
+          position += target.write(buffer, position);
+        }
+      }
+      if (update != null) {
+        update.finish(target);
+      }
+    } finally {
+      channel.close();
+    }
+    writeFully(connection, ByteBuffer.wrap(new byte[] {BulkClient.OK}));
+  }
+
+  // Skips the data of a write that is refused, so that the next request can be read.
+  private static void discard(SocketChannel connection, int length, ByteBuffer buffer)
+      throws IOException {
+    while (length > 0) {
+      buffer.clear();
+      buffer.limit(Math.min(buffer.capacity(), length));
+      BulkClient.readFully(connection, buffer);
+      length -= buffer.limit();
+    }
+  }
+
+  private static void writeFully(SocketChannel connection, ByteBuffer data) throws IOException {
+    while (data.hasRemaining()) {
+      connection.write(data);
+    }
+  }
+
+  private static void closeQuietly(Channel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // nothing more can be done
+    }
+  }
+}
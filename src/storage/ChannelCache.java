@@ -0,0 +1,211 @@
+package storage;
+
+import common.Path;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Open channels of the files a storage server has used recently, kept between
+ * reads and writes.
+ * <p>
+ * A file is looked up on the local filesystem only when it is opened: while
+ * its channel is cached, reading, writing or measuring it costs no path
+ * resolution, no <code>stat</code> call and no <code>open</code> or
+ * <code>close</code>. The storage server keeps the cache true by forgetting a
+ * file whenever it deletes or creates it, which it does also when copying it.
+ * Files changed on the local filesystem behind the server's back are not
+ * noticed while they are cached.
+ * <p>
+ * Any number of threads may use the same channel at once, as only positional
+ * reads and writes are made on it. The number of channels kept open is
+ * bounded: the least recently used one is closed when another file is opened,
+ * but not before the reads and writes using it have finished.
+ */
+final class ChannelCache {
+  private final File root;
+  // channels by file, least recently used first
+  private final LinkedHashMap<Path, Entry> entries;
+
+  // counters, guarded by this
+  private long hits;
+  private long opens;
+
+  /**
+   * Creates an empty cache.
+   *
+   * @param root     Directory the paths of files are relative to.
+   * @param capacity Most channels kept open while nothing is using them.
+   */
+  ChannelCache(File root, final int capacity) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("cache capacity must be positive");
+    }
+    this.root = root;
+    entries = new LinkedHashMap<Path, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Path, Entry> eldest) {
+        if (size() <= capacity) {
+          return false;
+        }
+        eldest.getValue().retire();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * Returns a channel on a file, opening the file unless it is cached.
+   *
+   * @param file Path of the file.
+   * @return A handle on the channel, to be closed when it is no longer used.
+   * @throws FileNotFoundException If the file cannot be found or the path
+   *                               refers to a directory.
+   * @throws IOException           If the file cannot be opened.
+   */
+  Handle acquire(Path file) throws IOException {
+    synchronized (this) {
+      Entry entry = entries.get(file);
+      if (entry != null) {
+        hits++;
+        entry.users++;
+        return new Handle(entry);
+      }
+    }
+
+    // opened outside the lock; of two threads opening the same file at once,
+    // the second keeps its own channel uncached
+    Entry entry = open(file.toFile(root).toPath());
+    synchronized (this) {
+      opens++;
+      entry.users++;
+      if (!entries.containsKey(file)) {
+        entries.put(file, entry);
+      } else {
+        entry.retired = true;
+      }
+    }
+    return new Handle(entry);
+  }
+
+  // Opens a file for reading and, if it may be, writing.
+  private static Entry open(java.nio.file.Path local) throws IOException {
+    BasicFileAttributes attributes;
+    try {
+      attributes = Files.readAttributes(local, BasicFileAttributes.class);
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException("the file doesn't exist");
+    }
+    if (attributes.isDirectory()) {
+      throw new FileNotFoundException("the file is a directory");
+    }
+
+    try {
+      return new Entry(FileChannel.open(local, StandardOpenOption.READ, StandardOpenOption.WRITE), true);
+    } catch (AccessDeniedException e) {
+      return new Entry(FileChannel.open(local, StandardOpenOption.READ), false);
+    } catch (NoSuchFileException e) {
+      throw new FileNotFoundException("the file doesn't exist");
+    }
+  }
+
+  /** Closes the channels of a file, or of the files under a directory. */
+  synchronized void forget(Path path) {
+    Iterator<Map.Entry<Path, Entry>> iterator = entries.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Path, Entry> entry = iterator.next();
+      if (entry.getKey().isSubpath(path)) {
+        entry.getValue().retire();
+        iterator.remove();
+      }
+    }
+  }
+
+  /** Closes all the channels. */
+  synchronized void clear() {
+    for (Entry entry : entries.values()) {
+      entry.retire();
+    }
+    entries.clear();
+  }
+
+  /** Returns the number of times a cached channel was used. */
+  synchronized long hits() {
+    return hits;
+  }
+
+  /** Returns the number of times a file was opened. */
+  synchronized long opens() {
+    return opens;
+  }
+
+  // A channel, and the number of handles using it. Guarded by the cache.
+  private static final class Entry {
+    final FileChannel channel;
+    final boolean writable;
+    int users;
+    boolean retired;
+
+    Entry(FileChannel channel, boolean writable) {
+      this.channel = channel;
+      this.writable = writable;
+    }
+
+    void retire() {
+      retired = true;
+      if (users == 0) {
+        closeQuietly(channel);
+      }
+    }
+  }
+
+  /** Use of a cached channel by one operation. */
+  final class Handle implements AutoCloseable {
+    private final Entry entry;
+
+    private Handle(Entry entry) {
+      this.entry = entry;
+    }
+
+    /**
+     * Returns the channel. Only positional reads and writes may be made on
+     * it.
+     */
+    FileChannel channel() {
+      return entry.channel;
+    }
+
+    /** Tells whether the file could be opened for writing. */
+    boolean writable() {
+      return entry.writable;
+    }
+
+    /** Ends the use of the channel, closing it if it has been evicted. */
+    @Override
+    public void close() {
+      synchronized (ChannelCache.this) {
+        if (--entry.users == 0 && entry.retired) {
+          closeQuietly(entry.channel);
+        }
+      }
+    }
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // nothing more can be done
+    }
+  }
+}
@@ -0,0 +1,17 @@
+package storage;
+
+import java.io.IOException;
+
+/**
+ * Thrown when bytes of a file do not match the checksum kept for them, because
+ * they have been damaged on the disk or on their way from another storage
+ * server. Clients recover by reading the file from another replica.
+ */
+public class ChecksumException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  /** Creates a <code>ChecksumException</code> with the given message. */
+  public ChecksumException(String message) {
+    super(message);
+  }
+}
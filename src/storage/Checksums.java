@@ -0,0 +1,601 @@
+package storage;
+
+import common.Path;
+import rmi.Trace;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * Block checksums of the files of a storage server.
+ * <p>
+ * Files are divided into blocks of {@link #BLOCK} bytes, the last of which may
+ * be shorter, and the CRC32C of each block is kept in a sidecar file at the
+ * same path under {@link #DIRECTORY}, in the root of the server. Reads check
+ * the blocks they cover against the sums, so that bytes damaged on the disk
+ * are reported rather than returned.
+ * <p>
+ * The sums of the blocks a write covers entirely are computed from the bytes
+ * written, as they are written. Only the blocks at the edges of the write,
+ * which also hold bytes written before, are read back from the disk once the
+ * write is made. The sidecar of a file is deleted before the file is first
+ * written after the sidecar was saved, so that a sidecar on the disk always
+ * describes its file, even after a crash while the file was being written.
+ * Sidecars are saved again when the file is synced, when the write-behind
+ * buffer commits its writes, when the sums of the file leave memory, and when
+ * the server stops. Files that have no sidecar, such as those placed in the
+ * root before the server started, have their sums taken as they are read.
+ * <p>
+ * The sums of the files used most recently are kept in memory. The storage
+ * server calls these methods with the path of the file locked, except for the
+ * commits of the write-behind buffer; readers sharing a path lock update the
+ * sums of a file under its monitor.
+ */
+final class Checksums {
+  private static final Trace trace = Trace.of(Checksums.class);
+
+  /** Length of a block, in bytes. */
+  static final int BLOCK = 16 * 1024;
+  /** Directory of the sidecar files, in the root of the server. */
+  static final String DIRECTORY = Command.CHECKSUMS_DIRECTORY;
+
+  // first bytes of a sidecar file
+  private static final int MAGIC = 0x44465343;
+
+  // block buffers of the threads reading blocks that a read covers only in part
+  private static final ThreadLocal<ByteBuffer> blocks = new ThreadLocal<ByteBuffer>() {
+    @Override
+    protected ByteBuffer initialValue() {
+      return ByteBuffer.allocate(BLOCK);
+    }
+  };
+
+  private final File directory;
+  // sums by file, least recently used first; guarded by this
+  private final LinkedHashMap<Path, Sums> files;
+  // sums that left memory, to be saved once the monitor is released; guarded by this
+  private final Map<Path, Sums> evicted = new LinkedHashMap<Path, Sums>();
+
+  /**
+   * Creates the checksums of the files under a directory.
+   *
+   * @param root     Root of the storage server.
+   * @param capacity Most files whose sums are kept in memory.
+   */
+  Checksums(File root, final int capacity) {
+    this.directory = new File(root, DIRECTORY);
+    files = new LinkedHashMap<Path, Sums>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Path, Sums> eldest) {
+        if (size() <= capacity) {
+          return false;
+        }
+        evicted.put(eldest.getKey(), eldest.getValue());
+        return true;
+      }
+    };
+  }
+
+  // Sums of one file. Guarded by its own monitor.
+  private static final class Sums {
+    // sum of each block, valid where known is set
+    int[] sums;
+    final BitSet known = new BitSet();
+    // length of the file, as far as its writes tell
+    long length;
+    // set while the sidecar on the disk describes the file
+    boolean saved;
+    // writes started, so that a sidecar is not saved with sums taken before one
+    long generation;
+
+    Sums(long length) {
+      this.length = length;
+      this.sums = new int[blocks(length)];
+    }
+
+    void grow(int count) {
+      if (count > sums.length) {
+        sums = Arrays.copyOf(sums, Math.max(count, sums.length * 2));
+      }
+    }
+  }
+
+  /** Returns the number of blocks of a file of the given length. */
+  static int blocks(long length) {
+    return (int) ((length + BLOCK - 1) / BLOCK);
+  }
+
+  /** Returns the CRC32C of the bytes remaining in a buffer, which it consumes. */
+  static int checksum(ByteBuffer data) {
+    CRC32C crc = new CRC32C();
+    crc.update(data);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Computes the sums of all the blocks of a file, without keeping them.
+   *
+   * @param channel Channel of the file.
+   * @return The sum of each block.
+   * @throws IOException If the file cannot be read.
+   */
+  static int[] compute(FileChannel channel) throws IOException {
+    long length = channel.size();
+    int[] sums = new int[blocks(length)];
+    ByteBuffer block = blocks.get();
+    for (int b = 0; b < sums.length; b++) {
+      sums[b] = checksum(readBlock(channel, b, length, block));
+    }
+    return sums;
+  }
+
+  /**
+   * Checks the blocks covered by a read, using the bytes read for the blocks
+   * they cover entirely, and reading the others.
+   *
+   * @param file     File read.
+   * @param channel  Channel of the file.
+   * @param position Offset into the file of the first byte read.
+   * @param data     The bytes read.
+   * @throws ChecksumException If a block does not match its sum.
+   * @throws IOException       If a block cannot be read.
+   */
+  void verify(Path file, FileChannel channel, long position, byte[] data) throws IOException {
+    if (data.length == 0) {
+      return;
+    }
+    long length = channel.size();
+    Sums sums = entry(file, channel);
+    long end = position + data.length;
+    for (int b = (int) (position / BLOCK); (long) b * BLOCK < end; b++) {
+      long start = (long) b * BLOCK;
+      long stop = Math.min(start + BLOCK, length);
+      ByteBuffer block;
+      if (start >= position && stop <= end) {
+        block = ByteBuffer.wrap(data, (int) (start - position), (int) (stop - start));
+      } else {
+        block = readBlock(channel, b, length, blocks.get());
+      }
+      check(file, sums, b, checksum(block));
+    }
+  }
+
+  /**
+   * Checks the blocks covering a sequence of bytes of a file, reading them.
+   *
+   * @param file    File to be read.
+   * @param channel Channel of the file.
+   * @param offset  Offset into the file of the first byte to be read.
+   * @param length  Number of bytes to be read.
+   * @throws ChecksumException If a block does not match its sum.
+   * @throws IOException       If a block cannot be read.
+   */
+  void verify(Path file, FileChannel channel, long offset, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    long size = channel.size();
+    Sums sums = entry(file, channel);
+    ByteBuffer block = blocks.get();
+    for (int b = (int) (offset / BLOCK); (long) b * BLOCK < offset + length; b++) {
+      check(file, sums, b, checksum(readBlock(channel, b, size, block)));
+    }
+  }
+
+  // Compares the sum of a block with the one kept, or keeps it if none is known.
+  private static void check(Path file, Sums sums, int block, int sum) throws ChecksumException {
+    synchronized (sums) {
+      sums.grow(block + 1);
+      if (!sums.known.get(block)) {
+        sums.sums[block] = sum;
+        sums.known.set(block);
+      } else if (sums.sums[block] != sum) {
+        trace.warn("Block {} of {} does not match its checksum", block, file);
+        throw new ChecksumException("block " + block + " of " + file + " does not match its checksum");
+      }
+    }
+  }
+
+  /**
+   * Starts keeping the sums of the blocks changed by a write. Called before
+   * the write: the blocks lose their sums until the update is finished, and
+   * the sidecar of the file is deleted. The bytes are then passed to
+   * {@link Update#add} as they are written, and {@link Update#finish} is
+   * called once they all are.
+   *
+   * @param file    File written.
+   * @param channel Channel of the file.
+   * @param offset  Offset into the file of the first byte written.
+   * @param length  Number of bytes written.
+   * @return The update, or <code>null</code> if nothing is written.
+   * @throws IOException If the sidecar of the file cannot be deleted.
+   */
+  Update update(Path file, FileChannel channel, long offset, long length) throws IOException {
+    if (length == 0) {
+      return null;
+    }
+    Sums sums = entry(file, channel);
+    long first;
+    synchronized (sums) {
+      long end = offset + length;
+      // a write past the end also changes the last block, if it was short,
+      // and the blocks of the gap
+      first = end > sums.length ? Math.min(offset, sums.length) : offset;
+      sums.grow(blocks(end));
+      sums.known.clear((int) (first / BLOCK), blocks(end));
+      sums.length = Math.max(sums.length, end);
+      sums.generation++;
+      if (sums.saved) {
+        Files.deleteIfExists(file.toFile(directory).toPath());
+        sums.saved = false;
+      }
+    }
+    return new Update(file, sums, first, offset, offset + length);
+  }
+
+  /** Sums of the blocks changed by one write, computed as it is made. */
+  static final class Update {
+    private final Path file;
+    private final Sums sums;
+    // first block changed, which precedes the write if it leaves a gap
+    private final int first;
+    private final long end;
+    // first block starting in the write, and the sums of the blocks from it
+    // that the bytes added so far cover entirely
+    private final int whole;
+    private final int[] values;
+    private int computed;
+    private long position;
+    private final CRC32C crc = new CRC32C();
+
+    private Update(Path file, Sums sums, long first, long offset, long end) {
+      this.file = file;
+      this.sums = sums;
+      this.first = (int) (first / BLOCK);
+      this.end = end;
+      this.whole = blocks(offset);
+      this.values = new int[Math.max(0, blocks(end) - whole)];
+      this.position = offset;
+    }
+
+    /**
+     * Adds the next bytes written, which the buffer holds from its position
+     * to its limit. The buffer is consumed.
+     */
+    void add(ByteBuffer data) {
+      while (data.hasRemaining()) {
+        int b = (int) (position / BLOCK);
+        long next = (long) (b + 1) * BLOCK;
+        int count = (int) Math.min(data.remaining(), next - position);
+        if (b >= whole) {
+          ByteBuffer bytes = data.duplicate();
+          bytes.limit(bytes.position() + count);
+          crc.update(bytes);
+        }
+        data.position(data.position() + count);
+        position += count;
+        if (position == next && b >= whole) {
+          values[computed++] = (int) crc.getValue();
+          crc.reset();
+        }
+      }
+    }
+
+    /**
+     * Keeps the sums of the blocks changed by the write, once all of its bytes
+     * have been added and written. The blocks the write covers only in part
+     * are read back.
+     *
+     * @param channel Channel of the file.
+     * @throws IOException If a block cannot be read.
+     */
+    void finish(FileChannel channel) throws IOException {
+      long length = channel.size();
+      // a short last block is covered entirely if the write ends the file
+      if (position == end && end == length && end % BLOCK != 0 && (end - 1) / BLOCK >= whole) {
+        values[computed++] = (int) crc.getValue();
+      }
+
+      ByteBuffer block = blocks.get();
+      int last = blocks(end);
+      for (int b = first; b < last; b++) {
+        int sum;
+        if (b >= whole && b < whole + computed) {
+          sum = values[b - whole];
+        } else {
+          sum = checksum(readBlock(channel, b, length, block));
+        }
+        synchronized (sums) {
+          sums.grow(b + 1);
+          sums.sums[b] = sum;
+          sums.known.set(b);
+        }
+      }
+      synchronized (sums) {
+        sums.length = length;
+      }
+      trace.debug("Checksums of blocks {} to {} of {} updated", first, last - 1, file);
+    }
+  }
+
+  /**
+   * Returns the sums of all the blocks of a file, reading the blocks whose
+   * sums are unknown.
+   *
+   * @param file    File.
+   * @param channel Channel of the file, whose writes have all been made.
+   * @return The sum of each block.
+   * @throws IOException If the file cannot be read.
+   */
+  int[] sums(Path file, FileChannel channel) throws IOException {
+    long length = channel.size();
+    Sums sums = entry(file, channel);
+    ByteBuffer block = blocks.get();
+    int count = blocks(length);
+    for (int b = 0; b < count; b++) {
+      boolean known;
+      synchronized (sums) {
+        known = sums.known.get(b) && b < sums.sums.length;
+      }
+      if (!known) {
+        check(file, sums, b, checksum(readBlock(channel, b, length, block)));
+      }
+    }
+    synchronized (sums) {
+      sums.length = length;
+      return Arrays.copyOf(sums.sums, count);
+    }
+  }
+
+  /**
+   * Saves the sidecar of a file, taking the sums of the blocks whose sums are
+   * unknown from the disk.
+   *
+   * @param file    File.
+   * @param channel Channel of the file, whose writes have all been made.
+   * @throws IOException If the file cannot be read or the sidecar written.
+   */
+  void save(Path file, FileChannel channel) throws IOException {
+    Sums sums = entry(file, channel);
+    long generation;
+    synchronized (sums) {
+      if (sums.saved) {
+        return;
+      }
+      generation = sums.generation;
+    }
+    long length = channel.size();
+    int[] values = sums(file, channel);
+    synchronized (sums) {
+      // a write started meanwhile deleted the sidecar, and must not see it again
+      if (sums.generation == generation) {
+        write(file, length, values);
+        sums.saved = true;
+      }
+    }
+  }
+
+  /**
+   * Saves the sidecar of a file from the sums in memory, if they are known for
+   * all of its blocks. The file is not read, so this may be called without
+   * its path locked, as the write-behind buffer does once it has committed
+   * the writes of the file.
+   *
+   * @param file File.
+   */
+  void persist(Path file) {
+    Sums sums;
+    synchronized (this) {
+      sums = files.get(file);
+    }
+    if (sums != null) {
+      persist(file, sums);
+    }
+  }
+
+  /** Saves the sidecars of all the files whose sums in memory are complete. */
+  void close() {
+    Map<Path, Sums> all;
+    synchronized (this) {
+      all = new LinkedHashMap<Path, Sums>(files);
+      all.putAll(evicted);
+      evicted.clear();
+    }
+    for (Map.Entry<Path, Sums> entry : all.entrySet()) {
+      persist(entry.getKey(), entry.getValue());
+    }
+  }
+
+  // Saves a sidecar from sums in memory, unless it is saved or sums are unknown.
+  private void persist(Path file, Sums sums) {
+    synchronized (sums) {
+      if (sums.saved || sums.known.nextClearBit(0) < blocks(sums.length)) {
+        return;
+      }
+      try {
+        write(file, sums.length, Arrays.copyOf(sums.sums, blocks(sums.length)));
+        sums.saved = true;
+      } catch (IOException e) {
+        trace.warn("Checksums of {} could not be saved: {}", file, e);
+      }
+    }
+  }
+
+  // Saves the sidecars of the sums that left memory. Called without the monitor.
+  private void persistEvicted() {
+    Map<Path, Sums> saving;
+    synchronized (this) {
+      if (evicted.isEmpty()) {
+        return;
+      }
+      saving = new LinkedHashMap<Path, Sums>(evicted);
+      evicted.clear();
+    }
+    for (Map.Entry<Path, Sums> entry : saving.entrySet()) {
+      persist(entry.getKey(), entry.getValue());
+    }
+  }
+
+  /**
+   * Gives a file the sums of its new contents, after it has been replaced by a
+   * copy, and saves its sidecar.
+   *
+   * @param file   File.
+   * @param length Length of the new contents.
+   * @param values Sum of each block of the new contents.
+   * @throws IOException If the sidecar cannot be written.
+   */
+  void install(Path file, long length, int[] values) throws IOException {
+    Sums sums = new Sums(length);
+    System.arraycopy(values, 0, sums.sums, 0, values.length);
+    sums.known.set(0, values.length);
+    write(file, length, values);
+    sums.saved = true;
+    synchronized (this) {
+      files.put(file, sums);
+      evicted.remove(file);
+    }
+    persistEvicted();
+  }
+
+  /**
+   * Drops the sums of a file, or of the files under a directory, and deletes
+   * their sidecars, before the file or directory is deleted or created.
+   */
+  void forget(Path path) {
+    synchronized (this) {
+      Iterator<Path> paths = files.keySet().iterator();
+      while (paths.hasNext()) {
+        if (paths.next().isSubpath(path)) {
+          paths.remove();
+        }
+      }
+      paths = evicted.keySet().iterator();
+      while (paths.hasNext()) {
+        if (paths.next().isSubpath(path)) {
+          paths.remove();
+        }
+      }
+    }
+    delete(path.toFile(directory));
+  }
+
+  // Sums of a file, loaded from its sidecar if they are not in memory.
+  private Sums entry(Path file, FileChannel channel) throws IOException {
+    synchronized (this) {
+      Sums sums = files.get(file);
+      if (sums != null) {
+        return sums;
+      }
+    }
+
+    Sums sums;
+    synchronized (this) {
+      // sums that left memory but are not saved yet are still the right ones
+      sums = evicted.remove(file);
+    }
+    if (sums == null) {
+      sums = load(file, channel.size());
+    }
+    synchronized (this) {
+      Sums kept = files.get(file);
+      if (kept == null) {
+        files.put(file, sums);
+        kept = sums;
+      }
+      sums = kept;
+    }
+    persistEvicted();
+    return sums;
+  }
+
+  // Reads the sidecar of a file, if it has one that describes its current length.
+  private Sums load(Path file, long length) {
+    Sums sums = new Sums(length);
+    File sidecar = file.toFile(directory);
+    if (!sidecar.isFile()) {
+      return sums;
+    }
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(sidecar)))) {
+      if (in.readInt() != MAGIC || in.readLong() != length || in.readInt() != sums.sums.length) {
+        return sums;
+      }
+      for (int b = 0; b < sums.sums.length; b++) {
+        sums.sums[b] = in.readInt();
+      }
+      sums.known.set(0, sums.sums.length);
+      sums.saved = true;
+    } catch (IOException e) {
+      trace.warn("Checksums of {} could not be read: {}", file, e);
+      sums.known.clear();
+    }
+    return sums;
+  }
+
+  // Writes the sidecar of a file, replacing the old one in one rename.
+  private void write(Path file, long length, int[] values) throws IOException {
+    File sidecar = file.toFile(directory);
+    File parent = sidecar.getParentFile();
+    if (!parent.isDirectory() && !parent.mkdirs()) {
+      throw new IOException("cannot create directory " + parent);
+    }
+    java.nio.file.Path temporary = Files.createTempFile(parent.toPath(),
+        Command.TEMPORARY_PREFIX, null);
+    try {
+      try (DataOutputStream out = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        out.writeInt(MAGIC);
+        out.writeLong(length);
+        out.writeInt(values.length);
+        for (int value : values) {
+          out.writeInt(value);
+        }
+      }
+      Files.move(temporary, sidecar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  // Reads one block of a file into a buffer, and returns the buffer ready to be read.
+  private static ByteBuffer readBlock(FileChannel channel, int b, long length, ByteBuffer block)
+      throws IOException {
+    long start = (long) b * BLOCK;
+    block.clear();
+    block.limit((int) Math.min(BLOCK, Math.max(0, length - start)));
+    while (block.hasRemaining()) {
+      if (channel.read(block, start + block.position()) < 0) {
+        break;
+      }
+    }
+    block.flip();
+    return block;
+  }
+
+  // Deletes a sidecar, or the sidecars of a directory.
+  private static void delete(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        delete(child);
+      }
+    }
+    file.delete();
+  }
+}
@@ -1,6 +1,7 @@
 package storage;
 
 import java.io.*;
+import java.util.*;
 
 import common.*;
 import rmi.RMIException;
@@ -18,13 +19,35 @@ import rmi.RMIException;
  */
 public interface Command
 {
+    /** Prefix of the names of the files storage servers write copies to,
+        before renaming them over the files copied.
+
+        <p>
+        File names starting with this prefix are reserved: a storage server
+        deletes the files so named when it starts, as copies that did not
+        finish, so neither it nor the naming server creates or copies a file
+        whose name starts with it.
+     */
+    public static final String  TEMPORARY_PREFIX = ".dfs-copy-";
+
+    /** Name of the directory, in the root of each storage server, holding
+        the checksums of its files.
+
+        <p>
+        This name is reserved at the root of the filesystem: storage servers
+        do not list the directory to the naming server, and neither they nor
+        the naming server creates or copies a file or directory under it.
+     */
+    public static final String  CHECKSUMS_DIRECTORY = ".dfs-checksums";
+
     /** Creates a file on the storage server.
 
         @param file Path to the file to be created. The parent directory will be
                     created if it does not exist. This path may not be the root
                     directory.
         @return <code>true</code> if the file is created; <code>false</code>
-                if it cannot be created.
+                if it cannot be created, or if its name is reserved (see
+                {@link #TEMPORARY_PREFIX} and {@link #CHECKSUMS_DIRECTORY}).
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
@@ -50,7 +73,9 @@ public interface Command
         @param file Path to the file to be copied.
         @param server Storage server from which the file is to be downloaded.
         @return <code>true</code> if the file is successfully copied;
-                <code>false</code> otherwise.
+                <code>false</code> otherwise, as when its name is reserved
+                (see {@link #TEMPORARY_PREFIX} and
+                {@link #CHECKSUMS_DIRECTORY}).
         @throws FileNotFoundException If the file is not present on the remote
                                       storage server, or the path refers to a
                                       directory.
@@ -62,4 +87,58 @@ public interface Command
      */
     public boolean copy(Path file, Storage server)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Copies a file from another storage server, and then along a chain of
+        further storage servers.
+
+        <p>
+        Each server in the chain copies the file from the one before it, and
+        passes the file on as it receives it, rather than once it has all of
+        it: the next server reads the copy in progress with
+        {@link Storage#readCopy}. Copying a file to several servers this way
+        takes about as long as copying it to one, and the source sends it
+        only once.
+
+        <p>
+        The default implementation copies the file with <code>copy</code>,
+        and then has the first server of the chain copy it from the same
+        source along the rest of the chain.
+
+        @param file Path to the file to be copied.
+        @param server Storage server from which the file is to be downloaded.
+        @param chain Storage servers to which the file is to be copied after
+                     this one, in order.
+        @return The number of servers, starting with this one and following
+                the chain, that copied the file before the first one that did
+                not.
+        @throws FileNotFoundException If the file is not present on the remote
+                                      storage server, or the path refers to a
+                                      directory.
+        @throws IOException If an I/O exception occurs either on the remote or
+                            on this storage server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, whether between the caller and this storage
+                             server, or between the two storage servers.
+     */
+    public default int copyChain(Path file, Storage server, Command[] chain)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        if(!copy(file, server))
+            return 0;
+
+        if(chain.length == 0)
+            return 1;
+
+        try
+        {
+            return 1 + chain[0].copyChain(file, server,
+                                          Arrays.copyOfRange(chain, 1,
+                                                             chain.length));
+        }
+        catch(RMIException | IOException e)
+        {
+            // this server has the file; the rest of the chain is not counted
+            return 1;
+        }
+    }
 }
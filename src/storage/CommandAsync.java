@@ -0,0 +1,34 @@
+package storage;
+
+import java.util.concurrent.CompletableFuture;
+
+import common.*;
+
+/** Asynchronous companion of the storage server command interface.
+
+    <p>
+    Each method sends the call of the same name in {@link Command} and returns
+    immediately; the returned future completes with the result of the call, or
+    exceptionally with the exception the call would have thrown. Stubs
+    implementing this interface are created with
+    <code>rmi.Stub.createAsync</code>, typically from an existing
+    <code>Command</code> stub. The naming server uses them to send the same
+    command to several storage servers at once.
+ */
+public interface CommandAsync
+{
+    /** Creates a file on the storage server. See {@link Command#create}. */
+    public CompletableFuture<Boolean> create(Path file);
+
+    /** Deletes a file or directory on the storage server. See
+        {@link Command#delete}. */
+    public CompletableFuture<Boolean> delete(Path path);
+
+    /** Copies a file from another storage server. See {@link Command#copy}. */
+    public CompletableFuture<Boolean> copy(Path file, Storage server);
+
+    /** Copies a file along a chain of storage servers. See
+        {@link Command#copyChain}. */
+    public CompletableFuture<Integer> copyChain(Path file, Storage server,
+                                                Command[] chain);
+}
@@ -0,0 +1,211 @@
+package storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Delta encoding of a file against an older copy of it, in the manner of
+ * rsync.
+ * <p>
+ * The server holding the older copy sends the signature of some of its blocks:
+ * for each, a weak rolling sum and its CRC32C. The server holding the file
+ * slides a window of one block over a region of the file, one byte at a time,
+ * and looks the rolling sum of the window up among the weak sums; where the
+ * CRC32C matches too, the window is sent as the index of the block, and the
+ * bytes between matches are sent as they are. Blocks moved by bytes inserted
+ * or removed before them are found as well as blocks that stayed in place.
+ * <p>
+ * A delta is a sequence of instructions, each a tag byte: {@link #COPY}
+ * followed by the index of a block in the signature as an <code>int</code>,
+ * {@link #DATA} followed by a length as an <code>int</code> and that many bytes
+ * of the file, and finally {@link #END} followed by the offset in the file as a
+ * <code>long</code> up to which the instructions describe it. Blocks have
+ * {@link Checksums#BLOCK} bytes, and only whole blocks are in signatures.
+ */
+final class Delta {
+  /** Length of the blocks. */
+  static final int BLOCK = Checksums.BLOCK;
+
+  // instruction tags
+  static final byte END = 0;
+  static final byte COPY = 1;
+  static final byte DATA = 2;
+
+  // weak sums are kept as two 16-bit halves
+  private static final int MASK = 0xffff;
+
+  private Delta() {
+  }
+
+  /** Signature of the whole blocks of a file. */
+  static final class Signature {
+    /** Weak rolling sum of each block. */
+    final int[] weak;
+    /** CRC32C of each block. */
+    final int[] strong;
+
+    Signature(int[] weak, int[] strong) {
+      this.weak = weak;
+      this.strong = strong;
+    }
+  }
+
+  /**
+   * Computes the signature of the whole blocks of a file. A short block at the
+   * end of the file is left out.
+   *
+   * @param channel Channel of the file.
+   * @return The signature.
+   * @throws IOException If the file cannot be read.
+   */
+  static Signature signature(FileChannel channel) throws IOException {
+    int count = (int) (channel.size() / BLOCK);
+    int[] weak = new int[count];
+    int[] strong = new int[count];
+    ByteBuffer block = ByteBuffer.allocate(BLOCK);
+    for (int b = 0; b < count; b++) {
+      block.clear();
+      while (block.hasRemaining()) {
+        if (channel.read(block, (long) b * BLOCK + block.position()) < 0) {
+          // the file shrank; the blocks read so far are still good
+          return new Signature(Arrays.copyOf(weak, b), Arrays.copyOf(strong, b));
+        }
+      }
+      weak[b] = weak(block.array(), 0, BLOCK);
+      strong[b] = strong(block.array(), 0, BLOCK);
+    }
+    return new Signature(weak, strong);
+  }
+
+  /** Returns the weak rolling sum of a sequence of bytes. */
+  static int weak(byte[] data, int offset, int length) {
+    int a = 0;
+    int b = 0;
+    for (int i = 0; i < length; i++) {
+      int x = data[offset + i] & 0xff;
+      a += x;
+      b += (length - i) * x;
+    }
+    return (a & MASK) | (b << 16);
+  }
+
+  // Returns the CRC32C of a sequence of bytes.
+  private static int strong(byte[] data, int offset, int length) {
+    CRC32C crc = new CRC32C();
+    crc.update(data, offset, length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Encodes a region of a file against the signature of an older copy.
+   * <p>
+   * The region starts at the first byte of <code>data</code>. The window may
+   * match a block starting anywhere in the region, and so the instructions
+   * may describe the file a little past its end: <code>data</code> should
+   * hold a block more than the region, where the file has it.
+   *
+   * @param data      Bytes of the file from the start of the region.
+   * @param position  Offset in the file of the first byte of
+   *                  <code>data</code>.
+   * @param length    Length of the region.
+   * @param signature Signature of blocks of the older copy.
+   * @return The delta.
+   */
+  static byte[] encode(byte[] data, long position, int length, Signature signature) {
+    // blocks by a 16-bit tag of their weak sums, those sharing a tag chained
+    // through next, so that most windows are passed over with one lookup
+    int[] head = new int[1 << 16];
+    Arrays.fill(head, -1);
+    int[] next = new int[signature.weak.length];
+    for (int block = signature.weak.length - 1; block >= 0; block--) {
+      int tag = tag(signature.weak[block]);
+      next[block] = head[tag];
+      head[tag] = block;
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      int literal = 0;
+      int i = 0;
+      int end = Math.min(length, data.length);
+      int a = 0;
+      int b = 0;
+      boolean rolling = false;
+      // block following the last one matched, tried before the others
+      int expected = -1;
+      while (i < end && i + BLOCK <= data.length) {
+        if (!rolling) {
+          int initial = weak(data, i, BLOCK);
+          a = initial & MASK;
+          b = initial >>> 16;
+          rolling = true;
+        }
+
+        int sum = a | (b << 16);
+        int match = -1;
+        if (head[tag(sum)] >= 0) {
+          int crc = strong(data, i, BLOCK);
+          if (expected >= 0 && expected < next.length && signature.weak[expected] == sum
+              && signature.strong[expected] == crc) {
+            match = expected;
+          }
+          for (int c = head[tag(sum)]; c >= 0 && match < 0; c = next[c]) {
+            if (signature.weak[c] == sum && signature.strong[c] == crc) {
+              match = c;
+            }
+          }
+        }
+
+        if (match >= 0) {
+          data(out, data, literal, i);
+          out.writeByte(COPY);
+          out.writeInt(match);
+          i += BLOCK;
+          literal = i;
+          expected = match + 1;
+          rolling = false;
+          continue;
+        }
+
+        // slide the window one byte
+        if (i + BLOCK < data.length) {
+          int removed = data[i] & 0xff;
+          int added = data[i + BLOCK] & 0xff;
+          a = (a - removed + added) & MASK;
+          b = (b - BLOCK * removed + a) & MASK;
+        }
+        i++;
+      }
+
+      int stop = Math.max(i, end);
+      data(out, data, literal, stop);
+      out.writeByte(END);
+      out.writeLong(position + stop);
+      out.flush();
+    } catch (IOException e) {
+      throw new AssertionError("writing to memory failed", e);
+    }
+    return bytes.toByteArray();
+  }
+
+  // Folds a weak sum into the 16 bits used to look it up.
+  private static int tag(int sum) {
+    return (sum ^ (sum >>> 16)) & MASK;
+  }
+
+  // Writes the bytes of data from start to end, if any, as a DATA instruction.
+  private static void data(DataOutputStream out, byte[] data, int start, int end)
+      throws IOException {
+    if (end > start) {
+      out.writeByte(DATA);
+      out.writeInt(end - start);
+      out.write(data, start, end - start);
+    }
+  }
+}
@@ -0,0 +1,257 @@
+package storage;
+
+import common.Path;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory mappings of the large files a storage server reads.
+ * <p>
+ * A file at least as long as a threshold is mapped into memory the first
+ * time it is read, in segments of at most one gigabyte, so that files longer
+ * than a single mapping allows are mapped too. Reads are then copied straight
+ * from the mapping, without a system call, and the pages stay shared with the
+ * operating system's cache rather than being read into the Java heap.
+ * <p>
+ * The mappings together cover at most a budget of bytes. When mapping a file
+ * would exceed it, the least recently read files are unmapped; a file larger
+ * than the budget is not mapped at all. A mapping is also dropped when its
+ * file is deleted or created again, or has grown past the mapping. Each
+ * mapping counts the reads copying from it, and is unmapped only once they
+ * have finished, so a read never touches memory that has been unmapped.
+ */
+final class MappedFiles {
+  // longest segment mapped at once
+  private static final long SEGMENT = 1L << 30;
+
+  // releases the memory of a mapping at once, rather than when it is
+  // collected; null if the runtime does not allow it
+  private static final Object unsafe;
+  private static final Method invokeCleaner;
+
+  static {
+    Object instance = null;
+    Method method = null;
+    try {
+      Class<?> type = Class.forName("sun.misc.Unsafe");
+      Field field = type.getDeclaredField("theUnsafe");
+      field.setAccessible(true);
+      instance = field.get(null);
+      method = type.getMethod("invokeCleaner", ByteBuffer.class);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      instance = null;
+      method = null;
+    }
+    unsafe = instance;
+    invokeCleaner = method;
+  }
+
+  private final long threshold;
+  private final long budget;
+  private final long segment;
+
+  // mappings by file, least recently used first, and the bytes they cover;
+  // guarded by this
+  private final LinkedHashMap<Path, Mapping> mappings =
+      new LinkedHashMap<Path, Mapping>(16, 0.75f, true);
+  private long mapped;
+
+  /**
+   * Creates a set of mappings, initially empty.
+   *
+   * @param threshold Length from which files are mapped.
+   * @param budget    Most bytes mapped at once.
+   */
+  MappedFiles(long threshold, long budget) {
+    this(threshold, budget, SEGMENT);
+  }
+
+  /** Creates a set of mappings, mapping files in segments of the given length. */
+  MappedFiles(long threshold, long budget, long segment) {
+    if (threshold < 0 || budget < 0 || segment < 1 || segment > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("bad memory mapping limits");
+    }
+    this.threshold = threshold;
+    this.budget = budget;
+    this.segment = segment;
+  }
+
+  /**
+   * Reads bytes of a file from its mapping, mapping it first if need be.
+   *
+   * @param file     Path of the file.
+   * @param channel  Open channel on the file.
+   * @param position Offset of the first byte read.
+   * @param target   Array to be filled with the bytes read.
+   * @param offset   Offset in the array of the first byte read.
+   * @param length   Number of bytes read.
+   * @return <code>true</code> if the bytes were read, or <code>false</code>
+   * if the file is not to be mapped, and must be read from the
+   * channel instead.
+   * @throws IOException If the file cannot be mapped.
+   */
+  boolean read(Path file, FileChannel channel, long position, byte[] target, int offset,
+               int length) throws IOException {
+    Mapping mapping = acquire(file, channel, position + length);
+    if (mapping == null) {
+      return false;
+    }
+
+    try {
+      while (length > 0) {
+        MappedByteBuffer buffer = mapping.segments[(int) (position / segment)];
+        int index = (int) (position % segment);
+        int count = Math.min(length, buffer.capacity() - index);
+        buffer.get(index, target, offset, count);
+        position += count;
+        offset += count;
+        length -= count;
+      }
+    } finally {
+      release(mapping);
+    }
+    return true;
+  }
+
+  // Returns the mapping of a file that covers the given end, counted as used,
+  // or null if the file is not to be mapped.
+  private Mapping acquire(Path file, FileChannel channel, long end) throws IOException {
+    long size = channel.size();
+    if (size < threshold || size > budget || size == 0) {
+      return null;
+    }
+
+    synchronized (this) {
+      Mapping mapping = mappings.get(file);
+      if (mapping != null && mapping.size >= end) {
+        mapping.users++;
+        return mapping;
+      }
+      if (mapping != null) {
+        // the file has grown since it was mapped
+        remove(file);
+      }
+    }
+
+    // mapped outside the lock; of two threads mapping the same file at once,
+    // the second keeps its own mapping unlisted
+    Mapping mapping = new Mapping(map(channel, size), size);
+    synchronized (this) {
+      mapping.users++;
+      if (mappings.containsKey(file)) {
+        mapping.retired = true;
+        return mapping;
+      }
+      Iterator<Mapping> eldest = mappings.values().iterator();
+      while (mapped + size > budget && eldest.hasNext()) {
+        Mapping evicted = eldest.next();
+        eldest.remove();
+        mapped -= evicted.size;
+        evicted.retire();
+      }
+      mappings.put(file, mapping);
+      mapped += size;
+    }
+    return mapping;
+  }
+
+  private MappedByteBuffer[] map(FileChannel channel, long size) throws IOException {
+    MappedByteBuffer[] segments = new MappedByteBuffer[(int) ((size + segment - 1) / segment)];
+    try {
+      for (int i = 0; i < segments.length; i++) {
+        long start = i * segment;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(segment, size - start));
+      }
+    } catch (IOException | RuntimeException e) {
+      unmap(segments);
+      throw e;
+    }
+    return segments;
+  }
+
+  private synchronized void release(Mapping mapping) {
+    if (--mapping.users == 0 && mapping.retired) {
+      unmap(mapping.segments);
+    }
+  }
+
+  /** Unmaps a file, or the files under a directory. */
+  synchronized void forget(Path path) {
+    Iterator<Map.Entry<Path, Mapping>> iterator = mappings.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<Path, Mapping> entry = iterator.next();
+      if (entry.getKey().isSubpath(path)) {
+        iterator.remove();
+        mapped -= entry.getValue().size;
+        entry.getValue().retire();
+      }
+    }
+  }
+
+  /** Unmaps all the files. */
+  synchronized void clear() {
+    for (Mapping mapping : mappings.values()) {
+      mapping.retire();
+    }
+    mappings.clear();
+    mapped = 0;
+  }
+
+  /** Returns the number of bytes of the files mapped at present. */
+  synchronized long mappedBytes() {
+    return mapped;
+  }
+
+  private void remove(Path file) {
+    Mapping mapping = mappings.remove(file);
+    mapped -= mapping.size;
+    mapping.retire();
+  }
+
+  // Releases the memory of the segments of a mapping. Must not be called
+  // while any read may still use them.
+  private static void unmap(MappedByteBuffer[] segments) {
+    if (invokeCleaner == null) {
+      return;
+    }
+    for (MappedByteBuffer buffer : segments) {
+      if (buffer == null) {
+        continue;
+      }
+      try {
+        invokeCleaner.invoke(unsafe, buffer);
+      } catch (ReflectiveOperationException e) {
+        // left for the garbage collector
+      }
+    }
+  }
+
+  // The segments of a mapped file, and the number of reads using them.
+  // Guarded by the set of mappings.
+  private static final class Mapping {
+    final MappedByteBuffer[] segments;
+    final long size;
+    int users;
+    boolean retired;
+
+    Mapping(MappedByteBuffer[] segments, long size) {
+      this.segments = segments;
+      this.size = size;
+    }
+
+    void retire() {
+      retired = true;
+      if (users == 0) {
+        unmap(segments);
+      }
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package storage;
+
+import common.Path;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Striped read/write locks over the paths of a storage server.
+ * <p>
+ * Each path is covered by one of a fixed number of read/write locks, chosen by
+ * its hash. Locking a path for reading or writing also locks each of its
+ * parent directories for reading, so that an operation holding the write lock
+ * of a directory, such as deleting it, excludes every operation on the files
+ * beneath it, while operations on unrelated files proceed in parallel.
+ * <p>
+ * The locks a path needs are always acquired in the order of their stripes,
+ * so two operations cannot deadlock on them. Paths that share a stripe
+ * merely wait for each other.
+ */
+final class PathLocks {
+  private final ReentrantReadWriteLock[] stripes;
+
+  /**
+   * Creates the locks.
+   *
+   * @param count Number of stripes.
+   */
+  PathLocks(int count) {
+    stripes = new ReentrantReadWriteLock[count];
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new ReentrantReadWriteLock();
+    }
+  }
+
+  /** Locks a path, and its parent directories, for reading. */
+  Held read(Path path) {
+    return lock(path, false);
+  }
+
+  /** Locks a path for writing, and its parent directories for reading. */
+  Held write(Path path) {
+    return lock(path, true);
+  }
+
+  private Held lock(Path path, boolean exclusive) {
+    // stripe of each directory above the path, then of the path itself; a
+    // stripe is encoded as twice its index, plus one if it is needed for
+    // writing, so that sorting puts the write of a stripe after its read
+    int depth = path.getComponents().size();
+    int[] needed = new int[depth + 1];
+    Path prefix = new Path();
+    int count = 0;
+    for (String component : path) {
+      if (count == depth - 1) {
+        break;
+      }
+      prefix = new Path(prefix, component);
+      needed[count++] = stripe(prefix) * 2;
+    }
+    needed[count++] = stripe(path) * 2 + (exclusive ? 1 : 0);
+    Arrays.sort(needed, 0, count);
+
+    Lock[] locks = new Lock[count];
+    int held = 0;
+    for (int i = 0; i < count; i++) {
+      int stripe = needed[i] / 2;
+      // a stripe needed more than once is locked once, for writing if it is
+      // needed for writing at all, as its entries are sorted reads first
+      if (i + 1 < count && needed[i + 1] / 2 == stripe) {
+        continue;
+      }
+      Lock lock = needed[i] % 2 == 1 ? stripes[stripe].writeLock() : stripes[stripe].readLock();
+      lock.lock();
+      locks[held++] = lock;
+    }
+    return new Held(locks, held);
+  }
+
+  private int stripe(Path path) {
+    return (path.hashCode() & 0x7fffffff) % stripes.length;
+  }
+
+  /**
+   * Locks held for one operation, released by <code>close</code>. The locks
+   * are taken before the <code>try</code> statement that releases them, and
+   * named as its resource:
+   * <pre>
+   * PathLocks.Held held = locks.read(file);
+   * try (held) {
+   *   ...
+   * }
+   * </pre>
+   * This form does not declare a resource the body never refers to, which
+   * <code>-Xlint:try</code> would warn about.
+   */
+  static final class Held implements AutoCloseable {
+    private final Lock[] locks;
+    private int count;
+
+    private Held(Lock[] locks, int count) {
+      this.locks = locks;
+      this.count = count;
+    }
+
+    /** Releases the locks, in the reverse of the order they were taken. */
+    @Override
+    public void close() {
+      while (count > 0) {
+        locks[--count].unlock();
+      }
+    }
+  }
+}
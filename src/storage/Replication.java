@@ -0,0 +1,412 @@
+package storage;
+
+import common.Path;
+import rmi.Deadline;
+import rmi.RMIException;
+import rmi.Stub;
+import rmi.Trace;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Pull of one file from another storage server, for <code>copy</code>.
+ * <p>
+ * The file is streamed into a local file in order: over the bulk data
+ * channel of the source if it has one, in large reads written straight to the
+ * disk, and otherwise over RMI, with several reads in flight while the chunk
+ * received first is written. When a transfer fails, the pull resumes from the
+ * bytes already written to the local file, and gives up only after several
+ * failures in a row that wrote nothing.
+ * <p>
+ * When an older copy of the file is at hand, the file can instead be pulled as
+ * its differences from the older copy (see {@link Delta}), a region at a time:
+ * blocks the source finds in the older copy are copied from it, and only the
+ * bytes between them are received.
+ * <p>
+ * When the file is copied along a chain of storage servers, its length is not
+ * known in advance: it is pulled with <code>readCopy</code> until that returns
+ * less than was asked for, and the next server of the chain reads the bytes
+ * received so far through {@link #read}.
+ */
+final class Replication {
+  private static final Trace trace = Trace.of(Replication.class);
+
+  // bytes asked for in one read over the bulk data channel
+  private static final int BULK_CHUNK = 16 * 1024 * 1024;
+  // bytes asked for in one read over RMI, and most reads in flight
+  private static final int CHUNK = 1024 * 1024;
+  private static final int WINDOW = 4;
+  // bytes of the file described by one delta, and how far from the region the
+  // blocks of the older copy sent with it reach
+  private static final int REGION = 8 * 1024 * 1024;
+  private static final int SLACK = 8 * 1024 * 1024;
+  // failures in a row, without progress, after which the pull gives up
+  private static final int ATTEMPTS = 3;
+
+  private final Path file;
+  private final Storage source;
+  private final FileChannel target;
+  // asynchronous stub of the source, or null if it is not a stub
+  private final StorageAsync async;
+  // length of the file, or -1 until the end of a copy along a chain is reached
+  private long size;
+  // offset in the older copy of the last block copied from it by a delta, less
+  // its offset in the file
+  private long shift;
+
+  // Bytes in the local file, and how the pull ended, for the next server of a
+  // chain. Guarded by this object.
+  private long received;
+  private boolean finished;
+  private Throwable failure;
+
+  /**
+   * Prepares the pull of a file.
+   *
+   * @param file   Path to the file on the source.
+   * @param source Storage server holding the file.
+   * @param size   Length of the file, in bytes, or -1 if the file is copied
+   *               along a chain.
+   * @param target Local file receiving the bytes, empty or holding the
+   *               bytes already pulled. It must be open for reading too if
+   *               the file is passed along a chain.
+   */
+  Replication(Path file, Storage source, long size, FileChannel target) {
+    this.file = file;
+    this.source = source;
+    this.size = size;
+    this.target = target;
+
+    StorageAsync stub;
+    try {
+      stub = Stub.createAsync(StorageAsync.class, source);
+    } catch (IllegalArgumentException e) {
+      stub = null;
+    }
+    this.async = stub;
+  }
+
+  /**
+   * Pulls the bytes of the file not yet in the local file.
+   *
+   * @throws FileNotFoundException     If the file is not present on the
+   *                                   source.
+   * @throws IndexOutOfBoundsException If the file on the source has become
+   *                                   shorter.
+   * @throws IOException               If the transfer fails repeatedly, or
+   *                                   the deadline of the copy passes.
+   * @throws RMIException              If the source cannot be reached
+   *                                   repeatedly.
+   */
+  void run() throws RMIException, IOException {
+    try {
+      pullAll();
+    } catch (RMIException | IOException | RuntimeException | Error e) {
+      synchronized (this) {
+        failure = e;
+        notifyAll();
+      }
+      throw e;
+    }
+    synchronized (this) {
+      finished = true;
+      notifyAll();
+    }
+  }
+
+  private void pullAll() throws RMIException, IOException {
+    BulkClient bulk = size < 0 ? null : BulkClient.of(source);
+    int failures = 0;
+    try {
+      while (true) {
+        long start = target.size();
+        if (size >= 0 && start >= size) {
+          return;
+        }
+        if (Deadline.expired()) {
+          throw new IOException("copy of " + file + " abandoned: its deadline passed");
+        }
+
+        try {
+          if (bulk != null) {
+            pullBulk(bulk, start);
+          } else {
+            pull(start);
+          }
+        } catch (BulkClient.DrainingException e) {
+          // the source is shutting down; its stub retries the reads refused meanwhile
+          trace.debug("copy of {}: {}, pulling the rest over RMI", file, e.getMessage());
+          bulk.close();
+          bulk = null;
+        } catch (FileNotFoundException e) {
+          throw e;
+        } catch (RMIException | IOException e) {
+          failures = target.size() > start ? 1 : failures + 1;
+          if (failures >= ATTEMPTS) {
+            throw e;
+          }
+          trace.debug("copy of {} failed at byte {}, resuming: {}", file, target.size(), e);
+        }
+      }
+    } finally {
+      if (bulk != null) {
+        bulk.close();
+      }
+    }
+  }
+
+  /**
+   * Pulls whole blocks of the file into their places in the local file, a
+   * group of blocks per <code>readRanges</code> call. Used before {@link #run}
+   * when the local file already holds the blocks between them, taken from an
+   * older copy of the file; <code>run</code> then pulls the file from the end
+   * of the local file.
+   *
+   * @param blocks Indexes of the blocks, in increasing order.
+   * @throws IOException  If a transfer fails.
+   * @throws RMIException If the source cannot be reached.
+   */
+  void pullBlocks(int[] blocks) throws RMIException, IOException {
+    int group = CHUNK / Checksums.BLOCK;
+    for (int first = 0; first < blocks.length; first += group) {
+      int count = Math.min(group, blocks.length - first);
+      long[] offsets = new long[count];
+      int[] lengths = new int[count];
+      for (int i = 0; i < count; i++) {
+        offsets[i] = (long) blocks[first + i] * Checksums.BLOCK;
+        lengths[i] = (int) Math.min(Checksums.BLOCK, size - offsets[i]);
+      }
+
+      byte[][] data = source.readRanges(file, offsets, lengths);
+      for (int i = 0; i < count; i++) {
+        ByteBuffer block = ByteBuffer.wrap(data[i]);
+        while (block.hasRemaining()) {
+          target.write(block, offsets[i] + block.position());
+        }
+      }
+    }
+  }
+
+  /**
+   * Pulls the file as its differences from an older copy, a region at a time.
+   * Each region is sent to the source with the signature of the blocks of the
+   * older copy around it, shifted as far as the last block found was moved.
+   * The bytes are written in order, so that if the pull fails, {@link #run}
+   * can resume it.
+   *
+   * @param older     Channel of the older copy.
+   * @param signature Signature of the older copy.
+   * @return <code>false</code> if the source cannot tell differences, in
+   *         which case nothing has been written.
+   * @throws IOException  If a transfer fails, the older copy cannot be read,
+   *                      or the deadline of the copy passes.
+   * @throws RMIException If the source cannot be reached.
+   */
+  boolean pullDelta(FileChannel older, Delta.Signature signature)
+      throws RMIException, IOException {
+    long position = target.size();
+    int blocks = signature.weak.length;
+    while (position < size) {
+      if (Deadline.expired()) {
+        throw new IOException("copy of " + file + " abandoned: its deadline passed");
+      }
+
+      int length = (int) Math.min(size - position, REGION);
+      long center = position + shift;
+      int first = (int) Math.max(0, Math.min(blocks, (center - SLACK) / Delta.BLOCK));
+      int last = (int) Math.max(first,
+          Math.min(blocks, (center + length + SLACK) / Delta.BLOCK + 1));
+      byte[] delta = source.delta(file, position, length,
+          Arrays.copyOfRange(signature.weak, first, last),
+          Arrays.copyOfRange(signature.strong, first, last));
+      if (delta == null) {
+        if (position == 0) {
+          return false;
+        }
+        throw new IOException(file + ": the source stopped telling differences");
+      }
+
+      position = apply(delta, position, first, last - first, older);
+      received(position);
+    }
+    return true;
+  }
+
+  // Writes the region of the file a delta describes, copying the blocks it names
+  // from the older copy, and returns the offset it ends at.
+  private long apply(byte[] delta, long position, int first, int count, FileChannel older)
+      throws IOException {
+    ByteBuffer in = ByteBuffer.wrap(delta);
+    try {
+      while (true) {
+        byte tag = in.get();
+        if (tag == Delta.END) {
+          if (in.getLong() != position) {
+            throw new StreamCorruptedException("delta of " + file + " ends at the wrong offset");
+          }
+          return position;
+        } else if (tag == Delta.COPY) {
+          int index = in.getInt();
+          if (index < 0 || index >= count) {
+            throw new StreamCorruptedException("delta of " + file + " names block " + index);
+          }
+          long start = (long) (first + index) * Delta.BLOCK;
+          target.position(position);
+          for (long moved = 0; moved < Delta.BLOCK; ) {
+            long sent = older.transferTo(start + moved, Delta.BLOCK - moved, target);
+            if (sent == 0 && older.size() < start + Delta.BLOCK) {
+              throw new EOFException("older copy of " + file + " truncated during a delta");
+            }
+            moved += sent;
+          }
+          shift = start - position;
+          position += Delta.BLOCK;
+        } else if (tag == Delta.DATA) {
+          int length = in.getInt();
+          if (length < 0 || length > in.remaining()) {
+            throw new StreamCorruptedException("delta of " + file + " has a bad length");
+          }
+          ByteBuffer data = in.slice();
+          data.limit(length);
+          in.position(in.position() + length);
+          while (data.hasRemaining()) {
+            position += target.write(data, position);
+          }
+        } else {
+          throw new StreamCorruptedException("delta of " + file + " has a bad instruction");
+        }
+      }
+    } catch (BufferUnderflowException e) {
+      throw new StreamCorruptedException("delta of " + file + " is truncated");
+    }
+  }
+
+  /**
+   * Reads bytes pulled so far, for the next server of a chain. Waits until
+   * they have arrived, or the pull has ended.
+   *
+   * @param offset Offset into the file of the first byte to be read.
+   * @param length Largest number of bytes to be read.
+   * @return The bytes, fewer than <code>length</code> only at the end of the
+   *         file.
+   * @throws IndexOutOfBoundsException If <code>offset</code> or
+   *                                   <code>length</code> is negative.
+   * @throws IOException               If the pull has failed, or the bytes
+   *                                   cannot be read from the local file.
+   */
+  byte[] read(long offset, int length) throws IOException {
+    if (offset < 0 || length < 0) {
+      throw new IndexOutOfBoundsException("negative offset or length");
+    }
+    long available;
+    synchronized (this) {
+      while (failure == null && !finished && received < offset + length) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("interrupted waiting for a copy");
+        }
+      }
+      if (failure != null) {
+        throw new IOException("copy of " + file + " failed", failure);
+      }
+      available = received;
+    }
+
+    ByteBuffer data = ByteBuffer.allocate((int) Math.max(0, Math.min(length, available - offset)));
+    while (data.hasRemaining()) {
+      target.read(data, offset + data.position());
+    }
+    return data.array();
+  }
+
+  // Records bytes written to the local file, and wakes the readers waiting for them.
+  private synchronized void received(long position) {
+    received = position;
+    notifyAll();
+  }
+
+  // Streams the rest of the file over the bulk data channel into the local file.
+  private void pullBulk(BulkClient bulk, long position) throws IOException {
+    while (position < size) {
+      int length = (int) Math.min(size - position, BULK_CHUNK);
+      bulk.read(file, position, length, target, position);
+      position += length;
+      received(position);
+    }
+  }
+
+  // Pulls the rest of the file over RMI, keeping WINDOW reads in flight while
+  // the oldest is written. A copy along a chain ends at the first short read.
+  private void pull(long position) throws RMIException, IOException {
+    boolean chained = size < 0;
+    ArrayDeque<CompletableFuture<byte[]>> inFlight = new ArrayDeque<>();
+    long requested = position;
+    while (size < 0 || position < size) {
+      while (inFlight.size() < WINDOW && (size < 0 || requested < size)) {
+        int length = (int) (size < 0 ? CHUNK : Math.min(size - requested, CHUNK));
+        inFlight.add(request(chained, requested, length));
+        requested += length;
+      }
+
+      ByteBuffer data = ByteBuffer.wrap(await(inFlight.remove()));
+      boolean end = chained && data.remaining() < CHUNK;
+      while (data.hasRemaining()) {
+        position += target.write(data, position);
+      }
+      if (end) {
+        size = position;
+      }
+      received(position);
+    }
+  }
+
+  // Sends a read to the source, or makes it at once if the source is not a stub.
+  private CompletableFuture<byte[]> request(boolean chained, long offset, int length) {
+    if (async != null) {
+      return chained ? async.readCopy(file, offset, length) : async.read(file, offset, length);
+    }
+    CompletableFuture<byte[]> result = new CompletableFuture<>();
+    try {
+      result.complete(chained ? source.readCopy(file, offset, length)
+                              : source.read(file, offset, length));
+    } catch (Exception e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  // Waits for a read, and throws the exception it failed with, if any.
+  private static byte[] await(CompletableFuture<byte[]> read) throws RMIException, IOException {
+    try {
+      return read.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted during a copy");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RMIException) {
+        throw (RMIException) cause;
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RMIException(cause);
+    }
+  }
+}
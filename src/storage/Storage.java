@@ -1,8 +1,10 @@
 package storage;
 
 import java.io.*;
+import java.net.*;
 
 import common.*;
+import rmi.Idempotent;
 import rmi.RMIException;
 
 /** Storage server client interface.
@@ -23,6 +25,7 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public long size(Path file) throws RMIException, FileNotFoundException;
 
     /** Reads a sequence of bytes from a file.
@@ -39,13 +42,193 @@ public interface Storage
                                           <code>length</code> is negative.
         @throws FileNotFoundException If the file cannot be found or the path
                                       refers to a directory.
+        @throws ChecksumException If the bytes read do not match the checksums
+                                  kept for the file on the server. The file
+                                  should be read from another replica.
         @throws IOException If the file read cannot be completed on the server.
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public byte[] read(Path file, long offset, int length)
         throws RMIException, FileNotFoundException, IOException;
 
+    /** Reads several sequences of bytes from a file in one call.
+
+        <p>
+        Each sequence is given by an offset and a length, at the same index of
+        <code>offsets</code> and <code>lengths</code>. The sequences may be in
+        any order and may overlap. Reading them in one call saves a round trip
+        per sequence, and lets the server read them without reopening the
+        file.
+
+        <p>
+        The default implementation calls <code>read</code> once for each
+        sequence.
+
+        @param file Path to the file.
+        @param offsets Offsets into the file to the beginnings of the
+                       sequences.
+        @param lengths The numbers of bytes to be read in each sequence.
+        @return An array holding, for each sequence, an array containing the
+                bytes read, in the order of <code>offsets</code>.
+        @throws IllegalArgumentException If <code>offsets</code> and
+                                         <code>lengths</code> have different
+                                         lengths.
+        @throws IndexOutOfBoundsException If any sequence is outside the
+                                          bounds of the file, or if any length
+                                          is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws ChecksumException If the bytes read do not match the checksums
+                                  kept for the file on the server.
+        @throws IOException If the file read cannot be completed on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default byte[][] readRanges(Path file, long[] offsets,
+                                       int[] lengths)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        if(offsets.length != lengths.length)
+        {
+            throw new IllegalArgumentException("offsets and lengths differ " +
+                                               "in number");
+        }
+
+        byte[][]    result = new byte[offsets.length][];
+        for(int index = 0; index < offsets.length; ++index)
+            result[index] = read(file, offsets[index], lengths[index]);
+
+        return result;
+    }
+
+    /** Reads bytes from a file, or from a copy of it on its way to this
+        storage server.
+
+        <p>
+        While the storage server is copying the file as part of a chain (see
+        {@link Command#copyChain}), the bytes are read from the copy in
+        progress, and the call waits until they have arrived. Otherwise they
+        are read from the file. Fewer bytes than requested are returned only
+        at the end of the file, so that servers further along a chain can
+        pull the file without knowing its length.
+
+        <p>
+        The default implementation calls <code>size</code> and
+        <code>read</code>.
+
+        @param file Path to the file.
+        @param offset Offset into the file of the first byte to be read.
+        @param length Largest number of bytes to be read.
+        @return An array containing the bytes read, which is shorter than
+                <code>length</code> only if the file ends before, and empty
+                if <code>offset</code> is at or past the end of the file.
+        @throws IndexOutOfBoundsException If <code>offset</code> or
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the file read cannot be completed on the
+                            server, or the copy in progress fails.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default byte[] readCopy(Path file, long offset, int length)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        if(offset < 0 || length < 0)
+            throw new IndexOutOfBoundsException("negative offset or length");
+
+        long        size = size(file);
+        if(offset >= size)
+            return new byte[0];
+
+        return read(file, offset, (int)Math.min(length, size - offset));
+    }
+
+    /** Returns the checksums of the blocks of a file.
+
+        <p>
+        Files are divided into blocks of 16384 bytes, the last of which may be
+        shorter. The checksum of a block is its CRC32C, as an
+        <code>int</code>. Storage servers compare the checksums of a file on
+        two servers to tell which blocks differ before copying it, and check
+        the copy against them.
+
+        <p>
+        The default implementation returns <code>null</code>, for storage
+        servers that keep no checksums.
+
+        @param file Path to the file.
+        @return The checksum of each block of the file, in order, or
+                <code>null</code> if the server keeps no checksums.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws ChecksumException If a block does not match the checksum kept
+                                  for it.
+        @throws IOException If the file cannot be read on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default int[] checksums(Path file)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        return null;
+    }
+
+    /** Describes a region of a file by its differences from an older copy.
+
+        <p>
+        A storage server holding an older copy of the file sends a signature
+        of some of the blocks of its copy, which are 16384 bytes long: for
+        each, a rolling sum of its bytes as computed by rsync, and its CRC32C.
+        This server looks for those blocks at every offset of the region, and
+        returns the region as instructions to copy a block of the older copy
+        or to insert bytes of the file. The older copy is refreshed from the
+        instructions, so that only the bytes it lacks are sent, even where
+        bytes have been inserted or removed before them.
+
+        <p>
+        The instructions may describe the file up to a block past the end of
+        the region, and say up to which offset they describe it. Their
+        encoding is private to storage servers.
+
+        <p>
+        The default implementation returns <code>null</code>, for storage
+        servers that cannot describe differences.
+
+        @param file Path to the file.
+        @param offset Offset into the file of the start of the region.
+        @param length Length of the region.
+        @param weak Rolling sums of the blocks of the older copy.
+        @param strong CRC32C of the same blocks, in the same order.
+        @return The instructions, or <code>null</code> if the server cannot
+                describe differences.
+        @throws IllegalArgumentException If <code>weak</code> and
+                                         <code>strong</code> have different
+                                         lengths.
+        @throws IndexOutOfBoundsException If <code>offset</code> is negative
+                                          or past the end of the file, or if
+                                          <code>length</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws ChecksumException If the region does not match the checksums
+                                  kept for the file on the server.
+        @throws IOException If the file cannot be read on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default byte[] delta(Path file, long offset, int length,
+                                int[] weak, int[] strong)
+        throws RMIException, FileNotFoundException, IOException
+    {
+        return null;
+    }
+
     /** Writes bytes to a file.
 
         @param file Path to the file.
@@ -60,4 +243,53 @@ public interface Storage
      */
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Makes the writes to a file durable.
+
+        <p>
+        Storage servers may hold writes in memory for a short while, and
+        leave them to the operating system to write to the disk. This method
+        writes whatever is held for the file, and forces it to the disk if the
+        server is configured to do so when files are synced. Clients call it
+        once they are done writing a file.
+
+        <p>
+        The default implementation does nothing, for storage servers that
+        write through.
+
+        @param file Path to the file.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the writes cannot be completed on the server.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default void sync(Path file)
+        throws RMIException, FileNotFoundException, IOException
+    {
+    }
+
+    /** Returns the address of the storage server's bulk data channel.
+
+        <p>
+        The bulk data channel carries the same reads and writes as
+        <code>read</code> and <code>write</code>, but moves file contents
+        directly between the file and the socket, without encoding them as RMI
+        arguments or return values. It is used through {@link BulkClient}.
+
+        <p>
+        The default implementation returns <code>null</code>, for storage
+        servers that provide no bulk data channel.
+
+        @return The address of the bulk data channel, or <code>null</code> if
+                the storage server does not provide one.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default InetSocketAddress bulkAddress() throws RMIException
+    {
+        return null;
+    }
 }
@@ -0,0 +1,48 @@
+package storage;
+
+import java.util.concurrent.CompletableFuture;
+
+import common.*;
+
+/** Asynchronous companion of the storage server client interface.
+
+    <p>
+    Each method sends the call of the same name in {@link Storage} and returns
+    immediately; the returned future completes with the result of the call, or
+    exceptionally with the exception the call would have thrown. Stubs
+    implementing this interface are created with
+    <code>rmi.Stub.createAsync</code>, typically from an existing
+    <code>Storage</code> stub. Issuing several calls before waiting for any of
+    them overlaps their round trips, which is useful for reading ahead.
+ */
+public interface StorageAsync
+{
+    /** Returns the length of a file, in bytes. See {@link Storage#size}. */
+    public CompletableFuture<Long> size(Path file);
+
+    /** Reads a sequence of bytes from a file. See {@link Storage#read}. */
+    public CompletableFuture<byte[]> read(Path file, long offset, int length);
+
+    /** Reads several sequences of bytes from a file. See
+        {@link Storage#readRanges}. */
+    public CompletableFuture<byte[][]> readRanges(Path file, long[] offsets,
+                                                  int[] lengths);
+
+    /** Reads bytes from a file, or from a copy of it in progress. See
+        {@link Storage#readCopy}. */
+    public CompletableFuture<byte[]> readCopy(Path file, long offset,
+                                              int length);
+
+    /** Returns the checksums of the blocks of a file. See
+        {@link Storage#checksums}. */
+    public CompletableFuture<int[]> checksums(Path file);
+
+    /** Describes a region of a file by its differences from an older copy.
+        See {@link Storage#delta}. */
+    public CompletableFuture<byte[]> delta(Path file, long offset, int length,
+                                           int[] weak, int[] strong);
+
+    /** Writes bytes to a file. See {@link Storage#write}. The future
+        completes with <code>null</code>. */
+    public CompletableFuture<Void> write(Path file, long offset, byte[] data);
+}
@@ -5,14 +5,30 @@ import naming.Registration;
 import rmi.RMIException;
 import rmi.Skeleton;
 import rmi.Stub;
+import rmi.Trace;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -24,6 +40,33 @@ import java.net.UnknownHostException;
  * local filesystem.
  */
 public class StorageServer implements Storage, Command {
+  private static final Trace trace = Trace.of(StorageServer.class);
+
+  // The dfs.storage system properties below are read when a server is
+  // created, so that each server takes those set at the time.
+
+  // most files kept open at once while unused, unless the dfs.storage.openFiles
+  // system property says otherwise
+  private static final int OPEN_FILES = 128;
+  // files at least this long are read through memory mappings, if the
+  // dfs.storage.mapThreshold system property is set; the mappings together
+  // cover at most dfs.storage.mapBudget bytes
+  private static final long MAP_BUDGET = 1L << 30;
+  // writes are held in memory up to dfs.storage.writeBehind bytes per file, and
+  // forced to the disk as dfs.storage.durability (none, close or group) says,
+  // with commits every dfs.storage.commitMillis milliseconds
+  private static final int WRITE_BEHIND = 0;
+  private static final String DURABILITY = "none";
+  private static final long COMMIT_MILLIS = 10;
+  // blocks are checked against checksums kept beside the files, unless the
+  // dfs.storage.checksums system property is false
+  private static final boolean CHECKSUMS = true;
+  // files listed in each call registering the server, unless the
+  // dfs.storage.registrationBatch system property says otherwise
+  private static final int REGISTRATION_BATCH = 8192;
+  // number of locks shared by the paths of the server
+  private static final int LOCK_STRIPES = 256;
+
   private Skeleton<Command> skeletonNaming;
   private Command stubNaming;
   private Skeleton<Storage> skeletonClient;
@@ -37,7 +80,31 @@ public class StorageServer implements Storage, Command {
   //root File directory
   private File root;
 
-  private boolean logOn;
+  // bulk data channel, or null if it could not be opened
+  private BulkServer bulkServer;
+  private InetSocketAddress bulkAddress;
+
+  // channels of the files used most recently
+  private final ChannelCache channels;
+  // mappings of large files, or null if reads are not memory-mapped
+  private final MappedFiles mappings;
+  // writes held in memory, and the durability policy
+  private final WriteBehind writes;
+  // checksums of the blocks of the files, or null if none are kept
+  private final Checksums checksums;
+  // files listed in each call registering the server
+  private final int registrationBatch;
+
+  // Files are accessed under the lock of their path: reads, size and the
+  // bulk data channel share it, while writes, create, delete and the end of a
+  // copy hold it exclusively. Operations that add or remove directories are serialized
+  // on the namespace, as deleting a file removes its parent directories
+  // once they are empty, and creating a file creates them.
+  private final PathLocks locks = new PathLocks(LOCK_STRIPES);
+  private final Object namespace = new Object();
+
+  // copies in progress that the next server of a chain reads from, by path
+  private final Map<Path, Replication> chained = new ConcurrentHashMap<Path, Replication>();
 
   /**
    * Creates a storage server, given a directory on the local filesystem, and
@@ -57,14 +124,28 @@ public class StorageServer implements Storage, Command {
    */
   public StorageServer(File root, int clientPort, int commandPort) {
     //throw new UnsupportedOperationException("not implemented");
-    log("Constructor StorageServer(File root, int clientPort, int commandPort) invoked");
-    this.logOn = false;
+    trace.debug("Constructor StorageServer(File root, int clientPort, int commandPort) invoked");
 
     // check argument validity
     if (root == null) {
       throw new NullPointerException("Root is null. Not acceptable!");
     }
     this.root = root;
+    int openFiles = Integer.getInteger("dfs.storage.openFiles", OPEN_FILES);
+    Long mapThreshold = Long.getLong("dfs.storage.mapThreshold");
+    String durability = System.getProperty("dfs.storage.durability", DURABILITY);
+    this.channels = new ChannelCache(root, openFiles);
+    this.mappings = mapThreshold == null ? null
+        : new MappedFiles(mapThreshold, Long.getLong("dfs.storage.mapBudget", MAP_BUDGET));
+    this.checksums = Boolean.parseBoolean(
+        System.getProperty("dfs.storage.checksums", Boolean.toString(CHECKSUMS)))
+        ? new Checksums(root, openFiles) : null;
+    this.writes = new WriteBehind(channels, checksums,
+        WriteBehind.Durability.valueOf(durability.toUpperCase(Locale.ROOT)),
+        Integer.getInteger("dfs.storage.writeBehind", WRITE_BEHIND),
+        Long.getLong("dfs.storage.commitMillis", COMMIT_MILLIS));
+    this.registrationBatch =
+        Math.max(1, Integer.getInteger("dfs.storage.registrationBatch", REGISTRATION_BATCH));
 
     if (clientPort < 0 || commandPort < 0) {
       throw new Error("Negative port number??? Gotta be kidding");
@@ -146,13 +227,21 @@ public class StorageServer implements Storage, Command {
 
     stubClient = Stub.create(Storage.class, skeletonClient);
 
+    // the bulk data channel is an optimization: clients fall back to RMI without it
+    try {
+      bulkServer = new BulkServer(this, new InetSocketAddress(hostname, 0));
+      bulkAddress = new InetSocketAddress(hostname, bulkServer.port());
+    } catch (IOException e) {
+      trace.warn("Bulk data channel could not be opened: {}", e);
+    }
+
     if (root == null || !root.exists() || root.isFile())
       throw new FileNotFoundException("root on storage server doesn't exist or is not a directory");
-    this.files = Path.list(root);
+    this.files = dropTemporaries(Path.list(root));
 
     Path[] toDelete;
     try {
-      toDelete = naming_server.register(stubClient, stubNaming, files);
+      toDelete = register(naming_server);
 
     } catch (RMIException e) {
       throw new Error("naming_server.register failed. RMI exception thrown");
@@ -174,6 +263,36 @@ public class StorageServer implements Storage, Command {
 
   }
 
+  /**
+   * Registers the server and its files with the naming server. Long listings
+   * are sent in batches, so that no message is very large and the naming
+   * server serves clients while it merges them; naming servers that take
+   * listings only whole are sent the whole listing.
+   *
+   * @param naming_server the naming server
+   * @return the files to delete, which the naming server already has
+   * @throws RMIException if a call fails
+   */
+  private Path[] register(Registration naming_server) throws RMIException {
+    int batch = registrationBatch;
+    if (files.length <= batch) {
+      return naming_server.register(stubClient, stubNaming, files);
+    }
+
+    List<Path> toDelete = new ArrayList<Path>();
+    for (int start = 0; start < files.length; start += batch) {
+      int end = Math.min(files.length, start + batch);
+      Path[] duplicates = naming_server.register(stubClient, stubNaming,
+          Arrays.copyOfRange(files, start, end), end < files.length);
+      if (duplicates == null) {
+        trace.debug("Naming server takes no batches; registering {} files at once", files.length);
+        return naming_server.register(stubClient, stubNaming, files);
+      }
+      toDelete.addAll(Arrays.asList(duplicates));
+    }
+    return toDelete.toArray(new Path[toDelete.size()]);
+  }
+
   /**
    * Stops the storage server.
    * <p>
@@ -184,12 +303,75 @@ public class StorageServer implements Storage, Command {
     try {
       this.skeletonClient.stop();
       this.skeletonNaming.stop();
+      if (this.bulkServer != null) {
+        this.bulkServer.stop();
+      }
+      writes.close();
+      if (checksums != null) {
+        checksums.close();
+      }
+      channels.clear();
+      if (mappings != null) {
+        mappings.clear();
+      }
       stopped(null);
     } catch (Exception e) {
       stopped(e);
     }
   }
 
+  /**
+   * Stops the storage server gracefully.
+   * <p>
+   * No more connections are accepted by the client and command interfaces or
+   * by the bulk data channel. Requests already being served are allowed to
+   * finish until the timeout expires, while requests that arrive meanwhile on
+   * open connections are refused with a status telling clients to send them
+   * again: RMI stubs do so by themselves, and <code>DFSInputStream</code>
+   * moves from the bulk data channel to RMI. This lets storage servers be
+   * restarted one at a time without failing the reads in progress.
+   * <p>
+   * The server should not be restarted.
+   *
+   * @param timeout Time allowed for the requests being served to finish.
+   * @param unit    Unit of <code>timeout</code>.
+   * @throws IllegalArgumentException If <code>timeout</code> is negative.
+   */
+  public void drain(long timeout, TimeUnit unit) {
+    if (timeout < 0) {
+      throw new IllegalArgumentException("negative drain timeout");
+    }
+
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    try {
+      if (this.bulkServer != null) {
+        this.bulkServer.drain();
+      }
+      this.skeletonClient.drain(remaining(deadline), TimeUnit.NANOSECONDS);
+      this.skeletonNaming.drain(remaining(deadline), TimeUnit.NANOSECONDS);
+      if (this.bulkServer != null) {
+        this.bulkServer.awaitIdle(deadline);
+        this.bulkServer.stop();
+      }
+      writes.close();
+      if (checksums != null) {
+        checksums.close();
+      }
+      channels.clear();
+      if (mappings != null) {
+        mappings.clear();
+      }
+      stopped(null);
+    } catch (Exception e) {
+      stopped(e);
+    }
+  }
+
+  // time left until a deadline given as a value of System.nanoTime, or zero
+  private static long remaining(long deadline) {
+    return Math.max(0, deadline - System.nanoTime());
+  }
+
   /**
    * Called when the storage server has shut down.
    *
@@ -207,110 +389,353 @@ public class StorageServer implements Storage, Command {
     // The following methods are documented in Storage.java.
     // assume all the file here is the directory of the distributed system
     @Override
-    public synchronized long size(Path file) throws RMIException, FileNotFoundException
+    public long size(Path file) throws RMIException, FileNotFoundException
     {
         if (file == null) {
             throw new NullPointerException();
         }
 
-        File localFile = file.toFile(root);
+        PathLocks.Held held = locks.read(file);
 
-        if(!localFile.exists()){
-            throw new FileNotFoundException("the file doesn't exist");
+        try (held) {
+            writes.flush(file);
+            try (ChannelCache.Handle channel = channels.acquire(file)) {
+                return channel.channel().size();
+            }
         }
-
-        if(localFile.isDirectory()){
-
-            throw new FileNotFoundException("the file is a directory");
+        catch (FileNotFoundException e) {
+            throw e;
+        }
+        catch (IOException e) {
+            throw new RMIException("unable to get the size of " + file, e);
         }
-      long sz =  localFile.length();
-      return sz;
     }
 
 
   @Override
-  public synchronized byte[] read(Path file, long offset, int length)
+  public byte[] read(Path file, long offset, int length)
       throws FileNotFoundException, IOException, RMIException {
 
-    log("read(Path file, long offset, int length). Trying to read " + file.toString() + " " + length + " bytes " + " at offset " + offset);
+    if (trace.enabled(Trace.Level.DEBUG)) {
+      trace.debug("read(Path file, long offset, int length). Trying to read {} {} bytes at offset {}", file, length, offset);
+    }
     if (file == null) {
-      log("read(Path file, long offset, int length): file == null");
+      trace.debug("read(Path file, long offset, int length): file == null");
       throw new NullPointerException();
     }
 
-    if (offset < 0 || length < 0 || size(file) < offset + length) {
-      log("read(Path file, long offset, int length): offset < 0 || length < 0 || size(file) < offset + length");
-      throw new IndexOutOfBoundsException("read file out of bounds");
+    PathLocks.Held held = locks.read(file);
+
+    try (held;
+         ChannelCache.Handle channel = openRead(file, offset, length)) {
+      //read the file at certain offset
+      byte[] result = new byte[length];
+      readFully(file, channel.channel(), result, offset);
+
+      trace.debug("read(Path file, long offset, int length) is done!");
+      return result;
     }
-    //convert the file directory in the distributed system to that of the local file system
-    File localFile = file.toFile(root);
-    if (!localFile.exists() || localFile.isDirectory()) {
-      log("read(Path file, long offset, int length): !localFile.exists() || localFile.isDirectory()");
-      throw new FileNotFoundException();
+  }
+
+  @Override
+  public byte[] readCopy(Path file, long offset, int length)
+      throws FileNotFoundException, IOException, RMIException {
+    if (file == null) {
+      throw new NullPointerException();
+    }
+    Replication copy = chained.get(file);
+    if (copy != null) {
+      return copy.read(offset, length);
     }
+    return Storage.super.readCopy(file, offset, length);
+  }
 
-    //read the file at certain offset
-    RandomAccessFile ra = new RandomAccessFile(localFile, "r");
-    byte[] result;
-    int index = 0;
-    result = new byte[length];
-    ra.seek(offset);
-    try {
-      while (index < length)
-        result[index++] = ra.readByte();
-    } finally {
-      //log("read(Path file, long offset, int length): readByte() throws exception!");
-      ra.close();
+  @Override
+  public byte[][] readRanges(Path file, long[] offsets, int[] lengths)
+      throws FileNotFoundException, IOException, RMIException {
+    if (file == null || offsets == null || lengths == null) {
+      throw new NullPointerException();
+    }
+    if (offsets.length != lengths.length) {
+      throw new IllegalArgumentException("offsets and lengths differ in number");
+    }
+
+    PathLocks.Held held = locks.read(file);
+
+    try (held;
+         ChannelCache.Handle channel = openRead(file, 0, 0)) {
+      // one check of the file covers all the ranges
+      long size = channel.channel().size();
+      long total = 0;
+      for (int i = 0; i < offsets.length; i++) {
+        checkBounds(offsets[i], lengths[i], size);
+        total += lengths[i];
+      }
+      if (total > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("ranges too long to return at once");
+      }
+      if (trace.enabled(Trace.Level.DEBUG)) {
+        trace.debug("readRanges: reading {} ranges, {} bytes in all, from {}", offsets.length, total, file);
+      }
+
+      byte[][] result = new byte[offsets.length][];
+      for (int i = 0; i < offsets.length; i++) {
+        result[i] = new byte[lengths[i]];
+        readFully(file, channel.channel(), result[i], offsets[i]);
+      }
+      return result;
     }
+  }
 
-    log("read(Path file, long offset, int length) is done!");
-    return result;
+  /**
+   * Fills an array from a file, starting at the given position: from the
+   * mapping of the file if it is mapped, or else from the channel, without
+   * moving its position. The bytes are then checked against the checksums of
+   * the file.
+   *
+   * @throws EOFException      if the file ends before the array is full, which
+   *                           happens only if it shrank after it was checked
+   * @throws ChecksumException if the bytes do not match the checksums
+   */
+  private void readFully(Path file, FileChannel channel, byte[] target, long position)
+      throws IOException {
+    if (mappings == null || !mappings.read(file, channel, position, target, 0, target.length)) {
+      ByteBuffer buffer = ByteBuffer.wrap(target);
+      long next = position;
+      while (buffer.hasRemaining()) {
+        int read = channel.read(buffer, next);
+        if (read < 0) {
+          throw new EOFException(file + " truncated during a read");
+        }
+        next += read;
+      }
+    }
+
+    if (checksums != null) {
+      checksums.verify(file, channel, position, target);
+    }
   }
 
+  /**
+   * Checks the blocks covering a sequence of bytes of a file against its
+   * checksums, reading them. Used by the bulk data channel, which sends the
+   * bytes without reading them itself, with the path locked.
+   *
+   * @throws ChecksumException if a block does not match its checksum
+   * @throws IOException       if a block cannot be read
+   */
+  void verify(Path file, FileChannel channel, long offset, int length) throws IOException {
+    if (checksums != null) {
+      checksums.verify(file, channel, offset, length);
+    }
+  }
+
+
   @Override
-  public synchronized void write(Path file, long offset, byte[] data)
+  public void write(Path file, long offset, byte[] data)
       throws FileNotFoundException, IOException, RMIException {
-    log("In write(Path file, long offset, byte[] data). Trying to write to " + file.toString());
+    trace.debug("In write(Path file, long offset, byte[] data). Trying to write to {}", file);
     if (file == null || data == null) {
-      log("In write(Path file, long offset, byte[] data): file or data is null. Throw EXCEPTION!");
+      trace.debug("In write(Path file, long offset, byte[] data): file or data is null. Throw EXCEPTION!");
       throw new NullPointerException();
     }
 
-    //throw new UnsupportedOperationException("not implemented");
-    if (offset < 0) {
-      log("In write(Path file, long offset, byte[] data): offset<0. Throw EXCEPTION!");
-      throw new IndexOutOfBoundsException("offset is negative");
+    PathLocks.Held held = locks.write(file);
+
+    try (held) {
+      writeLocked(file, offset, data);
     }
-    File localFile = file.toFile(root);
+  }
 
-    log("In write(Path file, long offset, byte[] data): check if file already exist");
-    if (!localFile.exists()) {
-      log("In write(Path file, long offset, byte[] data): !localFile.exists()");
-      throw new FileNotFoundException("to be written file doesn't exist");
+  private void writeLocked(Path file, long offset, byte[] data) throws IOException {
+    //write the file at certain offset, or hold the data to write it later
+    try (ChannelCache.Handle channel = checkWrite(file, offset)) {
+      writes.write(file, channel.channel(), offset, data);
     }
 
-    log("In write(Path file, long offset, byte[] data): check localFile.isDirectory()");
-    if (localFile.isDirectory()) {
-      log("In write(Path file, long offset, byte[] data): localFile.isDirectory()");
-      throw new FileNotFoundException();
+    trace.debug("In write(Path file, long offset, byte[] data): write doen!");
+
+  }
+
+
+  @Override
+  public void sync(Path file) throws FileNotFoundException, IOException, RMIException {
+    if (file == null) {
+      throw new NullPointerException();
+    }
+
+    PathLocks.Held held = locks.read(file);
+
+    try (held;
+         ChannelCache.Handle channel = channels.acquire(file)) {
+      writes.sync(file);
+      if (checksums != null) {
+        checksums.save(file, channel.channel());
+      }
+    }
+  }
+
+  @Override
+  public int[] checksums(Path file) throws FileNotFoundException, IOException, RMIException {
+    if (file == null) {
+      throw new NullPointerException();
+    }
+    if (checksums == null) {
+      return null;
+    }
+
+    PathLocks.Held held = locks.read(file);
+
+    try (held;
+         ChannelCache.Handle channel = openRead(file, 0, 0)) {
+      return checksums.sums(file, channel.channel());
+    }
+  }
+
+  @Override
+  public byte[] delta(Path file, long offset, int length, int[] weak, int[] strong)
+      throws FileNotFoundException, IOException, RMIException {
+    if (file == null || weak == null || strong == null) {
+      throw new NullPointerException();
+    }
+    if (weak.length != strong.length) {
+      throw new IllegalArgumentException("weak and strong sums differ in number");
+    }
+    if (length < 0) {
+      throw new IndexOutOfBoundsException("negative length");
+    }
+
+    PathLocks.Held held = locks.read(file);
+
+    try (held;
+         ChannelCache.Handle channel = openRead(file, offset, 0)) {
+      // a block past the region, for the blocks that start in it
+      long size = channel.channel().size();
+      byte[] data = new byte[(int) Math.min(size - offset, (long) length + Delta.BLOCK)];
+      readFully(file, channel.channel(), data, offset);
+      return Delta.encode(data, offset, length, new Delta.Signature(weak, strong));
     }
+  }
+
+  @Override
+  public InetSocketAddress bulkAddress() {
+    return bulkAddress;
+  }
 
-    //write the file at certain offset
-    RandomAccessFile ra = new RandomAccessFile(localFile, "rw");
+  /**
+   * Checks that a sequence of bytes can be read from a file, and returns a
+   * channel on the file. Used by both RMI and bulk reads, with the path
+   * locked.
+   *
+   * @return A handle on the channel, to be closed once the read is done.
+   * @throws FileNotFoundException     If the file cannot be found or the path
+   *                                   refers to a directory.
+   * @throws IndexOutOfBoundsException If the sequence is outside the bounds of
+   *                                   the file, or if <code>length</code> is
+   *                                   negative.
+   * @throws IOException               If the file cannot be opened, or the
+   *                                   writes held for it cannot be written.
+   */
+  ChannelCache.Handle openRead(Path file, long offset, int length) throws IOException {
+    if (offset < 0 || length < 0) {
+      trace.debug("read(Path file, long offset, int length): offset < 0 || length < 0");
+      throw new IndexOutOfBoundsException("read file out of bounds");
+    }
+    writes.flush(file);
+    ChannelCache.Handle channel = channels.acquire(file);
     try {
-      ra.seek(offset);
-      int index = 0;
-      while (index < data.length)
-        ra.writeByte(data[index++]);
-    } finally {
-      //log("In write(Path file, long offset, byte[] data): writeByte throws exception. Trying to clsoe fd");
-      ra.close();
+      checkBounds(offset, length, channel.channel().size());
+    } catch (RuntimeException | IOException e) {
+      channel.close();
+      throw e;
     }
+    return channel;
+  }
 
-    log("In write(Path file, long offset, byte[] data): write doen!");
+  // Drops the held writes, channels, mappings and checksums of a file, or of the
+  // files under a directory, before it is deleted or created.
+  private void forget(Path path) {
+    writes.discard(path);
+    channels.forget(path);
+    if (mappings != null) {
+      mappings.forget(path);
+    }
+    if (checksums != null) {
+      checksums.forget(path);
+    }
+  }
 
+  /** Returns the locks of the paths of the server. */
+  PathLocks locks() {
+    return locks;
   }
 
+  /**
+   * Checks that a sequence of bytes lies within a file of the given size.
+   *
+   * @throws IndexOutOfBoundsException If the sequence is outside the bounds of
+   *                                   the file, or if <code>length</code> is
+   *                                   negative.
+   */
+  private static void checkBounds(long offset, int length, long size) {
+    if (offset < 0 || length < 0 || size < offset + length) {
+      trace.debug("read(Path file, long offset, int length): offset or length out of the bounds of the file");
+      throw new IndexOutOfBoundsException("read file out of bounds");
+    }
+  }
+
+  /**
+   * Checks that bytes can be written to a file at the given offset, and
+   * returns a channel on the file to write them directly. The writes held for
+   * the file are written first, so that the new bytes land after them. Used
+   * by bulk writes, with the path locked, which keep the checksums of the
+   * file through {@link #updateChecksums}.
+   *
+   * @return A handle on the channel, to be closed once the write is done.
+   * @throws FileNotFoundException     If the file cannot be found or the path
+   *                                   refers to a directory.
+   * @throws IndexOutOfBoundsException If <code>offset</code> is negative.
+   * @throws IOException               If the file cannot be opened for
+   *                                   writing.
+   */
+  ChannelCache.Handle openWrite(Path file, long offset) throws IOException {
+    ChannelCache.Handle channel = checkWrite(file, offset);
+    try {
+      writes.flush(file);
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    return channel;
+  }
+  /**
+   * Starts keeping the checksums of the blocks a bulk write changes, as its
+   * bytes are written through a channel from {@link #openWrite}.
+   *
+   * @return The update, to be given the bytes and finished once they are
+   *         written, or <code>null</code> if no checksums are kept.
+   * @throws IOException If the sidecar of the file cannot be deleted.
+   */
+  Checksums.Update updateChecksums(Path file, FileChannel channel, long offset, int length)
+      throws IOException {
+    return checksums != null ? checksums.update(file, channel, offset, length) : null;
+  }
+
+
+  // Checks that bytes can be written to a file at the given offset, and
+  // returns a channel on the file.
+  private ChannelCache.Handle checkWrite(Path file, long offset) throws IOException {
+    if (offset < 0) {
+      trace.debug("In write(Path file, long offset, byte[] data): offset<0. Throw EXCEPTION!");
+      throw new IndexOutOfBoundsException("offset is negative");
+    }
+    ChannelCache.Handle channel = channels.acquire(file);
+    if (!channel.writable()) {
+      channel.close();
+      throw new IOException(file + " cannot be written on the storage server");
+    }
+    return channel;
+  }
 
   /** Creates a file on the storage server.
 
@@ -324,34 +749,50 @@ public class StorageServer implements Storage, Command {
    */
   // The following methods are documented in Command.java.
   @Override
-  public synchronized boolean create(Path file) throws RMIException {
-    log("In create(Path file)");
+  public boolean create(Path file) throws RMIException {
+    trace.debug("In create(Path file)");
     if (file == null) {
       throw new NullPointerException();
     }
 
-    log("In create(Path file). Trying to create: " + file.toString());
+    if (reserved(file)) {
+      trace.debug("In create(Path file), {} has a reserved name", file);
+      return false;
+    }
+
+    PathLocks.Held held = locks.write(file);
+
+    try (held) {
+      synchronized (namespace) {
+        return createLocked(file);
+      }
+    }
+  }
+
+  private boolean createLocked(Path file) {
+    trace.debug("In create(Path file). Trying to create: {}", file);
     File localFile = file.toFile(root);
+    forget(file);
     if (localFile.exists()) {
-      log("In create(Path file), create file failed. File already exists!");
+      trace.debug("In create(Path file), create file failed. File already exists!");
       return false;
     }
 
-    log("Check if the parent of the file exist");
+    trace.debug("Check if the parent of the file exist");
     if (!localFile.getParentFile().exists()) {
       //if the parent direcotory does not exist, create it
-      log("parent directory not exist. Ready to create it!");
+      trace.debug("parent directory not exist. Ready to create it!");
       if (!localFile.getParentFile().mkdirs()) {
-        log("failed to create parent directory!");
+        trace.debug("failed to create parent directory!");
         return false;
       }
     }
 
-    log("Check if the parent of the file is a directory");
+    trace.debug("Check if the parent of the file is a directory");
     if(!localFile.getParentFile().isDirectory()){
-      log("The parent of the file is NOT a directory! Ready to create it!");
+      trace.debug("The parent of the file is NOT a directory! Ready to create it!");
       if (!localFile.getParentFile().getParentFile().mkdirs()) {
-        log("failed to create parent directory!");
+        trace.debug("failed to create parent directory!");
         return false;
       }
     }
@@ -359,30 +800,45 @@ public class StorageServer implements Storage, Command {
     try {
       //create the target file
       if (localFile.createNewFile()) {
-        log("In create(Path file), succeeded to create target file! :) " + file.toString() );
+        trace.debug("In create(Path file), succeeded to create target file! :) {}", file);
         return true;
       } else {
-        log("In create(Path file), failed to create target file! :( " + file.toString() );
+        trace.debug("In create(Path file), failed to create target file! :( {}", file);
         return false;
       }
     } catch (IOException e) {
-      log("In create(Path file), IOException happens in createNewFile() " + file.toString());
+      trace.debug("In create(Path file), IOException happens in createNewFile() {}", file);
       e.printStackTrace();
       return false;
     }
   }
 
   @Override
-  public synchronized boolean delete(Path path) throws RMIException {
+  public boolean delete(Path path) throws RMIException {
+    if (path == null) {
+      throw new NullPointerException();
+    }
+
+    PathLocks.Held held = locks.write(path);
+
+    try (held) {
+      synchronized (namespace) {
+        return deleteLocked(path);
+      }
+    }
+  }
+
+  private boolean deleteLocked(Path path) {
     File localFile = path.toFile(root);
+    forget(path);
     //the root dir
     if (!localFile.exists()) {
-      log("In delete(Path file), The file to be deleted doesn't exist! " + path.toString());
+      trace.debug("In delete(Path file), The file to be deleted doesn't exist! {}", path);
       return false;
     }
     if (localFile.isDirectory()) {
       if (localFile.equals(root)) {
-        log("In delete(Path file), root cannot be deleted");
+        trace.debug("In delete(Path file), root cannot be deleted");
         return false;
       }
       return deleteDir(localFile);
@@ -398,7 +854,7 @@ public class StorageServer implements Storage, Command {
    * @param file
    * @return
    */
-  private boolean deleteFile(File file) throws RMIException {
+  private boolean deleteFile(File file) {
     File parent = file.getParentFile();
     boolean flag = file.delete();
     if (parent.equals(root) || parent.list().length != 0)
@@ -412,7 +868,7 @@ public class StorageServer implements Storage, Command {
    * @param dir
    * @return
    */
-  private boolean deleteDir(File dir) throws RMIException {
+  private boolean deleteDir(File dir) {
     String[] children = dir.list();
     for (int i = 0; i < children.length; i++) {
       File child = new File(dir, children[i]);
@@ -448,51 +904,311 @@ public class StorageServer implements Storage, Command {
    server, or between the two storage servers.
    */
   @Override
-  public synchronized boolean copy(Path file, Storage server)
+  public boolean copy(Path file, Storage server)
       throws RMIException, FileNotFoundException, IOException {
+    if (file == null || server == null) {
+      throw new NullPointerException();
+    }
 
-    log("\nIn copy(Path file, Storage server): Trying to copy " + file.toString() + " from another Storage Server");
-    File localFile = file.toFile(root);
+    if (reserved(file)) {
+      trace.debug("In copy(Path file, Storage server): {} has a reserved name", file);
+      return false;
+    }
 
-    long pos = 0;
-    int length = 1024 * 1024; //1Mb
-    log("Probing the remote server to query size of the file to be copied");
+    trace.debug("In copy(Path file, Storage server): Trying to copy {} from another Storage Server", file);
     long size = server.size(file);
-    log("In copy(Path file, Storage server): remote file size is: " + size);
-    log("In copy(Path file, Storage server): trying to copy remote file...");
+    trace.debug("In copy(Path file, Storage server): remote file size is: {}", size);
+    pull(file, server, size, null, null);
+    trace.debug("In copy(Path file, Storage server): copying done!");
+    return true;
+  }
+
+  @Override
+  public int copyChain(Path file, Storage server, Command[] chain)
+      throws RMIException, FileNotFoundException, IOException {
+    if (file == null || server == null || chain == null) {
+      throw new NullPointerException();
+    }
+    for (Command next : chain) {
+      if (next == null) {
+        throw new NullPointerException();
+      }
+    }
+    if (reserved(file)) {
+      trace.debug("copyChain: {} has a reserved name", file);
+      return 0;
+    }
 
-    log("In copy(Path file, Storage server): check (localFile.isDirectory()");
+    // the next server pulls from this one through its client stub, and so can
+    // only be sent the copy by a running server
+    CommandAsync next = null;
+    if (chain.length > 0) {
+      try {
+        next = stubClient == null ? null : Stub.createAsync(CommandAsync.class, chain[0]);
+      } catch (IllegalArgumentException e) {
+        next = null;
+      }
+      if (next == null) {
+        return Command.super.copyChain(file, server, chain);
+      }
+    }
+
+    // the server may be the previous one of a chain, which has not got all of the
+    // file yet, so its length is learned at the end
+    trace.debug("copyChain: copying {} and passing it along {} more servers", file, chain.length);
+    return pull(file, server, -1, next, next == null ? chain : Arrays.copyOfRange(chain, 1, chain.length));
+  }
+
+  /**
+   * Pulls a file from another storage server, and passes it along a chain.
+   * <p>
+   * The file is pulled into a temporary file beside it without locking it, and
+   * renamed over it under the lock, so readers see either the old file or the
+   * whole copy, and are only held up by the rename. When the file is passed
+   * along a chain, the next server is sent the copy before the pull starts,
+   * and reads the file from this one as it arrives.
+   * <p>
+   * When the file is already here, the source is asked for the differences
+   * between its file and the local one, and the blocks of the local file it
+   * still has, wherever they now are, are copied into the temporary file
+   * instead of being pulled. If the source cannot tell differences, the blocks
+   * of the local file that match its checksums in place are copied. The copy
+   * is checked against the checksums of the source before it replaces the
+   * file, and its own checksums are kept for its reads.
+   *
+   * @param file   file copied
+   * @param server storage server the file is pulled from
+   * @param size   length of the file, or -1 if the server is the previous one
+   *               of a chain
+   * @param next   next server of the chain, or <code>null</code>
+   * @param rest   servers of the chain after the next one
+   * @return the number of servers, this one included, that copied the file
+   * @throws FileNotFoundException if the file is not present on the other
+   *                               server, or is a directory here
+   * @throws IOException           if the copy fails
+   * @throws RMIException          if the other server cannot be reached
+   */
+  private int pull(Path file, Storage server, long size, CommandAsync next, Command[] rest)
+      throws RMIException, FileNotFoundException, IOException {
+    File localFile = file.toFile(root);
     if (localFile.isDirectory()) {
-      log("In copy(Path file, Storage server), To be copied file is a directory");
-      throw new FileNotFoundException();
+      trace.debug("In copy(Path file, Storage server), To be copied file is a directory");
+      throw new FileNotFoundException(file + " is a directory");
     }
 
-    log("In copy(Path file, Storage server): check localFile.exists()");
-    if (localFile.exists()) {
-      log("In copy(Path file, Storage server): " + file.toString() + " already exists. Trying to delete this local file");
-      delete(file);
+    // an older copy of the file here is refreshed rather than pulled again
+    boolean refresh = size >= 0 && localFile.isFile();
+    int[] expected = refresh ? server.checksums(file) : null;
+
+    java.nio.file.Path temporary = createTemporary(localFile);
+    Replication copy = null;
+    CompletableFuture<Integer> passed = null;
+    boolean copied = false;
+    try (FileChannel target = FileChannel.open(temporary,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      copy = new Replication(file, server, size, target);
+      if (next != null) {
+        chained.put(file, copy);
+        passed = next.copyChain(file, stubClient, rest);
+      }
+
+      if (refresh && !pullDelta(file, copy) && expected != null) {
+        reuse(file, expected, size, target, copy);
+      }
+      copy.run();
+      int[] sums = null;
+      if (expected != null || checksums != null) {
+        sums = Checksums.compute(target);
+        if (expected != null && !Arrays.equals(sums, expected)) {
+          throw new ChecksumException("copy of " + file + " does not match the checksums of the source");
+        }
+      }
+      if (writes.durable()) {
+        target.force(false);
+      }
+      PathLocks.Held held = locks.write(file);
+      try (held) {
+        synchronized (namespace) {
+          if (localFile.isDirectory()) {
+            throw new FileNotFoundException(file + " is a directory");
+          }
+          forget(file);
+          Files.move(temporary, localFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+          copied = true;
+          if (checksums != null) {
+            checksums.install(file, target.size(), sums);
+          }
+        }
+      }
+
+      // the copy is kept readable until the rest of the chain has it
+      if (passed == null) {
+        return 1;
+      }
+      try {
+        return 1 + passed.join();
+      } catch (CompletionException e) {
+        trace.warn("copyChain: the rest of the chain failed to copy {}: {}", file, e.getCause());
+        return 1;
+      }
+    } finally {
+      if (passed != null && !passed.isDone()) {
+        // the next server must see the failure rather than resume from the file here
+        try {
+          passed.join();
+        } catch (CompletionException e) {
+          trace.debug("copyChain: the rest of the chain gave up on {}: {}", file, e.getCause());
+        }
+      }
+      if (copy != null) {
+        chained.remove(file, copy);
+      }
+      if (!copied) {
+        synchronized (namespace) {
+          if (Files.exists(temporary)) {
+            deleteFile(temporary.toFile());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Pulls a file as its differences from the local file, which is an older
+   * copy of it. If the pull fails, the copy holds the start of the file, and
+   * the rest is pulled with <code>run</code>.
+   *
+   * @param file file copied
+   * @param copy pull of the file into a copy, still empty
+   * @return <code>false</code> if nothing was pulled, because the local file
+   *         is gone or the source cannot tell differences
+   * @throws FileNotFoundException if the file is not present on the source
+   * @throws IOException           if the local file cannot be read
+   */
+  private boolean pullDelta(Path file, Replication copy) throws IOException {
+    PathLocks.Held held = locks.read(file);
+    try (held) {
+      ChannelCache.Handle older;
+      try {
+        older = openRead(file, 0, 0);
+      } catch (FileNotFoundException e) {
+        return false;
+      }
 
+      try {
+        Delta.Signature signature = Delta.signature(older.channel());
+        return copy.pullDelta(older.channel(), signature);
+      } catch (FileNotFoundException e) {
+        throw e;
+      } catch (RMIException | IOException e) {
+        trace.debug("delta of {} failed, pulling the rest whole: {}", file, e);
+        return true;
+      } finally {
+        older.close();
+      }
     }
+  }
 
-    log("In copy(Path file, Storage server): trying to create an empty local file with the same name");
-    create(file);
+  /**
+   * Copies the blocks of the local file that match the checksums of the source
+   * into a copy, and pulls the blocks between them, so that the rest of the
+   * copy can be pulled from its end. Nothing is copied if the local file is
+   * gone or does not match its own checksums.
+   *
+   * @param file     file copied
+   * @param expected checksums of the blocks of the file on the source
+   * @param size     length of the file on the source
+   * @param target   the copy, still empty
+   * @param copy     pull of the file into the copy
+   * @throws IOException  if the local file cannot be read or the copy written
+   * @throws RMIException if the source cannot be reached
+   */
+  private void reuse(Path file, int[] expected, long size, FileChannel target, Replication copy)
+      throws RMIException, IOException {
+    BitSet kept = new BitSet(expected.length);
+    PathLocks.Held held = locks.read(file);
+    try (held;
+         ChannelCache.Handle channel = openRead(file, 0, 0)) {
+      FileChannel local = channel.channel();
+      long length = local.size();
+      int[] sums = checksums != null ? checksums.sums(file, local) : Checksums.compute(local);
+      for (int b = 0; b < Math.min(sums.length, expected.length); b++) {
+        long start = (long) b * Checksums.BLOCK;
+        long end = Math.min(size, start + Checksums.BLOCK);
+        if (sums[b] != expected[b] || Math.min(length, start + Checksums.BLOCK) != end) {
+          continue;
+        }
+        target.position(start);
+        for (long moved = 0; moved < end - start; ) {
+          moved += local.transferTo(start + moved, end - start - moved, target);
+        }
+        kept.set(b);
+      }
+    } catch (FileNotFoundException | ChecksumException e) {
+      trace.debug("copy of {} pulls every block: {}", file, e);
+      target.truncate(0);
+      return;
+    }
 
-    while (size >= length) {
-      write(file, pos, server.read(file, pos, length));
-      pos += length;
-      size -= length;
+    int[] missing = new int[kept.length() - kept.cardinality()];
+    for (int b = kept.nextClearBit(0), i = 0; b < kept.length(); b = kept.nextClearBit(b + 1)) {
+      missing[i++] = b;
     }
-    if (size > 0) {
-      write(file, pos, server.read(file, pos, (int) size));
+    trace.debug("copy of {} keeps {} of {} blocks", file, kept.cardinality(), expected.length);
+    copy.pullBlocks(missing);
+  }
+
+  /**
+   * Creates an empty file for a copy, in the directory of the file copied.
+   *
+   * @param localFile the file copied
+   * @return the file created
+   * @throws IOException if the directory is a file or cannot be created
+   */
+  private java.nio.file.Path createTemporary(File localFile) throws IOException {
+    File parent = localFile.getParentFile();
+    synchronized (namespace) {
+      if (!parent.isDirectory() && !parent.mkdirs()) {
+        throw new IOException("cannot create directory " + parent);
+      }
+      return Files.createTempFile(parent.toPath(), TEMPORARY_PREFIX, null);
     }
-    log("In copy(Path file, Storage server): copying done!");
-    return true;
   }
 
-  private void log(String msg){
-    if(this.logOn){
-      System.out.println("In STORAGE SERVER: " + msg);
+  /**
+   * Tells whether a file is named like the temporary files copies are written
+   * to, which this server deletes when it starts, or lies under the directory
+   * of the checksums.
+   *
+   * @param file the file
+   * @return <code>true</code> if its name starts with <code>TEMPORARY_PREFIX</code>,
+   *         or its first component is <code>CHECKSUMS_DIRECTORY</code>
+   */
+  private static boolean reserved(Path file) {
+    return !file.isRoot() && (file.last().startsWith(TEMPORARY_PREFIX)
+        || file.iterator().next().equals(CHECKSUMS_DIRECTORY));
+  }
+
+  /**
+   * Deletes the files left behind by copies that did not finish, and drops
+   * them and the sidecars of the checksums from a listing of the local files.
+   *
+   * @param listing the files under the root
+   * @return the listing without them
+   */
+  private Path[] dropTemporaries(Path[] listing) {
+    List<Path> kept = new ArrayList<Path>(listing.length);
+    for (Path path : listing) {
+      if (path.last().startsWith(TEMPORARY_PREFIX)) {
+        trace.debug("Deleting {}, left by a copy that did not finish", path);
+        deleteFile(path.toFile(root));
+      } else if (path.iterator().next().equals(Checksums.DIRECTORY)) {
+        trace.debug("Not listing {}, which holds checksums", path);
+      } else {
+        kept.add(path);
+      }
     }
+    return kept.toArray(new Path[kept.size()]);
   }
 
 }
@@ -0,0 +1,425 @@
+package storage;
+
+import common.Path;
+import rmi.Trace;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-behind buffer and durability policy of a storage server.
+ * <p>
+ * Writes to a file are held in memory, where writes that continue one another
+ * are joined into one extent, until the file holds a given number of bytes,
+ * the file is read, measured or synced, or the commit interval passes. The
+ * extents are then written with gathering writes, so that a burst of small
+ * writes reaches the disk as a few large sequential ones. With a buffer size
+ * of zero, writes go straight to the file.
+ * <p>
+ * Durability is chosen separately:
+ * <ul>
+ * <li><code>NONE</code>: files are never forced to the disk.</li>
+ * <li><code>CLOSE</code>: a file is forced when a client syncs it, which
+ * <code>DFSOutputStream</code> does when it is closed.</li>
+ * <li><code>GROUP</code>: every file written is forced once per commit
+ * interval, by one commit for all of them, and syncing a file waits for the
+ * next commit rather than forcing it alone.</li>
+ * </ul>
+ * <p>
+ * The storage server calls these methods with the path of the file locked.
+ * Each file's buffer is also guarded by its own monitor, so that the commit
+ * thread, which holds no path lock, and readers sharing a path lock flush it
+ * one at a time.
+ */
+final class WriteBehind {
+  private static final Trace trace = Trace.of(WriteBehind.class);
+
+  /** When files are forced to the disk. */
+  enum Durability {
+    NONE, CLOSE, GROUP
+  }
+
+  // most pieces gathered in one extent before it is written
+  private static final int MAX_PIECES = 1024;
+
+  private final ChannelCache channels;
+  // checksums kept as bytes are written, or null if none are kept
+  private final Checksums checksums;
+  private final Durability durability;
+  private final int fileLimit;
+  private final long commitMillis;
+
+  // buffers of files with writes pending, and files written since the last
+  // commit; guarded by this
+  private final Map<Path, Pending> pending = new HashMap<Path, Pending>();
+  private final Set<Path> dirty = new HashSet<Path>();
+  // commits started and finished, for syncs waiting on group commit
+  private long commitsStarted;
+  private long commitsFinished;
+  private boolean closed;
+
+  private final ScheduledExecutorService committer;
+
+  /**
+   * Creates the buffer, and starts its commit thread if it needs one.
+   *
+   * @param channels     Cache through which files are written.
+   * @param checksums    Checksums of the files, computed as they are written,
+   *                     or <code>null</code> if none are kept.
+   * @param durability   When files are forced to the disk.
+   * @param fileLimit    Most bytes held for one file, or zero to write
+   *                     through.
+   * @param commitMillis Interval between commits, in milliseconds.
+   */
+  WriteBehind(ChannelCache channels, Checksums checksums, Durability durability, int fileLimit,
+      long commitMillis) {
+    if (fileLimit < 0 || commitMillis < 1) {
+      throw new IllegalArgumentException("bad write-behind limits");
+    }
+    this.channels = channels;
+    this.checksums = checksums;
+    this.durability = durability;
+    this.fileLimit = fileLimit;
+    this.commitMillis = commitMillis;
+
+    if (fileLimit == 0 && durability != Durability.GROUP) {
+      committer = null;
+      return;
+    }
+    committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable task) {
+        Thread thread = new Thread(task, "storage-commit");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    committer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        commit();
+      }
+    }, commitMillis, commitMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Writes bytes to a file, or holds them to be written later. The caller
+   * holds the write lock of the file, and owns <code>data</code> from then on.
+   *
+   * @param file    Path of the file.
+   * @param channel Channel on the file, open for writing.
+   * @param offset  Offset in the file of the first byte written.
+   * @param data    Bytes written.
+   * @throws IOException If the bytes, or bytes held before, cannot be
+   *                     written.
+   */
+  void write(Path file, FileChannel channel, long offset, byte[] data) throws IOException {
+    if (fileLimit == 0) {
+      writeSummed(checksums, file, channel, offset, data.length,
+          new ByteBuffer[] {ByteBuffer.wrap(data)});
+      markDirty(file);
+      return;
+    }
+
+    while (true) {
+      Pending buffer;
+      synchronized (this) {
+        buffer = pending.get(file);
+        if (buffer == null) {
+          buffer = new Pending();
+          pending.put(file, buffer);
+        }
+      }
+      synchronized (buffer) {
+        // an empty buffer may be dropped by a commit meanwhile
+        if (buffer.removed) {
+          continue;
+        }
+        buffer.add(offset, data);
+        if (buffer.bytes >= fileLimit) {
+          buffer.flush(checksums, file, channel);
+        }
+      }
+      break;
+    }
+    markDirty(file);
+  }
+
+  /**
+   * Writes the bytes held for a file. Called before the file is read or
+   * measured, with its path locked.
+   *
+   * @throws IOException If the bytes cannot be written.
+   */
+  void flush(Path file) throws IOException {
+    Pending buffer;
+    synchronized (this) {
+      buffer = pending.get(file);
+    }
+    if (buffer != null) {
+      flush(file, buffer);
+    }
+  }
+
+  // Writes the extents of a buffer through a channel from the cache.
+  private void flush(Path file, Pending buffer) throws IOException {
+    synchronized (buffer) {
+      if (buffer.extents.isEmpty()) {
+        return;
+      }
+      try (ChannelCache.Handle channel = channels.acquire(file)) {
+        buffer.flush(checksums, file, channel.channel());
+      }
+    }
+  }
+
+  /**
+   * Writes the bytes held for a file, and makes them durable as the
+   * durability policy requires.
+   *
+   * @throws IOException If the bytes cannot be written or forced.
+   */
+  void sync(Path file) throws IOException {
+    flush(file);
+    if (durability == Durability.CLOSE) {
+      try (ChannelCache.Handle channel = channels.acquire(file)) {
+        channel.channel().force(false);
+      }
+    } else if (durability == Durability.GROUP) {
+      awaitCommit();
+    }
+  }
+
+  /** Returns whether the durability policy forces files to the disk. */
+  boolean durable() {
+    return durability != Durability.NONE;
+  }
+
+  /**
+   * Drops the bytes held for a file, or the files under a directory, which is
+   * about to be deleted or created again. The caller holds the write lock of
+   * the path.
+   */
+  void discard(Path path) {
+    List<Pending> dropped = new ArrayList<Pending>();
+    synchronized (this) {
+      Iterator<Map.Entry<Path, Pending>> iterator = pending.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<Path, Pending> entry = iterator.next();
+        if (entry.getKey().isSubpath(path)) {
+          dropped.add(entry.getValue());
+          iterator.remove();
+        }
+      }
+      Iterator<Path> files = dirty.iterator();
+      while (files.hasNext()) {
+        if (files.next().isSubpath(path)) {
+          files.remove();
+        }
+      }
+    }
+    for (Pending buffer : dropped) {
+      synchronized (buffer) {
+        buffer.extents.clear();
+        buffer.bytes = 0;
+        buffer.removed = true;
+      }
+    }
+  }
+
+  /**
+   * Writes everything held, forces it unless durability is
+   * <code>NONE</code>, and stops the commit thread.
+   */
+  void close() {
+    if (committer != null) {
+      committer.shutdown();
+      try {
+        committer.awaitTermination(commitMillis * 10, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    commit();
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+  }
+
+  // Writes the bytes held for all files, and unless durability is NONE forces
+  // the files written since the last commit and then saves their checksums,
+  // which under GROUP durability are as durable as the files. Buffers stay listed while they
+  // are written, so that a reader of the file waits for them, and those found
+  // empty afterwards are dropped.
+  private void commit() {
+    Map<Path, Pending> buffers;
+    Set<Path> written;
+    synchronized (this) {
+      commitsStarted++;
+      buffers = new HashMap<Path, Pending>(pending);
+      written = new HashSet<Path>(dirty);
+      dirty.clear();
+    }
+
+    for (Map.Entry<Path, Pending> entry : buffers.entrySet()) {
+      try {
+        flush(entry.getKey(), entry.getValue());
+      } catch (IOException | RuntimeException e) {
+        trace.warn("Could not write behind to {}: {}", entry.getKey(), e);
+      }
+    }
+    if (durability != Durability.NONE) {
+      for (Path file : written) {
+        try (ChannelCache.Handle channel = channels.acquire(file)) {
+          channel.channel().force(false);
+        } catch (IOException | RuntimeException e) {
+          trace.warn("Could not force {} to the disk: {}", file, e);
+          continue;
+        }
+        if (checksums != null && durability == Durability.GROUP) {
+          checksums.persist(file);
+        }
+      }
+    }
+
+    synchronized (this) {
+      for (Map.Entry<Path, Pending> entry : buffers.entrySet()) {
+        Pending buffer = entry.getValue();
+        synchronized (buffer) {
+          if (buffer.extents.isEmpty() && pending.get(entry.getKey()) == buffer) {
+            buffer.removed = true;
+            pending.remove(entry.getKey());
+          }
+        }
+      }
+      commitsFinished++;
+      notifyAll();
+    }
+  }
+
+  // Waits for a commit that starts after this call to finish.
+  private synchronized void awaitCommit() throws IOException {
+    long target = commitsStarted + 1;
+    boolean interrupted = false;
+    while (commitsFinished < target && !closed) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void markDirty(Path file) {
+    if (durability == Durability.NONE) {
+      return;
+    }
+    synchronized (this) {
+      dirty.add(file);
+    }
+  }
+
+  // Writes buffers at an offset, computing the checksums of the blocks they
+  // cover from their bytes, unless no checksums are kept.
+  private static void writeSummed(Checksums checksums, Path file, FileChannel channel,
+      long offset, long length, ByteBuffer[] data) throws IOException {
+    Checksums.Update update = checksums != null ? checksums.update(file, channel, offset, length) : null;
+    if (update == null) {
+      writeFully(channel, offset, data);
+      return;
+    }
+    for (ByteBuffer piece : data) {
+      update.add(piece.duplicate());
+    }
+    writeFully(channel, offset, data);
+    update.finish(channel);
+  }
+
+  // Writes buffers at an offset with as few gathering writes as possible. The
+  // channel position is used only here, under the monitor of the file's
+  // buffer or the write lock of its path, and other users of the channel make
+  // positional reads and writes only.
+  private static void writeFully(FileChannel channel, long offset, ByteBuffer[] data)
+      throws IOException {
+    if (data.length == 1) {
+      while (data[0].hasRemaining()) {
+        offset += channel.write(data[0], offset);
+      }
+      return;
+    }
+    channel.position(offset);
+    int first = 0;
+    while (first < data.length) {
+      channel.write(data, first, data.length - first);
+      while (first < data.length && !data[first].hasRemaining()) {
+        first++;
+      }
+    }
+  }
+
+  // Writes pending for one file, in the order they were made. Guarded by its
+  // own monitor, which is taken after that of the write-behind buffer when
+  // both are held.
+  private static final class Pending {
+    final List<Extent> extents = new ArrayList<Extent>();
+    int bytes;
+    // set once the buffer is no longer listed, and must not be added to
+    boolean removed;
+
+    void add(long offset, byte[] data) {
+      Extent last = extents.isEmpty() ? null : extents.get(extents.size() - 1);
+      if (last != null && last.end() == offset && last.pieces.size() < MAX_PIECES) {
+        last.pieces.add(data);
+        last.length += data.length;
+      } else {
+        extents.add(new Extent(offset, data));
+      }
+      bytes += data.length;
+    }
+
+    void flush(Checksums checksums, Path file, FileChannel channel) throws IOException {
+      for (Extent extent : extents) {
+        ByteBuffer[] data = new ByteBuffer[extent.pieces.size()];
+        for (int i = 0; i < data.length; i++) {
+          data[i] = ByteBuffer.wrap(extent.pieces.get(i));
+        }
+        writeSummed(checksums, file, channel, extent.offset, extent.length, data);
+      }
+      extents.clear();
+      bytes = 0;
+    }
+  }
+
+  // Consecutive bytes to be written at one offset.
+  private static final class Extent {
+    final long offset;
+    final List<byte[]> pieces = new ArrayList<byte[]>();
+    long length;
+
+    Extent(long offset, byte[] data) {
+      this.offset = offset;
+      pieces.add(data);
+      length = data.length;
+    }
+
+    long end() {
+      return offset + length;
+    }
+  }
+}
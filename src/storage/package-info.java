@@ -17,5 +17,31 @@
     Storage servers provide these stubs to the naming server on startup. For
     this reason, it is immaterial which port each storage server is running on,
     or its exact network address, so long as it is reachable by the client.
+
+    <p>
+    File contents may also travel over a storage server's bulk data channel,
+    a separate TCP port announced through <code>Storage.bulkAddress</code>.
+    There, RMI only tells the client where to connect, and the bytes move
+    between files and sockets without being serialized.
+
+    <p>
+    Each storage server keeps a CRC32C checksum of every block of its files,
+    in sidecar files under the directory <code>.dfs-checksums</code> of its
+    root, which is not listed to the naming server, and under which the
+    naming and storage servers refuse to create or copy files. Reads raise
+    <code>ChecksumException</code> rather than return damaged bytes, and
+    clients then read from another replica.
+
+    <p>
+    A storage server refreshing an older copy of a file asks the source for
+    the differences between the two, in the manner of rsync, and receives
+    only the bytes its copy lacks.
+
+    <p>
+    Copies are written to temporary files beside the files they replace,
+    named with the prefix <code>.dfs-copy-</code>, and files so named that a
+    storage server finds when it starts are deleted. Such names are
+    therefore reserved: the naming and storage servers refuse to create or
+    copy files under them.
  */
 package storage;
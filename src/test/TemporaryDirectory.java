@@ -0,0 +1,100 @@
+package test;
+
+import java.io.*;
+import java.nio.file.*;
+
+/** Temporary directory on the local filesystem.
+
+    <p>
+    A temporary directory is created in the system's default location for
+    temporary files when the object is constructed. Tests may add files to it,
+    and should remove it when they are done with it. The directory is not
+    removed automatically.
+ */
+public class TemporaryDirectory
+{
+    /** Prefix of the names of temporary directories. */
+    private static final String PREFIX = "dfs-test-";
+
+    /** Root of the temporary directory. */
+    private final File          root;
+
+    /** Creates a new temporary directory.
+
+        @throws IOException If the directory cannot be created.
+     */
+    public TemporaryDirectory() throws IOException
+    {
+        root = Files.createTempDirectory(PREFIX).toFile();
+    }
+
+    /** Returns the root of the temporary directory. */
+    public File root()
+    {
+        return root;
+    }
+
+    /** Adds an empty file to the temporary directory.
+
+        <p>
+        Any directories on the path to the file that do not exist are created.
+
+        @param path Components of the path to the file, relative to the root of
+                    the temporary directory.
+        @throws IOException If the file cannot be created.
+     */
+    public void add(String[] path) throws IOException
+    {
+        add(path, "");
+    }
+
+    /** Adds a file with the given contents to the temporary directory.
+
+        <p>
+        Any directories on the path to the file that do not exist are created.
+        If the file already exists, it is overwritten.
+
+        @param path Components of the path to the file, relative to the root of
+                    the temporary directory.
+        @param contents Contents of the file. The string is written in the
+                        UTF-8 encoding.
+        @throws IOException If the file cannot be created or written.
+        @throws IllegalArgumentException If the path has no components.
+     */
+    public void add(String[] path, String contents) throws IOException
+    {
+        if(path.length == 0)
+            throw new IllegalArgumentException("path has no components");
+
+        File        file = root;
+        for(String component : path)
+            file = new File(file, component);
+
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), contents.getBytes("UTF-8"));
+    }
+
+    /** Removes the temporary directory and everything in it.
+
+        <p>
+        This method makes a best effort: files that cannot be deleted are
+        left in place, together with the directories holding them.
+     */
+    public void remove()
+    {
+        delete(root);
+    }
+
+    /** Deletes a file, or a directory and everything in it. */
+    private static void delete(File file)
+    {
+        File[]      children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+                delete(child);
+        }
+
+        file.delete();
+    }
+}
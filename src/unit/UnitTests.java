@@ -5,7 +5,8 @@ import test.*;
 /** Runs all unit tests on distributed filesystem components.
 
     <p>
-    There are currently no unit tests.
+    The tests reside in subdirectories of <code>unit/</code>, in the packages of
+    the code they test.
  */
 public class UnitTests
 {
@@ -18,7 +19,33 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {};
+            new Class[] {storage.ReadTraceTest.class,
+                         storage.ReadAllocationTest.class,
+                         storage.ReadRangesTest.class,
+                         storage.ConcurrentAccessTest.class,
+                         storage.ChannelCacheTest.class,
+                         storage.MappedFilesTest.class,
+                         storage.WriteBehindTest.class,
+                         storage.ChecksumTest.class,
+                         storage.DeltaTest.class,
+                         storage.RegistrationBatchTest.class,
+                         rmi.BinaryCodecTest.class,
+                         rmi.MalformedCallTest.class,
+                         rmi.StaleConnectionTest.class,
+                         rmi.DeadlineTest.class,
+                         naming.CachingServiceTest.class,
+                         rmi.OversizedFrameTest.class,
+                         rmi.SelectorServerTest.class,
+                         rmi.CompressionTest.class,
+                         rmi.AsyncCallTest.class,
+                         rmi.DrainTest.class,
+                         storage.ReservedNamesTest.class,
+                         naming.RegistrationsTest.class,
+                         rmi.BufferPoolTest.class,
+                         rmi.SkeletonExecutorsTest.class,
+                         storage.BulkTransferTest.class,
+                         rmi.MetricsTest.class,
+                         storage.ChainCopyTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
@@ -0,0 +1,389 @@
+package naming;
+
+import test.*;
+import common.*;
+import rmi.*;
+import storage.*;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Checks that the client-side naming cache saves lookups, and discards the
+    results that changes make stale.
+
+    <p>
+    The cache is put in front of a naming server that counts the lookups made
+    to it. Properties checked are:
+    <ul>
+    <li>Repeated <code>isDirectory</code>, <code>list</code> and
+        <code>getStorage</code> calls for a path reach the naming server once,
+        and so do lookups of missing paths, whose
+        <code>FileNotFoundException</code> is kept.</li>
+    <li>Changing a listing returned by the cache does not change the listing
+        it keeps.</li>
+    <li>Creating a file, or locking it for writing, discards the results
+        about it and the listing of its parent, but not others. Locking it for
+        reading discards nothing.</li>
+    <li>Results expire, and the least recently used results are evicted once
+        the cache is full.</li>
+    <li>Once the cache listens to the naming server, a change reported by the
+        naming server discards the results it makes stale. A naming server that
+        does not report changes refuses the subscription.</li>
+    <li>Results cached before the subscription starts are discarded, and so
+        are all results when a renewal grants a new subscription rather than
+        renewing the lease, but not when the lease is renewed.</li>
+    </ul>
+ */
+public class CachingServiceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that the naming cache saves lookups and drops stale ones";
+
+    /** Time results are kept by the cache that lets them expire, in
+        milliseconds. */
+    private static final long   SHORT_TTL = 50;
+    /** Number of results kept by the cache that evicts them. */
+    private static final int    CAPACITY = 2;
+    /** Lease granted by the naming server whose subscriptions lapse, in
+        milliseconds; the cache renews it every half lease. */
+    private static final long   SHORT_LEASE = 100;
+
+    /** Directory holding the files. */
+    private final Path          directory = new Path("/directory");
+    /** File in the directory. */
+    private final Path          file = new Path("/directory/file");
+    /** File in another directory. */
+    private final Path          other = new Path("/other/file");
+    /** Path of no object. */
+    private final Path          missing = new Path("/missing");
+
+    /** Naming server counting the lookups made to it. */
+    private CountingService     server;
+    /** Cache under test that listens to the naming server, if any. */
+    private CachingService      listening = null;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkCaching();
+            checkInvalidation();
+            checkExpiry();
+            checkSubscription();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Stops the cache listening to the naming server. */
+    @Override
+    protected void clean()
+    {
+        if(listening != null)
+        {
+            listening.stop();
+            listening = null;
+        }
+    }
+
+    /** Checks that repeated lookups reach the naming server once. */
+    private void checkCaching() throws Throwable
+    {
+        task("repeating lookups");
+        server = new CountingService(0);
+        CachingService  cache = new CachingService(server);
+
+        for(int repeat = 0; repeat < 3; ++repeat)
+        {
+            if(cache.isDirectory(file) || !cache.isDirectory(directory))
+                throw new TestFailed("isDirectory returned the wrong result");
+
+            if(!Arrays.equals(cache.list(directory), new String[] {"file"}))
+                throw new TestFailed("list returned the wrong result");
+
+            if(cache.getStorage(file) != null)
+                throw new TestFailed("getStorage returned the wrong result");
+
+            expectMissing(cache);
+        }
+
+        expectLookups(file, 2);
+        expectLookups(directory, 2);
+        expectLookups(missing, 1);
+
+        task("changing a listing returned by the cache");
+        cache.list(directory)[0] = "changed";
+        if(!Arrays.equals(cache.list(directory), new String[] {"file"}))
+            throw new TestFailed("listing kept by the cache changed");
+    }
+
+    /** Checks that changes made through the cache discard stale results. */
+    private void checkInvalidation() throws Throwable
+    {
+        task("creating a file through the cache");
+        server = new CountingService(0);
+        CachingService  cache = new CachingService(server);
+        lookUpAll(cache);
+        cache.createFile(file);
+        lookUpAll(cache);
+        expectLookups(file, 4);
+        expectLookups(directory, 3);
+        expectLookups(other, 2);
+
+        task("locking a file through the cache");
+        cache.lock(file, false);
+        cache.unlock(file, false);
+        lookUpAll(cache);
+        expectLookups(file, 4);
+
+        cache.lock(file, true);
+        cache.unlock(file, true);
+        lookUpAll(cache);
+        expectLookups(file, 6);
+        expectLookups(directory, 4);
+        expectLookups(other, 2);
+    }
+
+    /** Checks that results expire and are evicted. */
+    private void checkExpiry() throws Throwable
+    {
+        task("letting results expire");
+        server = new CountingService(0);
+        CachingService  cache = new CachingService(server, SHORT_TTL,
+                                                   TimeUnit.MILLISECONDS,
+                                                   CachingService
+                                                       .DEFAULT_CAPACITY);
+        cache.isDirectory(file);
+        Thread.sleep(SHORT_TTL * 2);
+        cache.isDirectory(file);
+        expectLookups(file, 2);
+
+        task("filling the cache");
+        server = new CountingService(0);
+        cache = new CachingService(server, 1, TimeUnit.MINUTES, CAPACITY);
+        cache.isDirectory(file);
+        cache.isDirectory(directory);
+        cache.isDirectory(file);
+        cache.isDirectory(other);
+        cache.isDirectory(file);
+        cache.isDirectory(directory);
+        expectLookups(file, 1);
+        expectLookups(other, 1);
+        expectLookups(directory, 2);
+    }
+
+    /** Checks that changes reported by the naming server discard stale
+        results. */
+    private void checkSubscription() throws Throwable
+    {
+        task("listening to a naming server that does not report changes");
+        server = new CountingService(0);
+        CachingService  cache = new CachingService(server);
+        if(cache.listen("127.0.0.1"))
+            throw new TestFailed("subscription granted without a lease");
+
+        task("listening to the naming server");
+        server = new CountingService(CachingService.LEASE_MILLIS);
+        listening = new CachingService(server);
+        if(!listening.listen("127.0.0.1"))
+            throw new TestFailed("subscription refused");
+
+        Invalidation    listener = server.listener();
+        if(listener == null)
+            throw new TestFailed("cache did not subscribe");
+
+        task("reporting a change");
+        lookUpAll(listening);
+        listener.invalidate(new Path[] {file});
+        lookUpAll(listening);
+        expectLookups(file, 4);
+        expectLookups(directory, 3);
+        expectLookups(other, 2);
+
+        task("stopping the cache");
+        listening.stop();
+        listening = null;
+        if(server.listener() != null)
+            throw new TestFailed("subscription not cancelled");
+
+        task("listening with results already cached");
+        server = new CountingService(SHORT_LEASE);
+        listening = new CachingService(server);
+        lookUpAll(listening);
+        listening.listen("127.0.0.1");
+        lookUpAll(listening);
+        expectLookups(file, 4);
+
+        task("renewing the lease");
+        Thread.sleep(SHORT_LEASE * 3 / 2);
+        lookUpAll(listening);
+        expectLookups(file, 4);
+
+        task("renewing a subscription that lapsed");
+        server.lapse();
+        Thread.sleep(SHORT_LEASE * 3 / 2);
+        lookUpAll(listening);
+        expectLookups(file, 6);
+        expectLookups(other, 6);
+    }
+
+    /** Looks up the file, the directory and the other file. */
+    private void lookUpAll(CachingService cache) throws Throwable
+    {
+        cache.isDirectory(file);
+        cache.getStorage(file);
+        cache.isDirectory(directory);
+        cache.list(directory);
+        cache.isDirectory(other);
+        cache.getStorage(other);
+    }
+
+    /** Checks that looking up the missing path raises
+        <code>FileNotFoundException</code>. */
+    private void expectMissing(CachingService cache) throws Throwable
+    {
+        try
+        {
+            cache.isDirectory(missing);
+            throw new TestFailed("missing path found");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Checks the number of lookups of a path that reached the naming
+        server. */
+    private void expectLookups(Path path, int expected) throws TestFailed
+    {
+        int     lookups = server.lookups(path);
+        if(lookups != expected)
+        {
+            throw new TestFailed(path + " looked up " + lookups +
+                                 " times instead of " + expected);
+        }
+    }
+
+    /** Naming server holding the directory, its file and the other file,
+        and counting the lookups made to it. */
+    private class CountingService implements Service
+    {
+        /** Lease granted to subscriptions, or zero if none are granted. */
+        private final long              lease;
+        /** Number of lookups of each path; guarded by this server. */
+        private final Map<Path, Integer>    lookups =
+            new HashMap<Path, Integer>();
+        /** Subscribed listener, or <code>null</code>; guarded by this
+            server. */
+        private Invalidation            listener = null;
+        /** Whether the next subscription is new even if a listener is
+            subscribed; guarded by this server. */
+        private boolean                 lapsed = false;
+
+        CountingService(long lease)
+        {
+            this.lease = lease;
+        }
+
+        /** Returns the number of lookups of a path. */
+        synchronized int lookups(Path path)
+        {
+            Integer count = lookups.get(path);
+            return count == null ? 0 : count;
+        }
+
+        /** Returns the subscribed listener, if any. */
+        synchronized Invalidation listener()
+        {
+            return listener;
+        }
+
+        /** Makes the next renewal grant a new subscription, as when the
+            lease has expired. */
+        synchronized void lapse()
+        {
+            lapsed = true;
+        }
+
+        /** Counts a lookup, and checks that the path exists. */
+        private synchronized void lookUp(Path path)
+            throws FileNotFoundException
+        {
+            Integer count = lookups.get(path);
+            lookups.put(path, count == null ? 1 : count + 1);
+            if(path.equals(missing))
+                throw new FileNotFoundException(path.toString());
+        }
+
+        @Override
+        public void lock(Path path, boolean exclusive)
+        {
+        }
+
+        @Override
+        public void unlock(Path path, boolean exclusive)
+        {
+        }
+
+        @Override
+        public boolean isDirectory(Path path) throws FileNotFoundException
+        {
+            lookUp(path);
+            return path.equals(directory);
+        }
+
+        @Override
+        public String[] list(Path path) throws FileNotFoundException
+        {
+            lookUp(path);
+            return new String[] {"file"};
+        }
+
+        @Override
+        public boolean createFile(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean createDirectory(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public Storage getStorage(Path path) throws FileNotFoundException
+        {
+            lookUp(path);
+            return null;
+        }
+
+        @Override
+        public synchronized Lease subscribe(Invalidation listener,
+                                            long leaseMillis)
+        {
+            if(lease == 0)
+                return Lease.NONE;
+
+            boolean     renewed = this.listener != null && !lapsed;
+            lapsed = false;
+            this.listener = leaseMillis == 0 ? null : listener;
+            return leaseMillis == 0 ? Lease.NONE : new Lease(lease, renewed);
+        }
+    }
+}
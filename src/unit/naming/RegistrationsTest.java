@@ -0,0 +1,98 @@
+package naming;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+import rmi.*;
+import storage.*;
+
+/** Checks that storage servers registering in batches are forgotten only
+    once they have been idle for the registration timeout.
+
+    <p>
+    The test plays the naming server's part in a registration whose batches
+    each take longer to merge than the timeout. Properties checked are:
+    <ul>
+    <li>A server is registering from its first batch to its last, however
+        long the batches take to merge, as long as the next batch follows
+        the end of the previous one within the timeout.</li>
+    <li>A server that sends no batch for longer than the timeout is
+        forgotten.</li>
+    <li>A server is no longer registering after its last batch, and other
+        servers are not affected by it.</li>
+    </ul>
+ */
+public class RegistrationsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that registering storage servers time out when idle";
+
+    /** Registration timeout, in milliseconds. */
+    private static final long   TIMEOUT = 200;
+    /** Time each batch takes to merge, in milliseconds. */
+    private static final long   MERGE = 300;
+    /** Time between the end of a batch and the next, in milliseconds. */
+    private static final long   GAP = 50;
+    /** Number of batches of the slow registration. */
+    private static final int    BATCHES = 4;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Registrations       registrations =
+            new Registrations(TIMEOUT, TimeUnit.MILLISECONDS);
+        Storage             slow = server(1);
+        Storage             idle = server(2);
+
+        try
+        {
+            task("registering a server whose batches are slow to merge");
+            registrations.renew(idle);
+            for(int batch = 0; batch < BATCHES; ++batch)
+            {
+                if(batch > 0 && !registrations.contains(slow))
+                {
+                    throw new TestFailed("server forgotten before batch " +
+                                         batch);
+                }
+
+                registrations.renew(slow);
+                Thread.sleep(MERGE);
+                if(batch < BATCHES - 1)
+                    registrations.renew(slow);
+                else
+                    registrations.finish(slow);
+                Thread.sleep(GAP);
+            }
+
+            if(registrations.contains(slow))
+            {
+                throw new TestFailed("server registering after its last " +
+                                     "batch");
+            }
+
+            task("leaving a registration idle");
+            if(registrations.contains(idle))
+                throw new TestFailed("idle server still registering");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Returns a stub standing for a storage server. */
+    private static Storage server(int port)
+    {
+        return Stub.create(Storage.class,
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+}
@@ -0,0 +1,211 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.reflect.Proxy;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Checks that the future returned by an asynchronous call always
+    completes.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>An asynchronous call returns the value of the remote method through
+        its future.</li>
+    <li>A call whose argument the codec fails to write with a runtime
+        exception completes its future with <code>RMIException</code>,
+        rather than throwing to the caller or leaving the future
+        incomplete.</li>
+    <li>A call whose executor rejects the step completing it completes its
+        future with <code>RMIException</code>.</li>
+    </ul>
+ */
+public class AsyncCallTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that the futures of asynchronous calls always complete";
+
+    /** Time allowed for a future to complete, in milliseconds. */
+    private static final long   TIMEOUT = 2000;
+
+    /** Skeleton serving the calls. */
+    private Skeleton<Target>    skeleton = null;
+    /** Address of the skeleton. */
+    private InetSocketAddress   address;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Target>(Target.class, new Server(),
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start the skeleton", t);
+        }
+
+        address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                        skeleton.getPort());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        AsyncTarget         async =
+            Stub.createAsync(AsyncTarget.class, Target.class, address);
+
+        task("making an asynchronous call");
+        Object              value = await(async.twice(21), false);
+        if(!Integer.valueOf(42).equals(value))
+            throw new TestFailed("call returned " + value);
+
+        task("making an asynchronous call whose argument cannot be written");
+        CompletableFuture<Void> future;
+        try
+        {
+            future = async.take(new Unwritable());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call threw instead of failing its future",
+                                 t);
+        }
+        await(future, true);
+
+        task("making an asynchronous call on an executor that rejects it");
+        try
+        {
+            MyInvocationHandler<?>  handler = (MyInvocationHandler<?>)
+                Proxy.getInvocationHandler(
+                    Stub.create(Target.class, address));
+            Executor                rejecting = new Executor()
+            {
+                @Override
+                public void execute(Runnable command)
+                {
+                    throw new RejectedExecutionException("test rejects");
+                }
+            };
+
+            await(handler.callAsync(handler.table(),
+                                    Target.class.getMethod("twice",
+                                                           int.class),
+                                    new Object[] {1}, rejecting), true);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to make the call", t);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Waits for a future to complete, and checks how.
+
+        @param failure <code>true</code> if the future is expected to fail
+                       with <code>RMIException</code>.
+        @return The value of the future.
+     */
+    private static Object await(CompletableFuture<?> future, boolean failure)
+        throws TestFailed
+    {
+        try
+        {
+            Object      value = future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            if(failure)
+                throw new TestFailed("call returned " + value);
+            return value;
+        }
+        catch(TimeoutException e)
+        {
+            throw new TestFailed("future of the call never completed", e);
+        }
+        catch(ExecutionException e)
+        {
+            if(!failure || !(e.getCause() instanceof RMIException))
+            {
+                throw new TestFailed("call failed with an unexpected exception",
+                                     e.getCause());
+            }
+            return null;
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Target
+    {
+        /** Returns twice its argument.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        int twice(int value) throws RMIException;
+
+        /** Does nothing with its argument.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void take(Object value) throws RMIException;
+    }
+
+    /** Asynchronous companion of <code>Target</code>. */
+    public interface AsyncTarget
+    {
+        /** Calls <code>Target.twice</code>. */
+        CompletableFuture<Integer> twice(int value);
+
+        /** Calls <code>Target.take</code>. */
+        CompletableFuture<Void> take(Object value);
+    }
+
+    /** Server of the skeleton. */
+    private static class Server implements Target
+    {
+        @Override
+        public int twice(int value)
+        {
+            return 2 * value;
+        }
+
+        @Override
+        public void take(Object value)
+        {
+        }
+    }
+
+    /** Value whose serialization fails with a runtime exception. */
+    private static class Unwritable implements Serializable
+    {
+        private void writeObject(ObjectOutputStream out)
+        {
+            throw new IllegalStateException("value cannot be written");
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package rmi;
+
+import test.*;
+import common.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Checks that values written by the binary codec are read back unchanged.
+
+    <p>
+    Each value is written with its declared type and read back from the bytes
+    written. Properties checked are:
+    <ul>
+    <li>Primitives, boxed primitives and <code>null</code> are read back
+        equal to the values written.</li>
+    <li>The natively encoded types - strings, paths and the arrays used by
+        the filesystem interfaces - are read back equal, including arrays
+        holding <code>null</code>, and a path takes no more bytes than its
+        components.</li>
+    <li>Values of other types, such as exceptions, are read back through
+        serialization with their class and message.</li>
+    <li>Stubs are read back as stubs for the same interface and
+        skeleton.</li>
+    <li>Every byte written is read: values written one after another are
+        read back one after another.</li>
+    </ul>
+ */
+public class BinaryCodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that the binary codec reads back the values it writes";
+
+    /** Codec under test. */
+    private final Codec         codec = new BinaryCodec();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("round-tripping primitives");
+        roundTrip(int.class, -123456789);
+        roundTrip(long.class, Long.MIN_VALUE);
+        roundTrip(boolean.class, true);
+        roundTrip(byte.class, (byte)-7);
+        roundTrip(short.class, (short)31000);
+        roundTrip(char.class, '\u00e9');
+        roundTrip(float.class, 1.5f);
+        roundTrip(double.class, -0.25);
+        roundTrip(void.class, null);
+
+        task("round-tripping boxed primitives and null");
+        roundTrip(Integer.class, 42);
+        roundTrip(Long.class, 1L << 40);
+        roundTrip(Boolean.class, false);
+        roundTrip(String.class, null);
+        roundTrip(Object.class, null);
+
+        task("round-tripping natively encoded types");
+        roundTrip(String.class, "");
+        roundTrip(String.class, "caf\u00e9 \u65e5\u672c");
+        roundTrip(Path.class, new Path());
+        roundTrip(Path.class, new Path("/directory/file"));
+        roundTrip(byte[].class, new byte[0]);
+        roundTrip(byte[].class, new byte[] {0, -1, 127, -128});
+        roundTrip(String[].class, new String[] {"a", null, ""});
+        roundTrip(Path[].class, new Path[] {new Path("/a"), null});
+        roundTrip(int[].class, new int[] {Integer.MIN_VALUE, 0, 1});
+        roundTrip(long[].class, new long[] {Long.MAX_VALUE, -1});
+        roundTrip(byte[][].class, new byte[][] {{1, 2}, null, {}});
+
+        if(encode(Path.class, new Path("/a/bc")).length != 7)
+            throw new TestFailed("path written with more than its components");
+
+        task("round-tripping serialized values");
+        Object  read = roundTrip(Throwable.class,
+                                 new FileNotFoundException("missing"), false);
+        if(!(read instanceof FileNotFoundException) ||
+           !"missing".equals(((Throwable)read).getMessage()))
+        {
+            throw new TestFailed("exception read back as " + read);
+        }
+
+        roundTrip(Object.class, new ArrayList<String>(Arrays.asList("x")));
+        roundTrip(Object.class, "declared as Object");
+
+        task("round-tripping stubs");
+        try
+        {
+            Remote  stub = Stub.create(Remote.class,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 7000));
+            read = roundTrip(Remote.class, stub, false);
+            if(!(read instanceof Remote) || !stub.equals(read))
+                throw new TestFailed("stub read back as " + read);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create a stub", t);
+        }
+
+        task("reading values written one after another");
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        out = new DataOutputStream(bytes);
+            codec.write(out, Path.class, new Path("/first"));
+            codec.write(out, int.class, 5);
+            codec.write(out, String[].class, new String[] {"second"});
+            out.flush();
+
+            DataInputStream         in = new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()));
+            if(!new Path("/first").equals(codec.read(in, Path.class)) ||
+               !Integer.valueOf(5).equals(codec.read(in, int.class)) ||
+               !Arrays.equals(new String[] {"second"},
+                              (String[])codec.read(in, String[].class)))
+            {
+                throw new TestFailed("values read back out of step");
+            }
+
+            if(in.read() != -1)
+                throw new TestFailed("bytes left after the last value");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write or read values", t);
+        }
+
+        task();
+    }
+
+    /** Writes a value and reads it back, checking that it is equal to the
+        value written. */
+    private void roundTrip(Class<?> type, Object value) throws TestFailed
+    {
+        roundTrip(type, value, true);
+    }
+
+    /** Writes a value and reads it back, checking that every byte written is
+        read, and that the value read is equal to the value written if
+        <code>check</code> is set.
+
+        @return The value read.
+     */
+    private Object roundTrip(Class<?> type, Object value, boolean check)
+        throws TestFailed
+    {
+        byte[]          bytes = encode(type, value);
+        Object          read;
+        try
+        {
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(bytes));
+            read = codec.read(in, type);
+            if(in.read() != -1)
+            {
+                throw new TestFailed("bytes left after reading " + value +
+                                     " as " + type.getName());
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read " + value + " as " +
+                                 type.getName(), t);
+        }
+
+        if(check && !Objects.deepEquals(value, read))
+        {
+            throw new TestFailed(value + " read back as " + read + " for " +
+                                 type.getName());
+        }
+
+        return read;
+    }
+
+    /** Returns the bytes the codec writes for a value. */
+    private byte[] encode(Class<?> type, Object value) throws TestFailed
+    {
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        out = new DataOutputStream(bytes);
+            codec.write(out, type, value);
+            out.flush();
+            return bytes.toByteArray();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write " + value + " as " +
+                                 type.getName(), t);
+        }
+    }
+
+    /** Remote interface of the stubs written by the test. */
+    public interface Remote
+    {
+        /** Does nothing.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void ping() throws RMIException;
+    }
+}
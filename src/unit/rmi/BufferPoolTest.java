@@ -0,0 +1,153 @@
+package rmi;
+
+import test.*;
+import java.nio.*;
+import java.util.*;
+
+/** Checks that the buffer pool takes back only the buffers it allocated.
+
+    <p>
+    Each check runs in a thread of its own, so that it starts with the
+    per-thread buffers of the pool empty. Properties checked are:
+    <ul>
+    <li>A buffer acquired and released is handed out again.</li>
+    <li>A direct buffer allocated elsewhere, with the capacity of a class,
+        is never handed out after being released.</li>
+    <li>A view of a pooled buffer is never handed out after being
+        released.</li>
+    </ul>
+ */
+public class BufferPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that the buffer pool takes back only its own buffers";
+
+    /** Capacity of the buffers used, that of the smallest class. */
+    private static final int    CAPACITY = 4096;
+    /** Buffers acquired to check that a released buffer is not handed out,
+        more than are kept by the thread and in the shared slots. */
+    private static final int    ACQUIRED = 128;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("releasing a pooled buffer");
+        check(new Check()
+        {
+            @Override
+            public void run() throws TestFailed
+            {
+                ByteBuffer  buffer = BufferPool.acquire(CAPACITY);
+                BufferPool.release(buffer);
+                if(BufferPool.acquire(CAPACITY) != buffer)
+                    throw new TestFailed("released buffer not reused");
+            }
+        });
+
+        task("releasing a buffer allocated elsewhere");
+        check(new Check()
+        {
+            @Override
+            public void run() throws TestFailed
+            {
+                ByteBuffer  foreign = ByteBuffer.allocateDirect(CAPACITY);
+                BufferPool.release(foreign);
+                expectNotHandedOut(foreign);
+            }
+        });
+
+        task("releasing a view of a pooled buffer");
+        check(new Check()
+        {
+            @Override
+            public void run() throws TestFailed
+            {
+                ByteBuffer  view = BufferPool.acquire(CAPACITY).duplicate();
+                BufferPool.release(view);
+                expectNotHandedOut(view);
+            }
+        });
+
+        task();
+    }
+
+    /** Checks that the pool does not hand out a buffer, and gives back the
+        buffers it hands out instead. */
+    private static void expectNotHandedOut(ByteBuffer buffer)
+        throws TestFailed
+    {
+        List<ByteBuffer>    acquired = new ArrayList<ByteBuffer>();
+        try
+        {
+            for(int count = 0; count < ACQUIRED; ++count)
+            {
+                ByteBuffer  candidate = BufferPool.acquire(CAPACITY);
+                acquired.add(candidate);
+                if(candidate == buffer)
+                {
+                    throw new TestFailed("pool handed out a buffer it did " +
+                                         "not allocate");
+                }
+            }
+        }
+        finally
+        {
+            for(ByteBuffer candidate : acquired)
+            {
+                if(candidate != buffer)
+                    BufferPool.release(candidate);
+            }
+        }
+    }
+
+    /** Runs a check in a new thread, and rethrows its failure. */
+    private static void check(final Check check) throws TestFailed
+    {
+        final Throwable[]   failure = new Throwable[1];
+        Thread              thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    check.run();
+                }
+                catch(Throwable t)
+                {
+                    failure[0] = t;
+                }
+            }
+        });
+        thread.start();
+
+        try
+        {
+            thread.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        if(failure[0] instanceof TestFailed)
+            throw (TestFailed)failure[0];
+        if(failure[0] != null)
+            throw new TestFailed("unexpected exception", failure[0]);
+    }
+
+    /** Check run in a thread of its own. */
+    private interface Check
+    {
+        /** Runs the check.
+
+            @throws TestFailed If the check fails.
+         */
+        void run() throws TestFailed;
+    }
+}
@@ -0,0 +1,518 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.*;
+
+/** Checks the compressors built into the library, and the agreement on a
+    compressor when a connection is opened.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Each compressor reads back the bytes it writes: empty and one-byte
+        inputs, text, long runs of one byte, inputs longer than the window of
+        LZ4, and random bytes, which do not compress and are reported as not
+        fitting in fewer bytes than the input.</li>
+    <li>Decompressing truncated input, or into a buffer of the wrong length,
+        fails with <code>IOException</code>, and decompressing corrupted input
+        fails with <code>IOException</code> or produces bytes, but never
+        fails otherwise.</li>
+    <li>A compressed frame claiming to decompress to more than its compressor
+        can expand it to is refused.</li>
+    <li>A skeleton picks the first compressor it supports among those a stub
+        offers, and none if the stub offers none, or none it knows.</li>
+    <li>A stub whose skeleton picks no compressor uses none, and a stub with
+        compression turned off offers none. Calls with large arguments are
+        answered unchanged either way.</li>
+    </ul>
+ */
+public class CompressionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking frame compressors and their negotiation";
+
+    /** Size of the large inputs, above the window of LZ4. */
+    private static final int    LARGE = 150 * 1024;
+    /** Identifier offered by no compressor. */
+    private static final byte   UNKNOWN = -100;
+    /** Time allowed for a peer to answer, in milliseconds. */
+    private static final int    TIMEOUT = 2000;
+
+    /** Compressors under test. */
+    private final Compressor[]  compressors =
+        new Compressor[] {new Lz4Compressor(), new DeflateCompressor()};
+    /** Random numbers making up the random inputs. */
+    private final Random        random = new Random(LARGE);
+
+    /** Skeleton used to check the agreement on a compressor. */
+    private Skeleton<Echo>      skeleton = null;
+    /** Server socket posing as a skeleton that does not compress. */
+    private ServerSocket        fake = null;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(),
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start the skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(Compressor compressor : compressors)
+        {
+            String  name = compressor.getClass().getSimpleName();
+
+            task("round-tripping inputs with " + name);
+            for(byte[] input : inputs())
+                roundTrip(compressor, input);
+
+            task("compressing random bytes with " + name);
+            byte[]  noise = new byte[LARGE];
+            random.nextBytes(noise);
+            if(compressor.compress(ByteBuffer.wrap(noise),
+                                   ByteBuffer.allocate(noise.length - 1)))
+            {
+                throw new TestFailed("random bytes compressed");
+            }
+            roundTrip(compressor, noise);
+
+            task("decompressing damaged input with " + name);
+            checkDamaged(compressor);
+        }
+
+        task("receiving a frame that expands too much");
+        checkExpansion();
+
+        try
+        {
+            task("offering compressors to a skeleton");
+            expectChosen(new byte[] {Lz4Compressor.ID, DeflateCompressor.ID},
+                         Lz4Compressor.ID);
+            expectChosen(new byte[] {UNKNOWN, DeflateCompressor.ID},
+                         DeflateCompressor.ID);
+
+            task("offering no compressors to a skeleton");
+            expectChosen(new byte[0], null);
+            expectChosen(new byte[] {UNKNOWN}, null);
+            expectChosen(null, null);
+
+            task("connecting to a skeleton that does not compress");
+            checkUncompressedSkeleton();
+
+            task("calling a skeleton with compression");
+            checkCalls(Lz4Compressor.ID);
+
+            task("calling a skeleton with compression turned off");
+            Compressors.setEnabled(false);
+            try
+            {
+                checkCalls(null);
+            }
+            finally
+            {
+                Compressors.setEnabled(true);
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Stops the skeleton and the fake skeleton. */
+    @Override
+    protected void clean()
+    {
+        Compressors.setEnabled(true);
+
+        if(fake != null)
+        {
+            try
+            {
+                fake.close();
+            }
+            catch(IOException e) { }
+            fake = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Returns the inputs that are round-tripped by every compressor. */
+    private List<byte[]> inputs() throws TestFailed
+    {
+        List<byte[]>    inputs = new ArrayList<byte[]>();
+        inputs.add(new byte[0]);
+        inputs.add(new byte[] {42});
+        inputs.add(new byte[LARGE]);
+
+        StringBuilder   text = new StringBuilder();
+        while(text.length() < LARGE)
+        {
+            text.append("the storage server ").append(text.length() % 97)
+                .append(" holds /directory/file").append(text.length() % 13)
+                .append('\n');
+        }
+
+        try
+        {
+            inputs.add(text.toString().getBytes("UTF-8"));
+            inputs.add("short text, short text, short text"
+                       .getBytes("UTF-8"));
+        }
+        catch(UnsupportedEncodingException e)
+        {
+            throw new TestFailed("UTF-8 not supported", e);
+        }
+
+        // text followed by random bytes, so that the second half is only
+        // partly compressible
+        byte[]          mixed = new byte[LARGE];
+        System.arraycopy(inputs.get(3), 0, mixed, 0, LARGE / 2);
+        byte[]          noise = new byte[LARGE / 2];
+        random.nextBytes(noise);
+        System.arraycopy(noise, 0, mixed, LARGE / 2, noise.length);
+        inputs.add(mixed);
+
+        return inputs;
+    }
+
+    /** Returns the compressed form of an input, or <code>null</code> if it
+        does not fit in a buffer a little larger than the input. */
+    private static byte[] compress(Compressor compressor, byte[] input)
+    {
+        ByteBuffer  target = ByteBuffer.allocate(input.length * 2 + 64);
+        if(!compressor.compress(ByteBuffer.wrap(input), target))
+            return null;
+
+        target.flip();
+        byte[]      compressed = new byte[target.remaining()];
+        target.get(compressed);
+        return compressed;
+    }
+
+    /** Compresses an input, and checks that it decompresses to the same
+        bytes, both into a heap buffer and into a direct one. */
+    private void roundTrip(Compressor compressor, byte[] input)
+        throws TestFailed
+    {
+        byte[]          compressed = compress(compressor, input);
+        if(compressed == null)
+        {
+            throw new TestFailed(input.length + " bytes did not fit in twice " +
+                                 "their size");
+        }
+
+        for(ByteBuffer target : new ByteBuffer[]
+                                {ByteBuffer.allocate(input.length),
+                                 ByteBuffer.allocateDirect(input.length)})
+        {
+            try
+            {
+                compressor.decompress(ByteBuffer.wrap(compressed), target);
+            }
+            catch(IOException e)
+            {
+                throw new TestFailed("unable to decompress " + input.length +
+                                     " bytes", e);
+            }
+
+            if(target.hasRemaining())
+                throw new TestFailed("decompressed bytes too short");
+
+            target.flip();
+            byte[]      output = new byte[input.length];
+            target.get(output);
+            if(!Arrays.equals(input, output))
+            {
+                throw new TestFailed(input.length + " bytes decompressed to " +
+                                     "other bytes");
+            }
+        }
+    }
+
+    /** Checks that damaged compressed input is handled. */
+    private void checkDamaged(Compressor compressor) throws TestFailed
+    {
+        byte[]          input = inputs().get(3);
+        byte[]          compressed = compress(compressor, input);
+
+        for(int length : new int[] {0, 1, 2, compressed.length / 2,
+                                    compressed.length - 1})
+        {
+            expectIOException(compressor,
+                              Arrays.copyOf(compressed, length), input.length,
+                              "truncated to " + length + " bytes");
+        }
+
+        expectIOException(compressor, compressed, input.length - 1,
+                          "into a buffer one byte short");
+        expectIOException(compressor, compressed, input.length + 1,
+                          "into a buffer one byte long");
+
+        for(int trial = 0; trial < 200; ++trial)
+        {
+            byte[]      damaged = compressed.clone();
+            for(int flip = 0; flip < 3; ++flip)
+            {
+                damaged[random.nextInt(damaged.length)] ^=
+                    (byte)(1 + random.nextInt(255));
+            }
+
+            try
+            {
+                compressor.decompress(ByteBuffer.wrap(damaged),
+                                      ByteBuffer.allocate(input.length));
+            }
+            catch(IOException e) { }
+            catch(Throwable t)
+            {
+                throw new TestFailed("corrupted input failed with an " +
+                                     "unexpected exception", t);
+            }
+        }
+    }
+
+    /** Checks that decompressing the given bytes into a buffer of the given
+        length fails with <code>IOException</code>. */
+    private static void expectIOException(Compressor compressor,
+                                          byte[] compressed, int length,
+                                          String description)
+        throws TestFailed
+    {
+        try
+        {
+            compressor.decompress(ByteBuffer.wrap(compressed),
+                                  ByteBuffer.allocate(length));
+        }
+        catch(IOException e)
+        {
+            return;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("decompressing " + description + " failed " +
+                                 "with an unexpected exception", t);
+        }
+
+        throw new TestFailed("decompressing " + description + " succeeded");
+    }
+
+    /** Checks that a compressed frame whose uncompressed length is above
+        what its body can expand to is refused without allocating a buffer
+        for it. */
+    private void checkExpansion() throws TestFailed
+    {
+        for(Compressor compressor : compressors)
+        {
+            ByteBuffer  body = ByteBuffer.allocate(4 + 20);
+            body.putInt(20 * compressor.maxRatio() + 1);
+            body.put(new byte[20]);
+            body.flip();
+
+            ByteBuffer  received = ByteBuffer.allocate(64);
+            received.putInt(Frame.HEADER_SIZE + body.remaining());
+            received.putLong(1);
+            received.put((byte)(Frame.RETURN | Frame.COMPRESSED));
+            received.put(body);
+            received.flip();
+
+            long        allocated = BufferPool.allocated();
+            try
+            {
+                Frame   frame = Frame.read(received);
+                frame.decompress(compressor);
+                throw new TestFailed("frame expanding too much accepted");
+            }
+            catch(TestFailed e) { throw e; }
+            catch(StreamCorruptedException e) { }
+            catch(Throwable t)
+            {
+                throw new TestFailed("frame expanding too much refused with " +
+                                     "an unexpected exception", t);
+            }
+
+            if(BufferPool.allocated() != allocated)
+            {
+                throw new TestFailed("buffer allocated for a frame expanding " +
+                                     "too much");
+            }
+        }
+    }
+
+    /** Offers compressors to the skeleton over a plain socket, and checks the
+        one it picks.
+
+        @param offered Identifiers offered, or <code>null</code> to send no
+                       list, as stubs that do not compress do.
+        @param expected Identifier expected, or <code>null</code> if the
+                        skeleton is expected to pick none.
+     */
+    private void expectChosen(byte[] offered, Byte expected) throws Throwable
+    {
+        try(Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+                                       skeleton.getPort()))
+        {
+            socket.setSoTimeout(TIMEOUT);
+
+            ByteArrayOutputStream   hello = new ByteArrayOutputStream();
+            DataOutputStream        body = new DataOutputStream(hello);
+            BinaryCodec.writeVarInt(body, 1);
+            body.writeByte(BinaryCodec.ID);
+            if(offered != null)
+            {
+                BinaryCodec.writeVarInt(body, offered.length);
+                body.write(offered);
+            }
+            new Frame(0, Frame.HELLO, hello.toByteArray())
+                .write(new DataOutputStream(socket.getOutputStream()));
+
+            Frame                   reply = Frame.read(
+                new DataInputStream(socket.getInputStream()));
+            if(reply == null || reply.type != Frame.HELLO)
+                throw new TestFailed("skeleton did not answer the offer");
+
+            byte[]                  chosen = reply.bodyBytes();
+            if(chosen[0] != BinaryCodec.ID)
+                throw new TestFailed("skeleton chose codec " + chosen[0]);
+
+            if(expected == null && chosen.length != 1)
+                throw new TestFailed("skeleton chose compressor " + chosen[1]);
+
+            if(expected != null &&
+               (chosen.length != 2 || chosen[1] != expected))
+            {
+                throw new TestFailed("skeleton did not choose compressor " +
+                                     expected);
+            }
+        }
+    }
+
+    /** Checks that a stub connecting to a skeleton that chooses a codec but
+        no compressor uses none. */
+    private void checkUncompressedSkeleton() throws Throwable
+    {
+        fake = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        final ServerSocket  server = fake;
+
+        Thread              peer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try(Socket connection = server.accept())
+                {
+                    DataInputStream     in = new DataInputStream(
+                        new BufferedInputStream(connection.getInputStream()));
+                    Frame.read(in).release();
+                    new Frame(0, Frame.HELLO, new byte[] {BinaryCodec.ID})
+                        .write(new DataOutputStream(
+                            connection.getOutputStream()));
+
+                    while(in.read() != -1)
+                    {
+                    }
+                }
+                catch(IOException e) { }
+            }
+        });
+        peer.setDaemon(true);
+        peer.start();
+
+        Connection          connection = new Connection(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                  fake.getLocalPort()));
+        try
+        {
+            if(connection.compressor != null)
+                throw new TestFailed("stub compresses without the skeleton");
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /** Makes calls with large arguments through a new connection to the
+        skeleton, and checks the compressor agreed on it.
+
+        @param expected Identifier of the compressor expected, or
+                        <code>null</code> if none is expected.
+     */
+    private void checkCalls(Byte expected) throws Throwable
+    {
+        InetSocketAddress   address =
+            new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                  skeleton.getPort());
+        // the stub must open a new connection, with the current settings
+        Connection          old = ConnectionPool.acquire(address);
+        old.close();
+
+        Echo                stub = Stub.create(Echo.class, address);
+        for(byte[] input : inputs())
+        {
+            if(!Arrays.equals(stub.echo(input), input))
+                throw new TestFailed("call answered with another argument");
+        }
+
+        Compressor          compressor =
+            ConnectionPool.acquire(address).compressor;
+        if(expected == null && compressor != null)
+            throw new TestFailed("connection compressed when it should not");
+
+        if(expected != null &&
+           (compressor == null || compressor.id() != expected))
+        {
+            throw new TestFailed("connection not compressed with compressor " +
+                                 expected);
+        }
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Echo
+    {
+        /** Returns its argument.
+
+            @param data Bytes to be returned.
+            @return <code>data</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Server returning its arguments. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Checks that a call made through a stub with a timeout fails once its
+    deadline passes, and that the server sees the deadline.
+
+    <p>
+    The server method waits until the deadline of the call it runs has passed,
+    or for longer than the timeout if the call has none. Properties
+    checked are:
+    <ul>
+    <li>A call through a stub with a timeout fails with
+        <code>RMIException</code> once the timeout has elapsed, without
+        waiting for the server method to return.</li>
+    <li>The server method sees the time remaining until the deadline, no
+        more than the timeout, and sees the deadline pass.</li>
+    <li>A call through the stub without a timeout has no deadline, and
+        returns.</li>
+    </ul>
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that calls fail when their deadline passes";
+
+    /** Timeout of the calls made by the test, in milliseconds. */
+    private static final long   TIMEOUT = 200;
+    /** Time the server method waits for a call without a deadline, in
+        milliseconds. */
+    private static final long   WAIT = 300;
+    /** Longest time a call with a deadline is allowed to take, in
+        milliseconds. */
+    private static final long   LATEST = 1500;
+
+    /** Server waiting out the deadlines of its calls. */
+    private final WaitingServer server = new WaitingServer();
+    /** Skeleton serving the calls. */
+    private Skeleton<Waiter>    skeleton = null;
+    /** Stub without a timeout. */
+    private Waiter              stub;
+
+    /** Starts the skeleton and creates the stub. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            skeleton = new Skeleton<Waiter>(Waiter.class, server,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            skeleton.start();
+            stub = Stub.create(Waiter.class,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                      skeleton.getPort()));
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start the skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("calling with a timeout");
+        Waiter      timed = Stub.withTimeout(stub, TIMEOUT,
+                                             TimeUnit.MILLISECONDS);
+        long        start = System.nanoTime();
+        try
+        {
+            timed.waitOut();
+            throw new TestFailed("call returned after its deadline");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(RMIException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call threw an unexpected exception", t);
+        }
+
+        long        elapsed = TimeUnit.NANOSECONDS.toMillis(
+                                  System.nanoTime() - start);
+        if(elapsed < TIMEOUT - 1)
+            throw new TestFailed("call failed after " + elapsed + " ms");
+
+        if(elapsed > LATEST)
+        {
+            throw new TestFailed("call failed only after " + elapsed +
+                                 " ms");
+        }
+
+        task("checking the deadline seen by the server");
+        Outcome     outcome = server.await();
+        if(outcome.remaining <= 0 || outcome.remaining > TIMEOUT)
+        {
+            throw new TestFailed("server saw " + outcome.remaining +
+                                 " ms remaining");
+        }
+
+        if(!outcome.expired)
+            throw new TestFailed("server did not see the deadline pass");
+
+        task("calling without a timeout");
+        try
+        {
+            stub.waitOut();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call without a timeout failed", t);
+        }
+
+        outcome = server.await();
+        if(outcome.remaining != Long.MAX_VALUE || outcome.expired)
+            throw new TestFailed("server saw a deadline");
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Waiter
+    {
+        /** Waits until the deadline of the call passes, or for a while if
+            the call has none.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void waitOut() throws RMIException;
+    }
+
+    /** What the server saw of the deadline of a call. */
+    private static class Outcome
+    {
+        /** Milliseconds remaining when the call started. */
+        final long      remaining;
+        /** Whether the deadline passed while the call ran. */
+        final boolean   expired;
+
+        Outcome(long remaining, boolean expired)
+        {
+            this.remaining = remaining;
+            this.expired = expired;
+        }
+    }
+
+    /** Server waiting out the deadlines of its calls. */
+    private static class WaitingServer implements Waiter
+    {
+        /** Outcome of the last call, until taken by <code>await</code>;
+            guarded by this server. */
+        private Outcome     outcome = null;
+
+        @Override
+        public void waitOut()
+        {
+            long        remaining = Deadline.remaining(TimeUnit.MILLISECONDS);
+            // a call with a deadline waits for it to pass, for no longer than
+            // the caller may take; one without waits a little
+            long        limit = System.nanoTime() +
+                TimeUnit.MILLISECONDS.toNanos(
+                    remaining == Long.MAX_VALUE ? WAIT : LATEST);
+            boolean     expired;
+            while(!(expired = Deadline.expired()) &&
+                  System.nanoTime() - limit < 0)
+            {
+                try
+                {
+                    Thread.sleep(5);
+                }
+                catch(InterruptedException e) { }
+            }
+
+            synchronized(this)
+            {
+                outcome = new Outcome(remaining, expired);
+                notifyAll();
+            }
+        }
+
+        /** Waits for a call to end, and returns what it saw. */
+        synchronized Outcome await()
+        {
+            while(outcome == null)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+
+            Outcome     taken = outcome;
+            outcome = null;
+            return taken;
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks that a skeleton lets the calls it is running finish before it
+    stops, and that it does not wait for them forever.
+
+    <p>
+    Properties checked are, with each transport:
+    <ul>
+    <li>While a skeleton drains, a call made on an open connection fails with
+        <code>RMIException</code> and does not reach the server.</li>
+    <li>A call that was running when the drain began returns its value.</li>
+    <li><code>stopped</code> is called once, and only after the calls that
+        were running have returned.</li>
+    <li><code>stop</code> returns once the time set with
+        <code>setStopTimeout</code> has passed, even if a call never
+        returns.</li>
+    </ul>
+ */
+public class DrainTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that skeletons drain their calls before they stop";
+
+    /** Time allowed for the drain, in milliseconds. */
+    private static final long   DRAIN = 2000;
+    /** Time allowed by <code>stop</code> in the bounded stop, in
+        milliseconds. */
+    private static final long   STOP = 300;
+    /** Time after which a step that should be over is taken to hang, in
+        milliseconds. */
+    private static final long   TIMEOUT = 1000;
+
+    /** Skeleton under test. */
+    private DrainedSkeleton     skeleton = null;
+    /** Server of the skeleton. */
+    private Server              server = null;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            for(SkeletonTransport transport : SkeletonTransport.values())
+            {
+                task("draining a skeleton with the " + transport +
+                     " transport");
+                checkDrain(transport);
+                clean();
+
+                task("stopping a skeleton with the " + transport +
+                     " transport while a call hangs");
+                checkBoundedStop(transport);
+                clean();
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Releases the blocked calls and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.release.countDown();
+            server = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.setStopTimeout(0, TimeUnit.MILLISECONDS);
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Checks that a skeleton with the given transport drains its calls. */
+    private void checkDrain(SkeletonTransport transport) throws Throwable
+    {
+        final Target            stub = start(transport);
+        Future<Integer>         slow = callSlow(stub);
+
+        Thread                  drainer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                skeleton.drain(DRAIN, TimeUnit.MILLISECONDS);
+            }
+        });
+        drainer.setDaemon(true);
+        drainer.start();
+        Thread.sleep(100);
+
+        try
+        {
+            stub.fast();
+            throw new TestFailed("call made during the drain returned");
+        }
+        catch(RMIException e) { }
+        if(server.fast.get() != 0)
+        {
+            throw new TestFailed("call made during the drain reached the " +
+                                 "server");
+        }
+
+        if(skeleton.stops.get() != 0)
+            throw new TestFailed("stopped called while a call was running");
+
+        server.release.countDown();
+        if(slow.get(TIMEOUT, TimeUnit.MILLISECONDS) != Server.VALUE)
+            throw new TestFailed("running call returned another value");
+
+        drainer.join(TIMEOUT);
+        if(drainer.isAlive())
+            throw new TestFailed("drain did not end when the call returned");
+        if(skeleton.stops.get() != 1)
+        {
+            throw new TestFailed("stopped called " + skeleton.stops.get() +
+                                 " times");
+        }
+
+        skeleton = null;
+    }
+
+    /** Checks that <code>stop</code> does not wait for a call that hangs
+        longer than the stop timeout. */
+    private void checkBoundedStop(SkeletonTransport transport) throws Throwable
+    {
+        Target                  stub = start(transport);
+        callSlow(stub);
+
+        skeleton.setStopTimeout(STOP, TimeUnit.MILLISECONDS);
+        long                    start = System.currentTimeMillis();
+        skeleton.stop();
+        if(System.currentTimeMillis() - start >= STOP + TIMEOUT)
+            throw new TestFailed("stop waited for a call that hangs");
+        if(skeleton.stops.get() != 1)
+        {
+            throw new TestFailed("stopped called " + skeleton.stops.get() +
+                                 " times");
+        }
+
+        skeleton = null;
+    }
+
+    /** Starts a skeleton with the given transport, and returns a stub for
+        it. */
+    private Target start(SkeletonTransport transport) throws TestFailed
+    {
+        server = new Server();
+        skeleton = new DrainedSkeleton(server);
+        skeleton.setTransport(transport);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start the skeleton", t);
+        }
+
+        return Stub.create(Target.class,
+            new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                  skeleton.getPort()));
+    }
+
+    /** Calls <code>slow</code> from another thread, and waits until the
+        server runs it. */
+    private Future<Integer> callSlow(final Target stub) throws Throwable
+    {
+        FutureTask<Integer>     call = new FutureTask<Integer>(
+            new Callable<Integer>()
+        {
+            @Override
+            public Integer call() throws RMIException
+            {
+                return stub.slow();
+            }
+        });
+        Thread                  caller = new Thread(call);
+        caller.setDaemon(true);
+        caller.start();
+
+        if(!server.running.await(TIMEOUT, TimeUnit.MILLISECONDS))
+            throw new TestFailed("slow call did not reach the server");
+        return call;
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Target
+    {
+        /** Returns once the test releases it.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        int slow() throws RMIException;
+
+        /** Returns at once.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void fast() throws RMIException;
+    }
+
+    /** Server whose <code>slow</code> method blocks until released. */
+    private static class Server implements Target
+    {
+        /** Value returned by <code>slow</code>. */
+        static final int            VALUE = 42;
+
+        /** Counted down when <code>slow</code> is running. */
+        final CountDownLatch        running = new CountDownLatch(1);
+        /** Counted down to let <code>slow</code> return. */
+        final CountDownLatch        release = new CountDownLatch(1);
+        /** Number of calls to <code>fast</code>. */
+        final AtomicInteger         fast = new AtomicInteger();
+
+        @Override
+        public int slow()
+        {
+            running.countDown();
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+            return VALUE;
+        }
+
+        @Override
+        public void fast()
+        {
+            fast.incrementAndGet();
+        }
+    }
+
+    /** Skeleton counting the calls to <code>stopped</code>. */
+    private static class DrainedSkeleton extends Skeleton<Target>
+    {
+        /** Number of calls to <code>stopped</code>. */
+        final AtomicInteger         stops = new AtomicInteger();
+
+        DrainedSkeleton(Server server)
+        {
+            super(Target.class, server,
+                  new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        }
+
+        @Override
+        protected void stopped(Throwable cause)
+        {
+            stops.incrementAndGet();
+        }
+    }
+}
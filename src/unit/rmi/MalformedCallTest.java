@@ -0,0 +1,292 @@
+package rmi;
+
+import test.*;
+import common.*;
+import java.io.*;
+import java.net.*;
+
+/** Checks that a skeleton answers calls it cannot decode with a failure.
+
+    <p>
+    The test speaks the frame protocol to a skeleton over a plain socket, so
+    that it can send call bodies no stub would write. Properties checked are:
+    <ul>
+    <li>A call whose arguments are cut short, one whose argument carries an
+        unknown value tag, one whose argument is a stub for a class that is
+        not an interface, which the codec fails to rebuild with a runtime
+        exception, and one naming a method the interface does not have are
+        each answered with a <code>FAILURE</code> frame carrying the
+        identifier of the call, rather than left without a reply.</li>
+    <li>None of these calls runs the method.</li>
+    <li>The connection still serves a well-formed call afterwards.</li>
+    </ul>
+    The calls are sent to a skeleton with each transport.
+ */
+public class MalformedCallTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that calls that cannot be decoded are answered with a " +
+        "failure";
+
+    /** Binding number the test gives the interface on its connection. */
+    private static final int    BINDING = 0;
+
+    /** Tag of a stub in the binary codec. */
+    private static final byte   STUB_TAG = 3;
+
+    /** Server counting the calls that reach it. */
+    private final CountingServer    server = new CountingServer();
+    /** Skeleton under test. */
+    private Skeleton<Target>        skeleton = null;
+    /** Connection to the skeleton. */
+    private Socket                  socket = null;
+    /** Stream of frames to the skeleton. */
+    private DataOutputStream        out;
+    /** Stream of frames from the skeleton. */
+    private DataInputStream         in;
+
+    /** Performs the test with each transport.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(SkeletonTransport transport : SkeletonTransport.values())
+        {
+            connect(transport);
+            check(transport);
+            clean();
+        }
+
+        task();
+    }
+
+    /** Closes the connection and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(socket != null)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(IOException e) { }
+            socket = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Starts a skeleton with the given transport, connects to it, agrees on
+        the binary codec and announces the interface. */
+    private void connect(SkeletonTransport transport) throws TestFailed
+    {
+        task("connecting to a skeleton with the " + transport + " transport");
+        server.calls = 0;
+        skeleton = new Skeleton<Target>(Target.class, server,
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        skeleton.setTransport(transport);
+
+        try
+        {
+            skeleton.start();
+
+            socket = new Socket(InetAddress.getLoopbackAddress(),
+                                skeleton.getPort());
+            out = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+            in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+
+            ByteArrayOutputStream   hello = new ByteArrayOutputStream();
+            DataOutputStream        body = new DataOutputStream(hello);
+            BinaryCodec.writeVarInt(body, 1);
+            body.writeByte(BinaryCodec.ID);
+            BinaryCodec.writeVarInt(body, 0);
+            new Frame(0, Frame.HELLO, hello.toByteArray()).write(out);
+
+            Frame                   reply = Frame.read(in);
+            if(reply == null || reply.type != Frame.HELLO ||
+               reply.bodyBytes()[0] != BinaryCodec.ID)
+            {
+                throw new TestFailed("skeleton did not agree on the binary " +
+                                     "codec");
+            }
+
+            MethodTable             table = MethodTable.of(Target.class);
+            ByteArrayOutputStream   bind = new ByteArrayOutputStream();
+            body = new DataOutputStream(bind);
+            BinaryCodec.writeVarInt(body, BINDING);
+            body.writeUTF(Target.class.getName());
+            BinaryCodec.writeVarInt(body, table.signatures.length);
+            for(String signature : table.signatures)
+                body.writeUTF(signature);
+            new Frame(0, Frame.BIND, bind.toByteArray()).write(out);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to connect to the skeleton", t);
+        }
+    }
+
+    /** Sends the malformed calls and a well-formed one on the connection. */
+    private void check(SkeletonTransport transport) throws TestFailed
+    {
+        task("sending a call whose argument is cut short, with the " +
+             transport + " transport");
+        expectFailure(1, call(new byte[] {1, 3, 1}));
+
+        task("sending a call whose argument has an unknown tag, with the " +
+             transport + " transport");
+        expectFailure(2, call(new byte[] {99}));
+
+        task("sending a call whose argument is a stub for a class, with the " +
+             transport + " transport");
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        body = new DataOutputStream(bytes);
+            byte[]                  name =
+                String.class.getName().getBytes("UTF-8");
+            body.writeByte(STUB_TAG);
+            BinaryCodec.writeVarInt(body, name.length);
+            body.write(name);
+            BinaryCodec.writeVarInt(body, 4);
+            body.write(new byte[] {127, 0, 0, 1});
+            body.writeShort(80);
+            body.flush();
+            expectFailure(3, call(bytes.toByteArray()));
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode the call", e);
+        }
+
+        task("sending a call to a method the interface does not have, with " +
+             "the " + transport + " transport");
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        body = new DataOutputStream(bytes);
+            BinaryCodec.writeVarInt(body, BINDING);
+            BinaryCodec.writeVarInt(body, 0);
+            BinaryCodec.writeVarInt(body, 1000);
+            expectFailure(4, bytes.toByteArray());
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to encode the call", e);
+        }
+
+        if(server.calls != 0)
+            throw new TestFailed("malformed call ran the method");
+
+        task("sending a well-formed call on the same connection, with the " +
+             transport + " transport");
+        try
+        {
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        body = new DataOutputStream(bytes);
+            new BinaryCodec().write(body, Path.class, new Path("/file"));
+            body.flush();
+
+            new Frame(5, Frame.CALL, call(bytes.toByteArray())).write(out);
+            Frame                   reply = Frame.read(in);
+            if(reply == null || reply.callId != 5 ||
+               reply.type != Frame.RETURN)
+            {
+                throw new TestFailed("well-formed call not answered with " +
+                                     "its return value");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to make a well-formed call", t);
+        }
+
+        if(server.calls != 1)
+            throw new TestFailed("well-formed call did not run the method");
+    }
+
+    /** Returns the body of a call to <code>touch</code> without a deadline,
+        followed by the given encoding of its argument. */
+    private static byte[] call(byte[] argument) throws TestFailed
+    {
+        try
+        {
+            MethodTable             table = MethodTable.of(Target.class);
+            ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+            DataOutputStream        body = new DataOutputStream(bytes);
+            BinaryCodec.writeVarInt(body, BINDING);
+            BinaryCodec.writeVarInt(body, 0);
+            BinaryCodec.writeVarInt(body, table.ordinal(
+                Target.class.getMethod("touch", Path.class)));
+            body.write(argument);
+            body.flush();
+            return bytes.toByteArray();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to encode the call", t);
+        }
+    }
+
+    /** Sends a call frame with the given body, and checks that the skeleton
+        answers it with a failure. */
+    private void expectFailure(long callId, byte[] body) throws TestFailed
+    {
+        Frame       reply;
+        try
+        {
+            new Frame(callId, Frame.CALL, body).write(out);
+            reply = Frame.read(in);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send the call or read its reply",
+                                 t);
+        }
+
+        if(reply == null)
+            throw new TestFailed("skeleton closed the connection");
+
+        if(reply.callId != callId || reply.type != Frame.FAILURE)
+        {
+            throw new TestFailed("call answered with a frame of type " +
+                                 reply.type + " for call " + reply.callId);
+        }
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Target
+    {
+        /** Records a call.
+
+            @param path Ignored.
+            @throws RMIException If the call cannot be completed.
+         */
+        void touch(Path path) throws RMIException;
+    }
+
+    /** Server counting the calls made to it. */
+    private static class CountingServer implements Target
+    {
+        /** Number of calls made. */
+        volatile int    calls = 0;
+
+        @Override
+        public synchronized void touch(Path path)
+        {
+            ++calls;
+        }
+    }
+}
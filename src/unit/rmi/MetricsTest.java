@@ -0,0 +1,378 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.concurrent.*;
+import javax.management.*;
+
+/** Checks the metrics kept for each remote method, and their JMX view.
+
+    <p>
+    The test uses an interface of its own, so that the calls of other tests do
+    not count. Properties checked are:
+    <ul>
+    <li>Calls that return, that throw, and that fail are counted on the stub
+        side, and the first two on the skeleton side, with the bytes of their
+        frames.</li>
+    <li>A call that is running is counted as in flight on both sides until it
+        returns.</li>
+    <li>The latency recorded covers the time the remote method took.</li>
+    <li>The metrics of each method, and the report of the registry, can be
+        read over JMX, and resetting the registry over JMX resets the
+        counters.</li>
+    </ul>
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the metrics of remote methods and their JMX view";
+
+    /** Number of calls that return. */
+    private static final int    CALLS = 3;
+    /** Time the slow method takes, in milliseconds. */
+    private static final long   SLOW = 50;
+    /** Time allowed for the skeleton to record a call, in milliseconds. */
+    private static final long   TIMEOUT = 1000;
+
+    /** Skeleton serving the calls. */
+    private Skeleton<Measured>  skeleton = null;
+    /** Server of the skeleton. */
+    private Server              server = null;
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        server = new Server();
+        skeleton = new Skeleton<Measured>(Measured.class, server,
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start the skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            InetSocketAddress   address = new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), skeleton.getPort());
+            Measured            stub = Stub.create(Measured.class, address);
+
+            checkCounters(stub);
+            checkInFlight(stub);
+            checkLatency(stub);
+            checkFailure(address);
+            checkJmx();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Releases the blocked call and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.release.countDown();
+            server = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Checks the counters of calls that return and that throw. */
+    private void checkCounters(Measured stub) throws Throwable
+    {
+        task("counting calls that return");
+        for(int call = 0; call < CALLS; ++call)
+            stub.twice(call);
+
+        MethodMetrics       stubSide =
+            metrics(MethodMetrics.Side.STUB, "twice");
+        MethodMetrics       skeletonSide =
+            metrics(MethodMetrics.Side.SKELETON, "twice");
+        expectCalls(stubSide, CALLS);
+        expectCalls(skeletonSide, CALLS);
+        for(MethodMetrics side : new MethodMetrics[] {stubSide, skeletonSide})
+        {
+            if(side.getExceptions() != 0 || side.getFailures() != 0)
+                throw new TestFailed(side + " counted calls that returned");
+            if(side.getRequestBytes() <= 0 || side.getResponseBytes() <= 0)
+                throw new TestFailed(side + " counted no bytes");
+        }
+
+        task("counting calls that throw");
+        try
+        {
+            stub.raise();
+            throw new TestFailed("call did not throw");
+        }
+        catch(FileNotFoundException e) { }
+
+        for(MethodMetrics.Side side : MethodMetrics.Side.values())
+        {
+            MethodMetrics   metrics = metrics(side, "raise");
+            expectCalls(metrics, 1);
+            if(metrics.getExceptions() != 1 || metrics.getFailures() != 0)
+            {
+                throw new TestFailed(metrics + " counted " +
+                                     metrics.getExceptions() + " exceptions " +
+                                     "and " + metrics.getFailures() +
+                                     " failures");
+            }
+        }
+    }
+
+    /** Checks that a running call is counted as in flight. */
+    private void checkInFlight(final Measured stub) throws Throwable
+    {
+        task("counting a call in flight");
+        FutureTask<Void>    call = new FutureTask<Void>(new Callable<Void>()
+        {
+            @Override
+            public Void call() throws RMIException
+            {
+                stub.hold();
+                return null;
+            }
+        });
+        Thread              caller = new Thread(call);
+        caller.setDaemon(true);
+        caller.start();
+
+        if(!server.running.await(TIMEOUT, TimeUnit.MILLISECONDS))
+            throw new TestFailed("call did not reach the server");
+
+        for(MethodMetrics.Side side : MethodMetrics.Side.values())
+        {
+            MethodMetrics   metrics = metrics(side, "hold");
+            if(metrics.getInFlight() != 1)
+            {
+                throw new TestFailed(metrics + " counted " +
+                                     metrics.getInFlight() + " calls in " +
+                                     "flight");
+            }
+        }
+
+        server.release.countDown();
+        call.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        for(MethodMetrics.Side side : MethodMetrics.Side.values())
+        {
+            MethodMetrics   metrics = metrics(side, "hold");
+            expectCalls(metrics, 1);
+            if(metrics.getInFlight() != 0)
+            {
+                throw new TestFailed(metrics + " still counts a call in " +
+                                     "flight");
+            }
+        }
+    }
+
+    /** Checks that the latency recorded covers the remote method. */
+    private void checkLatency(Measured stub) throws Throwable
+    {
+        task("recording the latency of a slow call");
+        stub.sleep(SLOW);
+
+        for(MethodMetrics.Side side : MethodMetrics.Side.values())
+        {
+            MethodMetrics   metrics = metrics(side, "sleep");
+            expectCalls(metrics, 1);
+            if(metrics.getMaxMicros() < SLOW * 1000 * 9 / 10)
+            {
+                throw new TestFailed(metrics + " recorded " +
+                                     metrics.getMaxMicros() + " us for a " +
+                                     SLOW + " ms call");
+            }
+        }
+    }
+
+    /** Checks that a call that cannot reach the skeleton counts as a
+        failure. */
+    private void checkFailure(InetSocketAddress address) throws Throwable
+    {
+        task("counting calls that fail");
+        skeleton.stop();
+        skeleton = null;
+
+        Measured            stub = Stub.create(Measured.class, address);
+        try
+        {
+            stub.twice(1);
+            throw new TestFailed("call to a stopped skeleton returned");
+        }
+        catch(RMIException e) { }
+
+        MethodMetrics       metrics = metrics(MethodMetrics.Side.STUB, "twice");
+        if(metrics.getFailures() != 1 || metrics.getCalls() != CALLS + 1)
+        {
+            throw new TestFailed(metrics + " counted " +
+                                 metrics.getFailures() + " failures in " +
+                                 metrics.getCalls() + " calls");
+        }
+    }
+
+    /** Checks the JMX view of the metrics. */
+    private void checkJmx() throws Throwable
+    {
+        task("reading the metrics over JMX");
+        MBeanServer         beans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName          name = new ObjectName(
+            "rmi:type=MethodMetrics,side=stub,interface=" +
+            Measured.class.getName() + ",method=" +
+            ObjectName.quote(MethodTable.signature(method("twice"))));
+        Object              calls = beans.getAttribute(name, "Calls");
+        if(!Long.valueOf(CALLS + 1).equals(calls))
+            throw new TestFailed("JMX reports " + calls + " calls");
+
+        ObjectName          registry = new ObjectName("rmi:type=RMIMetrics");
+        Object              report = beans.getAttribute(registry, "Report");
+        if(!(report instanceof String) ||
+           !((String)report).contains(Measured.class.getName() + "."))
+        {
+            throw new TestFailed("JMX report does not list the methods");
+        }
+
+        task("resetting the metrics over JMX");
+        beans.invoke(registry, "resetMetrics", new Object[0], new String[0]);
+        if(metrics(MethodMetrics.Side.STUB, "twice").getCalls() != 0 ||
+           !Long.valueOf(0).equals(beans.getAttribute(name, "Calls")))
+        {
+            throw new TestFailed("calls counted after a reset");
+        }
+    }
+
+    /** Returns the metrics of a method of the interface on one side. */
+    private static MethodMetrics metrics(MethodMetrics.Side side, String name)
+        throws TestFailed
+    {
+        return RMIMetrics.get(side, Measured.class, method(name));
+    }
+
+    /** Returns a method of the interface. */
+    private static Method method(String name) throws TestFailed
+    {
+        for(Method method : Measured.class.getMethods())
+        {
+            if(method.getName().equals(name))
+                return method;
+        }
+
+        throw new TestFailed("no method " + name);
+    }
+
+    /** Checks the number of calls counted, waiting for the skeleton to
+        record the calls it has replied to. */
+    private static void expectCalls(MethodMetrics metrics, long expected)
+        throws Throwable
+    {
+        long                deadline = System.currentTimeMillis() + TIMEOUT;
+        while(metrics.getCalls() < expected &&
+              System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(5);
+        }
+
+        if(metrics.getCalls() != expected)
+        {
+            throw new TestFailed(metrics + " counted " + metrics.getCalls() +
+                                 " calls instead of " + expected);
+        }
+    }
+
+    /** Remote interface measured. */
+    public interface Measured
+    {
+        /** Returns twice its argument.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        int twice(int value) throws RMIException;
+
+        /** Throws <code>FileNotFoundException</code>.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void raise() throws RMIException, FileNotFoundException;
+
+        /** Returns once the test releases it.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void hold() throws RMIException;
+
+        /** Returns after the given time, in milliseconds.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void sleep(long millis) throws RMIException;
+    }
+
+    /** Server of the measured interface. */
+    private static class Server implements Measured
+    {
+        /** Counted down when <code>hold</code> is running. */
+        final CountDownLatch    running = new CountDownLatch(1);
+        /** Counted down to let <code>hold</code> return. */
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public int twice(int value)
+        {
+            return 2 * value;
+        }
+
+        @Override
+        public void raise() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("raised");
+        }
+
+        @Override
+        public void hold()
+        {
+            running.countDown();
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+        }
+
+        @Override
+        public void sleep(long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e) { }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+/** Checks that a frame whose length prefix is above the largest frame size
+    is taken for a corrupt stream, without allocating a body for it.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Reading a frame from a stream or from a buffer fails with
+        <code>StreamCorruptedException</code> when the length prefix is just
+        above <code>Frame.MAX_FRAME_SIZE</code>, or is the largest
+        <code>int</code>, and allocates no buffer.</li>
+    <li>A skeleton receiving such a prefix closes the connection, with each
+        transport.</li>
+    <li>A stub receiving such a prefix from its skeleton fails the call
+        waiting for the reply, rather than leaving it waiting.</li>
+    </ul>
+ */
+public class OversizedFrameTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that frames above the largest frame size are refused";
+
+    /** Time allowed for a peer to react to an oversized frame, in
+        milliseconds. */
+    private static final int    TIMEOUT = 2000;
+
+    /** Length prefixes checked. */
+    private static final int[]  LENGTHS =
+        new int[] {Frame.MAX_FRAME_SIZE + 1, Integer.MAX_VALUE};
+
+    /** Skeleton under test. */
+    private Skeleton<Target>    skeleton = null;
+    /** Connection to the skeleton, or server socket posing as one. */
+    private Closeable           socket = null;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        for(int length : LENGTHS)
+        {
+            task("reading a frame of length " + length + " from a stream");
+            checkStream(length);
+
+            task("reading a frame of length " + length + " from a buffer");
+            checkBuffer(length);
+        }
+
+        for(SkeletonTransport transport : SkeletonTransport.values())
+        {
+            task("sending an oversized frame to a skeleton with the " +
+                 transport + " transport");
+            checkSkeleton(transport);
+            clean();
+        }
+
+        task("sending an oversized reply to a stub");
+        checkStub();
+
+        task();
+    }
+
+    /** Closes the connection and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(socket != null)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(IOException e) { }
+            socket = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Checks that a frame with the given length prefix is not read from a
+        stream. */
+    private void checkStream(int length) throws TestFailed
+    {
+        long                    allocated = BufferPool.allocated();
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        try
+        {
+            DataOutputStream    out = new DataOutputStream(bytes);
+            out.writeInt(length);
+            out.writeLong(1);
+            out.writeByte(Frame.CALL);
+            out.flush();
+
+            Frame.read(new DataInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())));
+            throw new TestFailed("oversized frame read from a stream");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(StreamCorruptedException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("reading an oversized frame from a stream " +
+                                 "failed with an unexpected exception", t);
+        }
+
+        if(BufferPool.allocated() != allocated)
+            throw new TestFailed("buffer allocated for an oversized frame");
+    }
+
+    /** Checks that a frame with the given length prefix is not read from a
+        buffer. */
+    private void checkBuffer(int length) throws TestFailed
+    {
+        long                    allocated = BufferPool.allocated();
+        ByteBuffer              buffer = ByteBuffer.allocate(64);
+        buffer.putInt(length);
+        buffer.putLong(1);
+        buffer.put(Frame.CALL);
+        buffer.flip();
+
+        try
+        {
+            Frame.read(buffer);
+            throw new TestFailed("oversized frame read from a buffer");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(StreamCorruptedException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("reading an oversized frame from a buffer " +
+                                 "failed with an unexpected exception", t);
+        }
+
+        if(BufferPool.allocated() != allocated)
+            throw new TestFailed("buffer allocated for an oversized frame");
+    }
+
+    /** Checks that a skeleton with the given transport closes a connection
+        on which it receives an oversized frame. */
+    private void checkSkeleton(SkeletonTransport transport) throws TestFailed
+    {
+        skeleton = new Skeleton<Target>(Target.class, new Server(),
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        skeleton.setTransport(transport);
+
+        try
+        {
+            skeleton.start();
+
+            Socket              connection =
+                new Socket(InetAddress.getLoopbackAddress(),
+                           skeleton.getPort());
+            socket = connection;
+            connection.setSoTimeout(TIMEOUT);
+
+            DataOutputStream    out =
+                new DataOutputStream(connection.getOutputStream());
+            out.writeInt(Integer.MAX_VALUE);
+            out.writeLong(1);
+            out.writeByte(Frame.CALL);
+            out.flush();
+
+            if(connection.getInputStream().read() != -1)
+                throw new TestFailed("skeleton sent data after the frame");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(SocketTimeoutException e)
+        {
+            throw new TestFailed("skeleton did not close the connection", e);
+        }
+        catch(SocketException e)
+        {
+            // the connection was reset by the skeleton
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to send the frame", t);
+        }
+    }
+
+    /** Checks that a call fails when its stub receives an oversized reply. */
+    private void checkStub() throws TestFailed
+    {
+        final ServerSocket  server;
+        try
+        {
+            server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to listen", e);
+        }
+        socket = server;
+
+        Thread              peer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try(Socket connection = server.accept())
+                {
+                    DataInputStream     in = new DataInputStream(
+                        new BufferedInputStream(connection.getInputStream()));
+                    DataOutputStream    out = new DataOutputStream(
+                        new BufferedOutputStream(
+                            connection.getOutputStream()));
+
+                    Frame.read(in).release();
+                    new Frame(0, Frame.HELLO, new byte[] {BinaryCodec.ID})
+                        .write(out);
+
+                    // the binding, then the call, which gets the reply
+                    Frame.read(in).release();
+                    Frame               call = Frame.read(in);
+                    out.writeInt(Integer.MAX_VALUE);
+                    out.writeLong(call.callId);
+                    out.writeByte(Frame.RETURN);
+                    out.flush();
+                    call.release();
+
+                    // hold the connection open until the stub closes it
+                    while(in.read() != -1)
+                    {
+                    }
+                }
+                catch(IOException e) { }
+            }
+        });
+        peer.setDaemon(true);
+        peer.start();
+
+        Target              stub = Stub.create(Target.class,
+            new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                  server.getLocalPort()));
+        Target              timed =
+            Stub.withTimeout(stub, TIMEOUT, TimeUnit.MILLISECONDS);
+        long                start = System.currentTimeMillis();
+        try
+        {
+            timed.ping();
+            throw new TestFailed("call returned an oversized reply");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(RMIException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call threw an unexpected exception", t);
+        }
+
+        if(System.currentTimeMillis() - start >= TIMEOUT)
+            throw new TestFailed("call failed only when its deadline passed");
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Target
+    {
+        /** Does nothing.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        void ping() throws RMIException;
+    }
+
+    /** Server doing nothing. */
+    private static class Server implements Target
+    {
+        @Override
+        public void ping()
+        {
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package rmi;
+
+import test.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Checks that the selector transport puts frames back together however they
+    are split, and accepts many connections at once.
+
+    <p>
+    The test speaks the frame protocol to a skeleton with the selector
+    transport over plain sockets, so that it controls how the bytes of each
+    frame reach the skeleton. Properties checked are:
+    <ul>
+    <li>A call written one byte at a time is answered.</li>
+    <li>Several calls written at once are all answered.</li>
+    <li>A call larger than the buffer of the I/O threads is answered with
+        its argument intact.</li>
+    <li>A length prefix above the largest frame size, received in two
+        pieces, makes the skeleton close the connection.</li>
+    <li>Connections opened all at once are all accepted and served, by a
+        thread of their own, which exits when the skeleton stops.</li>
+    </ul>
+ */
+public class SelectorServerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that the selector transport reassembles frames and " +
+        "accepts connections";
+
+    /** Binding number the test gives the interface on its connections. */
+    private static final int    BINDING = 0;
+    /** Size of the argument of the large call, well above the buffer of the
+        I/O threads. */
+    private static final int    LARGE = 200 * 1024;
+    /** Number of calls written at once. */
+    private static final int    PIPELINED = 5;
+    /** Number of connections opened at once. */
+    private static final int    CONNECTIONS = 100;
+    /** Time allowed for a reply or for the connection to be closed, in
+        milliseconds. */
+    private static final int    TIMEOUT = 2000;
+    /** Name of the accepting thread. */
+    private static final String ACCEPTOR = "rmi-selector-acceptor";
+
+    /** Skeleton under test. */
+    private Skeleton<Echo>      skeleton = null;
+    /** Connections to the skeleton. */
+    private final List<Socket>  sockets = new ArrayList<Socket>();
+    /** Codec used to write arguments and read replies. */
+    private final Codec         codec = new BinaryCodec();
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(),
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        skeleton.setTransport(SkeletonTransport.SELECTOR);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start the skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("writing a call one byte at a time");
+            Socket          socket = connect();
+            byte[]          frame = call(1, new byte[] {1, 2, 3});
+            OutputStream    out = socket.getOutputStream();
+            for(int index = 0; index < frame.length; ++index)
+            {
+                out.write(frame[index]);
+                out.flush();
+                if(index % 4 == 0)
+                    Thread.sleep(1);
+            }
+            expectEcho(socket, 1, new byte[] {1, 2, 3});
+
+            task("writing several calls at once");
+            ByteArrayOutputStream   calls = new ByteArrayOutputStream();
+            for(int call = 0; call < PIPELINED; ++call)
+                calls.write(call(10 + call, new byte[] {(byte)call}));
+            out.write(calls.toByteArray());
+            out.flush();
+
+            Set<Long>       answered = new HashSet<Long>();
+            for(int call = 0; call < PIPELINED; ++call)
+            {
+                Frame       reply = readReply(socket);
+                if(!Arrays.equals(value(reply),
+                                  new byte[] {(byte)(reply.callId - 10)}))
+                {
+                    throw new TestFailed("call " + reply.callId +
+                                         " answered with another argument");
+                }
+                answered.add(reply.callId);
+            }
+            if(answered.size() != PIPELINED)
+                throw new TestFailed("calls written at once answered twice");
+
+            task("writing a call larger than the read buffer");
+            byte[]          large = new byte[LARGE];
+            new Random(LARGE).nextBytes(large);
+            out.write(call(20, large));
+            out.flush();
+            expectEcho(socket, 20, large);
+
+            task("writing an oversized length prefix in two pieces");
+            DataOutputStream    prefix = new DataOutputStream(out);
+            int                 length = Frame.MAX_FRAME_SIZE + 1;
+            prefix.writeShort(length >>> 16);
+            prefix.flush();
+            Thread.sleep(50);
+            prefix.writeShort(length);
+            prefix.flush();
+            expectClosed(socket);
+
+            task("opening many connections at once");
+            checkAccepting();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task("stopping the skeleton");
+        skeleton.stop();
+        skeleton = null;
+        if(acceptorRunning())
+            throw new TestFailed("accepting thread still running");
+
+        task();
+    }
+
+    /** Closes the connections and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        for(Socket socket : sockets)
+        {
+            try
+            {
+                socket.close();
+            }
+            catch(IOException e) { }
+        }
+        sockets.clear();
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Opens connections all at once, and checks that each is served. */
+    private void checkAccepting() throws Throwable
+    {
+        if(!acceptorRunning())
+            throw new TestFailed("no accepting thread");
+
+        List<Socket>        opened = new ArrayList<Socket>();
+        for(int connection = 0; connection < CONNECTIONS; ++connection)
+        {
+            Socket          socket = new Socket();
+            sockets.add(socket);
+            socket.connect(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), skeleton.getPort()));
+            opened.add(socket);
+        }
+
+        for(Socket socket : opened)
+        {
+            handshake(socket);
+            socket.getOutputStream().write(call(1, new byte[] {7}));
+            socket.getOutputStream().flush();
+        }
+
+        for(Socket socket : opened)
+            expectEcho(socket, 1, new byte[] {7});
+    }
+
+    /** Returns <code>true</code> if a thread is accepting connections for a
+        selector transport. */
+    private static boolean acceptorRunning()
+    {
+        for(Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if(thread.getName().equals(ACCEPTOR) && thread.isAlive())
+                return true;
+        }
+
+        return false;
+    }
+
+    /** Opens a connection to the skeleton and sets it up. */
+    private Socket connect() throws Throwable
+    {
+        Socket              socket = new Socket();
+        sockets.add(socket);
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                             skeleton.getPort()));
+        handshake(socket);
+        return socket;
+    }
+
+    /** Agrees on the binary codec without compression, and announces the
+        interface. */
+    private void handshake(Socket socket) throws Throwable
+    {
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(TIMEOUT);
+
+        DataOutputStream        out =
+            new DataOutputStream(socket.getOutputStream());
+        ByteArrayOutputStream   hello = new ByteArrayOutputStream();
+        DataOutputStream        body = new DataOutputStream(hello);
+        BinaryCodec.writeVarInt(body, 1);
+        body.writeByte(BinaryCodec.ID);
+        BinaryCodec.writeVarInt(body, 0);
+        new Frame(0, Frame.HELLO, hello.toByteArray()).write(out);
+
+        Frame                   reply = Frame.read(
+            new DataInputStream(socket.getInputStream()));
+        if(reply == null || reply.type != Frame.HELLO ||
+           reply.length() != 1)
+        {
+            throw new TestFailed("skeleton did not agree on the binary codec " +
+                                 "alone");
+        }
+
+        MethodTable             table = MethodTable.of(Echo.class);
+        ByteArrayOutputStream   bind = new ByteArrayOutputStream();
+        body = new DataOutputStream(bind);
+        BinaryCodec.writeVarInt(body, BINDING);
+        body.writeUTF(Echo.class.getName());
+        BinaryCodec.writeVarInt(body, table.signatures.length);
+        for(String signature : table.signatures)
+            body.writeUTF(signature);
+        new Frame(0, Frame.BIND, bind.toByteArray()).write(out);
+    }
+
+    /** Returns the bytes of a call frame to <code>echo</code>, including its
+        length prefix. */
+    private byte[] call(long callId, byte[] data) throws Throwable
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        DataOutputStream        body = new DataOutputStream(bytes);
+        BinaryCodec.writeVarInt(body, BINDING);
+        BinaryCodec.writeVarInt(body, 0);
+        BinaryCodec.writeVarInt(body, MethodTable.of(Echo.class).ordinal(
+            Echo.class.getMethod("echo", byte[].class)));
+        codec.write(body, byte[].class, data);
+        body.flush();
+
+        ByteArrayOutputStream   frame = new ByteArrayOutputStream();
+        new Frame(callId, Frame.CALL, bytes.toByteArray())
+            .write(new DataOutputStream(frame));
+        return frame.toByteArray();
+    }
+
+    /** Reads a reply, and checks that it returns a value. */
+    private Frame readReply(Socket socket) throws Throwable
+    {
+        Frame                   reply;
+        try
+        {
+            reply = Frame.read(new DataInputStream(socket.getInputStream()));
+        }
+        catch(SocketTimeoutException e)
+        {
+            throw new TestFailed("call not answered", e);
+        }
+
+        if(reply == null)
+            throw new TestFailed("skeleton closed the connection");
+        if(reply.type != Frame.RETURN)
+        {
+            throw new TestFailed("call answered with a frame of type " +
+                                 reply.type);
+        }
+
+        return reply;
+    }
+
+    /** Returns the value carried by a reply. */
+    private byte[] value(Frame reply) throws Throwable
+    {
+        DataInputStream         body = reply.bodyStream();
+        if(body.readByte() != Frame.VALUE)
+            throw new TestFailed("call threw an exception");
+
+        byte[]                  value = (byte[])codec.read(body, byte[].class);
+        reply.release();
+        return value;
+    }
+
+    /** Checks that the next reply answers the given call with the given
+        value. */
+    private void expectEcho(Socket socket, long callId, byte[] expected)
+        throws Throwable
+    {
+        Frame                   reply = readReply(socket);
+        if(reply.callId != callId)
+            throw new TestFailed("reply for call " + reply.callId);
+
+        if(!Arrays.equals(value(reply), expected))
+            throw new TestFailed("call answered with another argument");
+    }
+
+    /** Checks that the skeleton closes a connection. */
+    private void expectClosed(Socket socket) throws Throwable
+    {
+        try
+        {
+            if(socket.getInputStream().read() != -1)
+                throw new TestFailed("skeleton sent data after the prefix");
+        }
+        catch(SocketTimeoutException e)
+        {
+            throw new TestFailed("skeleton did not close the connection", e);
+        }
+        catch(SocketException e)
+        {
+            // the connection was reset by the skeleton
+        }
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Echo
+    {
+        /** Returns its argument.
+
+            @param data Bytes to be returned.
+            @return <code>data</code>.
+            @throws RMIException If the call cannot be completed.
+         */
+        byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Server returning its arguments. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/** Checks that bounded call executors limit the calls a skeleton runs and
+    queues, and refuse or hold back the calls beyond that.
+
+    <p>
+    Each check gives a skeleton an executor of one thread and a queue of one
+    call, and makes a call that blocks, a call that waits in the queue, and a
+    third call. Properties checked are:
+    <ul>
+    <li>With <code>ABORT</code>, the third call fails at once with
+        <code>RMIException</code>, with each transport, and does not reach the
+        server, while the first two return.</li>
+    <li>With <code>BLOCK</code> and the blocking transport, the third call
+        waits for room in the queue, and returns once the others have.</li>
+    <li>With <code>BLOCK</code> and the selector transport, the third call
+        fails as with <code>ABORT</code>, since I/O threads do not wait.</li>
+    <li><code>fixed</code> checks its arguments.</li>
+    </ul>
+ */
+public class SkeletonExecutorsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that bounded call executors refuse or hold back calls";
+
+    /** Time after which a step that should be over is taken to hang, in
+        milliseconds. */
+    private static final long   TIMEOUT = 1000;
+
+    /** Skeleton under test. */
+    private Skeleton<Target>    skeleton = null;
+    /** Server of the skeleton. */
+    private Server              server = null;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            for(SkeletonTransport transport : SkeletonTransport.values())
+            {
+                task("refusing a call with ABORT and the " + transport +
+                     " transport");
+                check(transport, SkeletonExecutors.Rejection.ABORT, false);
+                clean();
+            }
+
+            task("holding back a call with BLOCK and the BLOCKING transport");
+            check(SkeletonTransport.BLOCKING,
+                  SkeletonExecutors.Rejection.BLOCK, true);
+            clean();
+
+            task("refusing a call with BLOCK and the SELECTOR transport");
+            check(SkeletonTransport.SELECTOR,
+                  SkeletonExecutors.Rejection.BLOCK, false);
+            clean();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task("creating executors with bad arguments");
+        checkArguments();
+
+        task();
+    }
+
+    /** Releases the blocked calls and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.release.countDown();
+            server = null;
+        }
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+
+    /** Makes three calls to a skeleton whose executor has room for two, and
+        checks what happens to the third.
+
+        @param waits <code>true</code> if the third call is expected to wait
+                     and return, <code>false</code> if it is expected to fail
+                     at once.
+     */
+    private void check(SkeletonTransport transport,
+                       SkeletonExecutors.Rejection rejection, boolean waits)
+        throws Throwable
+    {
+        ThreadPoolExecutor  executor = (ThreadPoolExecutor)
+            SkeletonExecutors.fixed(1, 1, rejection);
+        server = new Server();
+        skeleton = new Skeleton<Target>(Target.class, server,
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        skeleton.setTransport(transport);
+        skeleton.setExecutor(executor);
+        skeleton.start();
+
+        Target              stub = Stub.create(Target.class,
+            new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                  skeleton.getPort()));
+
+        Future<Integer>     running = call(stub, 1);
+        if(!server.running.await(TIMEOUT, TimeUnit.MILLISECONDS))
+            throw new TestFailed("first call did not reach the server");
+
+        Future<Integer>     queued = call(stub, 2);
+        long                deadline = System.currentTimeMillis() + TIMEOUT;
+        while(executor.getQueue().size() != 1)
+        {
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed("second call was not queued");
+            Thread.sleep(5);
+        }
+
+        Future<Integer>     third = call(stub, 3);
+        if(waits)
+        {
+            Thread.sleep(100);
+            if(third.isDone())
+                throw new TestFailed("third call did not wait");
+        }
+        else
+        {
+            try
+            {
+                third.get(TIMEOUT, TimeUnit.MILLISECONDS);
+                throw new TestFailed("third call returned");
+            }
+            catch(TimeoutException e)
+            {
+                throw new TestFailed("third call was not refused at once", e);
+            }
+            catch(ExecutionException e)
+            {
+                if(!(e.getCause() instanceof RMIException))
+                {
+                    throw new TestFailed("third call failed with an " +
+                                         "unexpected exception", e.getCause());
+                }
+            }
+        }
+
+        server.release.countDown();
+        expectValue(running, 1);
+        expectValue(queued, 2);
+        if(waits)
+            expectValue(third, 3);
+        else if(server.calls.get() != 2)
+            throw new TestFailed("refused call reached the server");
+    }
+
+    /** Checks that <code>fixed</code> refuses bad arguments. */
+    private void checkArguments() throws TestFailed
+    {
+        try
+        {
+            SkeletonExecutors.fixed(0, 1, SkeletonExecutors.Rejection.ABORT);
+            throw new TestFailed("executor created without threads");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            SkeletonExecutors.fixed(1, -1, SkeletonExecutors.Rejection.ABORT);
+            throw new TestFailed("executor created with a negative queue");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            SkeletonExecutors.fixed(1, 1, null);
+            throw new TestFailed("executor created without a rejection");
+        }
+        catch(NullPointerException e) { }
+    }
+
+    /** Calls <code>hold</code> from another thread. */
+    private static Future<Integer> call(final Target stub, final int value)
+    {
+        FutureTask<Integer>     call = new FutureTask<Integer>(
+            new Callable<Integer>()
+        {
+            @Override
+            public Integer call() throws RMIException
+            {
+                return stub.hold(value);
+            }
+        });
+        Thread                  caller = new Thread(call);
+        caller.setDaemon(true);
+        caller.start();
+        return call;
+    }
+
+    /** Checks that a call returns the value it was given. */
+    private static void expectValue(Future<Integer> call, int value)
+        throws Throwable
+    {
+        int     returned;
+        try
+        {
+            returned = call.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            throw new TestFailed("call " + value + " did not return", e);
+        }
+        catch(ExecutionException e)
+        {
+            throw new TestFailed("call " + value + " failed", e.getCause());
+        }
+
+        if(returned != value)
+            throw new TestFailed("call " + value + " returned " + returned);
+    }
+
+    /** Remote interface of the skeleton. */
+    public interface Target
+    {
+        /** Returns its argument once the test releases the calls.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        int hold(int value) throws RMIException;
+    }
+
+    /** Server whose calls block until released. */
+    private static class Server implements Target
+    {
+        /** Counted down when a call is running. */
+        final CountDownLatch    running = new CountDownLatch(1);
+        /** Counted down to let the calls return. */
+        final CountDownLatch    release = new CountDownLatch(1);
+        /** Number of calls received. */
+        final AtomicInteger     calls = new AtomicInteger();
+
+        @Override
+        public int hold(int value)
+        {
+            calls.incrementAndGet();
+            running.countDown();
+            try
+            {
+                release.await();
+            }
+            catch(InterruptedException e) { }
+            return value;
+        }
+    }
+}
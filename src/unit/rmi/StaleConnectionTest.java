@@ -0,0 +1,274 @@
+package rmi;
+
+import test.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/** Checks that a stub does not send a call again once a pooled connection
+    fails after the call was written, unless the call is idempotent.
+
+    <p>
+    The test makes calls through a stub whose connection to the skeleton has
+    already served a call. While a call runs, the server replaces the skeleton
+    with a new one on the same address, closing the connection before the
+    reply is sent. Properties checked are:
+    <ul>
+    <li>A call to a method that is not idempotent fails with
+        <code>RMIException</code>, and runs only once: the stub does not take
+        the failed connection for one that had gone stale before the call,
+        and does not send the call again to the new skeleton.</li>
+    <li>The next call is made on a new connection to the new skeleton.</li>
+    <li>A call to an idempotent method is sent again to the new skeleton,
+        and returns.</li>
+    </ul>
+ */
+public class StaleConnectionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that a call is not sent again after its connection fails";
+
+    /** Time the server waits for the skeleton to be replaced, in
+        milliseconds. */
+    private static final long   RESTART_MILLIS = 1000;
+
+    /** Server counting the calls that reach it. */
+    private final CountingServer    server = new CountingServer();
+    /** Address shared by the skeletons. */
+    private InetSocketAddress       address;
+    /** Skeleton serving the calls; guarded by this test. */
+    private Skeleton<Counter>       skeleton = null;
+    /** Run number of the call during which the skeleton is replaced, or zero;
+        guarded by this test. */
+    private int                     drop_on = 0;
+    /** Set once the skeleton has been replaced; guarded by this test. */
+    private boolean                 replaced = false;
+    /** Stub for the skeletons. */
+    private Counter                 stub;
+
+    /** Starts the first skeleton and creates the stub. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            skeleton = new Skeleton<Counter>(Counter.class, server,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            skeleton.start();
+            address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                            skeleton.getPort());
+            stub = Stub.create(Counter.class, address);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start the skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("opening the connection with a first call");
+        expectRun(1, false);
+
+        task("losing the reply to a call that is not idempotent");
+        dropDuring(2);
+        try
+        {
+            stub.increment();
+            throw new TestFailed("call returned after its reply was lost");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(RMIException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call threw an unexpected exception", t);
+        }
+
+        awaitReplaced();
+        if(server.runs() != 2)
+        {
+            throw new TestFailed("call that is not idempotent ran " +
+                                 (server.runs() - 1) + " times");
+        }
+
+        task("calling the new skeleton");
+        expectRun(3, false);
+
+        task("losing the reply to an idempotent call");
+        dropDuring(4);
+        expectRun(5, true);
+        awaitReplaced();
+
+        task();
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        Skeleton<Counter>   running;
+        synchronized(this)
+        {
+            running = skeleton;
+            skeleton = null;
+            drop_on = 0;
+            replaced = true;
+            notifyAll();
+        }
+
+        if(running != null)
+            running.stop();
+    }
+
+    /** Makes a call and checks the run number it returns. */
+    private void expectRun(int expected, boolean idempotent) throws TestFailed
+    {
+        int     run;
+        try
+        {
+            run = idempotent ? stub.touch() : stub.increment();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed", t);
+        }
+
+        if(run != expected)
+            throw new TestFailed("call returned run " + run);
+    }
+
+    /** Has the skeleton replaced during the run with the given number. */
+    private synchronized void dropDuring(int run)
+    {
+        drop_on = run;
+        replaced = false;
+    }
+
+    /** Waits until the skeleton has been replaced. */
+    private synchronized void awaitReplaced() throws TestFailed
+    {
+        while(!replaced)
+        {
+            try
+            {
+                wait();
+            }
+            catch(InterruptedException e) { }
+        }
+
+        if(skeleton == null)
+            throw new TestFailed("skeleton could not be replaced");
+    }
+
+    /** Replaces the skeleton, if the given run is the one during which it is
+        to be replaced, and waits until it has been. The old skeleton closes
+        its connections without waiting for the call making this request. */
+    private void replaceDuring(int run)
+    {
+        final Skeleton<Counter> old;
+        synchronized(this)
+        {
+            if(run != drop_on)
+                return;
+            drop_on = 0;
+            old = skeleton;
+        }
+
+        new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Skeleton<Counter>   fresh =
+                    new Skeleton<Counter>(Counter.class, server, address);
+                old.drain(0, TimeUnit.MILLISECONDS);
+                try
+                {
+                    fresh.start();
+                }
+                catch(RMIException e)
+                {
+                    fresh = null;
+                }
+
+                synchronized(StaleConnectionTest.this)
+                {
+                    skeleton = fresh;
+                    replaced = true;
+                    StaleConnectionTest.this.notifyAll();
+                }
+            }
+        }).start();
+
+        long    deadline = System.currentTimeMillis() + RESTART_MILLIS;
+        synchronized(this)
+        {
+            long    remaining;
+            while(!replaced &&
+                  (remaining = deadline - System.currentTimeMillis()) > 0)
+            {
+                try
+                {
+                    wait(remaining);
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+
+    /** Remote interface of the skeletons. */
+    public interface Counter
+    {
+        /** Returns the run number of the call, counting the calls to both
+            methods.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        int increment() throws RMIException;
+
+        /** Returns the run number of the call, like <code>increment</code>,
+            but may be sent again by the stub.
+
+            @throws RMIException If the call cannot be completed.
+         */
+        @Idempotent
+        int touch() throws RMIException;
+    }
+
+    /** Server counting the calls made to it. */
+    private class CountingServer implements Counter
+    {
+        /** Number of calls run; guarded by this server. */
+        private int     runs = 0;
+
+        @Override
+        public int increment()
+        {
+            int     run;
+            synchronized(this)
+            {
+                run = ++runs;
+            }
+
+            replaceDuring(run);
+            return run;
+        }
+
+        @Override
+        public int touch()
+        {
+            return increment();
+        }
+
+        /** Returns the number of calls run. */
+        synchronized int runs()
+        {
+            return runs;
+        }
+    }
+}
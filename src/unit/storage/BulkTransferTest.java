@@ -0,0 +1,297 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/** Checks transfers over the bulk data channel, and the fall back to RMI
+    when the channel drains.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Bytes read into heap and direct buffers, and into a local file, are
+        those of the file.</li>
+    <li>Bytes written are read back.</li>
+    <li>Reading a missing file raises <code>FileNotFoundException</code>,
+        and reading past the end of a file raises
+        <code>IndexOutOfBoundsException</code>; the client then serves the
+        next transfer over a new connection.</li>
+    <li>Once the channel drains, a request over an open connection raises
+        <code>DrainingException</code>.</li>
+    <li>A copy between storage servers whose source drains its bulk data
+        channel during the copy pulls the rest of the file over RMI, and has
+        the contents of the file.</li>
+    </ul>
+ */
+public class BulkTransferTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking transfers over the bulk data channel and their fall back";
+
+    /** Length of the file read and written. */
+    private static final int    LENGTH = 300 * 1024;
+    /** Length of the file copied, longer than a bulk request of a copy. */
+    private static final int    COPIED_LENGTH = 20 * 1024 * 1024;
+
+    /** Path of the file read and written. */
+    private final Path          file = new Path("/file");
+    /** Path of the file copied. */
+    private final Path          copied = new Path("/copied");
+    /** Contents of the file read and written. */
+    private byte[]              contents;
+    /** Contents of the file copied. */
+    private byte[]              copied_contents;
+
+    /** Directory served by the source server. */
+    private TemporaryDirectory  source_directory = null;
+    /** Directory served by the server receiving the copy. */
+    private TemporaryDirectory  copy_directory = null;
+    /** Server holding the files. */
+    private DrainingServer      source = null;
+    /** Bulk data channel of the source server. */
+    private BulkServer          bulk = null;
+    /** Client of the bulk data channel. */
+    private BulkClient          client = null;
+
+    /** Creates the files and the servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Random      random = new Random(LENGTH);
+        contents = new byte[LENGTH];
+        random.nextBytes(contents);
+        copied_contents = new byte[COPIED_LENGTH];
+        random.nextBytes(copied_contents);
+
+        try
+        {
+            source_directory = new TemporaryDirectory();
+            copy_directory = new TemporaryDirectory();
+            Files.write(file.toFile(source_directory.root()).toPath(),
+                        contents);
+            Files.write(copied.toFile(source_directory.root()).toPath(),
+                        copied_contents);
+
+            source = new DrainingServer(source_directory.root());
+            bulk = new BulkServer(source, new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0));
+            source.bulk = bulk;
+            client = new BulkClient(source.bulkAddress());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files and servers", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkReads();
+            checkWrite();
+            checkFailures();
+            checkDraining();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Closes the client, stops the channel and removes the directories. */
+    @Override
+    protected void clean()
+    {
+        if(client != null)
+        {
+            client.close();
+            client = null;
+        }
+
+        if(bulk != null)
+        {
+            bulk.stop();
+            bulk = null;
+        }
+
+        if(source_directory != null)
+        {
+            source_directory.remove();
+            source_directory = null;
+        }
+
+        if(copy_directory != null)
+        {
+            copy_directory.remove();
+            copy_directory = null;
+        }
+    }
+
+    /** Checks reads into buffers and into a local file. */
+    private void checkReads() throws Throwable
+    {
+        task("reading into a heap buffer");
+        ByteBuffer      heap = ByteBuffer.allocate(LENGTH - 1000);
+        client.read(file, 1000, heap);
+        expectBytes(heap.array(), 1000);
+
+        task("reading into a direct buffer");
+        ByteBuffer      direct = ByteBuffer.allocateDirect(LENGTH);
+        client.read(file, 0, direct);
+        direct.flip();
+        byte[]          bytes = new byte[LENGTH];
+        direct.get(bytes);
+        expectBytes(bytes, 0);
+
+        task("reading into a local file");
+        File            local = new File(copy_directory.root(), "local");
+        try(FileChannel target = FileChannel.open(local.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+        {
+            client.read(file, 0, LENGTH, target, 0);
+        }
+        expectBytes(Files.readAllBytes(local.toPath()), 0);
+    }
+
+    /** Checks that bytes written are read back. */
+    private void checkWrite() throws Throwable
+    {
+        task("writing to a file");
+        byte[]          written = new byte[5000];
+        new Random(5000).nextBytes(written);
+        client.write(file, 2000, ByteBuffer.wrap(written));
+        System.arraycopy(written, 0, contents, 2000, written.length);
+
+        expectBytes(source.read(file, 0, LENGTH), 0);
+    }
+
+    /** Checks the failures of reads, and that the client recovers. */
+    private void checkFailures() throws Throwable
+    {
+        task("reading a missing file");
+        try
+        {
+            client.read(new Path("/missing"), 0, ByteBuffer.allocate(10));
+            throw new TestFailed("missing file read");
+        }
+        catch(FileNotFoundException e) { }
+
+        task("reading past the end of a file");
+        try
+        {
+            client.read(file, LENGTH - 5, ByteBuffer.allocate(10));
+            throw new TestFailed("bytes past the end of the file read");
+        }
+        catch(IndexOutOfBoundsException e) { }
+
+        task("reading after a failure");
+        ByteBuffer      buffer = ByteBuffer.allocate(100);
+        client.read(file, 0, buffer);
+        expectBytes(buffer.array(), 0);
+    }
+
+    /** Checks that draining refuses requests, and that a copy falls back to
+        RMI. */
+    private void checkDraining() throws Throwable
+    {
+        task("copying a file while its source drains");
+        StorageServer   copy = new StorageServer(copy_directory.root());
+        source.drainAfterRead = true;
+        if(!copy.copy(copied, source))
+            throw new TestFailed("copy failed");
+
+        if(!source.drained)
+            throw new TestFailed("copy did not use the bulk data channel");
+        if(source.reads == 0)
+            throw new TestFailed("copy did not fall back to RMI");
+
+        byte[]          bytes = Files.readAllBytes(
+            copied.toFile(copy_directory.root()).toPath());
+        if(!Arrays.equals(bytes, copied_contents))
+            throw new TestFailed("copy has the wrong contents");
+
+        task("reading over an open connection once the channel drains");
+        try
+        {
+            client.read(file, 0, ByteBuffer.allocate(10));
+            throw new TestFailed("read served while draining");
+        }
+        catch(BulkClient.DrainingException e) { }
+    }
+
+    /** Checks that bytes are those of the file read and written, from an
+        offset. */
+    private void expectBytes(byte[] bytes, int offset) throws TestFailed
+    {
+        if(!Arrays.equals(bytes, Arrays.copyOfRange(contents, offset,
+                                                    offset + bytes.length)))
+        {
+            throw new TestFailed("transfer returned the wrong bytes");
+        }
+    }
+
+    /** Storage server announcing its bulk data channel without being
+        started, which can drain the channel once a bulk read has begun, and
+        counts the reads made over RMI after that. */
+    private static class DrainingServer extends StorageServer
+    {
+        /** Bulk data channel of the server. */
+        volatile BulkServer     bulk;
+        /** Whether the next bulk read drains the channel. */
+        volatile boolean        drainAfterRead = false;
+        /** Whether the channel was drained. */
+        volatile boolean        drained = false;
+        /** Reads made over RMI once the channel was drained. */
+        volatile int            reads = 0;
+
+        DrainingServer(File root)
+        {
+            super(root);
+        }
+
+        @Override
+        public InetSocketAddress bulkAddress()
+        {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                         bulk.port());
+        }
+
+        @Override
+        ChannelCache.Handle openRead(Path file, long offset, int length)
+            throws IOException
+        {
+            if(drainAfterRead && !drained)
+            {
+                drained = true;
+                bulk.drain();
+            }
+            return super.openRead(file, offset, length);
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws IOException, rmi.RMIException
+        {
+            if(drained)
+                ++reads;
+            return super.read(file, offset, length);
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package storage;
+
+import test.*;
+import common.*;
+import naming.*;
+import rmi.*;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+/** Checks that a copy along a chain of storage servers reports how far it
+    got, so that the servers it did not reach can be sent the copy directly.
+
+    <p>
+    The naming server sends a chained copy to the first of its targets, records
+    as many servers as the copy reports, and sends the plain copy command to
+    the rest. The test starts a source holding a file and three other storage
+    servers, and puts a server that cannot be reached in the middle of the
+    chain. Properties checked are:
+    <ul>
+    <li>A chain that every server completes reports all of them, and each
+        has the file.</li>
+    <li>A chain broken by a server that cannot be reached reports the servers
+        before it, which have the file, and leaves no file, whole or partial,
+        on the servers after it.</li>
+    <li>The servers after the break then copy the file when sent the copy
+        directly.</li>
+    <li>A server that is not started, and so cannot pass the file along,
+        copies it and then has the rest of the chain copy it from the source,
+        counting the servers in the same way.</li>
+    </ul>
+ */
+public class ChainCopyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that chained copies report how far they got";
+
+    /** Number of servers copying the file. */
+    private static final int    TARGETS = 3;
+    /** Length of the file. */
+    private static final int    LENGTH = 256 * 1024 + 17;
+
+    /** Path of the file, relative to the roots of the servers. */
+    private final Path          file = new Path("/file");
+    /** Contents of the file. */
+    private byte[]              contents;
+
+    /** Directories served by the servers, the source first. */
+    private final List<TemporaryDirectory>  directories =
+        new ArrayList<TemporaryDirectory>();
+    /** Started servers, the source first. */
+    private final List<StorageServer>       servers =
+        new ArrayList<StorageServer>();
+    /** Client interface of the source. */
+    private Storage                         source;
+    /** Command interfaces of the servers copying the file. */
+    private final Command[]                 targets = new Command[TARGETS];
+    /** Command interface of a server that cannot be reached. */
+    private Command                         unreachable;
+
+    /** Creates the directories and the file, and starts the servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        contents = new byte[LENGTH];
+        new Random(LENGTH).nextBytes(contents);
+
+        try
+        {
+            for(int server = 0; server <= TARGETS; ++server)
+                directories.add(new TemporaryDirectory());
+            java.nio.file.Files.write(
+                new File(directories.get(0).root(), "file").toPath(),
+                contents);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files", t);
+        }
+
+        Registrar           registrar = new Registrar();
+        for(TemporaryDirectory directory : directories)
+        {
+            StorageServer   server = new StorageServer(directory.root());
+            try
+            {
+                server.start("127.0.0.1", registrar);
+            }
+            catch(Throwable t)
+            {
+                throw new TestFailed("unable to start a storage server", t);
+            }
+            servers.add(server);
+        }
+
+        source = registrar.clients.get(0);
+        for(int target = 0; target < TARGETS; ++target)
+            targets[target] = registrar.commands.get(target + 1);
+
+        // nothing listens on a port just closed
+        try(ServerSocket socket =
+                new ServerSocket(0, 1, InetAddress.getLoopbackAddress()))
+        {
+            unreachable = Stub.create(Command.class,
+                new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                      socket.getLocalPort()));
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to find a free port", e);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("copying along a whole chain");
+            expectCopied(targets[0].copyChain(file, source,
+                new Command[] {targets[1], targets[2]}), TARGETS);
+            for(int target = 0; target < TARGETS; ++target)
+                expectFile(target + 1);
+            clear();
+
+            task("copying along a chain broken by an unreachable server");
+            expectCopied(targets[0].copyChain(file, source,
+                new Command[] {targets[1], unreachable, targets[2]}), 2);
+            expectFile(1);
+            expectFile(2);
+            expectEmpty(3);
+
+            task("copying directly to the servers after the break");
+            try
+            {
+                unreachable.copy(file, source);
+                throw new TestFailed("unreachable server copied the file");
+            }
+            catch(RMIException e) { }
+            if(!targets[2].copy(file, source))
+                throw new TestFailed("server refused the direct copy");
+            expectFile(3);
+            clear();
+
+            task("copying along a chain from a server that is not started");
+            TemporaryDirectory  directory = new TemporaryDirectory();
+            directories.add(directory);
+            StorageServer       stopped = new StorageServer(directory.root());
+            expectCopied(stopped.copyChain(file, source,
+                new Command[] {targets[0], unreachable, targets[1]}), 2);
+            expectFile(1);
+            expectEmpty(2);
+            if(!Arrays.equals(stopped.read(file, 0, LENGTH), contents))
+                throw new TestFailed("server that is not started has the " +
+                                     "wrong contents");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Stops the servers and removes the temporary directories. */
+    @Override
+    protected void clean()
+    {
+        for(StorageServer server : servers)
+            server.stop();
+        servers.clear();
+
+        for(TemporaryDirectory directory : directories)
+            directory.remove();
+        directories.clear();
+    }
+
+    /** Checks the number of servers a chained copy reported. */
+    private static void expectCopied(int copied, int expected)
+        throws TestFailed
+    {
+        if(copied != expected)
+        {
+            throw new TestFailed("chain reported " + copied + " copies " +
+                                 "instead of " + expected);
+        }
+    }
+
+    /** Checks that a server has the file, with its contents. */
+    private void expectFile(int server) throws Throwable
+    {
+        byte[]              copied = servers.get(server).read(file, 0, LENGTH);
+        if(!Arrays.equals(copied, contents))
+        {
+            throw new TestFailed("server " + server + " has the wrong " +
+                                 "contents");
+        }
+    }
+
+    /** Checks that nothing but the checksums directory was left in the
+        directory of a server. */
+    private void expectEmpty(int server) throws TestFailed
+    {
+        String[]            left = directories.get(server).root().list();
+        if(left == null)
+            throw new TestFailed("unable to list server " + server);
+
+        for(String name : left)
+        {
+            if(!name.equals(Command.CHECKSUMS_DIRECTORY))
+                throw new TestFailed("server " + server + " was left " + name);
+        }
+    }
+
+    /** Deletes the copies of the file from the servers copying it. */
+    private void clear() throws Throwable
+    {
+        for(int target = 0; target < TARGETS; ++target)
+            targets[target].delete(file);
+    }
+
+    /** Naming server keeping the interfaces of the servers that register. */
+    private static class Registrar implements Registration
+    {
+        /** Client interfaces, in the order the servers registered. */
+        final List<Storage>     clients = new ArrayList<Storage>();
+        /** Command interfaces, in the order the servers registered. */
+        final List<Command>     commands = new ArrayList<Command>();
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            clients.add(client_stub);
+            commands.add(command_stub);
+            return new Path[0];
+        }
+    }
+}
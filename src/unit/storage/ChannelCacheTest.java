@@ -0,0 +1,141 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.io.*;
+
+/** Checks the cache of open file channels used by storage servers.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>A file used repeatedly is opened only once.</li>
+    <li>Once more files are used than the cache holds, the least recently used
+        channel is closed, but not while it is still in use.</li>
+    <li>A forgotten file is opened again on its next use, and the channel
+        forgotten is closed.</li>
+    <li>Missing files and directories cause
+        <code>FileNotFoundException</code>.</li>
+    </ul>
+ */
+public class ChannelCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the cache of open file channels";
+
+    /** Number of channels kept by the cache. */
+    private static final int    CAPACITY = 2;
+
+    /** Directory holding the files. */
+    private TemporaryDirectory  directory = null;
+
+    /** Creates the directory and the files used by the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"a"}, "a");
+            directory.add(new String[] {"b"}, "b");
+            directory.add(new String[] {"directory", "c"}, "c");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ChannelCache        cache = new ChannelCache(directory.root(), CAPACITY);
+        Path                a = new Path("/a");
+        Path                b = new Path("/b");
+        Path                c = new Path("/directory/c");
+
+        try
+        {
+            for(int use = 0; use < 10; ++use)
+                cache.acquire(a).close();
+            if(cache.opens() != 1 || cache.hits() != 9)
+            {
+                throw new TestFailed("file used ten times was opened " +
+                                     cache.opens() + " times");
+            }
+
+            // Keep a in use while b and c push it out of the cache.
+            ChannelCache.Handle held = cache.acquire(a);
+            cache.acquire(b).close();
+            cache.acquire(c).close();
+            if(!held.channel().isOpen())
+                throw new TestFailed("channel in use was closed on eviction");
+            held.close();
+            if(held.channel().isOpen())
+            {
+                throw new TestFailed("evicted channel was not closed once " +
+                                     "it was no longer used");
+            }
+
+            ChannelCache.Handle forgotten = cache.acquire(c);
+            forgotten.close();
+            long    opens = cache.opens();
+            cache.forget(new Path("/directory"));
+            if(forgotten.channel().isOpen())
+                throw new TestFailed("channel of forgotten file is still open");
+            cache.acquire(c).close();
+            if(cache.opens() != opens + 1)
+                throw new TestFailed("forgotten file was not opened again");
+
+            cache.clear();
+            if(held.channel().isOpen() || forgotten.channel().isOpen())
+                throw new TestFailed("channels are open after clear");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to use the cache", t);
+        }
+
+        checkNotFound(cache, new Path("/missing"));
+        checkNotFound(cache, new Path("/directory"));
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks that a path cannot be opened as a file.
+
+        @throws TestFailed If the path can be opened, or opening it fails with
+                           an exception other than
+                           <code>FileNotFoundException</code>.
+     */
+    private void checkNotFound(ChannelCache cache, Path path) throws TestFailed
+    {
+        try
+        {
+            cache.acquire(path).close();
+            throw new TestFailed(path + " was opened as a file");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(FileNotFoundException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("opening " + path + " threw an unexpected " +
+                                 "exception", t);
+        }
+    }
+}
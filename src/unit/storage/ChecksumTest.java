@@ -0,0 +1,277 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+/** Checks that a storage server keeps block checksums and uses them.
+
+    <p>
+    The test writes a file of several blocks to one storage server and an
+    older copy of it to another. Properties checked are:
+    <ul>
+    <li><code>checksums</code> returns the CRC32C of each block of the
+        file.</li>
+    <li>A copy onto the older copy leaves the file with the contents and
+        checksums of the source.</li>
+    <li>After a byte of the file is damaged on the disk, reads of its block
+        raise <code>ChecksumException</code>, while reads of the other blocks
+        succeed.</li>
+    <li>The same holds for a file that is written but never synced, whose
+        checksums are taken from the bytes written rather than from the disk
+        when it is first read.</li>
+    <li>The checksums of that file are saved when they leave memory, so that
+        a server started afterwards on the same directory also finds the
+        damage.</li>
+    </ul>
+ */
+public class ChecksumTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that block checksums are kept, copied and verified";
+
+    /** Length of the file, which ends in a short block. */
+    private static final int    LENGTH = 3 * Checksums.BLOCK + 1000;
+    /** Block of the file damaged by the test. */
+    private static final int    DAMAGED = 1;
+    /** Number of files written to push the checksums of others out of
+        memory, the default number the server keeps. */
+    private static final int    EVICTING = 128;
+
+    /** Path of the file, relative to the roots of the servers. */
+    private final Path          file = new Path("/file");
+    /** Path of the file written without being synced. */
+    private final Path          unsynced = new Path("/unsynced");
+    /** Contents of the file. */
+    private final byte[]        contents = new byte[LENGTH];
+
+    /** Directory served by the source server. */
+    private TemporaryDirectory  source_directory = null;
+    /** Directory served by the server holding the older copy. */
+    private TemporaryDirectory  copy_directory = null;
+    /** Server holding the file. */
+    private StorageServer       source = null;
+    /** Server holding an older copy of the file. */
+    private StorageServer       copy = null;
+
+    /** Creates the directories and the servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        new Random(23).nextBytes(contents);
+
+        byte[]  older = Arrays.copyOf(contents, LENGTH - 500);
+        older[2 * Checksums.BLOCK + 10] ^= 1;
+
+        try
+        {
+            source_directory = new TemporaryDirectory();
+            copy_directory = new TemporaryDirectory();
+            Files.write(new File(copy_directory.root(), "file").toPath(),
+                        older);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files", t);
+        }
+
+        source = new StorageServer(source_directory.root());
+        copy = new StorageServer(copy_directory.root());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("writing the file");
+        try
+        {
+            source.create(file);
+            source.write(file, 0, contents);
+            source.sync(file);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write the file", t);
+        }
+
+        task("checking the checksums of the file");
+        int[]   expected = checksums(contents);
+        try
+        {
+            if(!Arrays.equals(source.checksums(file), expected))
+                throw new TestFailed("checksums returned the wrong sums");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to get the checksums", t);
+        }
+
+        task("copying the file onto an older copy");
+        try
+        {
+            copy.copy(file, source);
+
+            byte[]  copied = copy.read(file, 0, LENGTH);
+            if(!Arrays.equals(copied, contents))
+                throw new TestFailed("copy has the wrong contents");
+
+            if(!Arrays.equals(copy.checksums(file), expected))
+                throw new TestFailed("copy has the wrong checksums");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to copy the file", t);
+        }
+
+        task("damaging a block of the file");
+        damage(source_directory, "file");
+
+        task("reading the damaged block");
+        expectChecksumException(source, file);
+
+        task("reading the other blocks");
+        try
+        {
+            byte[]  first = source.read(file, 0, Checksums.BLOCK);
+            if(!Arrays.equals(first,
+                              Arrays.copyOf(contents, Checksums.BLOCK)))
+            {
+                throw new TestFailed("first block has the wrong contents");
+            }
+
+            long    offset = (long)(DAMAGED + 1) * Checksums.BLOCK;
+            source.read(file, offset, (int)(LENGTH - offset));
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read undamaged blocks", t);
+        }
+
+        task("writing a file without syncing it");
+        try
+        {
+            source.create(unsynced);
+            source.write(unsynced, 0, contents);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write the file", t);
+        }
+
+        task("damaging the file before it is read");
+        damage(source_directory, "unsynced");
+
+        task("reading the damaged block of the file");
+        expectChecksumException(source, unsynced);
+
+        task("reading the file on a server started after its checksums " +
+             "leave memory");
+        try
+        {
+            for(int other = 0; other < EVICTING; ++other)
+            {
+                Path    path = new Path("/other" + other);
+                source.create(path);
+                source.write(path, 0, new byte[] {(byte)other});
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write other files", t);
+        }
+
+        expectChecksumException(new StorageServer(source_directory.root()),
+                                unsynced);
+
+        task();
+    }
+
+    /** Removes the temporary directories. */
+    @Override
+    protected void clean()
+    {
+        if(source_directory != null)
+        {
+            source_directory.remove();
+            source_directory = null;
+        }
+
+        if(copy_directory != null)
+        {
+            copy_directory.remove();
+            copy_directory = null;
+        }
+    }
+
+    /** Flips a bit of the damaged block of a file, on the disk. */
+    private void damage(TemporaryDirectory directory, String name)
+        throws TestFailed
+    {
+        try
+        {
+            RandomAccessFile    damaged =
+                new RandomAccessFile(new File(directory.root(), name), "rw");
+            try
+            {
+                long    position = (long)DAMAGED * Checksums.BLOCK + 100;
+                damaged.seek(position);
+                damaged.write(contents[(int)position] ^ 0x40);
+            }
+            finally
+            {
+                damaged.close();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to damage the file", t);
+        }
+    }
+
+    /** Checks that a read of the damaged block of a file raises
+        <code>ChecksumException</code>. */
+    private static void expectChecksumException(StorageServer server,
+                                                Path path) throws TestFailed
+    {
+        try
+        {
+            server.read(path, (long)DAMAGED * Checksums.BLOCK + 50, 100);
+            throw new TestFailed("damaged block read without an error");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(ChecksumException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("read of the damaged block threw an " +
+                                 "unexpected exception", t);
+        }
+    }
+
+    /** Computes the CRC32C of each block of an array. */
+    private static int[] checksums(byte[] data)
+    {
+        int[]   sums = new int[(data.length + Checksums.BLOCK - 1) /
+                               Checksums.BLOCK];
+        for(int block = 0; block < sums.length; ++block)
+        {
+            int     start = block * Checksums.BLOCK;
+            CRC32C  crc = new CRC32C();
+            crc.update(data, start,
+                       Math.min(Checksums.BLOCK, data.length - start));
+            sums[block] = (int)crc.getValue();
+        }
+
+        return sums;
+    }
+}
@@ -0,0 +1,229 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.io.*;
+
+/** Checks that a storage server serves other files during a copy, and does
+    not show a file until its copy is complete.
+
+    <p>
+    The test starts a copy of a file from a source server whose reads block
+    until the test releases them. While the copy is stalled, properties
+    checked are:
+    <ul>
+    <li>Another file can be read.</li>
+    <li>The file being copied does not exist until the copy finishes, and
+        then has the size of the copied file.</li>
+    </ul>
+ */
+public class ConcurrentAccessTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that a slow copy does not block access to other files";
+
+    /** Length of the copied file. */
+    private static final int    LENGTH = 1000;
+    /** File copied from the source server. */
+    private final Path          copied = new Path("/copied");
+    /** File read while the copy is in progress. */
+    private final Path          other = new Path("/directory/other");
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory = null;
+    /** Storage server under test. */
+    private StorageServer       server = null;
+
+    /** Set when the copy has requested data from the source server. */
+    private boolean             copying = false;
+    /** Set to let the source server return the data. */
+    private boolean             release = false;
+    /** Set when the copy thread has finished. */
+    private boolean             finished = false;
+    /** Set by <code>clean</code> to wake all threads. */
+    private boolean             wake_all = false;
+
+    /** Creates the directory and the file read during the copy. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"directory", "other"}, "other file");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files", t);
+        }
+
+        server = new StorageServer(directory.root());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("starting a copy from a stalled source server");
+        new Thread(new CopyThread()).start();
+        synchronized(this)
+        {
+            while(!copying && !wake_all)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        task("reading another file while a copy is in progress");
+        try
+        {
+            if(server.read(other, 0, 5).length != 5)
+                throw new TestFailed("read returned the wrong length");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read another file during a copy",
+                                 t);
+        }
+
+        task("checking that a file being copied is not shown");
+        try
+        {
+            server.size(copied);
+            throw new TestFailed("size of a file was returned while the " +
+                                 "file was being copied");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(FileNotFoundException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception when getting the " +
+                                 "size of a file being copied", t);
+        }
+
+        task("waiting for the copy to finish");
+        synchronized(this)
+        {
+            release = true;
+            notifyAll();
+
+            while(!finished && !wake_all)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        try
+        {
+            long    size = server.size(copied);
+            if(size != LENGTH)
+            {
+                throw new TestFailed("size of the copied file is " + size +
+                                     " bytes rather than " + LENGTH);
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to get size of copied file", t);
+        }
+
+        task();
+    }
+
+    /** Removes the temporary directory and wakes all threads. */
+    @Override
+    protected void clean()
+    {
+        synchronized(this)
+        {
+            wake_all = true;
+            notifyAll();
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Marks the copy thread as finished. */
+    private synchronized void finished()
+    {
+        finished = true;
+        notifyAll();
+    }
+
+    /** Thread copying the file from the stalled source server. */
+    private class CopyThread implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                if(!server.copy(copied, new StalledSource()))
+                    failure(new TestFailed("copy failed"));
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to copy file", t));
+            }
+            finally
+            {
+                finished();
+            }
+        }
+    }
+
+    /** Source server whose reads wait until the test releases them. */
+    private class StalledSource implements Storage
+    {
+        @Override
+        public long size(Path file)
+        {
+            return LENGTH;
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+        {
+            synchronized(ConcurrentAccessTest.this)
+            {
+                copying = true;
+                ConcurrentAccessTest.this.notifyAll();
+
+                while(!release && !wake_all)
+                {
+                    try
+                    {
+                        ConcurrentAccessTest.this.wait();
+                    }
+                    catch(InterruptedException e) { }
+                }
+            }
+
+            return new byte[length];
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package storage;
+
+import test.*;
+import common.*;
+import rmi.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/** Checks that a copy onto an older copy of a file pulls only its
+    differences.
+
+    <p>
+    The test holds a file on one storage server, and on another an older copy
+    of it that lacks a few bytes inserted near its start and a few appended
+    at its end. It copies the file onto the older copy through a source that
+    counts the bytes of file contents it returns. Properties checked are:
+    <ul>
+    <li>The copy has the contents of the file.</li>
+    <li>Fewer bytes are received than a few blocks, rather than the whole
+        file, although every block after the insertion has moved.</li>
+    </ul>
+ */
+public class DeltaTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that a copy onto an older copy pulls only its differences";
+
+    /** Length of the older copy. */
+    private static final int    OLDER_LENGTH = 40 * Delta.BLOCK + 123;
+    /** Offset at which bytes are inserted into the file. */
+    private static final int    INSERTED_AT = 3 * Delta.BLOCK + 17;
+    /** Number of bytes inserted. */
+    private static final int    INSERTED = 1000;
+    /** Number of bytes appended. */
+    private static final int    APPENDED = 5000;
+    /** Most bytes the copy may receive: the bytes added, and the blocks they
+        touch. */
+    private static final long   ALLOWED = INSERTED + APPENDED + 3 * Delta.BLOCK;
+
+    /** Path of the file, relative to the roots of the servers. */
+    private final Path          file = new Path("/file");
+    /** Contents of the file. */
+    private byte[]              contents;
+
+    /** Directory served by the source server. */
+    private TemporaryDirectory  source_directory = null;
+    /** Directory served by the server holding the older copy. */
+    private TemporaryDirectory  copy_directory = null;
+    /** Server holding the file. */
+    private StorageServer       source = null;
+    /** Server holding the older copy of the file. */
+    private StorageServer       copy = null;
+
+    /** Bytes of file contents returned by the source. */
+    private long                received = 0;
+
+    /** Creates the directories, the file and its older copy, and the
+        servers. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Random      random = new Random(24);
+        byte[]      older = new byte[OLDER_LENGTH];
+        random.nextBytes(older);
+
+        byte[]      inserted = new byte[INSERTED];
+        byte[]      appended = new byte[APPENDED];
+        random.nextBytes(inserted);
+        random.nextBytes(appended);
+
+        ByteArrayOutputStream   stream = new ByteArrayOutputStream();
+        stream.write(older, 0, INSERTED_AT);
+        stream.write(inserted, 0, INSERTED);
+        stream.write(older, INSERTED_AT, OLDER_LENGTH - INSERTED_AT);
+        stream.write(appended, 0, APPENDED);
+        contents = stream.toByteArray();
+
+        try
+        {
+            source_directory = new TemporaryDirectory();
+            copy_directory = new TemporaryDirectory();
+            Files.write(new File(source_directory.root(), "file").toPath(),
+                        contents);
+            Files.write(new File(copy_directory.root(), "file").toPath(),
+                        older);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files", t);
+        }
+
+        source = new StorageServer(source_directory.root());
+        copy = new StorageServer(copy_directory.root());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            copy.copy(file, new CountingStorage());
+
+            byte[]  copied = copy.read(file, 0, contents.length);
+            if(!Arrays.equals(copied, contents))
+                throw new TestFailed("copy has the wrong contents");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to copy the file", t);
+        }
+
+        if(received > ALLOWED)
+        {
+            throw new TestFailed("copy received " + received + " bytes of " +
+                                 "a " + contents.length + "-byte file");
+        }
+    }
+
+    /** Removes the temporary directories. */
+    @Override
+    protected void clean()
+    {
+        if(source_directory != null)
+        {
+            source_directory.remove();
+            source_directory = null;
+        }
+
+        if(copy_directory != null)
+        {
+            copy_directory.remove();
+            copy_directory = null;
+        }
+    }
+
+    /** Source passing calls to the source server, and counting the bytes of
+        file contents it returns. */
+    private class CountingStorage implements Storage
+    {
+        @Override
+        public long size(Path file) throws RMIException, FileNotFoundException
+        {
+            return source.size(file);
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws RMIException, FileNotFoundException, IOException
+        {
+            byte[]  result = source.read(file, offset, length);
+            received += result.length;
+            return result;
+        }
+
+        @Override
+        public byte[][] readRanges(Path file, long[] offsets, int[] lengths)
+            throws RMIException, FileNotFoundException, IOException
+        {
+            byte[][]    result = source.readRanges(file, offsets, lengths);
+            for(byte[] range : result)
+                received += range.length;
+            return result;
+        }
+
+        @Override
+        public int[] checksums(Path file)
+            throws RMIException, FileNotFoundException, IOException
+        {
+            return source.checksums(file);
+        }
+
+        @Override
+        public byte[] delta(Path file, long offset, int length, int[] weak,
+                            int[] strong)
+            throws RMIException, FileNotFoundException, IOException
+        {
+            byte[]  result = source.delta(file, offset, length, weak, strong);
+            received += result.length;
+            return result;
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+            throw new UnsupportedOperationException("source written");
+        }
+    }
+}
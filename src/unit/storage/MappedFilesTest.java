@@ -0,0 +1,205 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/** Checks reads of files through memory mappings.
+
+    <p>
+    The test maps files in small segments, under a budget that holds one file
+    at a time. Properties checked are:
+    <ul>
+    <li>Reads return the bytes of the file, including reads that span
+        segments.</li>
+    <li>Files shorter than the threshold are not mapped.</li>
+    <li>Mapping a file beyond the budget unmaps the file read least
+        recently.</li>
+    <li>A file that has grown past its mapping is mapped again.</li>
+    <li>Forgetting a file unmaps it.</li>
+    </ul>
+ */
+public class MappedFilesTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking reads of files through memory mappings";
+
+    /** Length of the large files. */
+    private static final int    LENGTH = 10000;
+    /** Length from which files are mapped. */
+    private static final int    THRESHOLD = 1000;
+    /** Most bytes mapped at once: one large file, and a little more. */
+    private static final int    BUDGET = LENGTH + LENGTH / 2;
+    /** Length of the segments files are mapped in. */
+    private static final int    SEGMENT = 4096;
+
+    /** Directory holding the files. */
+    private TemporaryDirectory  directory = null;
+    /** Contents of the first large file. */
+    private final byte[]        first = new byte[LENGTH];
+    /** Contents of the second large file. */
+    private final byte[]        second = new byte[LENGTH];
+    /** Open channels, closed by <code>clean</code>. */
+    private final List<FileChannel> channels = new ArrayList<FileChannel>();
+
+    /** Creates the directory and the files read by the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        Random      random = new Random(19);
+        random.nextBytes(first);
+        random.nextBytes(second);
+
+        try
+        {
+            directory = new TemporaryDirectory();
+            Files.write(new File(directory.root(), "first").toPath(), first);
+            Files.write(new File(directory.root(), "second").toPath(), second);
+            Files.write(new File(directory.root(), "small").toPath(),
+                        new byte[THRESHOLD - 1]);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        MappedFiles         mappings =
+            new MappedFiles(THRESHOLD, BUDGET, SEGMENT);
+        Path                firstPath = new Path("/first");
+        Path                secondPath = new Path("/second");
+
+        try
+        {
+            FileChannel     firstChannel = open("first");
+            FileChannel     secondChannel = open("second");
+
+            check(mappings, firstPath, firstChannel, first, 0, LENGTH);
+            check(mappings, firstPath, firstChannel, first, SEGMENT - 10, 20);
+            check(mappings, firstPath, firstChannel, first, 100,
+                  2 * SEGMENT + 1);
+            check(mappings, firstPath, firstChannel, first, LENGTH - 1, 1);
+            checkMapped(mappings, LENGTH);
+
+            if(mappings.read(new Path("/small"), open("small"), 0,
+                             new byte[10], 0, 10))
+            {
+                throw new TestFailed("file shorter than the threshold was " +
+                                     "mapped");
+            }
+            checkMapped(mappings, LENGTH);
+
+            check(mappings, secondPath, secondChannel, second, 5000, 3000);
+            checkMapped(mappings, LENGTH);
+
+            // Grow the second file, and read past its old end.
+            byte[]      grown = Arrays.copyOf(second, LENGTH + 100);
+            Arrays.fill(grown, LENGTH, grown.length, (byte)7);
+            secondChannel.write(ByteBuffer.wrap(grown, LENGTH, 100), LENGTH);
+            check(mappings, secondPath, secondChannel, grown, LENGTH - 50, 150);
+            checkMapped(mappings, LENGTH + 100);
+
+            mappings.forget(new Path("/"));
+            checkMapped(mappings, 0);
+            check(mappings, firstPath, firstChannel, first, 0, 10);
+            mappings.clear();
+            checkMapped(mappings, 0);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read through mappings", t);
+        }
+    }
+
+    /** Closes the channels and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        synchronized(channels)
+        {
+            for(FileChannel channel : channels)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch(IOException e) { }
+            }
+            channels.clear();
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Opens a file in the temporary directory for reading and writing. */
+    private FileChannel open(String name) throws IOException
+    {
+        FileChannel     channel =
+            FileChannel.open(new File(directory.root(), name).toPath(),
+                             StandardOpenOption.READ,
+                             StandardOpenOption.WRITE);
+        synchronized(channels)
+        {
+            channels.add(channel);
+        }
+        return channel;
+    }
+
+    /** Reads a range of a file through its mapping and checks the bytes read.
+
+        @throws TestFailed If the file is not mapped, or the bytes differ from
+                           the expected contents.
+     */
+    private void check(MappedFiles mappings, Path file, FileChannel channel,
+                       byte[] contents, int position, int length)
+        throws TestFailed, IOException
+    {
+        byte[]      target = new byte[length + 2];
+        if(!mappings.read(file, channel, position, target, 1, length))
+            throw new TestFailed(file + " was not mapped");
+
+        if(!Arrays.equals(Arrays.copyOfRange(target, 1, length + 1),
+                          Arrays.copyOfRange(contents, position,
+                                             position + length)))
+        {
+            throw new TestFailed("read of " + length + " bytes at " +
+                                 position + " in " + file +
+                                 " returned the wrong bytes");
+        }
+
+        if(target[0] != 0 || target[length + 1] != 0)
+            throw new TestFailed("read wrote outside its range");
+    }
+
+    /** Checks the number of bytes mapped.
+
+        @throws TestFailed If the number differs from the one expected.
+     */
+    private void checkMapped(MappedFiles mappings, long expected)
+        throws TestFailed
+    {
+        if(mappings.mappedBytes() != expected)
+        {
+            throw new TestFailed(mappings.mappedBytes() + " bytes are " +
+                                 "mapped rather than " + expected);
+        }
+    }
+}
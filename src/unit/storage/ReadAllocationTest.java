@@ -0,0 +1,181 @@
+package storage;
+
+import test.*;
+import common.*;
+import rmi.*;
+import java.io.*;
+import java.lang.management.*;
+
+/** Checks that large reads through a stub allocate no heap memory beyond the
+    arrays they return.
+
+    <p>
+    The test reads 256 kilobytes at a time from a storage server through a
+    skeleton and a stub, and measures the memory allocated by all threads
+    meanwhile. A read necessarily allocates the array returned by the storage
+    server and the array returned by the stub. Frames are marshalled into and
+    received in pooled buffers, so once the pool has warmed up, the rest of the
+    call should allocate far less than one more copy of the data.
+ */
+public class ReadAllocationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that large reads through a stub allocate no frame buffers";
+
+    /** Number of bytes read by each call. */
+    private static final int    LENGTH = 256 * 1024;
+    /** Length of the file read. */
+    private static final int    FILE_LENGTH = 4 * LENGTH;
+    /** Calls made to warm up the buffer pool before measuring. */
+    private static final int    WARM_UP_CALLS = 8;
+    /** Calls whose allocations are measured. */
+    private static final int    MEASURED_CALLS = 8;
+    /** Most memory a call may allocate: the two arrays holding the data,
+        and half a copy more for everything else. */
+    private static final long   ALLOWED = 2 * LENGTH + LENGTH / 2;
+
+    /** Path of the file read, relative to the root of the server. */
+    private final Path          file = new Path("/file");
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory = null;
+    /** Skeleton serving the storage server. */
+    private Skeleton<Storage>   skeleton = null;
+
+    /** Creates the directory and the file read by the test, and starts the
+        skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            RandomAccessFile    sparse =
+                new RandomAccessFile(new File(directory.root(), "file"), "rw");
+            try
+            {
+                sparse.setLength(FILE_LENGTH);
+            }
+            finally
+            {
+                sparse.close();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the file to read", t);
+        }
+
+        skeleton = new Skeleton<Storage>(Storage.class,
+                                         new StorageServer(directory.root()));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ThreadMXBean        threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+            throw new TestFailed("allocation counters are not available");
+
+        com.sun.management.ThreadMXBean allocations =
+            (com.sun.management.ThreadMXBean)threads;
+        if(!allocations.isThreadAllocatedMemorySupported())
+            throw new TestFailed("allocation counters are not available");
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        Storage             stub;
+        try
+        {
+            stub = Stub.create(Storage.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        read(stub, WARM_UP_CALLS);
+        long                before = allocated(allocations);
+        read(stub, MEASURED_CALLS);
+        long                perCall =
+            (allocated(allocations) - before) / MEASURED_CALLS;
+
+        if(perCall > ALLOWED)
+        {
+            throw new TestFailed("a read of " + LENGTH + " bytes allocates " +
+                                 perCall + " bytes");
+        }
+    }
+
+    /** Stops the skeleton and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Reads from the file through the stub a number of times.
+
+        @throws TestFailed If a read fails or returns the wrong number of
+                           bytes.
+     */
+    private void read(Storage stub, int calls) throws TestFailed
+    {
+        try
+        {
+            for(int call = 0; call < calls; ++call)
+            {
+                long    offset = (long)(call % (FILE_LENGTH / LENGTH)) * LENGTH;
+                if(stub.read(file, offset, LENGTH).length != LENGTH)
+                    throw new TestFailed("read returned the wrong length");
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read through the stub", t);
+        }
+    }
+
+    /** Returns the number of bytes allocated so far by the threads that are
+        still alive. */
+    private static long allocated(com.sun.management.ThreadMXBean allocations)
+    {
+        long        total = 0;
+        for(long bytes :
+                allocations.getThreadAllocatedBytes(allocations.getAllThreadIds()))
+        {
+            if(bytes > 0)
+                total += bytes;
+        }
+
+        return total;
+    }
+}
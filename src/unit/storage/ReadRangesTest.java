@@ -0,0 +1,177 @@
+package storage;
+
+import test.*;
+import common.*;
+import rmi.*;
+import java.io.*;
+import java.util.*;
+
+/** Checks that several ranges of a file are read correctly in one call.
+
+    <p>
+    The test writes a file of known contents and reads ranges of it through a
+    skeleton and a stub with <code>readRanges</code>. Properties checked are:
+    <ul>
+    <li>Each range holds the bytes of the file at its offset, whatever the
+        order of the ranges, including overlapping, empty and final
+        ranges.</li>
+    <li>A range outside the bounds of the file causes
+        <code>IndexOutOfBoundsException</code>.</li>
+    <li>Offsets and lengths of different numbers cause
+        <code>IllegalArgumentException</code>.</li>
+    </ul>
+ */
+public class ReadRangesTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that ranges of a file are read correctly in one call";
+
+    /** Length of the file read. */
+    private static final int    FILE_LENGTH = 300000;
+
+    /** Path of the file read, relative to the root of the server. */
+    private final Path          file = new Path("/file");
+    /** Contents of the file. */
+    private final byte[]        contents = new byte[FILE_LENGTH];
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory = null;
+    /** Skeleton serving the storage server. */
+    private Skeleton<Storage>   skeleton = null;
+
+    /** Creates the directory and the file read by the test, and starts the
+        skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        new Random(16).nextBytes(contents);
+
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            FileOutputStream    stream =
+                new FileOutputStream(new File(directory.root(), "file"));
+            try
+            {
+                stream.write(contents);
+            }
+            finally
+            {
+                stream.close();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the file to read", t);
+        }
+
+        skeleton = new Skeleton<Storage>(Storage.class,
+                                         new StorageServer(directory.root()));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Storage             stub;
+        try
+        {
+            stub = Stub.create(Storage.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        long[]              offsets =
+            {200000, 0, 7, 100, FILE_LENGTH - 1000, 50, 12345};
+        int[]               lengths =
+            {65536, 10, 0, 100000, 1000, 100, 1};
+
+        byte[][]            ranges;
+        try
+        {
+            ranges = stub.readRanges(file, offsets, lengths);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read ranges through the stub", t);
+        }
+
+        if(ranges.length != offsets.length)
+            throw new TestFailed("readRanges returned the wrong number of ranges");
+
+        for(int index = 0; index < offsets.length; ++index)
+        {
+            int     offset = (int)offsets[index];
+            byte[]  expected =
+                Arrays.copyOfRange(contents, offset, offset + lengths[index]);
+            if(!Arrays.equals(ranges[index], expected))
+            {
+                throw new TestFailed("range at offset " + offset +
+                                     " has the wrong contents");
+            }
+        }
+
+        try
+        {
+            stub.readRanges(file, new long[] {0, FILE_LENGTH - 10},
+                            new int[] {10, 11});
+            throw new TestFailed("readRanges accepted a range past the end " +
+                                 "of the file");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IndexOutOfBoundsException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("readRanges threw an unexpected exception " +
+                                 "for a range past the end of the file", t);
+        }
+
+        try
+        {
+            stub.readRanges(file, new long[] {0, 10}, new int[] {10});
+            throw new TestFailed("readRanges accepted offsets and lengths of " +
+                                 "different numbers");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(IllegalArgumentException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("readRanges threw an unexpected exception " +
+                                 "for offsets and lengths of different " +
+                                 "numbers", t);
+        }
+    }
+
+    /** Stops the skeleton and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
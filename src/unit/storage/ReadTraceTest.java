@@ -0,0 +1,261 @@
+package storage;
+
+import test.*;
+import common.*;
+import rmi.*;
+import java.io.*;
+import java.lang.management.*;
+
+/** Checks that reads build no trace messages while tracing is off.
+
+    <p>
+    The test reads from a storage server, directly and through a skeleton and
+    a stub, with tracing off for the <code>rmi</code> and <code>storage</code>
+    packages. Properties checked are:
+    <ul>
+    <li>No trace message is written during the reads.</li>
+    <li>The memory allocated by a direct <code>read</code> does not depend on
+        the offset read from. A trace message mentioning the offset, if it was
+        built, would be longer for a long offset than for a short one, and so
+        would its boxed value.</li>
+    </ul>
+
+    <p>
+    To show that the measurement would see such messages, the allocations are
+    also compared with tracing turned on, when they must differ.
+ */
+public class ReadTraceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that reads allocate no trace messages when tracing is off";
+
+    /** Number of bytes read by each call. */
+    private static final int    LENGTH = 16;
+    /** Offset whose decimal form is one digit long. */
+    private static final long   SHORT_OFFSET = 7;
+    /** Offset whose decimal form is ten digits long. */
+    private static final long   LONG_OFFSET = 1000000007L;
+    /** Calls made to warm up the code before measuring it. */
+    private static final int    WARM_UP_CALLS = 20000;
+    /** Calls whose allocations are measured. */
+    private static final int    MEASURED_CALLS = 10000;
+    /** Calls made through the stub. */
+    private static final int    REMOTE_CALLS = 1000;
+    /** Smallest difference, in bytes per call, that a message mentioning the
+        offset would make: its nine extra characters take at least eight more
+        bytes, as objects are aligned to eight bytes. */
+    private static final long   VISIBLE_DIFFERENCE = 8;
+
+    /** Path of the file read, relative to the root of the server. */
+    private final Path          file = new Path("/file");
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory = null;
+    /** Storage server under test. */
+    private StorageServer       server;
+    /** Skeleton serving the storage server. */
+    private Skeleton<Storage>   skeleton = null;
+    /** Stream counting the trace messages written. */
+    private CountingStream      output;
+
+    /** Creates the directory and the sparse file read by the test, and starts
+        the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            RandomAccessFile    sparse =
+                new RandomAccessFile(new File(directory.root(), "file"), "rw");
+            try
+            {
+                sparse.setLength(LONG_OFFSET + LENGTH);
+            }
+            finally
+            {
+                sparse.close();
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the file to read", t);
+        }
+
+        server = new StorageServer(directory.root());
+        skeleton = new Skeleton<Storage>(Storage.class, server);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+
+        output = new CountingStream();
+        Trace.setOutput(output);
+        Trace.setLevel("rmi", null);
+        Trace.setLevel("storage", null);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ThreadMXBean        threads = ManagementFactory.getThreadMXBean();
+        if(!(threads instanceof com.sun.management.ThreadMXBean))
+            throw new TestFailed("allocation counters are not available");
+
+        com.sun.management.ThreadMXBean allocations =
+            (com.sun.management.ThreadMXBean)threads;
+        if(!allocations.isThreadAllocatedMemorySupported())
+            throw new TestFailed("allocation counters are not available");
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        Storage             stub;
+        try
+        {
+            stub = Stub.create(Storage.class, skeleton);
+            for(int call = 0; call < REMOTE_CALLS; ++call)
+                stub.read(file, SHORT_OFFSET, LENGTH);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read through the stub", t);
+        }
+
+        if(output.lines != 0)
+        {
+            throw new TestFailed("trace messages written while tracing is " +
+                                 "off");
+        }
+
+        // Compare the allocations of reads at offsets of different lengths.
+        long                difference = difference(allocations);
+        if(difference >= VISIBLE_DIFFERENCE)
+        {
+            throw new TestFailed("reads at different offsets allocate " +
+                                 "different amounts of memory while tracing " +
+                                 "is off: " + difference + " bytes per call");
+        }
+
+        if(output.lines != 0)
+        {
+            throw new TestFailed("trace messages written while tracing is " +
+                                 "off");
+        }
+
+        // Check that the comparison can see trace messages.
+        Trace.setLevel("storage", Trace.Level.DEBUG);
+        try
+        {
+            difference = difference(allocations);
+        }
+        finally
+        {
+            Trace.setLevel("storage", null);
+        }
+
+        if(output.lines == 0)
+            throw new TestFailed("no trace messages written with tracing on");
+
+        if(difference < VISIBLE_DIFFERENCE)
+        {
+            throw new TestFailed("trace messages written with tracing on " +
+                                 "were not seen by the allocation counters");
+        }
+    }
+
+    /** Stops the skeleton, removes the temporary directory and restores the
+        trace output. */
+    @Override
+    protected void clean()
+    {
+        Trace.setOutput(System.out);
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Returns the difference, in bytes per call, between the memory
+        allocated by reads at the long offset and by reads at the short
+        offset.
+
+        @throws TestFailed If a read fails.
+     */
+    private long difference(com.sun.management.ThreadMXBean allocations)
+        throws TestFailed
+    {
+        allocated(allocations, SHORT_OFFSET, WARM_UP_CALLS);
+        allocated(allocations, LONG_OFFSET, WARM_UP_CALLS);
+
+        long    shortOffset = allocated(allocations, SHORT_OFFSET,
+                                        MEASURED_CALLS);
+        long    longOffset = allocated(allocations, LONG_OFFSET,
+                                       MEASURED_CALLS);
+
+        return Math.round((double)(longOffset - shortOffset) /
+                          MEASURED_CALLS);
+    }
+
+    /** Reads from the file directly from the storage server a number of
+        times, and returns the number of bytes allocated by the current thread
+        meanwhile.
+
+        @throws TestFailed If a read fails.
+     */
+    private long allocated(com.sun.management.ThreadMXBean allocations,
+                           long offset, int calls) throws TestFailed
+    {
+        long        thread = Thread.currentThread().getId();
+        long        before = allocations.getThreadAllocatedBytes(thread);
+
+        try
+        {
+            for(int call = 0; call < calls; ++call)
+                server.read(file, offset, LENGTH);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to read from the storage server", t);
+        }
+
+        return allocations.getThreadAllocatedBytes(thread) - before;
+    }
+
+    /** Stream that discards trace messages, counting them. */
+    private static class CountingStream extends PrintStream
+    {
+        /** Number of messages written. */
+        volatile int    lines = 0;
+
+        /** Creates the stream. */
+        CountingStream()
+        {
+            super(new ByteArrayOutputStream());
+        }
+
+        /** Counts a message. */
+        @Override
+        public void println(Object line)
+        {
+            ++lines;
+        }
+    }
+}
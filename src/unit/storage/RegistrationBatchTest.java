@@ -0,0 +1,212 @@
+package storage;
+
+import test.*;
+import common.*;
+import naming.*;
+import java.util.*;
+
+/** Checks that a storage server with many files registers them in batches.
+
+    <p>
+    The test lowers the number of files a registration call carries, creates
+    more files than that, spread over a few directories, and starts a storage
+    server on them. Properties checked are:
+    <ul>
+    <li>The files are sent in several batches, all but the last marked as
+        followed by more, and together they list every file once.</li>
+    <li>Duplicates returned for each batch are deleted by the server.</li>
+    <li>A naming server that takes no batches is sent the whole list in one
+        call.</li>
+    </ul>
+ */
+public class RegistrationBatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that storage servers register many files in batches";
+
+    /** System property setting the number of files in a registration
+        call. */
+    private static final String BATCH_PROPERTY =
+        "dfs.storage.registrationBatch";
+    /** Number of files in a registration call during the test. */
+    private static final int    BATCH = 100;
+    /** Number of files, more than one registration call carries. */
+    private static final int    FILES = 5 * BATCH + 17;
+    /** Number of directories holding them. */
+    private static final int    DIRECTORIES = 16;
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory = null;
+    /** Paths of the files. */
+    private final Set<Path>     expected = new HashSet<Path>();
+    /** Server started last, stopped by <code>clean</code>. */
+    private StorageServer       server = null;
+
+    /** Creates the directory and the files. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            System.setProperty(BATCH_PROPERTY, Integer.toString(BATCH));
+            directory = new TemporaryDirectory();
+            for(int file = 0; file < FILES; ++file)
+            {
+                String[]    components =
+                    new String[] {"d" + (file % DIRECTORIES), "f" + file};
+                directory.add(components);
+                expected.add(new Path("/" + components[0] + "/" +
+                                      components[1]));
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("registering in batches");
+        Path                duplicate = new Path("/d3/f3");
+        BatchNamingServer   batches = new BatchNamingServer(duplicate);
+        start(batches);
+
+        if(batches.calls != (FILES + BATCH - 1) / BATCH)
+            throw new TestFailed("files sent in " + batches.calls + " calls");
+
+        if(!batches.finished)
+            throw new TestFailed("last batch marked as followed by more");
+
+        if(!batches.received.equals(expected))
+            throw new TestFailed("batches do not list every file");
+
+        if(duplicate.toFile(directory.root()).exists())
+            throw new TestFailed("duplicate file not deleted");
+
+        server.stop();
+        server = null;
+
+        task("registering with a naming server that takes no batches");
+        expected.remove(duplicate);
+        WholeNamingServer   whole = new WholeNamingServer();
+        start(whole);
+
+        if(whole.calls != 1)
+            throw new TestFailed("files sent in " + whole.calls + " calls");
+
+        if(!whole.received.equals(expected))
+            throw new TestFailed("whole list does not list every file");
+
+        task();
+    }
+
+    /** Stops the server, removes the temporary directory and restores the
+        number of files in a registration call. */
+    @Override
+    protected void clean()
+    {
+        System.clearProperty(BATCH_PROPERTY);
+
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Starts a storage server registering with the given naming server. */
+    private void start(Registration naming_server) throws TestFailed
+    {
+        server = new StorageServer(directory.root());
+        try
+        {
+            server.start("127.0.0.1", naming_server);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start the storage server", t);
+        }
+    }
+
+    /** Naming server taking files in batches, and asking for one file to be
+        deleted. */
+    private static class BatchNamingServer implements Registration
+    {
+        /** File reported as a duplicate. */
+        private final Path          duplicate;
+        /** Files received. */
+        final Set<Path>             received = new HashSet<Path>();
+        /** Number of calls. */
+        int                         calls = 0;
+        /** Whether the last batch was marked as such. */
+        boolean                     finished = false;
+
+        BatchNamingServer(Path duplicate)
+        {
+            this.duplicate = duplicate;
+        }
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            throw new UnsupportedOperationException("many files sent whole");
+        }
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files, boolean more)
+        {
+            if(finished)
+                throw new IllegalStateException("batch after the last");
+
+            if(files.length > BATCH)
+                throw new IllegalStateException("batch of " + files.length +
+                                                " files");
+
+            ++calls;
+            finished = !more;
+
+            boolean     found = false;
+            for(Path file : files)
+            {
+                if(!received.add(file))
+                    throw new IllegalStateException(file + " sent twice");
+                found |= file.equals(duplicate);
+            }
+
+            return found ? new Path[] {duplicate} : new Path[0];
+        }
+    }
+
+    /** Naming server taking the list of files only whole. */
+    private static class WholeNamingServer implements Registration
+    {
+        /** Files received. */
+        final Set<Path>             received = new HashSet<Path>();
+        /** Number of calls. */
+        int                         calls = 0;
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            ++calls;
+            received.addAll(Arrays.asList(files));
+            return new Path[0];
+        }
+    }
+}
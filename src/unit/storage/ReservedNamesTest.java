@@ -0,0 +1,123 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.io.*;
+
+/** Checks that a storage server does not create or copy files under the
+    names it reserves for itself.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li><code>create</code> refuses a file whose name starts with
+        <code>Command.TEMPORARY_PREFIX</code>, or that is under
+        <code>Command.CHECKSUMS_DIRECTORY</code>, and leaves nothing on
+        disk.</li>
+    <li><code>copy</code> and <code>copyChain</code> refuse such a file
+        without asking the source for it.</li>
+    <li>A file whose name only contains the prefix, or that is under a
+        directory named like the directory of the checksums below the root,
+        is created as usual.</li>
+    </ul>
+ */
+public class ReservedNamesTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that storage servers refuse their reserved names";
+
+    /** Directory served by the server. */
+    private TemporaryDirectory  directory = null;
+    /** Server under test. */
+    private StorageServer       server = null;
+
+    /** Creates the directory and the server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the directory", t);
+        }
+
+        server = new StorageServer(directory.root());
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            task("creating a file with a reserved name");
+            checkRefused(new Path("/" + Command.TEMPORARY_PREFIX + "file"));
+            checkRefused(new Path("/directory/" + Command.TEMPORARY_PREFIX));
+
+            task("creating a file under the directory of the checksums");
+            checkRefused(new Path("/" + Command.CHECKSUMS_DIRECTORY + "/file"));
+
+            task("creating a file whose name contains the prefix");
+            Path        file = new Path("/file" + Command.TEMPORARY_PREFIX);
+            if(!server.create(file) || !file.toFile(directory.root()).isFile())
+                throw new TestFailed("file with an unreserved name refused");
+
+            task("creating a file under a directory named like the " +
+                 "directory of the checksums");
+            file = new Path("/directory/" + Command.CHECKSUMS_DIRECTORY +
+                            "/file");
+            if(!server.create(file) || !file.toFile(directory.root()).isFile())
+                throw new TestFailed("file with an unreserved name refused");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+
+        task();
+    }
+
+    /** Removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Checks that the server refuses to create or copy a file. */
+    private void checkRefused(Path file) throws Throwable
+    {
+        if(server.create(file))
+            throw new TestFailed("created " + file);
+        if(file.toFile(directory.root()).exists())
+            throw new TestFailed("refused " + file + " left on disk");
+
+        Storage     source = new StorageServer(directory.root())
+        {
+            @Override
+            public long size(Path path)
+            {
+                throw new IllegalStateException("source asked for " + path);
+            }
+        };
+
+        if(server.copy(file, source))
+            throw new TestFailed("copied " + file);
+        if(server.copyChain(file, source, new Command[0]) != 0)
+            throw new TestFailed("copied " + file + " along a chain");
+        if(file.toFile(directory.root()).exists())
+            throw new TestFailed("refused copy of " + file + " left on disk");
+    }
+}
@@ -0,0 +1,175 @@
+package storage;
+
+import test.*;
+import common.*;
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+/** Checks the write-behind buffer of storage servers.
+
+    <p>
+    Properties checked are:
+    <ul>
+    <li>Small writes are held until the file is flushed, and then written in
+        the order they were made, including writes that overlap.</li>
+    <li>Writes are flushed once a file holds more bytes than the limit.</li>
+    <li>Writes to a file that is discarded are dropped.</li>
+    <li>Under group commit, syncing a file waits for a commit, which writes
+        the file.</li>
+    <li>Closing the buffer writes everything held.</li>
+    </ul>
+ */
+public class WriteBehindTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking the write-behind buffer of storage servers";
+
+    /** Most bytes held for one file. */
+    private static final int    LIMIT = 4096;
+    /** Commit interval long enough that no commit happens during the test. */
+    private static final long   NEVER = 1000000;
+    /** Commit interval used to check group commit, in milliseconds. */
+    private static final long   COMMIT_MILLIS = 20;
+
+    /** Directory holding the files. */
+    private TemporaryDirectory  directory = null;
+    /** Cache of channels on the files. */
+    private ChannelCache        channels = null;
+
+    /** Creates the directory and the files written by the test. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"held"});
+            directory.add(new String[] {"limit"});
+            directory.add(new String[] {"discarded"});
+            directory.add(new String[] {"group"});
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create the files", t);
+        }
+
+        channels = new ChannelCache(directory.root(), 8);
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            WriteBehind     writes =
+                new WriteBehind(channels, null,
+                                WriteBehind.Durability.NONE, LIMIT,
+                                NEVER);
+
+            Path            held = new Path("/held");
+            byte[]          expected = new byte[1000];
+            for(int index = 0; index < 100; ++index)
+            {
+                byte[]      data = new byte[10];
+                Arrays.fill(data, (byte)index);
+                System.arraycopy(data, 0, expected, index * 10, 10);
+                write(writes, held, index * 10, data);
+            }
+            // Overwrite part of what is held with a write that does not
+            // continue the last one.
+            byte[]          patch = new byte[] {-1, -1, -1};
+            System.arraycopy(patch, 0, expected, 15, 3);
+            write(writes, held, 15, patch);
+
+            checkContents("held", new byte[0]);
+            writes.flush(held);
+            checkContents("held", expected);
+
+            Path            limit = new Path("/limit");
+            write(writes, limit, 0, new byte[LIMIT - 1]);
+            checkContents("limit", new byte[0]);
+            write(writes, limit, LIMIT - 1, new byte[] {1});
+            byte[]          full = new byte[LIMIT];
+            full[LIMIT - 1] = 1;
+            checkContents("limit", full);
+
+            Path            discarded = new Path("/discarded");
+            write(writes, discarded, 0, new byte[] {1, 2, 3});
+            writes.discard(discarded);
+            writes.flush(discarded);
+            writes.close();
+            checkContents("discarded", new byte[0]);
+
+            WriteBehind     group =
+                new WriteBehind(channels, null,
+                                WriteBehind.Durability.GROUP, LIMIT,
+                                COMMIT_MILLIS);
+            Path            grouped = new Path("/group");
+            write(group, grouped, 0, new byte[] {1, 2, 3});
+            group.sync(grouped);
+            checkContents("group", new byte[] {1, 2, 3});
+            write(group, grouped, 3, new byte[] {4});
+            group.close();
+            checkContents("group", new byte[] {1, 2, 3, 4});
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to write through the buffer", t);
+        }
+    }
+
+    /** Closes the channels and removes the temporary directory. */
+    @Override
+    protected void clean()
+    {
+        if(channels != null)
+        {
+            channels.clear();
+            channels = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Writes to a file through the buffer. */
+    private void write(WriteBehind writes, Path file, long offset, byte[] data)
+        throws IOException
+    {
+        ChannelCache.Handle     channel = channels.acquire(file);
+        try
+        {
+            writes.write(file, channel.channel(), offset, data);
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+    /** Checks the contents of a file on the local filesystem.
+
+        @throws TestFailed If the contents differ from those expected.
+     */
+    private void checkContents(String name, byte[] expected)
+        throws TestFailed, IOException
+    {
+        byte[]      contents =
+            Files.readAllBytes(new File(directory.root(), name).toPath());
+        if(!Arrays.equals(contents, expected))
+        {
+            throw new TestFailed(name + " holds " + contents.length +
+                                 " bytes other than those expected");
+        }
+    }
+}